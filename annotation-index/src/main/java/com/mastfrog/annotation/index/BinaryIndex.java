@@ -0,0 +1,376 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.index;
+
+import static com.mastfrog.annotation.index.BinaryIndexFormat.COUNT_OFFSET;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.FLAG_KEYED;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.FLAG_ORIGINS;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.HEADER_LENGTH;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.MAGIC;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.STRINGS_LENGTH_OFFSET;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.UTF_8;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.VERSION;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+/**
+ * Reads a binary index written by
+ * <code><a href="BinaryIndexWriter.html">BinaryIndexWriter</a></code>,
+ * typically a registry generated into <code>META-INF</code> by an annotation
+ * processor. Nothing is parsed up front: the index is read in place from a
+ * buffer, which may be memory-mapped, strings are decoded only when asked for
+ * (and then cached), and lookups by key binary-search the raw key bytes
+ * without decoding them.
+ * <p>
+ * Instances are safe to use from multiple threads.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class BinaryIndex implements Iterable<String> {
+
+    private final ByteBuffer buffer;
+    private final boolean keyed;
+    private final boolean hasOrigins;
+    private final int count;
+    private final int entryLength;
+    private final int stringsStart;
+    private final String[] values;
+    private final String[] keys;
+
+    private BinaryIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a binary index");
+        }
+        if (buffer.get(4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary index version "
+                    + buffer.get(4));
+        }
+        keyed = (buffer.get(5) & FLAG_KEYED) != 0;
+        hasOrigins = (buffer.get(5) & FLAG_ORIGINS) != 0;
+        count = buffer.getInt(COUNT_OFFSET);
+        entryLength = 4 + (keyed ? 4 : 0) + (hasOrigins ? 4 : 0);
+        stringsStart = HEADER_LENGTH + count * entryLength;
+        if (count < 0 || (long) stringsStart + buffer.getInt(STRINGS_LENGTH_OFFSET) > buffer.limit()) {
+            throw new IllegalArgumentException("Truncated binary index");
+        }
+        values = new String[count];
+        keys = keyed ? new String[count] : null;
+    }
+
+    /**
+     * Read an index from a buffer, whose contents must not change while the
+     * index is in use.
+     *
+     * @param buffer A buffer, whose position and limit delimit the index
+     * @return An index
+     * @throws IllegalArgumentException if the buffer does not contain an index
+     */
+    public static BinaryIndex open(ByteBuffer buffer) {
+        return new BinaryIndex(buffer.slice());
+    }
+
+    /**
+     * Memory-map an index file.
+     *
+     * @param file The file
+     * @return An index
+     * @throws IOException If the file cannot be read
+     */
+    public static BinaryIndex map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return open(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Read an index from a stream into memory; the stream is not closed.
+     *
+     * @param in A stream
+     * @return An index
+     * @throws IOException If the stream cannot be read
+     */
+    public static BinaryIndex read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        byte[] buf = new byte[8192];
+        for (int read; (read = in.read(buf)) > 0;) {
+            out.write(buf, 0, read);
+        }
+        return open(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    /**
+     * Load every copy of an index resource visible to a class loader, as
+     * registries generated into several JARs would be. Resources in
+     * directories on the classpath are memory-mapped; others are read.
+     *
+     * @param loader A class loader
+     * @param resourcePath The resource path, e.g.
+     * <code>META-INF/registry/things.bin</code>
+     * @return A list of indexes
+     * @throws IOException If one cannot be read
+     */
+    public static List<BinaryIndex> load(ClassLoader loader, String resourcePath) throws IOException {
+        List<BinaryIndex> result = new ArrayList<>(2);
+        Enumeration<URL> urls = loader.getResources(resourcePath);
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            if ("file".equals(url.getProtocol())) {
+                try {
+                    result.add(map(Paths.get(url.toURI())));
+                    continue;
+                } catch (URISyntaxException | IllegalArgumentException ex) {
+                    // fall through and read it as a stream
+                }
+            }
+            try (InputStream in = url.openStream()) {
+                result.add(read(in));
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public boolean isKeyed() {
+        return keyed;
+    }
+
+    /**
+     * Determine if entries in this index record the source types they were
+     * generated from.
+     *
+     * @return true if origins are present
+     */
+    public boolean hasOrigins() {
+        return hasOrigins;
+    }
+
+    /**
+     * Get the value of an entry.
+     *
+     * @param index The entry index
+     * @return The value
+     */
+    public String value(int index) {
+        checkIndex(index);
+        String result = values[index];
+        if (result == null) {
+            values[index] = result = string(buffer.getInt(valueSlot(index)));
+        }
+        return result;
+    }
+
+    /**
+     * Get the key of an entry in a keyed index.
+     *
+     * @param index The entry index
+     * @return The key
+     * @throws IllegalStateException if the index is not keyed
+     */
+    public String key(int index) {
+        checkKeyed();
+        checkIndex(index);
+        String result = keys[index];
+        if (result == null) {
+            keys[index] = result = string(buffer.getInt(entryStart(index)));
+        }
+        return result;
+    }
+
+    /**
+     * Get the origin recorded for an entry, if any.
+     *
+     * @param index The entry index
+     * @return The origin, or null
+     */
+    public String origin(int index) {
+        checkIndex(index);
+        if (!hasOrigins) {
+            return null;
+        }
+        int offset = buffer.getInt(valueSlot(index) + 4);
+        return offset < 0 ? null : string(offset);
+    }
+
+    /**
+     * Find the first entry with a key in a keyed index.
+     *
+     * @param key The key
+     * @return The entry index, or -1
+     * @throws IllegalStateException if the index is not keyed
+     */
+    public int indexOf(String key) {
+        checkKeyed();
+        byte[] target = key.getBytes(UTF_8);
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(mid, target) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < count && compareKey(low, target) == 0 ? low : -1;
+    }
+
+    /**
+     * Get all values for a key in a keyed index, in the order they were
+     * added.
+     *
+     * @param key The key
+     * @return A list of values, empty if the key is not present
+     * @throws IllegalStateException if the index is not keyed
+     */
+    public List<String> values(String key) {
+        int first = indexOf(key);
+        if (first < 0) {
+            return Collections.emptyList();
+        }
+        byte[] target = key.getBytes(UTF_8);
+        List<String> result = new ArrayList<>(2);
+        for (int i = first; i < count && compareKey(i, target) == 0; i++) {
+            result.add(value(i));
+        }
+        return result;
+    }
+
+    /**
+     * Visit each key and value in a keyed index, in key order.
+     *
+     * @param consumer A consumer
+     * @throws IllegalStateException if the index is not keyed
+     */
+    public void forEachEntry(BiConsumer<? super String, ? super String> consumer) {
+        checkKeyed();
+        for (int i = 0; i < count; i++) {
+            consumer.accept(key(i), value(i));
+        }
+    }
+
+    /**
+     * Iterate the values, in key order for keyed indexes and otherwise in the
+     * order they were written.
+     *
+     * @return An iterator
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int ix;
+
+            @Override
+            public boolean hasNext() {
+                return ix < count;
+            }
+
+            @Override
+            public String next() {
+                if (ix >= count) {
+                    throw new NoSuchElementException();
+                }
+                return value(ix++);
+            }
+        };
+    }
+
+    private int entryStart(int index) {
+        return HEADER_LENGTH + index * entryLength;
+    }
+
+    private int valueSlot(int index) {
+        return entryStart(index) + (keyed ? 4 : 0);
+    }
+
+    private int compareKey(int index, byte[] target) {
+        int pos = stringsStart + buffer.getInt(entryStart(index));
+        int length = buffer.getInt(pos);
+        pos += 4;
+        int max = Math.min(length, target.length);
+        for (int i = 0; i < max; i++) {
+            int diff = (buffer.get(pos + i) & 0xFF) - (target[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - target.length;
+    }
+
+    private String string(int offset) {
+        int pos = stringsStart + offset;
+        int length = buffer.getInt(pos);
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + pos + 4, length, UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer dup = buffer.duplicate();
+        // Cast keeps this binary-compatible with JDK 8, where position()
+        // returns Buffer
+        ((Buffer) dup).position(pos + 4);
+        dup.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(index + " of " + count);
+        }
+    }
+
+    private void checkKeyed() {
+        if (!keyed) {
+            throw new IllegalStateException("Index is not keyed");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (keyed ? "keyed" : "unkeyed") + " binary index of " + count + " entries";
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.index;
+
+import java.nio.charset.Charset;
+
+/**
+ * Layout of a binary index, shared by the writer and reader. All numbers are
+ * big-endian.
+ * <pre>
+ * header:  int magic, byte version, byte flags, short reserved,
+ *          int entry count, int string table length
+ * offsets: per entry, int key offset (keyed indexes only), int value offset,
+ *          int origin offset (indexes with origins only, -1 for none) -
+ *          offsets into the string table
+ * strings: per distinct string, int byte length, UTF-8 bytes
+ * </pre>
+ * Entries of keyed indexes are sorted by the unsigned bytes of their keys,
+ * and otherwise stay in the order they were added. Origins record the
+ * source types an entry was generated from, so that a later incremental
+ * compilation can merge its entries with those of types it did not recompile.
+ *
+ * @author Tim Boudreau
+ */
+final class BinaryIndexFormat {
+
+    static final int MAGIC = 0x4D464958; // MFIX
+    static final byte VERSION = 1;
+    static final byte FLAG_KEYED = 1;
+    static final byte FLAG_ORIGINS = 2;
+    static final int HEADER_LENGTH = 16;
+    static final int COUNT_OFFSET = 8;
+    static final int STRINGS_LENGTH_OFFSET = 12;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BinaryIndexFormat() {
+        throw new AssertionError();
+    }
+
+    static int compareUnsigned(byte[] a, byte[] b) {
+        int max = Math.min(a.length, b.length);
+        for (int i = 0; i < max; i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+}
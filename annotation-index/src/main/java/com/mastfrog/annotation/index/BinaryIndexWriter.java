@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.index;
+
+import static com.mastfrog.annotation.index.BinaryIndexFormat.FLAG_KEYED;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.FLAG_ORIGINS;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.MAGIC;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.UTF_8;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.VERSION;
+import static com.mastfrog.annotation.index.BinaryIndexFormat.compareUnsigned;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a binary index which can be read with
+ * <code><a href="BinaryIndex.html">BinaryIndex</a></code>. Strings which occur
+ * more than once are stored once.
+ *
+ * @author Tim Boudreau
+ */
+public final class BinaryIndexWriter {
+
+    private final boolean keyed;
+    private final List<String> keys = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+    private final List<String> origins = new ArrayList<>();
+    private boolean hasOrigins;
+
+    /**
+     * Create a writer.
+     *
+     * @param keyed If true, every entry has a key, and the index supports
+     * lookup by key
+     */
+    public BinaryIndexWriter(boolean keyed) {
+        this.keyed = keyed;
+    }
+
+    public boolean isKeyed() {
+        return keyed;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Add an entry to an index which is not keyed.
+     *
+     * @param value The value
+     * @return this
+     * @throws IllegalStateException if this index is keyed
+     */
+    public BinaryIndexWriter add(String value) {
+        if (keyed) {
+            throw new IllegalStateException("Index is keyed");
+        }
+        values.add(notNull("value", value));
+        origins.add(null);
+        return this;
+    }
+
+    /**
+     * Add an entry to a keyed index. A key may have any number of values.
+     *
+     * @param key The key
+     * @param value The value
+     * @return this
+     * @throws IllegalStateException if this index is not keyed
+     */
+    public BinaryIndexWriter add(String key, String value) {
+        if (!keyed) {
+            throw new IllegalStateException("Index is not keyed");
+        }
+        keys.add(notNull("key", key));
+        values.add(notNull("value", value));
+        origins.add(null);
+        return this;
+    }
+
+    /**
+     * Add an entry, recording the source types it was generated from, so that
+     * a later incremental compilation can tell which entries to keep.
+     *
+     * @param key The key, which must be null if and only if this index is not
+     * keyed
+     * @param value The value
+     * @param origin The origin, e.g. a comma-delimited list of type names, or
+     * null
+     * @return this
+     * @throws IllegalStateException if the presence of the key does not match
+     * whether this index is keyed
+     */
+    public BinaryIndexWriter addWithOrigin(String key, String value, String origin) {
+        if (key == null) {
+            add(value);
+        } else {
+            add(key, value);
+        }
+        if (origin != null) {
+            origins.set(origins.size() - 1, origin);
+            hasOrigins = true;
+        }
+        return this;
+    }
+
+    /**
+     * Write the index; the stream is flushed but not closed.
+     *
+     * @param out The output
+     * @throws IOException If something goes wrong
+     */
+    public void write(OutputStream out) throws IOException {
+        int count = values.size();
+        Map<String, Integer> offsets = new LinkedHashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int stringsLength = 0;
+        int[] keyOffsets = keyed ? new int[count] : null;
+        int[] valueOffsets = new int[count];
+        int[] originOffsets = hasOrigins ? new int[count] : null;
+        byte[][] keyBytes = keyed ? new byte[count][] : null;
+        for (int i = 0; i < count; i++) {
+            for (int k = keyed ? 0 : 1; k < (hasOrigins ? 3 : 2); k++) {
+                String s = k == 0 ? keys.get(i) : k == 1 ? values.get(i) : origins.get(i);
+                if (s == null) {
+                    // Only origins may be null
+                    originOffsets[i] = -1;
+                    continue;
+                }
+                Integer offset = offsets.get(s);
+                byte[] bytes = null;
+                if (offset == null) {
+                    bytes = s.getBytes(UTF_8);
+                    offset = stringsLength;
+                    offsets.put(s, offset);
+                    strings.add(bytes);
+                    stringsLength += 4 + bytes.length;
+                }
+                if (k == 0) {
+                    keyOffsets[i] = offset;
+                    keyBytes[i] = bytes == null ? s.getBytes(UTF_8) : bytes;
+                } else if (k == 1) {
+                    valueOffsets[i] = offset;
+                } else {
+                    originOffsets[i] = offset;
+                }
+            }
+        }
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        if (keyed) {
+            // Stable, so the values of a key stay in the order they were added
+            Arrays.sort(order, (a, b) -> compareUnsigned(keyBytes[a], keyBytes[b]));
+        }
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 16384));
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeByte((keyed ? FLAG_KEYED : 0) | (hasOrigins ? FLAG_ORIGINS : 0));
+        data.writeShort(0);
+        data.writeInt(count);
+        data.writeInt(stringsLength);
+        for (Integer ix : order) {
+            if (keyed) {
+                data.writeInt(keyOffsets[ix]);
+            }
+            data.writeInt(valueOffsets[ix]);
+            if (hasOrigins) {
+                data.writeInt(originOffsets[ix]);
+            }
+        }
+        for (byte[] bytes : strings) {
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+        data.flush();
+    }
+
+    private static String notNull(String what, String val) {
+        if (val == null) {
+            throw new IllegalArgumentException(what + " is null");
+        }
+        return val;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class BinaryIndexTest {
+
+    @Test
+    public void testUnkeyedIndexPreservesOrder() throws IOException {
+        BinaryIndexWriter w = new BinaryIndexWriter(false)
+                .add("com.foo.Zed").add("com.foo.Alpha").add("com.foo.Zed").add("");
+        BinaryIndex ix = BinaryIndex.read(new ByteArrayInputStream(bytes(w)));
+        assertFalse(ix.isKeyed());
+        assertEquals(4, ix.size());
+        List<String> all = new ArrayList<>();
+        ix.forEach(all::add);
+        assertEquals(Arrays.asList("com.foo.Zed", "com.foo.Alpha", "com.foo.Zed", ""), all);
+        assertThrows(IllegalStateException.class, () -> ix.indexOf("x"));
+    }
+
+    @Test
+    public void testKeyedLookup() throws IOException {
+        BinaryIndexWriter w = new BinaryIndexWriter(true)
+                .add("b", "two").add("a", "one").add("b", "three")
+                .add("été", "summer").add("z", "last").add("a", "four");
+        BinaryIndex ix = BinaryIndex.open(ByteBuffer.wrap(bytes(w)));
+        assertTrue(ix.isKeyed());
+        assertEquals(6, ix.size());
+        assertEquals(Arrays.asList("one", "four"), ix.values("a"));
+        assertEquals(Arrays.asList("two", "three"), ix.values("b"));
+        assertEquals(Collections.singletonList("summer"), ix.values("été"));
+        assertEquals(Collections.singletonList("last"), ix.values("z"));
+        assertEquals(Collections.emptyList(), ix.values("c"));
+        assertEquals(Collections.emptyList(), ix.values(""));
+        assertEquals(Collections.emptyList(), ix.values("zz"));
+        assertEquals(-1, ix.indexOf("0"));
+        List<String> keys = new ArrayList<>();
+        ix.forEachEntry((k, v) -> keys.add(k));
+        assertEquals(Arrays.asList("a", "a", "b", "b", "z", "été"), keys);
+    }
+
+    @Test
+    public void testMappedFile() throws IOException {
+        BinaryIndexWriter w = new BinaryIndexWriter(true);
+        for (int i = 0; i < 1000; i++) {
+            w.add("key-" + (i % 100), "value-" + i);
+        }
+        Path file = Files.createTempFile("BinaryIndexTest", ".bin");
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                w.write(out);
+            }
+            BinaryIndex ix = BinaryIndex.map(file);
+            assertEquals(1000, ix.size());
+            for (int i = 0; i < 100; i++) {
+                List<String> vals = ix.values("key-" + i);
+                assertEquals(10, vals.size(), vals::toString);
+                assertEquals("value-" + i, vals.get(0));
+                assertEquals("value-" + (900 + i), vals.get(9));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testOrigins() throws IOException {
+        BinaryIndexWriter w = new BinaryIndexWriter(true)
+                .addWithOrigin("b", "two", "com.foo.B")
+                .add("c", "three")
+                .addWithOrigin("a", "one", "com.foo.A, com.foo.B");
+        BinaryIndex ix = BinaryIndex.open(ByteBuffer.wrap(bytes(w)));
+        assertTrue(ix.hasOrigins());
+        assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(ix.key(0), ix.key(1), ix.key(2)));
+        assertEquals("com.foo.A, com.foo.B", ix.origin(0));
+        assertEquals("com.foo.B", ix.origin(1));
+        assertEquals(null, ix.origin(2));
+        assertEquals(Collections.singletonList("two"), ix.values("b"));
+
+        BinaryIndex plain = BinaryIndex.read(new ByteArrayInputStream(bytes(
+                new BinaryIndexWriter(false).addWithOrigin(null, "x", null))));
+        assertFalse(plain.hasOrigins());
+        assertEquals(null, plain.origin(0));
+        assertEquals("x", plain.value(0));
+    }
+
+    @Test
+    public void testEmptyAndInvalid() throws IOException {
+        BinaryIndex empty = BinaryIndex.open(ByteBuffer.wrap(bytes(new BinaryIndexWriter(true))));
+        assertTrue(empty.isEmpty());
+        assertEquals(-1, empty.indexOf("x"));
+        assertFalse(empty.iterator().hasNext());
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryIndex.open(ByteBuffer.wrap("not an index at all".getBytes("UTF-8"))));
+        assertThrows(IllegalStateException.class, () -> new BinaryIndexWriter(false).add("k", "v"));
+        assertThrows(IllegalStateException.class, () -> new BinaryIndexWriter(true).add("v"));
+    }
+
+    private static byte[] bytes(BinaryIndexWriter w) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        w.write(out);
+        return out.toByteArray();
+    }
+}
@@ -17,10 +17,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
@@ -38,7 +41,6 @@ import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
-import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
 
@@ -54,8 +56,69 @@ public final class AnnotationUtils {
     private final ProcessingEnvironment processingEnv;
     private final Set<String> supportedAnnotationTypes;
     public static final String AU_LOG = "annoLog";
+    /**
+     * Processor option for the number of threads used to render generated
+     * classes in processors which extend AbstractDelegatingProcessor; 0 means
+     * render on javac's thread.
+     */
+    public static final String AU_RENDER_THREADS = "annoRenderThreads";
+    /**
+     * Processor option to collect timings and counts and report a summary as
+     * a compiler note when processing is over; takes the same values as
+     * {@link #AU_LOG}.
+     */
+    public static final String AU_PERF = "annoPerf";
+    /**
+     * Processor option for a file, or a directory to write one file per
+     * processor in, to write performance data to as JSON when
+     * {@link #AU_PERF} is enabled.
+     */
+    public static final String AU_PERF_FILE = "annoPerfFile";
+    /**
+     * Processor option which makes processors that write indexes into
+     * CLASS_OUTPUT merge them with the index written by the previous
+     * compilation, keeping the entries of types which were not recompiled, for
+     * use with incremental builds; the index records the types each entry
+     * came from. Types whose source files can no longer be found on the
+     * source path count as deleted, so the compilation should have one. Entries
+     * of a previous index written without this option have no recorded origin
+     * and are always kept, so the first build after enabling it should be a
+     * clean one. Takes no value, or "true"/"on"/"yes".
+     */
+    public static final String AU_INCREMENTAL_INDEXES = "annoIncrementalIndexes";
+    /**
+     * Processor option for a directory in which processors which extend
+     * AbstractDelegatingProcessor cache the classes they generate, keyed by a
+     * fingerprint of the annotated element which their delegates compute, so
+     * a clean build whose sources have not changed can reuse them rather
+     * than regenerating them. The directory may be shared by concurrent
+     * builds.
+     */
+    public static final String AU_GENERATION_CACHE = "annoGenerationCache";
+    /**
+     * Processor option for the maximum size of the
+     * {@link #AU_GENERATION_CACHE} directory in megabytes, beyond which the
+     * least recently used entries are deleted; the default is 256.
+     */
+    public static final String AU_GENERATION_CACHE_SIZE = "annoGenerationCacheSize";
     private boolean log;
+    private int errors;
     private String logName;
+    // Set by newRound(); an instance whose owner never calls it cannot know
+    // when a round ends, so it caches nothing rather than going stale
+    private boolean caching;
+    // Type lookups by name, including failed ones, for the current round
+    private final Map<String, Optional<TypeElement>> typeElementCache = new HashMap<>();
+    private final Map<String, Optional<TypeMirror>> erasedTypeCache = new HashMap<>();
+    // Subtype and assignability results and erasures for the current round
+    private final Map<TypeRelation, Boolean> typeRelations = new HashMap<>();
+    private final Map<Element, TypeMirror> erasures = new HashMap<>();
+    private final Map<TypeElement, String> canonicalNames = new HashMap<>();
+    private final Map<AnnotationMirror, AnnotationValueIndex> valueIndexes = new IdentityHashMap<>();
+    private int relationHits;
+    private int relationMisses;
+    private int erasureHits;
+    private int erasureMisses;
     // This must be synchronized or we can wind up in an endless loop inside
     // WeakHashMap.put()
     private static final Set<AnnotationUtils> INSTANCES
@@ -87,6 +150,77 @@ public final class AnnotationUtils {
         return processingEnv;
     }
 
+    /**
+     * Start a round of processing, discarding cached type lookups so that
+     * types generated in the previous round are visible. Caching is opt-in:
+     * type lookups, type relations, erasures, canonical names and annotation
+     * value indexes are only cached for the remainder of a round once this
+     * has been called, so an instance used by a processor which never calls
+     * it does not return stale results or hold onto javac's objects.
+     * Processors extending AbstractDelegatingProcessor,
+     * AbstractLayerGeneratingDelegatingProcessor or IndexGeneratingProcessor
+     * need not call this - it is called for them at the start of each round;
+     * other processors using an AnnotationUtils across rounds may call it
+     * at the start of <code>process()</code> to enable caching.
+     */
+    public void newRound() {
+        caching = true;
+        if (relationHits + relationMisses + erasureHits + erasureMisses > 0) {
+            log("Type relations: {0} hits, {1} misses; erasures: {2} hits, {3} misses",
+                    relationHits, relationMisses, erasureHits, erasureMisses);
+        }
+        relationHits = relationMisses = erasureHits = erasureMisses = 0;
+        typeElementCache.clear();
+        erasedTypeCache.clear();
+        typeRelations.clear();
+        erasures.clear();
+        canonicalNames.clear();
+        valueIndexes.clear();
+    }
+
+    /**
+     * Look up a type element by name, caching the result - including the
+     * absence of one - for the remainder of the round if caching has been
+     * enabled by <code>newRound()</code>. All lookups of types by
+     * name in AnnotationUtils go through this method.
+     *
+     * @param name A fully qualified type name
+     * @return A type element or null
+     */
+    public TypeElement typeElement(String name) {
+        if (!caching) {
+            return processingEnv.getElementUtils().getTypeElement(name);
+        }
+        Optional<TypeElement> result = typeElementCache.get(name);
+        if (result == null) {
+            result = Optional.ofNullable(processingEnv.getElementUtils().getTypeElement(name));
+            typeElementCache.put(name, result);
+        }
+        return result.orElse(null);
+    }
+
+    /**
+     * Get the erasure of the type with the passed name, caching the result for
+     * the remainder of the round if caching has been enabled by
+     * <code>newRound()</code>.
+     *
+     * @param name A fully qualified type name
+     * @return A type mirror or null if the type cannot be resolved
+     */
+    public TypeMirror erasedType(String name) {
+        if (!caching) {
+            TypeElement el = typeElement(name);
+            return el == null ? null : erasureOf(el.asType());
+        }
+        Optional<TypeMirror> result = erasedTypeCache.get(name);
+        if (result == null) {
+            TypeElement el = typeElement(name);
+            result = el == null ? Optional.empty() : Optional.of(erasureOf(el.asType()));
+            erasedTypeCache.put(name, result);
+        }
+        return result.orElse(null);
+    }
+
     static boolean forcedLogging;
 
     public String packageName(Element el) {
@@ -168,10 +302,8 @@ public final class AnnotationUtils {
      * @return
      */
     public TypeComparisonResult isSubtypeOf(Element e, String typeName) {
-        Types types = processingEnv.getTypeUtils();
-        Elements elementUtils = processingEnv.getElementUtils();
-        TypeElement namedType = elementUtils.getTypeElement(typeName);
-        if (namedType == null) {
+        TypeMirror named = erasedType(typeName);
+        if (named == null) {
             return TypeComparisonResult.TYPE_NAME_NOT_RESOLVABLE;
         }
         TypeMirror tp;
@@ -180,31 +312,35 @@ public final class AnnotationUtils {
         } else {
             tp = erasureOf(e.asType());
         }
-
-        TypeMirror named = erasureOf(namedType.asType());
-        boolean res = types.isSubtype(tp, named);
+        boolean res = isSubtypeOf(tp, named);
         return TypeComparisonResult.forBoolean(res);
     }
 
     public TypeComparisonResult isSubtypeOf(TypeMirror tp, String typeName) {
-        Types types = processingEnv.getTypeUtils();
-        Elements elementUtils = processingEnv.getElementUtils();
-        TypeElement namedType = elementUtils.getTypeElement(typeName);
-        if (namedType == null) {
+        TypeMirror named = erasedType(typeName);
+        if (named == null) {
             return TypeComparisonResult.TYPE_NAME_NOT_RESOLVABLE;
         }
         tp = erasureOf(tp);
-        TypeMirror named = erasureOf(namedType.asType());
-        boolean res = types.isSubtype(tp, named);
+        boolean res = isSubtypeOf(tp, named);
         return TypeComparisonResult.forBoolean(res);
     }
 
+    /**
+     * Determine if one type is assignable to another; the result is memoized
+     * for the remainder of the round (see <code>newRound()</code>) if both
+     * types are primitive or non-generic declared types.
+     *
+     * @param tp A type
+     * @param other Another type
+     * @return true if it is assignable
+     */
     public boolean isAssignable(TypeMirror tp, TypeMirror other) {
-        return processingEnv.getTypeUtils().isAssignable(tp, other);
+        return relation(TypeRelation.ASSIGNABLE, tp, other);
     }
 
     public boolean isAssignable(TypeMirror what, String to) {
-        TypeElement el = processingEnv.getElementUtils().getTypeElement(to);
+        TypeElement el = typeElement(to);
         if (el == null) {
             return false;
         }
@@ -212,8 +348,38 @@ public final class AnnotationUtils {
         return isAssignable(what, type);
     }
 
+    /**
+     * Determine if one type is a subtype of another; the result is memoized
+     * for the remainder of the round (see <code>newRound()</code>) if both
+     * types are primitive or non-generic declared types, as erased types
+     * always are.
+     *
+     * @param tp A type
+     * @param other Another type
+     * @return true if it is a subtype
+     */
     public boolean isSubtypeOf(TypeMirror tp, TypeMirror other) {
-        return processingEnv.getTypeUtils().isSubtype(tp, other);
+        return relation(TypeRelation.SUBTYPE, tp, other);
+    }
+
+    private boolean relation(int kind, TypeMirror a, TypeMirror b) {
+        Object ka = caching ? TypeRelation.keyOf(a) : null;
+        Object kb = ka == null ? null : TypeRelation.keyOf(b);
+        if (kb == null) {
+            return kind == TypeRelation.SUBTYPE ? processingEnv.getTypeUtils().isSubtype(a, b)
+                    : processingEnv.getTypeUtils().isAssignable(a, b);
+        }
+        TypeRelation key = new TypeRelation(kind, ka, kb);
+        Boolean result = typeRelations.get(key);
+        if (result == null) {
+            relationMisses++;
+            result = kind == TypeRelation.SUBTYPE ? processingEnv.getTypeUtils().isSubtype(a, b)
+                    : processingEnv.getTypeUtils().isAssignable(a, b);
+            typeRelations.put(key, result);
+        } else {
+            relationHits++;
+        }
+        return result;
     }
 
     public TypeMirror erasureOf(TypeMirror mir) {
@@ -221,12 +387,75 @@ public final class AnnotationUtils {
             DeclaredType dt = (DeclaredType) mir;
             List<? extends TypeMirror> args = dt.getTypeArguments();
             if (args != null && !args.isEmpty()) {
-                return processingEnv.getTypeUtils().erasure(mir);
+                if (!caching) {
+                    return processingEnv.getTypeUtils().erasure(mir);
+                }
+                // The erasure of a declared type depends only on its element
+                Element el = dt.asElement();
+                TypeMirror result = erasures.get(el);
+                if (result == null) {
+                    erasureMisses++;
+                    result = processingEnv.getTypeUtils().erasure(mir);
+                    erasures.put(el, result);
+                } else {
+                    erasureHits++;
+                }
+                return result;
             }
         }
         return mir;
     }
 
+    /**
+     * Memo key for a subtype or assignability test between two types which are
+     * each fully identified by their element or primitive kind.
+     */
+    private static final class TypeRelation {
+
+        static final int SUBTYPE = 0;
+        static final int ASSIGNABLE = 1;
+        private final int kind;
+        private final Object a;
+        private final Object b;
+
+        TypeRelation(int kind, Object a, Object b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        static Object keyOf(TypeMirror type) {
+            TypeKind k = type.getKind();
+            if (k.isPrimitive()) {
+                return k;
+            }
+            if (k == TypeKind.DECLARED) {
+                DeclaredType dt = (DeclaredType) type;
+                if (dt.getTypeArguments().isEmpty()
+                        && dt.getEnclosingType().getKind() == TypeKind.NONE) {
+                    return dt.asElement();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public int hashCode() {
+            return (a.hashCode() * 31 + b.hashCode()) * 2 + kind;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (!(o instanceof TypeRelation)) {
+                return false;
+            }
+            TypeRelation other = (TypeRelation) o;
+            return kind == other.kind && a.equals(other.a) && b.equals(other.b);
+        }
+    }
+
     /**
      * Capitalize a string.
      *
@@ -268,13 +497,11 @@ public final class AnnotationUtils {
      * @return
      */
     public TypeComparisonResult isSupertypeOf(Element e, String typeName) {
-        Types types = processingEnv.getTypeUtils();
-        Elements elementUtils = processingEnv.getElementUtils();
-        TypeElement namedType = elementUtils.getTypeElement(typeName);
-        if (namedType == null) {
+        TypeMirror named = erasedType(typeName);
+        if (named == null) {
             return TypeComparisonResult.TYPE_NAME_NOT_RESOLVABLE;
         }
-        boolean res = types.isSubtype(erasureOf(namedType.asType()), erasureOf(e.asType()));
+        boolean res = isSubtypeOf(named, erasureOf(e.asType()));
         return TypeComparisonResult.forBoolean(res);
     }
 
@@ -286,7 +513,7 @@ public final class AnnotationUtils {
      * classpath
      */
     public TypeMirror type(String what) {
-        TypeElement te = processingEnv.getElementUtils().getTypeElement(what);
+        TypeElement te = typeElement(what);
         if (te == null) {
             return null;
         }
@@ -301,10 +528,18 @@ public final class AnnotationUtils {
      * @return An annotation mirror
      */
     public AnnotationMirror findMirror(Element el, String annotationTypeFqn) {
+        // Binary names of nested types (Outer$Inner) cannot be looked up, so
+        // for those, compare canonical names
+        TypeElement type = annotationTypeFqn.indexOf('$') < 0
+                ? typeElement(annotationTypeFqn) : null;
         for (AnnotationMirror mir : el.getAnnotationMirrors()) {
-            TypeMirror type = mir.getAnnotationType().asElement().asType();
-            String typeName = canonicalize(type);
-            if (annotationTypeFqn.equals(typeName)) {
+            Element annoType = mir.getAnnotationType().asElement();
+            if (type != null) {
+                if (type.equals(annoType)) {
+                    return mir;
+                }
+            } else if (annoType instanceof TypeElement
+                    && annotationTypeFqn.equals(canonicalName((TypeElement) annoType))) {
                 return mir;
             }
         }
@@ -320,13 +555,7 @@ public final class AnnotationUtils {
      */
     public AnnotationMirror findMirror(Element el,
             Class<? extends Annotation> annoType) {
-        for (AnnotationMirror mir : el.getAnnotationMirrors()) {
-            TypeMirror type = mir.getAnnotationType().asElement().asType();
-            if (annoType.getName().equals(type.toString())) {
-                return mir;
-            }
-        }
-        return null;
+        return findMirror(el, annoType.getName());
     }
 
     /**
@@ -337,8 +566,17 @@ public final class AnnotationUtils {
      */
     private String stripGenericsFromStringRepresentation(TypeMirror m) {
         String result = m.toString();
-        result = result.replaceAll("\\<.*\\>", "");
-        return result;
+        // Remove everything from the first < to the last >
+        int start = result.indexOf('<');
+        if (start < 0) {
+            return result;
+        }
+        int end = result.lastIndexOf('>');
+        if (end < start) {
+            return result;
+        }
+        return end == result.length() - 1 ? result.substring(0, start)
+                : result.substring(0, start) + result.substring(end + 1);
     }
 
     /**
@@ -365,23 +603,38 @@ public final class AnnotationUtils {
             maybeType = ((TypeParameterElement) maybeType).getGenericElement();
         }
         if (maybeType instanceof TypeElement) {
-            TypeElement e = (TypeElement) maybeType;
-            StringBuilder nm = new StringBuilder(e.getQualifiedName().toString());
-            Element enc = e.getEnclosingElement();
-            while (enc != null && enc.getKind() != ElementKind.PACKAGE) {
-                int ix = nm.lastIndexOf(".");
-                if (ix > 0) {
-                    nm.setCharAt(ix, '$');
-                }
-                enc = enc.getEnclosingElement();
-            }
-            return nm.toString();
+            return canonicalName((TypeElement) maybeType);
         }
 
         warn("Cannot canonicalize " + tm);
         return null;
     }
 
+    private String canonicalName(TypeElement e) {
+        String result = caching ? canonicalNames.get(e) : null;
+        if (result == null) {
+            String qname = e.getQualifiedName().toString();
+            Element enc = e.getEnclosingElement();
+            if (enc == null || enc.getKind() == ElementKind.PACKAGE) {
+                result = qname;
+            } else {
+                StringBuilder nm = new StringBuilder(qname);
+                while (enc != null && enc.getKind() != ElementKind.PACKAGE) {
+                    int ix = nm.lastIndexOf(".");
+                    if (ix > 0) {
+                        nm.setCharAt(ix, '$');
+                    }
+                    enc = enc.getEnclosingElement();
+                }
+                result = nm.toString();
+            }
+            if (caching) {
+                canonicalNames.put(e, result);
+            }
+        }
+        return result;
+    }
+
     /**
      * Print a warning.
      *
@@ -429,7 +682,7 @@ public final class AnnotationUtils {
      */
     public TypeElement typeElementOfField(VariableElement el) {
         TypeMirror type = el.asType();
-        return processingEnv.getElementUtils().getTypeElement(type.toString());
+        return typeElement(type.toString());
     }
 
     /**
@@ -516,75 +769,72 @@ public final class AnnotationUtils {
     public List<String> typeList(AnnotationMirror mirror, String param, Consumer<String> errMessages, String... failIfNotSubclassesOf) {
         List<String> result = new ArrayList<>();
         if (mirror != null) {
-            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> x : mirror.getElementValues()
-                    .entrySet()) {
-                String annoParam = x.getKey().getSimpleName().toString();
-                if (param.equals(annoParam)) {
-                    if (x.getValue().getValue() instanceof List<?>) {
-                        List<?> list = (List<?>) x.getValue().getValue();
-                        for (Object o : list) {
-                            if (o instanceof AnnotationValue) {
-                                AnnotationValue av = (AnnotationValue) o;
-                                if (av.getValue() instanceof DeclaredType) {
-                                    DeclaredType dt = (DeclaredType) av.getValue();
-                                    if (failIfNotSubclassesOf.length > 0) {
-                                        boolean found = false;
-                                        for (String f : failIfNotSubclassesOf) {
-                                            if (!isSubtypeOf(dt.asElement(), f).isSubtype()) {
-                                                found = true;
-                                                break;
-                                            }
-                                        }
-                                        if (!found) {
-                                            errMessages.accept("Not a " + join('/', failIfNotSubclassesOf) + " subtype: "
-                                                    + av);
-                                            continue;
+            Map.Entry<ExecutableElement, AnnotationValue> x = valueIndex(mirror).explicit(param);
+            if (x != null) {
+                if (x.getValue().getValue() instanceof List<?>) {
+                    List<?> list = (List<?>) x.getValue().getValue();
+                    for (Object o : list) {
+                        if (o instanceof AnnotationValue) {
+                            AnnotationValue av = (AnnotationValue) o;
+                            if (av.getValue() instanceof DeclaredType) {
+                                DeclaredType dt = (DeclaredType) av.getValue();
+                                if (failIfNotSubclassesOf.length > 0) {
+                                    boolean found = false;
+                                    for (String f : failIfNotSubclassesOf) {
+                                        if (!isSubtypeOf(dt.asElement(), f).isSubtype()) {
+                                            found = true;
+                                            break;
                                         }
                                     }
-                                    // Convert e.g. mypackage.Foo.Bar.Baz to mypackage.Foo$Bar$Baz
-                                    String canonical = canonicalize(dt.asElement().asType());
-                                    if (canonical == null) {
-                                        // Unresolvable generic or broken source
-                                        errMessages.accept("Could not canonicalize " + dt.asElement());
-                                    } else {
-                                        result.add(canonical);
+                                    if (!found) {
+                                        errMessages.accept("Not a " + join('/', failIfNotSubclassesOf) + " subtype: "
+                                                + av);
+                                        continue;
                                     }
+                                }
+                                // Convert e.g. mypackage.Foo.Bar.Baz to mypackage.Foo$Bar$Baz
+                                String canonical = canonicalize(dt.asElement().asType());
+                                if (canonical == null) {
+                                    // Unresolvable generic or broken source
+                                    errMessages.accept("Could not canonicalize " + dt.asElement());
                                 } else {
-                                    // Unresolvable type?
-                                    warn("Not a declared type: " + av);
+                                    result.add(canonical);
                                 }
                             } else {
-                                // Probable invalid source
-                                warn("Annotation value for value() is not an AnnotationValue " + types(o));
+                                // Unresolvable type?
+                                warn("Not a declared type: " + av);
                             }
+                        } else {
+                            // Probable invalid source
+                            warn("Annotation value for value() is not an AnnotationValue " + types(o));
                         }
-                    } else if (x.getValue().getValue() instanceof DeclaredType) {
-                        DeclaredType dt = (DeclaredType) x.getValue().getValue();
-                        if (failIfNotSubclassesOf.length > 0) {
-                            boolean found = false;
-                            for (String f : failIfNotSubclassesOf) {
-                                if (isSubtypeOf(dt.asElement(), f).isSubtype()) {
-                                    found = true;
-                                    break;
-                                }
-                            }
-                            if (!found) {
-                                fail("Not a " + join('/', failIfNotSubclassesOf) + " subtype: " + dt);
-                                continue;
+                    }
+                } else if (x.getValue().getValue() instanceof DeclaredType) {
+                    DeclaredType dt = (DeclaredType) x.getValue().getValue();
+                    if (failIfNotSubclassesOf.length > 0) {
+                        boolean found = false;
+                        for (String f : failIfNotSubclassesOf) {
+                            if (isSubtypeOf(dt.asElement(), f).isSubtype()) {
+                                found = true;
+                                break;
                             }
                         }
-                        // Convert e.g. mypackage.Foo.Bar.Baz to mypackage.Foo$Bar$Baz
-                        String canonical = canonicalize(dt.asElement().asType());
-                        if (canonical == null) {
-                            // Unresolvable generic or broken source
-                            fail("Could not canonicalize " + dt, x.getKey());
-                        } else {
-                            result.add(canonical);
+                        if (!found) {
+                            fail("Not a " + join('/', failIfNotSubclassesOf) + " subtype: " + dt);
+                            return result;
                         }
+                    }
+                    // Convert e.g. mypackage.Foo.Bar.Baz to mypackage.Foo$Bar$Baz
+                    String canonical = canonicalize(dt.asElement().asType());
+                    if (canonical == null) {
+                        // Unresolvable generic or broken source
+                        fail("Could not canonicalize " + dt, x.getKey());
                     } else {
-                        warn("Annotation value for is not a List of types or a DeclaredType on " + mirror + " - "
-                                + types(x.getValue().getValue()) + " - invalid source?");
+                        result.add(canonical);
                     }
+                } else {
+                    warn("Annotation value for is not a List of types or a DeclaredType on " + mirror + " - "
+                            + types(x.getValue().getValue()) + " - invalid source?");
                 }
             }
         }
@@ -595,7 +845,7 @@ public final class AnnotationUtils {
         List<TypeMirror> mirs = typeValues(mirror, param, errMessages, failIfNotSubclassesOf);
         List<TypeElement> result = new ArrayList<>(mirs.size());
         for (TypeMirror tm : mirs) {
-            TypeElement el = processingEnv.getElementUtils().getTypeElement(tm.toString());
+            TypeElement el = typeElement(tm.toString());
             if (el == null) {
                 errMessages.accept("Could not convert " + tm + " to a type element");
                 continue;
@@ -608,61 +858,58 @@ public final class AnnotationUtils {
     public List<TypeMirror> typeValues(AnnotationMirror mirror, String param, Consumer<String> errMessages, String... failIfNotSubclassesOf) {
         List<TypeMirror> result = new ArrayList<>();
         if (mirror != null) {
-            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> x : mirror.getElementValues()
-                    .entrySet()) {
-                String annoParam = x.getKey().getSimpleName().toString();
-                if (param.equals(annoParam)) {
-                    if (x.getValue().getValue() instanceof List<?>) {
-                        List<?> list = (List<?>) x.getValue().getValue();
-                        for (Object o : list) {
-                            if (o instanceof AnnotationValue) {
-                                AnnotationValue av = (AnnotationValue) o;
-                                if (av.getValue() instanceof DeclaredType) {
-                                    DeclaredType dt = (DeclaredType) av.getValue();
-                                    if (failIfNotSubclassesOf.length > 0) {
-                                        boolean found = false;
-                                        for (String f : failIfNotSubclassesOf) {
-                                            if (!isSubtypeOf(dt.asElement(), f).isSubtype()) {
-                                                found = true;
-                                                break;
-                                            }
-                                        }
-                                        if (!found) {
-                                            errMessages.accept("Not a " + join('/', failIfNotSubclassesOf) + " subtype: "
-                                                    + av);
-                                            continue;
+            Map.Entry<ExecutableElement, AnnotationValue> x = valueIndex(mirror).explicit(param);
+            if (x != null) {
+                if (x.getValue().getValue() instanceof List<?>) {
+                    List<?> list = (List<?>) x.getValue().getValue();
+                    for (Object o : list) {
+                        if (o instanceof AnnotationValue) {
+                            AnnotationValue av = (AnnotationValue) o;
+                            if (av.getValue() instanceof DeclaredType) {
+                                DeclaredType dt = (DeclaredType) av.getValue();
+                                if (failIfNotSubclassesOf.length > 0) {
+                                    boolean found = false;
+                                    for (String f : failIfNotSubclassesOf) {
+                                        if (!isSubtypeOf(dt.asElement(), f).isSubtype()) {
+                                            found = true;
+                                            break;
                                         }
                                     }
-                                    result.add(dt);
-                                } else {
-                                    // Unresolvable type?
-                                    warn("Not a declared type: " + av);
+                                    if (!found) {
+                                        errMessages.accept("Not a " + join('/', failIfNotSubclassesOf) + " subtype: "
+                                                + av);
+                                        continue;
+                                    }
                                 }
+                                result.add(dt);
                             } else {
-                                // Probable invalid source
-                                warn("Annotation value for value() is not an AnnotationValue " + types(o));
+                                // Unresolvable type?
+                                warn("Not a declared type: " + av);
                             }
+                        } else {
+                            // Probable invalid source
+                            warn("Annotation value for value() is not an AnnotationValue " + types(o));
                         }
-                    } else if (x.getValue().getValue() instanceof DeclaredType) {
-                        DeclaredType dt = (DeclaredType) x.getValue().getValue();
-                        if (failIfNotSubclassesOf.length > 0) {
-                            boolean found = false;
-                            for (String f : failIfNotSubclassesOf) {
-                                if (isSubtypeOf(dt.asElement(), f).isSubtype()) {
-                                    found = true;
-                                    break;
-                                }
-                            }
-                            if (!found) {
-                                fail("Not a " + join('/', failIfNotSubclassesOf) + " subtype: " + dt);
-                                continue;
+                    }
+                } else if (x.getValue().getValue() instanceof DeclaredType) {
+                    DeclaredType dt = (DeclaredType) x.getValue().getValue();
+                    if (failIfNotSubclassesOf.length > 0) {
+                        boolean found = false;
+                        for (String f : failIfNotSubclassesOf) {
+                            if (isSubtypeOf(dt.asElement(), f).isSubtype()) {
+                                found = true;
+                                break;
                             }
                         }
-                        result.add(dt);
-                    } else {
-                        warn("Annotation value for is not a List of types or a DeclaredType on " + mirror + " - "
-                                + types(x.getValue().getValue()) + " - invalid source?");
+                        if (!found) {
+                            fail("Not a " + join('/', failIfNotSubclassesOf) + " subtype: " + dt);
+                            return result;
+                        }
                     }
+                    result.add(dt);
+                } else {
+                    warn("Annotation value for is not a List of types or a DeclaredType on " + mirror + " - "
+                            + types(x.getValue().getValue()) + " - invalid source?");
                 }
             }
         }
@@ -742,36 +989,33 @@ public final class AnnotationUtils {
     public <T> List<T> annotationValues(AnnotationMirror mirror, String param, Class<T> type) {
         List<T> result = new ArrayList<>();
         if (mirror != null) {
-            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> x : mirror.getElementValues()
-                    .entrySet()) {
-                String annoParam = x.getKey().getSimpleName().toString();
-                if (param.equals(annoParam)) {
-                    if (x.getValue().getValue() instanceof List<?>) {
-                        List<?> list = (List<?>) x.getValue().getValue();
-                        for (Object o : list) {
-                            if (o instanceof AnnotationValue) {
-                                AnnotationValue av = (AnnotationValue) o;
-                                try {
-                                    result.add(type.cast(av.getValue()));
-                                } catch (ClassCastException | AnnotationTypeMismatchException ex) {
-                                    fail("Not an instance of " + type.getName() + " for value of "
-                                            + param + " on " + mirror.getAnnotationType()
-                                            + " found a " + x.getValue().getClass().getName()
-                                            + " instead: " + ex.getMessage(), x.getKey());
-                                }
-                            } else {
-                                // Probable invalid source
-                                warn("Annotation value for value() is not an AnnotationValue " + types(o));
+            Map.Entry<ExecutableElement, AnnotationValue> x = valueIndex(mirror).explicit(param);
+            if (x != null) {
+                if (x.getValue().getValue() instanceof List<?>) {
+                    List<?> list = (List<?>) x.getValue().getValue();
+                    for (Object o : list) {
+                        if (o instanceof AnnotationValue) {
+                            AnnotationValue av = (AnnotationValue) o;
+                            try {
+                                result.add(type.cast(av.getValue()));
+                            } catch (ClassCastException | AnnotationTypeMismatchException ex) {
+                                fail("Not an instance of " + type.getName() + " for value of "
+                                        + param + " on " + mirror.getAnnotationType()
+                                        + " found a " + x.getValue().getClass().getName()
+                                        + " instead: " + ex.getMessage(), x.getKey());
                             }
+                        } else {
+                            // Probable invalid source
+                            warn("Annotation value for value() is not an AnnotationValue " + types(o));
                         }
-                    } else {
-                        try {
-                            result.add(type.cast(x.getValue().getValue()));
-                        } catch (ClassCastException | AnnotationTypeMismatchException ex) {
-                            fail("Not an instance of " + type.getName() + " for value of " + param + " on "
-                                    + mirror.getAnnotationType() + " found a " + x.getValue().getClass().getName()
-                                    + " instead: " + ex.getMessage(), x.getKey());
-                        }
+                    }
+                } else {
+                    try {
+                        result.add(type.cast(x.getValue().getValue()));
+                    } catch (ClassCastException | AnnotationTypeMismatchException ex) {
+                        fail("Not an instance of " + type.getName() + " for value of " + param + " on "
+                                + mirror.getAnnotationType() + " found a " + x.getValue().getClass().getName()
+                                + " instead: " + ex.getMessage(), x.getKey());
                     }
                 }
             }
@@ -808,79 +1052,130 @@ public final class AnnotationUtils {
      * @return A single instance of the value type or null
      */
     public <T> T annotationValue(AnnotationMirror mirror, String param, Class<T> type) {
+        return readAnnotationValue(mirror, param, type, false);
+    }
+
+    /**
+     * Get the value of a method on an annotation, where the return type is
+     * <i>not an array</i>, using the default value declared by the annotation
+     * type if it is not explicitly set.
+     *
+     * @param <T> The type to cast as
+     * @param mirror The annotation mirror
+     * @param param The name of the annotation's method whose value should be
+     * returned
+     * @param type The type to cast each value to
+     * @return A single instance of the value type, or null if there is no
+     * value and no default
+     */
+    public <T> T annotationValueOrDefault(AnnotationMirror mirror, String param, Class<T> type) {
+        return readAnnotationValue(mirror, param, type, true);
+    }
+
+    /**
+     * Get the raw value of one member of an annotation. Members of a mirror
+     * are indexed by name the first time one is requested in a round (see
+     * <code>newRound()</code>), so reading many members of one mirror does
+     * not repeatedly scan its values.
+     *
+     * @param mirror The annotation mirror
+     * @param member The name of the annotation method
+     * @param includeDefault If true, and the member is not explicitly set,
+     * return the default value declared by the annotation type
+     * @return An annotation value or null
+     */
+    public AnnotationValue memberValue(AnnotationMirror mirror, String member, boolean includeDefault) {
+        AnnotationValueIndex ix = valueIndex(mirror);
+        Map.Entry<ExecutableElement, AnnotationValue> result = includeDefault
+                ? ix.withDefault(member) : ix.explicit(member);
+        return result == null ? null : result.getValue();
+    }
+
+    private AnnotationValueIndex valueIndex(AnnotationMirror mirror) {
+        if (!caching) {
+            return new AnnotationValueIndex(mirror);
+        }
+        AnnotationValueIndex result = valueIndexes.get(mirror);
+        if (result == null) {
+            result = new AnnotationValueIndex(mirror);
+            valueIndexes.put(mirror, result);
+        }
+        return result;
+    }
+
+    private <T> T readAnnotationValue(AnnotationMirror mirror, String param, Class<T> type, boolean includeDefault) {
         T result = null;
         if (mirror != null) {
 //            System.out.println("AV ON " + mirror.getAnnotationType() + " for " + param + " of " + type.getSimpleName());
-            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> x : mirror.getElementValues()
-                    .entrySet()) {
-                String annoParam = x.getKey().getSimpleName().toString();
-                if (param.equals(annoParam)) {
+            AnnotationValueIndex ix = valueIndex(mirror);
+            Map.Entry<ExecutableElement, AnnotationValue> x = includeDefault
+                    ? ix.withDefault(param) : ix.explicit(param);
+            if (x != null) {
 //                    System.out.println(" - TEST " + annoParam + " with " + x.getValue() + " val " + x.getValue().getValue());
-                    if (x.getValue().getValue() instanceof List<?>) {
-                        List<?> list = (List<?>) x.getValue().getValue();
-                        for (Object o : list) {
-                            if (o instanceof AnnotationValue) {
-                                AnnotationValue av = (AnnotationValue) o;
-                                try {
-                                    result = coerce(av.getValue(), type);
-                                    break;
-                                } catch (ClassCastException | AnnotationTypeMismatchException ex) {
-                                    ex.printStackTrace(System.out);
-                                    fail("Not an instance of " + type.getName() + " for value of " + param + " on "
-                                            + mirror.getAnnotationType()
-                                            + ", but was " + type.getName() + ": " + ex.getMessage(), x.getKey());
-                                }
-                            } else {
-                                result = coerce(result, type);
+                if (x.getValue().getValue() instanceof List<?>) {
+                    List<?> list = (List<?>) x.getValue().getValue();
+                    for (Object o : list) {
+                        if (o instanceof AnnotationValue) {
+                            AnnotationValue av = (AnnotationValue) o;
+                            try {
+                                result = coerce(av.getValue(), type);
+                                break;
+                            } catch (ClassCastException | AnnotationTypeMismatchException ex) {
+                                ex.printStackTrace(System.out);
+                                fail("Not an instance of " + type.getName() + " for value of " + param + " on "
+                                        + mirror.getAnnotationType()
+                                        + ", but was " + type.getName() + ": " + ex.getMessage(), x.getKey());
                             }
+                        } else {
+                            result = coerce(result, type);
                         }
-                    } else {
-                        AnnotationValue av = null;
-                        try {
-                            if (x.getValue().getValue() instanceof AnnotationValue) {
-                                av = (AnnotationValue) x.getValue().getValue();
-                                if (av.getValue() instanceof List<?>) {
-                                    List<?> list = (List<?>) av.getValue();
-                                    for (Object o : list) {
-                                        if (o instanceof AnnotationValue) {
-                                            AnnotationValue av2 = (AnnotationValue) o;
-                                            try {
-                                                result = coerce(av2.getValue(), type);
-                                                break;
-                                            } catch (ClassCastException | AnnotationTypeMismatchException ex) {
-                                                ex.printStackTrace(System.out);
-                                                fail("Not an instance of " + type.getName() + " for value of "
-                                                        + param + " on " + mirror.getAnnotationType()
-                                                        + ", but was " + type.getName() + " - " + av2
-                                                        + " / " + av2.getValue()
-                                                        + ": " + ex.getMessage(), x.getKey());
-                                            }
-                                        } else {
-                                            result = coerce(result, type);
+                    }
+                } else {
+                    AnnotationValue av = null;
+                    try {
+                        if (x.getValue().getValue() instanceof AnnotationValue) {
+                            av = (AnnotationValue) x.getValue().getValue();
+                            if (av.getValue() instanceof List<?>) {
+                                List<?> list = (List<?>) av.getValue();
+                                for (Object o : list) {
+                                    if (o instanceof AnnotationValue) {
+                                        AnnotationValue av2 = (AnnotationValue) o;
+                                        try {
+                                            result = coerce(av2.getValue(), type);
+                                            break;
+                                        } catch (ClassCastException | AnnotationTypeMismatchException ex) {
+                                            ex.printStackTrace(System.out);
+                                            fail("Not an instance of " + type.getName() + " for value of "
+                                                    + param + " on " + mirror.getAnnotationType()
+                                                    + ", but was " + type.getName() + " - " + av2
+                                                    + " / " + av2.getValue()
+                                                    + ": " + ex.getMessage(), x.getKey());
                                         }
+                                    } else {
+                                        result = coerce(result, type);
                                     }
-                                } else {
-                                    result = coerce(av.getValue(), type);
                                 }
                             } else {
-//                            System.out.println("  try single cast");
-                                result = coerce(x.getValue().getValue(), type);
-                            }
-                        } catch (ClassCastException | AnnotationTypeMismatchException ex) {
-                            boolean failed = true;
-                            if ("<error>".equals(x.getValue().getValue())) {
-                                failed = true;
-                                fail("Erroneous annotation value for " + param);
-                            }
-                            System.out.println("Wrong type? " + x.getValue() + " / " + x.getValue().getValue());
-                            ex.printStackTrace(System.out);
-                            if (!failed) {
-                                fail("Not an instance of " + type.getName() + " for value of "
-                                        + param + " on " + mirror.getAnnotationType()
-                                        + ", but was " + type.getName() + " - " + av
-                                        + " / " + x.getValue().getValue()
-                                        + ": " + ex.getMessage(), x.getKey());
+                                result = coerce(av.getValue(), type);
                             }
+                        } else {
+//                            System.out.println("  try single cast");
+                            result = coerce(x.getValue().getValue(), type);
+                        }
+                    } catch (ClassCastException | AnnotationTypeMismatchException ex) {
+                        boolean failed = true;
+                        if ("<error>".equals(x.getValue().getValue())) {
+                            failed = true;
+                            fail("Erroneous annotation value for " + param);
+                        }
+                        System.out.println("Wrong type? " + x.getValue() + " / " + x.getValue().getValue());
+                        ex.printStackTrace(System.out);
+                        if (!failed) {
+                            fail("Not an instance of " + type.getName() + " for value of "
+                                    + param + " on " + mirror.getAnnotationType()
+                                    + ", but was " + type.getName() + " - " + av
+                                    + " / " + x.getValue().getValue()
+                                    + ": " + ex.getMessage(), x.getKey());
                         }
                     }
                 }
@@ -1079,13 +1374,9 @@ public final class AnnotationUtils {
     }
 
     public TypeMirror typeForSingleClassAnnotationMember(AnnotationMirror mirror, String name) {
-        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : mirror.getElementValues().entrySet()) {
-            if (name.equals(e.getKey().getSimpleName().toString())) {
-                Object v = e.getValue().getValue();
-                if (v instanceof TypeMirror) {
-                    return (TypeMirror) v;
-                }
-            }
+        AnnotationValue value = memberValue(mirror, name, false);
+        if (value != null && value.getValue() instanceof TypeMirror) {
+            return (TypeMirror) value.getValue();
         }
         return null;
     }
@@ -1117,6 +1408,7 @@ public final class AnnotationUtils {
      * @param el The element
      */
     public void fail(String msg, Element el) {
+        errors++;
         processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message(msg), el);
     }
 
@@ -1127,6 +1419,7 @@ public final class AnnotationUtils {
      * @param el The element
      */
     public void fail(String msg, Element el, AnnotationMirror mir) {
+        errors++;
         processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message(msg), el, mir);
     }
 
@@ -1136,9 +1429,20 @@ public final class AnnotationUtils {
      * @param msg The message
      */
     public void fail(String msg) {
+        errors++;
         processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message(msg));
     }
 
+    /**
+     * Get the number of errors reported through the <code>fail()</code>
+     * methods of this instance so far.
+     *
+     * @return A count
+     */
+    public int errorCount() {
+        return errors;
+    }
+
     private String message(String msg) {
         if (log) {
             StackTraceElement[] els = new Exception().getStackTrace();
@@ -1192,7 +1496,7 @@ public final class AnnotationUtils {
             }
         }
         TypeMirror sup = el.getSuperclass();
-        TypeElement el1 = processingEnv.getElementUtils().getTypeElement(sup.toString());
+        TypeElement el1 = typeElement(sup.toString());
         if (el1 == null) {
             fail("Could not load type " + sup + " to look type "
                     + "parameter subtype of " + subtypeOf);
@@ -1223,7 +1527,7 @@ public final class AnnotationUtils {
             }
         }
         TypeMirror sup = el.getSuperclass();
-        TypeElement el1 = processingEnv.getElementUtils().getTypeElement(sup.toString());
+        TypeElement el1 = typeElement(sup.toString());
         if (el1 == null) {
             fail("Could not load type " + sup + " to look type "
                     + "parameter subtype of " + subtypeOf);
@@ -1269,10 +1573,8 @@ public final class AnnotationUtils {
      */
     public Set<Element> findAnnotatedElements(RoundEnvironment roundEnv, Iterable<String> annotationTypes) {
         Set<Element> result = new HashSet<>(20);
-        Elements elementUtils = processingEnv.getElementUtils();
-
         for (String typeName : annotationTypes) {
-            TypeElement currType = elementUtils.getTypeElement(typeName);
+            TypeElement currType = typeElement(typeName);
             if (currType != null) {
                 Set<? extends Element> allWith = roundEnv.getElementsAnnotatedWith(currType);
                 result.addAll(allWith);
@@ -1310,9 +1612,8 @@ public final class AnnotationUtils {
 
     public Set<AnnotationMirror> findAnnotationMirrors(Element e, Iterable<String> annotationTypeFqns) {
         Set<AnnotationMirror> annos = new LinkedHashSet<>();
-        Elements elementUtils = processingEnv.getElementUtils();
         for (String typeName : annotationTypeFqns) {
-            TypeElement currType = elementUtils.getTypeElement(typeName);
+            TypeElement currType = typeElement(typeName);
             if (currType != null) {
                 for (AnnotationMirror mirror : e.getAnnotationMirrors()) {
 
@@ -0,0 +1,84 @@
+package com.mastfrog.annotation;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+
+/**
+ * The members of one annotation mirror indexed by name, so that reading
+ * several members of a mirror does not rescan its values and convert each
+ * member's name to a string every time. Explicitly set values are indexed in
+ * one pass when the index is created; defaults declared by the annotation
+ * type are indexed, again in one pass, the first time one is asked for.
+ *
+ * @author Tim Boudreau
+ */
+final class AnnotationValueIndex {
+
+    private final AnnotationMirror mirror;
+    private final Map<String, Map.Entry<ExecutableElement, AnnotationValue>> explicit;
+    private Map<String, Map.Entry<ExecutableElement, AnnotationValue>> withDefaults;
+
+    AnnotationValueIndex(AnnotationMirror mirror) {
+        this.mirror = mirror;
+        Map<? extends ExecutableElement, ? extends AnnotationValue> values = mirror.getElementValues();
+        if (values.isEmpty()) {
+            explicit = Collections.emptyMap();
+        } else {
+            explicit = new HashMap<>(values.size() * 2);
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : values.entrySet()) {
+                explicit.put(e.getKey().getSimpleName().toString(),
+                        new SimpleImmutableEntry<>(e.getKey(), e.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Get the member and value for a member which is explicitly set on the
+     * annotation.
+     *
+     * @param member The member name
+     * @return An entry or null
+     */
+    Map.Entry<ExecutableElement, AnnotationValue> explicit(String member) {
+        return explicit.get(member);
+    }
+
+    /**
+     * Get the member and value for a member, using the default declared by
+     * the annotation type if it is not explicitly set.
+     *
+     * @param member The member name
+     * @return An entry, or null if the member is neither set nor has a default
+     */
+    Map.Entry<ExecutableElement, AnnotationValue> withDefault(String member) {
+        Map.Entry<ExecutableElement, AnnotationValue> result = explicit.get(member);
+        if (result == null) {
+            result = defaults().get(member);
+        }
+        return result;
+    }
+
+    private Map<String, Map.Entry<ExecutableElement, AnnotationValue>> defaults() {
+        if (withDefaults == null) {
+            withDefaults = new HashMap<>();
+            for (Element el : mirror.getAnnotationType().asElement().getEnclosedElements()) {
+                if (el.getKind() == ElementKind.METHOD) {
+                    ExecutableElement method = (ExecutableElement) el;
+                    AnnotationValue def = method.getDefaultValue();
+                    if (def != null) {
+                        withDefaults.put(method.getSimpleName().toString(),
+                                new SimpleImmutableEntry<>(method, def));
+                    }
+                }
+            }
+        }
+        return withDefaults;
+    }
+}
@@ -1,16 +1,16 @@
 package com.mastfrog.annotation.processor;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import static java.nio.charset.StandardCharsets.UTF_8;
+import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import com.mastfrog.annotation.AnnotationUtils;
 import java.util.Set;
 import javax.annotation.processing.AbstractProcessor;
-import javax.annotation.processing.Filer;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.element.AnnotationMirror;
@@ -20,7 +20,6 @@ import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
 import javax.tools.Diagnostic;
-import javax.tools.JavaFileObject;
 import com.mastfrog.java.vogon.ClassBuilder;
 import com.mastfrog.annotation.validation.AbstractPredicateBuilder;
 
@@ -38,7 +37,14 @@ import com.mastfrog.annotation.validation.AbstractPredicateBuilder;
 public abstract class AbstractDelegatingProcessor extends AbstractProcessor {
 
     private AnnotationUtils utils;
+    private RenderPipeline pipeline;
+    private GenerationCache cache;
+    private ProcessorMetrics metrics;
+    private int roundIndex;
     private final Delegates delegates = new Delegates(false);
+    private static final Set<String> PROCESSING_HOOKS = new HashSet<>(Arrays.asList(
+            "validateAnnotationMirror", "processConstructorAnnotation",
+            "processMethodAnnotation", "processFieldAnnotation", "processTypeAnnotation"));
 
     protected AbstractDelegatingProcessor() {
     }
@@ -69,7 +75,25 @@ public abstract class AbstractDelegatingProcessor extends AbstractProcessor {
     public final Set<String> getSupportedOptions() {
         Set<String> result = new HashSet<>(super.getSupportedOptions());
         result.add(AnnotationUtils.AU_LOG);
-        return result;
+        result.add(AnnotationUtils.AU_RENDER_THREADS);
+        result.add(AnnotationUtils.AU_PERF);
+        result.add(AnnotationUtils.AU_PERF_FILE);
+        result.add(AnnotationUtils.AU_GENERATION_CACHE);
+        result.add(AnnotationUtils.AU_GENERATION_CACHE_SIZE);
+        return incrementalProcessing().addTo(result);
+    }
+
+    /**
+     * Declare how this processor takes part in Gradle's incremental annotation
+     * processing (see <code><a href="IncrementalProcessing.html">IncrementalProcessing</a></code>).
+     * Override to return ISOLATING if every class the delegates generate comes
+     * from exactly one top-level type, which is passed to <code>writeOne()</code>,
+     * or AGGREGATING otherwise. The default, NONE, opts out.
+     *
+     * @return The category
+     */
+    protected IncrementalProcessing incrementalProcessing() {
+        return IncrementalProcessing.NONE;
     }
 
     public final void logException(Throwable thrown, boolean fail) {
@@ -87,9 +111,22 @@ public abstract class AbstractDelegatingProcessor extends AbstractProcessor {
     @Override
     public synchronized final void init(ProcessingEnvironment processingEnv) {
         utils = new AnnotationUtils(processingEnv, getSupportedAnnotationTypes(), getClass());
+        metrics = ProcessorMetrics.forProcessor(processingEnv, getClass());
         super.init(processingEnv);
         installDelegates(delegates);
-        delegates.init(processingEnv, utils, this::writeOne);
+        if (overridesProcessingHooks()) {
+            // A cache hit skips validation and processing, which would lose
+            // whatever the subclass does there
+            cache = null;
+            if (processingEnv.getOptions().containsKey(AnnotationUtils.AU_GENERATION_CACHE)) {
+                utils.log("{0} overrides validation or processing methods - "
+                        + "not using the generation cache", getClass().getName());
+            }
+        } else {
+            cache = GenerationCache.create(processingEnv, utils, getClass(), delegates.allDelegates());
+        }
+        pipeline = new RenderPipeline(processingEnv, utils, metrics, incrementalProcessing(), cache);
+        delegates.init(processingEnv, utils, metrics, this::writeOne);
         onInit(processingEnv, utils);
         used.clear();
 //        System.out.println(getClass().getSimpleName() + " DELEGATES: \n" + delegates);
@@ -106,6 +143,21 @@ public abstract class AbstractDelegatingProcessor extends AbstractProcessor {
         return utils;
     }
 
+    /**
+     * Get the metrics for this processor, for recording timings of work done
+     * outside of delegates; they are only collected if enabled by the
+     * <code>{@value AnnotationUtils#AU_PERF}</code> processor option.
+     *
+     * @return The metrics
+     */
+    protected final ProcessorMetrics metrics() {
+        if (metrics == null) {
+            throw new IllegalStateException("Attempt to use metrics before "
+                    + "init() has been called.");
+        }
+        return metrics;
+    }
+
     private boolean _validateAnnotationMirror(AnnotationMirror mirror, ElementKind kind, Element element) {
         return AbstractPredicateBuilder.enter(element, mirror, () -> {
             return validateAnnotationMirror(mirror, kind, element) && delegates.validateAnnotationMirror(mirror, kind, element);
@@ -123,21 +175,58 @@ public abstract class AbstractDelegatingProcessor extends AbstractProcessor {
 
     @Override
     public final boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        metrics.roundStarted();
+        utils().newRound();
+        Object roundEvent = ProcessorEvents.beginRound(this, roundIndex++, roundEnv.processingOver());
         onBeforeHandleProcess(annotations, roundEnv);
         try {
             boolean done = true;
             Map<AnnotationMirror, Element> elementForAnnotation = new HashMap<>();
-            for (Element el : utils().findAnnotatedElements(roundEnv, getSupportedAnnotationTypes())) {
-                for (String annotationClass : getSupportedAnnotationTypes()) {
-                    AnnotationMirror mirror = utils().findAnnotationMirror(el, annotationClass);
+            // Resolve the supported types once, and bucket each element's
+            // mirrors by type in one pass, rather than resolving and rescanning
+            // for every element / annotation type combination
+            SupportedAnnotations supported = new SupportedAnnotations(
+                    getSupportedAnnotationTypes(), utils());
+            for (int i = 0; i < supported.size(); i++) {
+                if (supported.type(i) == null) {
+                    utils().warn("Could not locate annotation type " + supported.name(i)
+                            + " - not on classpath?");
+                }
+            }
+            AnnotationMirror[] mirrors = new AnnotationMirror[supported.size()];
+            for (Element el : supported.annotatedElements(roundEnv)) {
+                supported.mirrorsOf(el, mirrors, utils());
+                for (int i = 0; i < mirrors.length; i++) {
+                    AnnotationMirror mirror = mirrors[i];
                     if (mirror == null) {
-                        utils.warn("Could not locate annotation mirror for " + annotationClass
-                                + " - not on classpath?"
-                                + " Ignoring annotation on " + el, el);
                         continue;
                     }
+                    String annotationClass = supported.name(i);
                     utils().log("Mirror {0} on kind {1} by {2} with {3}", mirror, el.getKind(), getClass().getSimpleName(), delegates);
-                    if (!_validateAnnotationMirror(mirror, el.getKind(), el)) {
+                    metrics.count(ProcessorMetrics.ELEMENTS, annotationClass, 1);
+                    String cacheKey = cacheKey(el, mirror);
+                    if (cacheKey != null) {
+                        List<RenderPipeline.Rendered> cached = cache.get(cacheKey);
+                        if (cached != null) {
+                            metrics.count(ProcessorMetrics.CACHE, "hits", 1);
+                            pipeline.submitCached(cached, el);
+                            // The delegates still see the element when the
+                            // round is completed
+                            delegates.addDelegatesFor(el, mirror, used);
+                            elementForAnnotation.put(mirror, el);
+                            continue;
+                        }
+                        metrics.count(ProcessorMetrics.CACHE, "misses", 1);
+                        pipeline.startRecording();
+                    }
+                    int errors = utils.errorCount();
+                    long validationStart = metrics.start();
+                    Object validationEvent = ProcessorEvents.beginValidation(mirror, el);
+                    boolean valid = _validateAnnotationMirror(mirror, el.getKind(), el);
+                    ProcessorEvents.endValidation(validationEvent, valid);
+                    metrics.time(ProcessorMetrics.VALIDATION, annotationClass, validationStart);
+                    if (!valid) {
+                        pipeline.endRecording(null);
                         continue;
                     }
                     boolean ok = false;
@@ -195,6 +284,7 @@ public abstract class AbstractDelegatingProcessor extends AbstractProcessor {
                     if (ok) {
                         elementForAnnotation.put(mirror, el);
                     }
+                    pipeline.endRecording(ok && utils.errorCount() == errors ? cacheKey : null);
                 }
             }
             try {
@@ -208,7 +298,33 @@ public abstract class AbstractDelegatingProcessor extends AbstractProcessor {
 //            return done;
         } finally {
             onAfterHandleProcess(annotations, roundEnv);
+            writeGeneratedSources(roundEnv);
+            delegates.roundFinished(roundEnv.processingOver());
+            ProcessorEvents.end(roundEvent);
+            metrics.roundFinished(roundEnv.processingOver());
+        }
+    }
+
+    private boolean overridesProcessingHooks() {
+        for (Class<?> type = getClass(); type != AbstractDelegatingProcessor.class; type = type.getSuperclass()) {
+            for (Method m : type.getDeclaredMethods()) {
+                if (!m.isBridge() && PROCESSING_HOOKS.contains(m.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private String cacheKey(Element el, AnnotationMirror mirror) {
+        if (cache == null) {
+            return null;
         }
+        long start = metrics.start();
+        List<String> fingerprints = delegates.fingerprints(el, mirror);
+        String result = fingerprints == null ? null : cache.key(fingerprints);
+        metrics.time(ProcessorMetrics.CACHE, "fingerprints", start);
+        return result;
     }
 
     protected boolean onRoundCompleted(Map<AnnotationMirror, Element> processed, RoundEnvironment roundEnv) throws Exception {
@@ -239,11 +355,25 @@ public abstract class AbstractDelegatingProcessor extends AbstractProcessor {
         return true;
     }
 
+    /**
+     * Queue a class to be generated. Its source is rendered in the background
+     * and written at the end of the current round, so the builder must not be
+     * modified after it is passed here.
+     *
+     * @param cb A class builder
+     * @param elems The elements it was generated from
+     * @throws IOException Not thrown by the current implementation; failures
+     * are reported as errors on the elements
+     */
     protected final void writeOne(ClassBuilder<String> cb, Element... elems) throws IOException {
-        Filer filer = processingEnv.getFiler();
-        JavaFileObject file = filer.createSourceFile(cb.fqn(), elems);
-        try (OutputStream out = file.openOutputStream()) {
-            out.write(cb.build().getBytes(UTF_8));
+        pipeline.submit(cb, elems);
+    }
+
+    private void writeGeneratedSources(RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            pipeline.close();
+        } else {
+            pipeline.flush();
         }
     }
 }
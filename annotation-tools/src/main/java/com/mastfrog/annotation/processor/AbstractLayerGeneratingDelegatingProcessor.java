@@ -1,11 +1,7 @@
 package com.mastfrog.annotation.processor;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -14,7 +10,6 @@ import java.util.List;
 import java.util.Map;
 import com.mastfrog.annotation.AnnotationUtils;
 import java.util.Set;
-import javax.annotation.processing.Filer;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.element.AnnotationMirror;
@@ -24,7 +19,6 @@ import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
 import javax.tools.Diagnostic;
-import javax.tools.JavaFileObject;
 import com.mastfrog.java.vogon.ClassBuilder;
 import org.openide.filesystems.annotations.LayerBuilder;
 import org.openide.filesystems.annotations.LayerGeneratingProcessor;
@@ -38,6 +32,9 @@ import com.mastfrog.util.preconditions.Exceptions;
 public abstract class AbstractLayerGeneratingDelegatingProcessor extends LayerGeneratingProcessor {
 
     private AnnotationUtils utils;
+    private RenderPipeline pipeline;
+    private ProcessorMetrics metrics;
+    private int roundIndex;
 
     private final Delegates delegates = new Delegates(true);
 
@@ -61,7 +58,22 @@ public abstract class AbstractLayerGeneratingDelegatingProcessor extends LayerGe
     public final Set<String> getSupportedOptions() {
         Set<String> result = new LinkedHashSet<>(super.getSupportedOptions());
         result.add(AnnotationUtils.AU_LOG);
-        return result;
+        result.add(AnnotationUtils.AU_RENDER_THREADS);
+        result.add(AnnotationUtils.AU_PERF);
+        result.add(AnnotationUtils.AU_PERF_FILE);
+        return incrementalProcessing().addTo(result);
+    }
+
+    /**
+     * Declare how this processor takes part in Gradle's incremental annotation
+     * processing (see <code><a href="IncrementalProcessing.html">IncrementalProcessing</a></code>).
+     * Since a layer combines entries from many types, the only incremental
+     * category that applies is AGGREGATING; the default, NONE, opts out.
+     *
+     * @return The category
+     */
+    protected IncrementalProcessing incrementalProcessing() {
+        return IncrementalProcessing.NONE;
     }
 
     public final void logException(Throwable thrown, boolean fail) {
@@ -82,10 +94,16 @@ public abstract class AbstractLayerGeneratingDelegatingProcessor extends LayerGe
 
     @Override
     public synchronized final void init(ProcessingEnvironment processingEnv) {
+        if (incrementalProcessing() == IncrementalProcessing.ISOLATING) {
+            throw new IllegalStateException(getClass().getName() + " generates "
+                    + "a layer, which aggregates many types, so it cannot be isolating");
+        }
         utils = new AnnotationUtils(processingEnv, getSupportedAnnotationTypes(), getClass());
+        metrics = ProcessorMetrics.forProcessor(processingEnv, getClass());
+        pipeline = new RenderPipeline(processingEnv, utils, metrics, incrementalProcessing(), null);
         super.init(processingEnv);
         installDelegates(delegates);
-        delegates.init(processingEnv, utils, this::writeOne, this::getLayerBuilder, this::addLayerTask);
+        delegates.init(processingEnv, utils, metrics, this::writeOne, this::getLayerBuilder, this::addLayerTask);
         onInit(processingEnv, utils);
         used.clear();
 //        System.out.println(getClass().getSimpleName() + " DELEGATES: \n" + delegates);
@@ -125,6 +143,21 @@ public abstract class AbstractLayerGeneratingDelegatingProcessor extends LayerGe
         return utils;
     }
 
+    /**
+     * Get the metrics for this processor, for recording timings of work done
+     * outside of delegates; they are only collected if enabled by the
+     * <code>{@value AnnotationUtils#AU_PERF}</code> processor option.
+     *
+     * @return The metrics
+     */
+    protected final ProcessorMetrics metrics() {
+        if (metrics == null) {
+            throw new IllegalStateException("Attempt to use metrics before "
+                    + "init() has been called.");
+        }
+        return metrics;
+    }
+
     protected void onBeforeHandleProcess(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
 
     }
@@ -142,6 +175,9 @@ public abstract class AbstractLayerGeneratingDelegatingProcessor extends LayerGe
 
     @Override
     public final boolean handleProcess(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        metrics.roundStarted();
+        utils().newRound();
+        Object roundEvent = ProcessorEvents.beginRound(this, roundIndex++, roundEnv.processingOver());
         onBeforeHandleProcess(annotations, roundEnv);
         boolean done = true;
         Map<AnnotationMirror, Element> elementForAnnotation = new HashMap<>();
@@ -149,8 +185,11 @@ public abstract class AbstractLayerGeneratingDelegatingProcessor extends LayerGe
 //            for (String anno : getSupportedAnnotationTypes()) {
 //                System.out.println("    " + simpleName(anno));
 //            }
-        for (String annotationClass : getSupportedAnnotationTypes()) {
-            Set<Element> annotated = utils().findAnnotatedElements(roundEnv, Collections.singleton(annotationClass));
+        SupportedAnnotations supported = new SupportedAnnotations(
+                getSupportedAnnotationTypes(), utils());
+        for (int i = 0; i < supported.size(); i++) {
+            String annotationClass = supported.name(i);
+            Set<? extends Element> annotated = supported.annotatedElements(roundEnv, i);
 //                if (!annotated.isEmpty()) {
 //                    System.out.println("  ELEMENTS ORDER FOR " + simpleName(annotationClass) + ": ");
 //                    for (Element e : annotated) {
@@ -158,12 +197,18 @@ public abstract class AbstractLayerGeneratingDelegatingProcessor extends LayerGe
 //                    }
 //                }
             for (Element el : annotated) {
-                AnnotationMirror mirror = utils().findAnnotationMirror(el, annotationClass);
+                AnnotationMirror mirror = supported.mirrorOf(el, i, utils());
                 if (mirror == null) {
                     continue;
                 }
                 utils().log("Mirror {0} on kind {1} by {2} with {3}", mirror, el.getKind(), getClass().getSimpleName(), delegates);
-                if (!_validateAnnotationMirror(mirror, el.getKind(), el)) {
+                metrics.count(ProcessorMetrics.ELEMENTS, annotationClass, 1);
+                long validationStart = metrics.start();
+                Object validationEvent = ProcessorEvents.beginValidation(mirror, el);
+                boolean valid = _validateAnnotationMirror(mirror, el.getKind(), el);
+                ProcessorEvents.endValidation(validationEvent, valid);
+                metrics.time(ProcessorMetrics.VALIDATION, annotationClass, validationStart);
+                if (!valid) {
                     continue;
                 }
                 boolean ok = false;
@@ -230,20 +275,37 @@ public abstract class AbstractLayerGeneratingDelegatingProcessor extends LayerGe
             ex.printStackTrace(System.out);
         }
         onAfterHandleProcess(annotations, roundEnv);
+        writeGeneratedSources(roundEnv);
         if (done) {
+            long start = metrics.start();
             runLayerTasks(roundEnv);
+            metrics.time(ProcessorMetrics.PROCESS, "layer tasks", start);
         }
         if (roundEnv.processingOver()) {
             discardCachedLayerBuilder();
         }
+        delegates.roundFinished(roundEnv.processingOver());
+        ProcessorEvents.end(roundEvent);
+        metrics.roundFinished(roundEnv.processingOver());
         return done;
     }
 
     private void runLayerTasks(RoundEnvironment roundEnv) {
         try {
-            Set<Element> all = new HashSet<>();
+            // Ordered, so the originating elements passed to the Filer are the
+            // same from one build to the next
+            Set<Element> all = new LinkedHashSet<>();
             for (TaskContext task : layerTasks) {
-                all.addAll(Arrays.asList(task.elements));
+                for (Element el : task.elements) {
+                    if (el != null) {
+                        all.add(el);
+                    }
+                }
+            }
+            if (all.isEmpty() && !layerTasks.isEmpty()
+                    && incrementalProcessing() != IncrementalProcessing.NONE) {
+                utils().warn("Layer tasks " + layerTasks + " were added with no "
+                        + "originating elements");
             }
             LayerBuilder b = null;
             for (Iterator<TaskContext> it = layerTasks.iterator(); it.hasNext();) {
@@ -334,11 +396,25 @@ public abstract class AbstractLayerGeneratingDelegatingProcessor extends LayerGe
         return true;
     }
 
+    /**
+     * Queue a class to be generated. Its source is rendered in the background
+     * and written at the end of the current round, so the builder must not be
+     * modified after it is passed here.
+     *
+     * @param cb A class builder
+     * @param elems The elements it was generated from
+     * @throws IOException Not thrown by the current implementation; failures
+     * are reported as errors on the elements
+     */
     protected final void writeOne(ClassBuilder<String> cb, Element... elems) throws IOException {
-        Filer filer = processingEnv.getFiler();
-        JavaFileObject file = filer.createSourceFile(cb.fqn(), elems);
-        try (OutputStream out = file.openOutputStream()) {
-            out.write(cb.build().getBytes(UTF_8));
+        pipeline.submit(cb, elems);
+    }
+
+    private void writeGeneratedSources(RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            pipeline.close();
+        } else {
+            pipeline.flush();
         }
     }
 }
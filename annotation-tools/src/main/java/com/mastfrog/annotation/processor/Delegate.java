@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -87,6 +88,20 @@ public abstract class Delegate {
         return new Key<>(type, name);
     }
 
+    /**
+     * Create a key for data which is only shared for the current round of
+     * processing, and discarded when it ends, so it does not hold onto
+     * javac's model objects for the rest of the compilation.
+     *
+     * @param <T> The type
+     * @param type The type
+     * @param name The name
+     * @return A key
+     */
+    protected static <T> Key<T> roundKey(Class<T> type, String name) {
+        return new Key<>(type, name, true);
+    }
+
     final void init(ProcessingEnvironment env, AnnotationUtils utils,
             IOBiConsumer<ClassBuilder<String>, Element[]> classWriter, Delegates delegates) {
         this.processingEnv = env;
@@ -114,7 +129,32 @@ public abstract class Delegate {
             findOrAddClassBuilder(bldr, elements);
         } else {
             classWriter.accept(bldr, elements);
+            forget(bldr);
+        }
+    }
+
+    private void forget(ClassBuilder<String> bldr) {
+        // A builder must not be modified once written, so there is no reason
+        // to keep it, and its whole tree, reachable
+        classBuilders.values().removeIf(b -> b == bldr);
+    }
+
+    /**
+     * Called by Delegates when a round ends, after any deferred builders have
+     * been written.
+     *
+     * @param processingOver If this was the final round
+     * @return The number of builders created with <code>classBuilder()</code>
+     * which have not been written, and are retained for later rounds
+     */
+    final int roundFinished(boolean processingOver) {
+        if (processingOver) {
+            classBuilders.clear();
+            if (deferredClassBuilders != null) {
+                deferredClassBuilders.clear();
+            }
         }
+        return classBuilders.size();
     }
 
     protected void onInit(ProcessingEnvironment env, AnnotationUtils utils) {
@@ -147,6 +187,55 @@ public abstract class Delegate {
         return true;
     }
 
+    /**
+     * Opt in to the on-disk generation cache enabled by the
+     * <code>{@value AnnotationUtils#AU_GENERATION_CACHE}</code> processor
+     * option, by returning a fingerprint of everything the classes this
+     * delegate generates for an annotated element depend on - typically
+     * <code>elementFingerprint(el, mirror)</code>, plus anything else it
+     * reads, such as other types. When every delegate for an annotation
+     * returns one, and the classes generated for it were cached by an earlier
+     * build with the same fingerprints, they are written from the cache and
+     * neither validation nor the <code>process*Annotation()</code> methods are
+     * called for it; <code>onRoundCompleted()</code> still is, and still sees
+     * the element.
+     * <p>
+     * So only return a fingerprint if this delegate's only output for the
+     * element is the classes it passes to <code>writeOne()</code> while
+     * processing it - not shared data, layer entries, or classes built up
+     * across elements. Delegates which defer their class builders to the end
+     * of the round are never cached, and neither is anything generated by a
+     * processor which overrides <code>validateAnnotationMirror()</code> or any
+     * of the <code>process*Annotation()</code> methods itself. The default
+     * returns null.
+     * </p>
+     *
+     * @param el The annotated element
+     * @param mirror The annotation
+     * @return A fingerprint, or null if the output cannot be cached
+     */
+    protected String generationFingerprint(Element el, AnnotationMirror mirror) {
+        return null;
+    }
+
+    /**
+     * Compute a fingerprint of an annotated element for
+     * <code>generationFingerprint()</code>: a hash of its signature,
+     * modifiers, annotations and doc comment, those of its members if it is a
+     * type, and the values of the annotation including defaults.
+     *
+     * @param el The annotated element
+     * @param mirror The annotation
+     * @return A fingerprint
+     */
+    protected final String elementFingerprint(Element el, AnnotationMirror mirror) {
+        return GenerationCache.fingerprint(el, mirror, processingEnv.getElementUtils());
+    }
+
+    final String cacheFingerprint(Element el, AnnotationMirror mirror) {
+        return deferClassBuilders ? null : generationFingerprint(el, mirror);
+    }
+
     protected boolean processConstructorAnnotation(ExecutableElement constructor, AnnotationMirror mirror, RoundEnvironment roundEnv) throws Exception {
         throw new IllegalStateException("Annotation not applicable to constructors or not implemented for them " + mirror.getAnnotationType() + " or processConstructorAnnotation should be overridden but is not.");
     }
@@ -188,12 +277,11 @@ public abstract class Delegate {
     @SuppressWarnings("UseSpecificCatch")
     private void saveClassBuilders() throws Exception {
         Exception ex = null;
-        Set<ClassBuilder<String>> written = new HashSet<>();
         for (Iterator<ClassBuilderEntry> it = deferredClassBuilders.iterator(); it.hasNext();) {
             ClassBuilderEntry cbe = it.next();
             try {
                 cbe.write(classWriter);
-                written.add(cbe.builder);
+                forget(cbe.builder);
             } catch (Exception e) {
                 if (ex == null) {
                     ex = e;
@@ -207,8 +295,9 @@ public abstract class Delegate {
         if (ex != null) {
             throw ex;
         }
+        // Builders are forgotten as they are written, so any left were
+        // created and never written
         Set<ClassBuilder<String>> created = new HashSet<>(this.classBuilders.values());
-        created.removeAll(written);
         if (!created.isEmpty()) {
             StringBuilder sb = new StringBuilder("Some builders which were created were not built: ");
             Strings.concatenate(", ", created, sb, ClassBuilder::fqn);
@@ -219,7 +308,8 @@ public abstract class Delegate {
     static final class ClassBuilderEntry {
 
         private final ClassBuilder<String> builder;
-        private final Set<Element> elements = new HashSet<>();
+        // Ordered, so the originating elements of the file are deterministic
+        private final Set<Element> elements = new LinkedHashSet<>();
 
         public ClassBuilderEntry(ClassBuilder<String> builder, Element... elements) {
             this.builder = builder;
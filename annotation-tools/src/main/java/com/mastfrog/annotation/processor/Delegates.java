@@ -1,11 +1,14 @@
 package com.mastfrog.annotation.processor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -23,8 +26,10 @@ import static javax.lang.model.element.ElementKind.FIELD;
 import static javax.lang.model.element.ElementKind.INTERFACE;
 import static javax.lang.model.element.ElementKind.METHOD;
 import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Name;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Elements;
 import com.mastfrog.java.vogon.ClassBuilder;
 import com.mastfrog.annotation.AnnotationUtils;
 import com.mastfrog.function.throwing.io.IOBiConsumer;
@@ -40,6 +45,10 @@ public class Delegates {
     private final Map<String, Set<DelegateEntry>> delegates = new LinkedHashMap<>();
 
     private final Map<Key<?>, Set<?>> sharedData = new HashMap<>();
+    private static final Delegate[] NO_DELEGATES = new Delegate[0];
+    private Map<Name, Dispatch> dispatch;
+    private ProcessorMetrics metrics;
+    private AnnotationUtils utils;
 
     Delegates(boolean layerGenerating) {
         this.layerGenerating = layerGenerating;
@@ -112,11 +121,14 @@ public class Delegates {
         return result;
     }
 
-    void init(ProcessingEnvironment env, AnnotationUtils utils, IOBiConsumer<ClassBuilder<String>, Element[]> classWriter) {
-        init(env, utils, classWriter, null, null);
+    void init(ProcessingEnvironment env, AnnotationUtils utils, ProcessorMetrics metrics, IOBiConsumer<ClassBuilder<String>, Element[]> classWriter) {
+        init(env, utils, metrics, classWriter, null, null);
     }
 
-    void init(ProcessingEnvironment env, AnnotationUtils utils, IOBiConsumer<ClassBuilder<String>, Element[]> classWriter, Function<Element[], LayerBuilder> layerBuilderFetcher, BiConsumer<LayerTask, Element[]> layerTaskAdder) {
+    void init(ProcessingEnvironment env, AnnotationUtils utils, ProcessorMetrics metrics, IOBiConsumer<ClassBuilder<String>, Element[]> classWriter, Function<Element[], LayerBuilder> layerBuilderFetcher, BiConsumer<LayerTask, Element[]> layerTaskAdder) {
+        this.metrics = metrics;
+        this.utils = utils;
+        dispatch = compileDispatch(env.getElementUtils());
         Set<Delegate> all = allDelegates();
         for (Delegate d : all) {
             if (d instanceof LayerGeneratingDelegate) {
@@ -127,83 +139,199 @@ public class Delegates {
         }
     }
 
+    /**
+     * Compile the registered delegates into an immutable table keyed by the
+     * annotation type's qualified name as a javac Name - which is interned, so
+     * lookups need neither string conversion nor allocation.
+     */
+    private Map<Name, Dispatch> compileDispatch(Elements elements) {
+        Map<Name, Dispatch> result = new HashMap<>(delegates.size() * 2);
+        for (Map.Entry<String, Set<DelegateEntry>> e : delegates.entrySet()) {
+            result.put(elements.getName(e.getKey()), new Dispatch(e.getValue()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private Dispatch dispatchFor(AnnotationMirror mirror) {
+        if (dispatch == null) {
+            throw new IllegalStateException("Delegates not initialized");
+        }
+        Element type = mirror.getAnnotationType().asElement();
+        if (type instanceof TypeElement) {
+            return dispatch.get(((TypeElement) type).getQualifiedName());
+        }
+        return null;
+    }
+
     boolean validateAnnotationMirror(AnnotationMirror mirror, ElementKind kind, Element element) {
-        String type = mirror.getAnnotationType().toString();
-        Set<DelegateEntry> entries = this.delegates.get(type);
+        Dispatch d = dispatchFor(mirror);
         boolean result = true;
-        if (entries != null) {
-            for (DelegateEntry e : entries) {
-                result &= e.delegate.validateAnnotationMirror(mirror, kind, element);
+        if (d != null) {
+            for (Delegate del : d.all) {
+                result &= del.validateAnnotationMirror(mirror, kind, element);
             }
         }
         return result;
     }
 
-    private Set<DelegateEntry> entriesFor(Element el, AnnotationMirror mirror) {
-        Set<DelegateEntry> result = new LinkedHashSet<>(5);
-        Set<DelegateEntry> found = this.delegates.get(mirror.getAnnotationType().toString());
-        if (found != null) {
-            for (DelegateEntry de : found) {
-                if (de.matches(mirror, el.getKind())) {
-                    result.add(de);
-                }
+    private Delegate[] delegatesFor(Element el, AnnotationMirror mirror) {
+        Dispatch d = dispatchFor(mirror);
+        return d == null ? NO_DELEGATES : d.forKind(el.getKind());
+    }
+
+    /**
+     * Record the delegates for an annotation as used in this round without
+     * calling them, for an element whose output came from the generation
+     * cache, so they are still called when the round is completed.
+     *
+     * @param el The annotated element
+     * @param mirror The annotation
+     * @param into The set of used delegates
+     */
+    void addDelegatesFor(Element el, AnnotationMirror mirror, Set<? super Delegate> into) {
+        Collections.addAll(into, delegatesFor(el, mirror));
+    }
+
+    /**
+     * Get the cache fingerprints of all of the delegates for an annotation.
+     *
+     * @param el The annotated element
+     * @param mirror The annotation
+     * @return The fingerprints, or null if any delegate cannot be cached or
+     * there are none
+     */
+    List<String> fingerprints(Element el, AnnotationMirror mirror) {
+        Delegate[] dels = delegatesFor(el, mirror);
+        if (dels.length == 0) {
+            return null;
+        }
+        List<String> result = new ArrayList<>(dels.length);
+        for (Delegate del : dels) {
+            String fingerprint = del.cacheFingerprint(el, mirror);
+            if (fingerprint == null) {
+                return null;
             }
+            result.add(del.getClass().getName() + ':' + fingerprint);
         }
         return result;
     }
 
     boolean processConstructorAnnotation(ExecutableElement constructor, AnnotationMirror mirror, RoundEnvironment roundEnv, Set<? super Delegate> delegates) throws Exception {
         boolean result = true;
-        for (DelegateEntry de : entriesFor(constructor, mirror)) {
-            Delegate del = de.delegate;
+        for (Delegate del : delegatesFor(constructor, mirror)) {
             delegates.add(del);
-            result &= del.utils().withLogContext(del.getClass().getName(), () -> {
-                return del.processConstructorAnnotation(constructor, mirror, roundEnv);
-            });
+            long start = metrics.start();
+            Object event = ProcessorEvents.beginDelegate(del, "processConstructorAnnotation", mirror, constructor);
+            try {
+                result &= del.utils().withLogContext(del.getClass().getName(), () -> {
+                    return del.processConstructorAnnotation(constructor, mirror, roundEnv);
+                });
+            } finally {
+                ProcessorEvents.end(event);
+            }
+            metrics.time(ProcessorMetrics.DELEGATE, del.getClass().getName()
+                    + ".processConstructorAnnotation", start);
         }
         return result;
     }
 
     boolean processMethodAnnotation(ExecutableElement method, AnnotationMirror mirror, RoundEnvironment roundEnv, Set<? super Delegate> delegates) throws Exception {
         boolean result = true;
-        for (DelegateEntry de : entriesFor(method, mirror)) {
-            Delegate del = de.delegate;
+        for (Delegate del : delegatesFor(method, mirror)) {
             delegates.add(del);
-            result &= del.utils().withLogContext(del.getClass().getName(), () -> {
-                return del.processMethodAnnotation(method, mirror, roundEnv);
-            });
+            long start = metrics.start();
+            Object event = ProcessorEvents.beginDelegate(del, "processMethodAnnotation", mirror, method);
+            try {
+                result &= del.utils().withLogContext(del.getClass().getName(), () -> {
+                    return del.processMethodAnnotation(method, mirror, roundEnv);
+                });
+            } finally {
+                ProcessorEvents.end(event);
+            }
+            metrics.time(ProcessorMetrics.DELEGATE, del.getClass().getName()
+                    + ".processMethodAnnotation", start);
         }
         return result;
     }
 
     boolean processFieldAnnotation(VariableElement var, AnnotationMirror mirror, RoundEnvironment roundEnv, Set<? super Delegate> delegates) throws Exception {
         boolean result = true;
-        for (DelegateEntry de : entriesFor(var, mirror)) {
-            Delegate del = de.delegate;
+        for (Delegate del : delegatesFor(var, mirror)) {
             delegates.add(del);
-            result &= del.utils().withLogContext(del.getClass().getName(), () -> {
-                return del.processFieldAnnotation(var, mirror, roundEnv);
-            });
+            long start = metrics.start();
+            Object event = ProcessorEvents.beginDelegate(del, "processFieldAnnotation", mirror, var);
+            try {
+                result &= del.utils().withLogContext(del.getClass().getName(), () -> {
+                    return del.processFieldAnnotation(var, mirror, roundEnv);
+                });
+            } finally {
+                ProcessorEvents.end(event);
+            }
+            metrics.time(ProcessorMetrics.DELEGATE, del.getClass().getName()
+                    + ".processFieldAnnotation", start);
         }
         return result;
     }
 
     boolean processTypeAnnotation(TypeElement type, AnnotationMirror mirror, RoundEnvironment roundEnv, Set<? super Delegate> delegates) throws Exception {
         boolean result = true;
-        for (DelegateEntry de : entriesFor(type, mirror)) {
-            Delegate del = de.delegate;
+        for (Delegate del : delegatesFor(type, mirror)) {
             delegates.add(del);
-            result &= del.utils().withLogContext(del.getClass().getName(), () -> {
-                return del.processTypeAnnotation(type, mirror, roundEnv);
-            });
+            long start = metrics.start();
+            Object event = ProcessorEvents.beginDelegate(del, "processTypeAnnotation", mirror, type);
+            try {
+                result &= del.utils().withLogContext(del.getClass().getName(), () -> {
+                    return del.processTypeAnnotation(type, mirror, roundEnv);
+                });
+            } finally {
+                ProcessorEvents.end(event);
+            }
+            metrics.time(ProcessorMetrics.DELEGATE, del.getClass().getName()
+                    + ".processTypeAnnotation", start);
         }
         return result;
     }
 
+    /**
+     * Release per-round state when a round is over: data shared under
+     * round-scoped keys, and, when processing is over, everything - so the
+     * builders and javac model objects delegates held do not stay reachable
+     * for the rest of the compilation.
+     *
+     * @param processingOver If this was the final round
+     */
+    void roundFinished(boolean processingOver) {
+        int builders = 0;
+        for (Delegate d : allDelegates()) {
+            builders += d.roundFinished(processingOver);
+        }
+        if (processingOver) {
+            sharedData.clear();
+        } else {
+            sharedData.keySet().removeIf(Key::isRoundScoped);
+        }
+        if (utils != null) {
+            int shared = 0;
+            for (Set<?> values : sharedData.values()) {
+                shared += values.size();
+            }
+            utils.log("Retained after round: {0} unwritten class builders, "
+                    + "{1} shared values under {2} keys", builders, shared, sharedData.size());
+        }
+    }
+
     boolean onRoundCompleted(Map<AnnotationMirror, Element> processed, RoundEnvironment roundEnv, Set<Delegate> used) throws Exception {
         boolean result = true;
         for (Delegate d : used) {
-            result &= d._roundCompleted(processed, roundEnv);
+            long start = metrics.start();
+            Object event = ProcessorEvents.beginDelegate(d, "onRoundCompleted", null, null);
+            try {
+                result &= d._roundCompleted(processed, roundEnv);
+            } finally {
+                ProcessorEvents.end(event);
+            }
+            metrics.time(ProcessorMetrics.DELEGATE, d.getClass().getName()
+                    + ".onRoundCompleted", start);
         }
         return result;
     }
@@ -278,13 +406,6 @@ public class Delegates {
             this.type = type;
         }
 
-        public boolean matches(AnnotationMirror mirror, ElementKind kind) {
-            if (kinds.contains(kind)) {
-                return type.equals(mirror.getAnnotationType().toString());
-            }
-            return false;
-        }
-
         @Override
         public String toString() {
             return delegate.getClass().getSimpleName() + "{" + type + "}<" + kinds.toString() + ">";
@@ -324,4 +445,32 @@ public class Delegates {
         }
     }
 
+    /**
+     * The delegates for one annotation type, in the order they were added,
+     * and the subset of them which apply to each element kind.
+     */
+    private static final class Dispatch {
+
+        private final Delegate[] all;
+        private final Map<ElementKind, Delegate[]> byKind = new EnumMap<>(ElementKind.class);
+
+        Dispatch(Set<DelegateEntry> entries) {
+            all = new Delegate[entries.size()];
+            Map<ElementKind, List<Delegate>> kinds = new EnumMap<>(ElementKind.class);
+            int ix = 0;
+            for (DelegateEntry en : entries) {
+                all[ix++] = en.delegate;
+                for (ElementKind k : en.kinds) {
+                    kinds.computeIfAbsent(k, kk -> new ArrayList<>(3)).add(en.delegate);
+                }
+            }
+            for (Map.Entry<ElementKind, List<Delegate>> e : kinds.entrySet()) {
+                byKind.put(e.getKey(), e.getValue().toArray(new Delegate[e.getValue().size()]));
+            }
+        }
+
+        Delegate[] forKind(ElementKind kind) {
+            return byKind.getOrDefault(kind, NO_DELEGATES);
+        }
+    }
 }
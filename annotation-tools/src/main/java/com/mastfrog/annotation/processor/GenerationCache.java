@@ -0,0 +1,414 @@
+package com.mastfrog.annotation.processor;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import com.mastfrog.java.vogon.ClassBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.QualifiedNameable;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Elements;
+
+/**
+ * An on-disk cache of generated classes, in the directory set by the
+ * <code>{@value AnnotationUtils#AU_GENERATION_CACHE}</code> processor option,
+ * keyed by a hash of the fingerprints delegates compute for an annotated
+ * element, salted with the class files of the processor, its delegates and
+ * java-vogon, so a rebuilt processor never sees output cached by an older one.
+ * <p>
+ * Each entry is one file holding every source generated for one annotation
+ * on one element. Entries are written to a temporary file and renamed into
+ * place, so concurrent builds sharing the directory never see a partial one;
+ * reading an entry touches it, and when a processor which stored anything
+ * finishes, it takes an exclusive lock on the directory and deletes the least
+ * recently used entries until the cache is within the size set by
+ * <code>{@value AnnotationUtils#AU_GENERATION_CACHE_SIZE}</code>.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class GenerationCache {
+
+    private static final int MAGIC = 0x4D464743;
+    private static final long DEFAULT_MAX_MEGABYTES = 256;
+    private static final String SUFFIX = ".gen";
+    private static final String LOCK_FILE = ".lock";
+    // FileLocks are held per JVM, so builds in one JVM - such as a parallel
+    // Maven build - must also exclude each other before taking one
+    private static final Map<Path, Object> JVM_LOCKS = new ConcurrentHashMap<>();
+    private final Path dir;
+    private final long maxBytes;
+    private final String salt;
+    private final AnnotationUtils utils;
+    private boolean stored;
+
+    private GenerationCache(Path dir, long maxBytes, String salt, AnnotationUtils utils) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.salt = salt;
+        this.utils = utils;
+    }
+
+    /**
+     * Create a cache if the processor options enable one.
+     *
+     * @param env The environment
+     * @param utils The utils
+     * @param processorType The processor
+     * @param delegates Its delegates
+     * @return A cache or null
+     */
+    static GenerationCache create(ProcessingEnvironment env, AnnotationUtils utils,
+            Class<?> processorType, Collection<Delegate> delegates) {
+        String dirSpec = env.getOptions().get(AnnotationUtils.AU_GENERATION_CACHE);
+        if (dirSpec == null || dirSpec.trim().isEmpty()) {
+            return null;
+        }
+        long maxMegabytes = DEFAULT_MAX_MEGABYTES;
+        String sizeSpec = env.getOptions().get(AnnotationUtils.AU_GENERATION_CACHE_SIZE);
+        if (sizeSpec != null && !sizeSpec.trim().isEmpty()) {
+            try {
+                maxMegabytes = Math.max(1, Long.parseLong(sizeSpec.trim()));
+            } catch (NumberFormatException ex) {
+                utils.warn("Bad value for " + AnnotationUtils.AU_GENERATION_CACHE_SIZE
+                        + ": '" + sizeSpec + "' - using " + DEFAULT_MAX_MEGABYTES);
+            }
+        }
+        StringBuilder salt = new StringBuilder(processorType.getName());
+        for (Class<?> type : saltTypes(processorType, delegates)) {
+            String version = codeVersion(type);
+            if (version == null) {
+                utils.warn("Cannot determine the location of " + type.getName()
+                        + " to tell if cached output is stale - not using "
+                        + "the generation cache");
+                return null;
+            }
+            salt.append(';').append(type.getName()).append('@').append(version);
+        }
+        Path dir = Paths.get(dirSpec.trim());
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException ex) {
+            utils.warn("Cannot create generation cache " + dir + ": " + ex);
+            return null;
+        }
+        return new GenerationCache(dir.toAbsolutePath().normalize(),
+                maxMegabytes * 1024 * 1024, salt.toString(), utils);
+    }
+
+    /**
+     * The types whose class files salt cache keys: this one, the processor,
+     * its delegates, and the java-vogon ClassBuilder they render with, since
+     * a rebuilt java-vogon may render the same builders differently.
+     *
+     * @param processorType The processor
+     * @param delegates Its delegates
+     * @return A list of types
+     */
+    static List<Class<?>> saltTypes(Class<?> processorType, Collection<Delegate> delegates) {
+        List<Class<?>> types = new ArrayList<>();
+        types.add(GenerationCache.class);
+        types.add(ClassBuilder.class);
+        types.add(processorType);
+        for (Delegate d : delegates) {
+            types.add(d.getClass());
+        }
+        return types;
+    }
+
+    static String codeVersion(Class<?> type) {
+        try {
+            CodeSource src = type.getProtectionDomain().getCodeSource();
+            if (src == null || src.getLocation() == null) {
+                return null;
+            }
+            Path path = Paths.get(src.getLocation().toURI());
+            if (Files.isDirectory(path)) {
+                path = path.resolve(type.getName().replace('.', '/') + ".class");
+            }
+            return Files.getLastModifiedTime(path).toMillis() + ":" + Files.size(path);
+        } catch (IOException | URISyntaxException | SecurityException
+                | IllegalArgumentException | FileSystemNotFoundException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Compute the cache key for the fingerprints of an annotated element.
+     *
+     * @param fingerprints The fingerprints of each delegate
+     * @return A key
+     */
+    String key(List<String> fingerprints) {
+        StringBuilder sb = new StringBuilder(salt);
+        for (String fp : fingerprints) {
+            sb.append('\n').append(fp);
+        }
+        return sha256(sb);
+    }
+
+    /**
+     * Look up the sources generated for a key.
+     *
+     * @param key A key
+     * @return The sources, or null if not cached
+     */
+    List<RenderPipeline.Rendered> get(String key) {
+        Path file = fileFor(key);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            utils.log("Could not read cache entry {0}: {1}", file, ex);
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Bad magic number");
+            }
+            int count = in.readInt();
+            List<RenderPipeline.Rendered> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String fqn = in.readUTF();
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                result.add(new RenderPipeline.Rendered(fqn, content));
+            }
+            try {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException ex) {
+                // Evicted or replaced concurrently - the content is still good
+            }
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            utils.warn("Deleting corrupt generation cache entry " + file + ": " + ex);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex1) {
+                // Another build may hold it open
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Store the sources generated for a key.
+     *
+     * @param key The key
+     * @param files The sources
+     */
+    void put(String key, List<RenderPipeline.Rendered> files) {
+        Path file = fileFor(key);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(files.size());
+                for (RenderPipeline.Rendered r : files) {
+                    out.writeUTF(r.fqn);
+                    out.writeInt(r.bytes.length);
+                    out.write(r.bytes);
+                }
+            }
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), key, ".tmp");
+            try {
+                Files.write(temp, bytes.toByteArray());
+                try {
+                    Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(temp, file, REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            stored = true;
+        } catch (IOException ex) {
+            utils.warn("Could not write generation cache entry " + file + ": " + ex);
+        }
+    }
+
+    /**
+     * Called when processing is over; if anything was stored, evicts the
+     * least recently used entries until the cache is within its size limit.
+     */
+    void close() {
+        if (!stored) {
+            return;
+        }
+        stored = false;
+        synchronized (JVM_LOCKS.computeIfAbsent(dir, d -> new Object())) {
+            try (FileChannel channel = FileChannel.open(dir.resolve(LOCK_FILE), CREATE, WRITE);
+                    FileLock lock = channel.lock()) {
+                evict();
+            } catch (IOException ex) {
+                utils.warn("Could not prune generation cache " + dir + ": " + ex);
+            }
+        }
+    }
+
+    private void evict() throws IOException {
+        long staleTemp = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> files = Files.walk(dir, 2)) {
+            for (Path p : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                String name = p.getFileName().toString();
+                try {
+                    long modified = Files.getLastModifiedTime(p).toMillis();
+                    if (name.endsWith(SUFFIX)) {
+                        Entry e = new Entry(p, modified, Files.size(p));
+                        entries.add(e);
+                        total += e.size;
+                    } else if (name.endsWith(".tmp") && modified < staleTemp) {
+                        // Left behind by a build that was killed mid-write
+                        Files.deleteIfExists(p);
+                    }
+                } catch (NoSuchFileException ex) {
+                    // Replaced or deleted concurrently
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        // Prune to below the limit, so every build near it does not evict
+        long target = maxBytes - maxBytes / 10;
+        entries.sort((a, b) -> Long.compare(a.modified, b.modified));
+        for (Entry e : entries) {
+            if (total <= target) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(e.path);
+                total -= e.size;
+            } catch (IOException ex) {
+                // Open in another process on a platform that cares
+            }
+        }
+        utils.log("Pruned generation cache {0} to {1} bytes", dir, total);
+    }
+
+    private Path fileFor(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    /**
+     * Compute a fingerprint of an annotated element: its signature,
+     * modifiers, annotations and doc comment, those of a type's members, and
+     * the values, including defaults, of the annotation being processed.
+     *
+     * @param el An element
+     * @param mirror The annotation being processed
+     * @param elements The element utils
+     * @return A fingerprint
+     */
+    static String fingerprint(Element el, AnnotationMirror mirror, Elements elements) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mirror.getAnnotationType());
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e
+                : elements.getElementValuesWithDefaults(mirror).entrySet()) {
+            sb.append(' ').append(e.getKey().getSimpleName()).append('=').append(e.getValue());
+        }
+        sb.append('\n');
+        Element enclosing = el.getEnclosingElement();
+        if (enclosing instanceof QualifiedNameable) {
+            sb.append(((QualifiedNameable) enclosing).getQualifiedName()).append('\n');
+        }
+        describe(el, elements, sb);
+        if (el instanceof TypeElement) {
+            TypeElement type = (TypeElement) el;
+            sb.append(type.getSuperclass()).append(' ').append(type.getInterfaces())
+                    .append(' ').append(type.getTypeParameters()).append('\n');
+            for (Element member : type.getEnclosedElements()) {
+                describe(member, elements, sb);
+            }
+        }
+        return sha256(sb);
+    }
+
+    private static void describe(Element el, Elements elements, StringBuilder sb) {
+        sb.append(el.getKind()).append(' ').append(el.getModifiers()).append(' ')
+                .append(el.getSimpleName()).append(' ').append(el.asType())
+                .append(' ').append(el.getAnnotationMirrors());
+        if (el instanceof ExecutableElement) {
+            ExecutableElement ex = (ExecutableElement) el;
+            for (VariableElement param : ex.getParameters()) {
+                sb.append(' ').append(param.getSimpleName()).append(param.getAnnotationMirrors());
+            }
+            sb.append(' ').append(ex.getDefaultValue());
+        } else if (el instanceof VariableElement) {
+            sb.append(' ').append(((VariableElement) el).getConstantValue());
+        }
+        String doc = elements.getDocComment(el);
+        if (doc != null) {
+            sb.append(' ').append(doc);
+        }
+        sb.append('\n');
+    }
+
+    private static String sha256(CharSequence seq) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256")
+                    .digest(seq.toString().getBytes(UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static final class Entry {
+
+        private final Path path;
+        private final long modified;
+        private final long size;
+
+        Entry(Path path, long modified, long size) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+}
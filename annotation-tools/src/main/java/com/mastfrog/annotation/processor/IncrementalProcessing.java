@@ -0,0 +1,120 @@
+package com.mastfrog.annotation.processor;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * How a processor participates in Gradle's incremental annotation processing.
+ * Processors built on the base classes in this library decide their category
+ * in code, and declare it by adding {@link #option()} to their supported
+ * options; to let Gradle see that, list the processor as <code>dynamic</code>
+ * in <code>META-INF/gradle/incremental.annotation.processors</code> in the
+ * processor's JAR, next to its <code>META-INF/services</code> registration:
+ * <pre>
+ * com.foo.MyProcessor,dynamic
+ * </pre>
+ * A processor which declares nothing gets a full recompilation from Gradle
+ * whenever anything changes, so the default, {@link #NONE}, is always safe.
+ * <p>
+ * An <b>isolating</b> processor must generate each file from exactly one
+ * top-level type, and pass an element belonging to it as the originating
+ * element; an <b>aggregating</b> one may combine many types into one file,
+ * such as an index or layer, and Gradle reprocesses all of the annotated
+ * types when any of them change. Both may only look at annotations with
+ * CLASS or RUNTIME retention, so Gradle can tell which types to reprocess.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public enum IncrementalProcessing {
+    /**
+     * Not incremental - any change recompiles everything.
+     */
+    NONE,
+    /**
+     * Each generated file originates from exactly one top-level type.
+     */
+    ISOLATING,
+    /**
+     * Generated files may combine the annotations of many types.
+     */
+    AGGREGATING;
+
+    /**
+     * Get the processor option which declares this category to Gradle.
+     *
+     * @return An option name, or null for NONE
+     */
+    public String option() {
+        switch (this) {
+            case ISOLATING:
+                return "org.gradle.annotation.processing.isolating";
+            case AGGREGATING:
+                return "org.gradle.annotation.processing.aggregating";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Add the option for this category, if any, to a set of supported
+     * options.
+     *
+     * @param options The options
+     * @return The options
+     */
+    public Set<String> addTo(Set<String> options) {
+        String option = option();
+        if (option != null) {
+            options.add(option);
+        }
+        return options;
+    }
+
+    /**
+     * Check the originating elements of a generated file against the
+     * requirements of this category, returning a description of the problem
+     * if they are not met: an isolating processor must name exactly one
+     * top-level type, and any incremental one must name at least one element.
+     *
+     * @param generated The name of the generated file
+     * @param elements Its originating elements
+     * @return A problem description, or null if the elements are acceptable
+     */
+    public String checkOriginatingElements(String generated, Element... elements) {
+        if (this == NONE) {
+            return null;
+        }
+        Set<String> types = new LinkedHashSet<>(2);
+        for (Element el : elements) {
+            if (el != null) {
+                types.add(topLevelTypeName(el));
+            }
+        }
+        if (types.isEmpty()) {
+            return generated + " has no originating elements; with "
+                    + name().toLowerCase() + " incremental processing it "
+                    + "would not be regenerated or deleted when its sources change";
+        } else if (this == ISOLATING && types.size() != 1) {
+            return generated + " must originate from exactly one top-level type "
+                    + "for isolating incremental processing, but originates from "
+                    + types.size() + ": " + String.join(", ", types);
+        }
+        return null;
+    }
+
+    private static String topLevelTypeName(Element el) {
+        Element top = el;
+        while (top.getEnclosingElement() != null
+                && top.getEnclosingElement().getKind() != ElementKind.PACKAGE
+                && top.getKind() != ElementKind.PACKAGE) {
+            top = top.getEnclosingElement();
+        }
+        return top instanceof TypeElement
+                ? ((TypeElement) top).getQualifiedName().toString()
+                : top.toString();
+    }
+}
@@ -3,6 +3,10 @@ package com.mastfrog.annotation.processor;
 import java.util.Objects;
 
 /**
+ * A typed key under which delegates share data with each other. Data shared
+ * under a round-scoped key is discarded at the end of each round of
+ * processing; other data is kept until processing is over. The scope is part
+ * of a key's identity.
  *
  * @author Tim Boudreau
  */
@@ -10,16 +14,26 @@ public class Key<T> {
 
     private final String name;
     private final Class<T> type;
+    private final boolean roundScoped;
 
     Key(Class<T> type, String name) {
+        this(type, name, false);
+    }
+
+    Key(Class<T> type, String name, boolean roundScoped) {
         this.type = type;
         this.name = name;
+        this.roundScoped = roundScoped;
     }
 
     Class<T> type() {
         return type;
     }
 
+    public boolean isRoundScoped() {
+        return roundScoped;
+    }
+
     @Override
     public String toString() {
         return name + "<" + type.getSimpleName() + ">";
@@ -30,6 +44,7 @@ public class Key<T> {
         int hash = 7;
         hash = 79 * hash + Objects.hashCode(this.name);
         hash = 79 * hash + Objects.hashCode(this.type);
+        hash = 79 * hash + (roundScoped ? 1 : 0);
         return hash;
     }
 
@@ -51,7 +66,7 @@ public class Key<T> {
         if (!Objects.equals(this.type, other.type)) {
             return false;
         }
-        return true;
+        return this.roundScoped == other.roundScoped;
     }
 
 }
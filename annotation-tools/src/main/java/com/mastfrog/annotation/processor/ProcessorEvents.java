@@ -0,0 +1,284 @@
+package com.mastfrog.annotation.processor;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for annotation processing - rounds, delegate
+ * invocations, validation, and writes through the Filer - so processor
+ * activity can be seen on a timeline alongside javac's own work in any JFR
+ * recording of a javac run.
+ * <p>
+ * The <code>begin*</code> methods return an opaque event object, or null if
+ * <code>jdk.jfr</code> is not present or the event is not enabled in a running
+ * recording, in which case nothing is computed or allocated; pass it to the
+ * matching <code>end*</code> method, which ignores null. The event classes
+ * themselves are only loaded if <code>jdk.jfr</code> is present, so this class
+ * is safe to use on runtimes without it. Compiling it requires JDK 11 or
+ * later, which the build enforces.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class ProcessorEvents {
+
+    private static final boolean JFR_PRESENT = jfrPresent();
+
+    private ProcessorEvents() {
+        throw new AssertionError();
+    }
+
+    private static boolean jfrPresent() {
+        try {
+            Class.forName("jdk.jfr.Event", false, ProcessorEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Begin a processing round.
+     *
+     * @param processor The processor
+     * @param round The index of the round
+     * @param processingOver If this is the final round
+     * @return An event or null
+     */
+    public static Object beginRound(Object processor, int round, boolean processingOver) {
+        return JFR_PRESENT ? RoundEvent.start(processor, round, processingOver) : null;
+    }
+
+    /**
+     * Begin a call to a delegate.
+     *
+     * @param delegate The delegate
+     * @param method The method being called
+     * @param mirror The annotation, or null for round-completion calls
+     * @param element The annotated element, or null for round-completion calls
+     * @return An event or null
+     */
+    public static Object beginDelegate(Object delegate, String method, AnnotationMirror mirror, Element element) {
+        return JFR_PRESENT ? DelegateEvent.start(delegate, method, mirror, element) : null;
+    }
+
+    /**
+     * Begin validating an annotation on an element.
+     *
+     * @param mirror The annotation
+     * @param element The annotated element
+     * @return An event or null
+     */
+    public static Object beginValidation(AnnotationMirror mirror, Element element) {
+        return JFR_PRESENT ? ValidationEvent.start(mirror, element) : null;
+    }
+
+    /**
+     * Begin writing a file through the Filer.
+     *
+     * @param kind The kind of file, e.g. "source" or "resource"
+     * @param name The class or resource name
+     * @return An event or null
+     */
+    public static Object beginWrite(String kind, String name) {
+        return JFR_PRESENT ? FilerWriteEvent.start(kind, name) : null;
+    }
+
+    /**
+     * End and commit an event returned by <code>beginRound()</code> or
+     * <code>beginDelegate()</code>.
+     *
+     * @param event An event or null
+     */
+    public static void end(Object event) {
+        if (event != null) {
+            JfrSupport.commit(event);
+        }
+    }
+
+    /**
+     * End and commit an event returned by <code>beginValidation()</code>.
+     *
+     * @param event An event or null
+     * @param passed Whether validation passed
+     */
+    public static void endValidation(Object event, boolean passed) {
+        if (event != null) {
+            ValidationEvent.finish(event, passed);
+        }
+    }
+
+    /**
+     * End and commit an event returned by <code>beginWrite()</code>.
+     *
+     * @param event An event or null
+     * @param bytes The number of bytes written, or -1 if it failed
+     */
+    public static void endWrite(Object event, long bytes) {
+        if (event != null) {
+            FilerWriteEvent.finish(event, bytes);
+        }
+    }
+
+    private static String name(Object o) {
+        return o == null ? null : o.toString();
+    }
+
+    private static String typeName(AnnotationMirror mirror) {
+        return mirror == null ? null : mirror.getAnnotationType().toString();
+    }
+
+    // Keeps the reference to jdk.jfr.Event out of this class's own methods
+    private static final class JfrSupport {
+
+        static void commit(Object event) {
+            ((Event) event).commit();
+        }
+    }
+
+    @Name("com.mastfrog.annotation.ProcessorRound")
+    @Label("Annotation Processor Round")
+    @Description("One round of annotation processing by one processor")
+    @Category({"Mastfrog", "Annotation Processing"})
+    @StackTrace(false)
+    static final class RoundEvent extends Event {
+
+        @Label("Processor")
+        String processor;
+
+        @Label("Round")
+        int round;
+
+        @Label("Processing Over")
+        boolean processingOver;
+
+        static Object start(Object processor, int round, boolean processingOver) {
+            RoundEvent event = new RoundEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.processor = processor.getClass().getName();
+            event.round = round;
+            event.processingOver = processingOver;
+            event.begin();
+            return event;
+        }
+    }
+
+    @Name("com.mastfrog.annotation.DelegateInvocation")
+    @Label("Delegate Invocation")
+    @Description("A call to one Delegate of a delegating annotation processor")
+    @Category({"Mastfrog", "Annotation Processing"})
+    @StackTrace(false)
+    static final class DelegateEvent extends Event {
+
+        @Label("Delegate")
+        String delegate;
+
+        @Label("Method")
+        String method;
+
+        @Label("Annotation Type")
+        String annotationType;
+
+        @Label("Element Kind")
+        String elementKind;
+
+        @Label("Element")
+        String element;
+
+        static Object start(Object delegate, String method, AnnotationMirror mirror, Element element) {
+            DelegateEvent event = new DelegateEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.delegate = delegate.getClass().getName();
+            event.method = method;
+            event.annotationType = typeName(mirror);
+            event.elementKind = element == null ? null : element.getKind().name();
+            event.element = name(element);
+            event.begin();
+            return event;
+        }
+    }
+
+    @Name("com.mastfrog.annotation.Validation")
+    @Label("Annotation Validation")
+    @Description("Evaluation of the validation predicates for one annotation")
+    @Category({"Mastfrog", "Annotation Processing"})
+    @StackTrace(false)
+    static final class ValidationEvent extends Event {
+
+        @Label("Annotation Type")
+        String annotationType;
+
+        @Label("Element Kind")
+        String elementKind;
+
+        @Label("Element")
+        String element;
+
+        @Label("Passed")
+        boolean passed;
+
+        static Object start(AnnotationMirror mirror, Element element) {
+            ValidationEvent event = new ValidationEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.annotationType = typeName(mirror);
+            event.elementKind = element.getKind().name();
+            event.element = name(element);
+            event.begin();
+            return event;
+        }
+
+        static void finish(Object event, boolean passed) {
+            ValidationEvent ev = (ValidationEvent) event;
+            ev.passed = passed;
+            ev.commit();
+        }
+    }
+
+    @Name("com.mastfrog.annotation.FilerWrite")
+    @Label("Filer Write")
+    @Description("Creating and writing one file through the annotation processing Filer")
+    @Category({"Mastfrog", "Annotation Processing"})
+    @StackTrace(false)
+    static final class FilerWriteEvent extends Event {
+
+        @Label("Kind")
+        String kind;
+
+        @Label("Name")
+        String name;
+
+        @Label("Bytes Written")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+
+        static Object start(String kind, String name) {
+            FilerWriteEvent event = new FilerWriteEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.kind = kind;
+            event.name = name;
+            event.begin();
+            return event;
+        }
+
+        static void finish(Object event, long bytes) {
+            FilerWriteEvent ev = (FilerWriteEvent) event;
+            ev.bytes = bytes;
+            ev.commit();
+        }
+    }
+}
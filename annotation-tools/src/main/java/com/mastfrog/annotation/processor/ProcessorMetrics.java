@@ -0,0 +1,345 @@
+package com.mastfrog.annotation.processor;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.tools.Diagnostic;
+
+/**
+ * Collects per-round timings and counts for an annotation processor - time
+ * spent validating, in each delegate, rendering generated classes and in Filer
+ * I/O, plus element counts and bytes generated - and reports them when
+ * processing is over: a summary table is reported as a note through the
+ * Messager, and if the <code>{@value AnnotationUtils#AU_PERF_FILE}</code>
+ * option is set, a JSON file is written there - or, if it names a directory,
+ * to a file in it named for the processor.
+ * <p>
+ * Enabled by the <code>{@value AnnotationUtils#AU_PERF}</code> processor
+ * option, which takes the same values as
+ * <code>{@value AnnotationUtils#AU_LOG}</code> - <code>true</code>, or a
+ * comma-delimited list of processor class names. When disabled, every method
+ * returns immediately; callers should obtain start times from
+ * {@link #start()} rather than calling <code>System.nanoTime()</code>
+ * themselves, so a disabled instance costs nothing.
+ * </p><p>
+ * Times recorded on multiple threads (rendering) are summed, so they may
+ * exceed the wall-clock time of the round.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class ProcessorMetrics {
+
+    public static final String VALIDATION = "validation";
+    public static final String DELEGATE = "delegate";
+    public static final String PROCESS = "process";
+    public static final String RENDER = "render";
+    public static final String FILER = "filer";
+    public static final String ELEMENTS = "elements";
+    public static final String CACHE = "cache";
+
+    private static final ProcessorMetrics DISABLED = new ProcessorMetrics(null, null, null);
+    private final String processorName;
+    private final Path jsonFile;
+    private final Messager messager;
+    private final Map<String, Stat> current = new ConcurrentHashMap<>();
+    private final LongAdder bytes = new LongAdder();
+    private final List<Round> rounds = new ArrayList<>();
+    private long roundStart;
+
+    private ProcessorMetrics(String processorName, Path jsonFile, Messager messager) {
+        this.processorName = processorName;
+        this.jsonFile = jsonFile;
+        this.messager = messager;
+    }
+
+    /**
+     * Get the metrics for a processor, which will be a no-op instance unless
+     * enabled by the processor options.
+     *
+     * @param env The environment
+     * @param processorType The processor
+     * @return A metrics instance
+     */
+    public static ProcessorMetrics forProcessor(ProcessingEnvironment env, Class<?> processorType) {
+        Map<String, String> opts = env.getOptions();
+        if (!enabled(opts.get(AnnotationUtils.AU_PERF), processorType)) {
+            return DISABLED;
+        }
+        String file = opts.get(AnnotationUtils.AU_PERF_FILE);
+        Path path = null;
+        if (file != null && !file.trim().isEmpty()) {
+            path = Paths.get(file.trim());
+            if (Files.isDirectory(path)) {
+                // Several processors may share one javac, so give each its own
+                path = path.resolve(processorType.getName() + ".json");
+            }
+        }
+        return new ProcessorMetrics(processorType.getName(), path, env.getMessager());
+    }
+
+    private static boolean enabled(String spec, Class<?> processorType) {
+        if (spec == null || spec.isEmpty()) {
+            return false;
+        }
+        if ("true".equals(spec) || "on".equals(spec) || "yes".equals(spec)) {
+            return true;
+        }
+        for (String type : spec.split(",")) {
+            type = type.trim();
+            if (processorType.getName().equals(type) || processorType.getSimpleName().equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEnabled() {
+        return processorName != null;
+    }
+
+    /**
+     * Get a start time to pass to {@link #time(String, String, long)}.
+     *
+     * @return The current nanosecond time, or 0 if disabled
+     */
+    public long start() {
+        return processorName == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Record one invocation of something, and the time elapsed since the
+     * passed start time. Thread-safe.
+     *
+     * @param category The category, such as {@link #DELEGATE}
+     * @param name The thing in that category, such as a delegate's class and
+     * method
+     * @param start The value of a call to {@link #start()}
+     */
+    public void time(String category, String name, long start) {
+        if (processorName != null) {
+            stat(category, name).add(1, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Add to a count without recording any time. Thread-safe.
+     *
+     * @param category The category, such as {@link #ELEMENTS}
+     * @param name The thing counted
+     * @param count The amount to add
+     */
+    public void count(String category, String name, long count) {
+        if (processorName != null) {
+            stat(category, name).add(count, 0);
+        }
+    }
+
+    /**
+     * Record bytes of generated output. Thread-safe.
+     *
+     * @param count A number of bytes
+     */
+    public void bytes(long count) {
+        if (processorName != null) {
+            bytes.add(count);
+        }
+    }
+
+    private Stat stat(String category, String name) {
+        return current.computeIfAbsent(category + '\t' + name, k -> new Stat());
+    }
+
+    /**
+     * Called by the processor at the start of a round.
+     */
+    public void roundStarted() {
+        if (processorName != null) {
+            roundStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called by the processor when a round is complete, after all output for
+     * it has been written; on the final round, reports the results.
+     *
+     * @param processingOver If this is the final round
+     */
+    public void roundFinished(boolean processingOver) {
+        if (processorName == null) {
+            return;
+        }
+        Map<String, long[]> stats = new TreeMap<>();
+        for (Map.Entry<String, Stat> e : current.entrySet()) {
+            stats.put(e.getKey(), new long[]{e.getValue().count.sum(), e.getValue().nanos.sum()});
+        }
+        current.clear();
+        rounds.add(new Round(rounds.size(), System.nanoTime() - roundStart, bytes.sumThenReset(), stats));
+        if (processingOver) {
+            report();
+        }
+    }
+
+    private void report() {
+        Map<String, long[]> totals = totals();
+        messager.printMessage(Diagnostic.Kind.NOTE, table(totals));
+        if (jsonFile != null) {
+            try {
+                Path dir = jsonFile.toAbsolutePath().getParent();
+                if (dir != null) {
+                    Files.createDirectories(dir);
+                }
+                Files.write(jsonFile, json(totals).getBytes(UTF_8));
+            } catch (IOException ex) {
+                messager.printMessage(Diagnostic.Kind.WARNING, "Could not write "
+                        + jsonFile + ": " + ex);
+            }
+        }
+        rounds.clear();
+    }
+
+    private Map<String, long[]> totals() {
+        Map<String, long[]> result = new TreeMap<>();
+        for (Round r : rounds) {
+            for (Map.Entry<String, long[]> e : r.stats.entrySet()) {
+                long[] tot = result.computeIfAbsent(e.getKey(), k -> new long[2]);
+                tot[0] += e.getValue()[0];
+                tot[1] += e.getValue()[1];
+            }
+        }
+        return result;
+    }
+
+    private String table(Map<String, long[]> totals) {
+        long wall = 0;
+        long allBytes = 0;
+        for (Round r : rounds) {
+            wall += r.wallNanos;
+            allBytes += r.bytes;
+        }
+        StringBuilder sb = new StringBuilder(256 + totals.size() * 96);
+        sb.append("Performance of ").append(processorName).append(" over ")
+                .append(rounds.size()).append(" rounds: ").append(millis(wall))
+                .append(" ms, ").append(allBytes).append(" bytes generated\n");
+        sb.append(String.format("%-12s %-56s %9s %12s %12s%n",
+                "category", "name", "count", "total ms", "mean us"));
+        for (Map.Entry<String, long[]> e : totals.entrySet()) {
+            int tab = e.getKey().indexOf('\t');
+            long count = e.getValue()[0];
+            long nanos = e.getValue()[1];
+            sb.append(String.format("%-12s %-56s %9d %12s %12s%n",
+                    e.getKey().substring(0, tab), e.getKey().substring(tab + 1), count,
+                    nanos == 0 ? "-" : millis(nanos),
+                    nanos == 0 || count == 0 ? "-" : String.format("%.1f", (nanos / (double) count) / 1000D)));
+        }
+        for (Round r : rounds) {
+            sb.append("round ").append(r.index).append(": ").append(millis(r.wallNanos))
+                    .append(" ms, ").append(r.bytes).append(" bytes\n");
+        }
+        return sb.toString();
+    }
+
+    private String json(Map<String, long[]> totals) {
+        StringBuilder sb = new StringBuilder(512 + totals.size() * 128);
+        sb.append("{\n  \"processor\": ");
+        quote(processorName, sb);
+        sb.append(",\n  \"rounds\": [");
+        for (int i = 0; i < rounds.size(); i++) {
+            Round r = rounds.get(i);
+            sb.append(i == 0 ? "\n" : ",\n").append("    {\"round\": ").append(r.index)
+                    .append(", \"wallNanos\": ").append(r.wallNanos)
+                    .append(", \"bytes\": ").append(r.bytes)
+                    .append(", \"stats\": ");
+            stats(r.stats, "      ", sb);
+            sb.append('}');
+        }
+        sb.append("\n  ],\n  \"totals\": ");
+        stats(totals, "    ", sb);
+        return sb.append("\n}\n").toString();
+    }
+
+    private static void stats(Map<String, long[]> stats, String indent, StringBuilder sb) {
+        sb.append('[');
+        boolean first = true;
+        for (Map.Entry<String, long[]> e : stats.entrySet()) {
+            int tab = e.getKey().indexOf('\t');
+            sb.append(first ? "\n" : ",\n").append(indent).append("{\"category\": ");
+            quote(e.getKey().substring(0, tab), sb);
+            sb.append(", \"name\": ");
+            quote(e.getKey().substring(tab + 1), sb);
+            sb.append(", \"count\": ").append(e.getValue()[0])
+                    .append(", \"nanos\": ").append(e.getValue()[1]).append('}');
+            first = false;
+        }
+        sb.append(']');
+    }
+
+    private static void quote(String s, StringBuilder sb) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    sb.append('\\').append(c);
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1_000_000D);
+    }
+
+    private static final class Stat {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        void add(long count, long nanos) {
+            this.count.add(count);
+            if (nanos != 0) {
+                this.nanos.add(nanos);
+            }
+        }
+    }
+
+    private static final class Round {
+
+        private final int index;
+        private final long wallNanos;
+        private final long bytes;
+        private final Map<String, long[]> stats;
+
+        Round(int index, long wallNanos, long bytes, Map<String, long[]> stats) {
+            this.index = index;
+            this.wallNanos = wallNanos;
+            this.bytes = bytes;
+            this.stats = stats;
+        }
+    }
+}
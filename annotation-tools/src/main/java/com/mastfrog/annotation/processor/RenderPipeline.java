@@ -0,0 +1,328 @@
+package com.mastfrog.annotation.processor;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import com.mastfrog.java.vogon.ClassBuilder;
+import java.io.IOException;
+import java.io.OutputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.tools.JavaFileObject;
+
+/**
+ * Renders ClassBuilders to bytes on a small, bounded pool of worker threads,
+ * and writes them through the Filer, in the order they were submitted, on
+ * javac's thread when {@link #flush()} is called at the end of a round.
+ * Rendering a ClassBuilder is pure computation which never touches javac's
+ * model objects, so it is safe to do off-thread; the Filer is not, which is
+ * why writing is deferred.
+ * <p>
+ * A builder must not be modified after it is submitted. If rendering or
+ * writing fails, the failure is reported as an error on the elements which
+ * the builder was generated from. The number of threads is set with the
+ * <code>{@value AnnotationUtils#AU_RENDER_THREADS}</code> processor option;
+ * 0 renders synchronously on javac's thread as each builder is submitted.
+ * </p><p>
+ * If the processor declares an incremental processing category, the
+ * originating elements of each builder are checked against it when it is
+ * submitted, and a warning issued if they are wrong, since Gradle would then
+ * fall back to full recompilation.
+ * </p><p>
+ * With a {@link GenerationCache}, sources can be submitted straight from the
+ * cache, and the sources generated between <code>startRecording()</code> and
+ * <code>endRecording()</code> are stored in it once they have all been written
+ * successfully.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class RenderPipeline {
+
+    private static final int DEFAULT_THREADS
+            = Math.max(0, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+    private final ProcessingEnvironment env;
+    private final AnnotationUtils utils;
+    private final ProcessorMetrics metrics;
+    private final int threads;
+    private final IncrementalProcessing incremental;
+    private final GenerationCache cache;
+    private Recording recording;
+    private final List<Job> pending = new ArrayList<>();
+    private ThreadPoolExecutor executor;
+
+    RenderPipeline(ProcessingEnvironment env, AnnotationUtils utils, ProcessorMetrics metrics,
+            IncrementalProcessing incremental, GenerationCache cache) {
+        this.env = env;
+        this.utils = utils;
+        this.metrics = metrics;
+        this.incremental = incremental;
+        this.cache = cache;
+        this.threads = threadCount(env.getOptions().get(AnnotationUtils.AU_RENDER_THREADS));
+    }
+
+    private int threadCount(String opt) {
+        if (opt == null || opt.trim().isEmpty()) {
+            return DEFAULT_THREADS;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(opt.trim()));
+        } catch (NumberFormatException ex) {
+            utils.warn("Bad value for " + AnnotationUtils.AU_RENDER_THREADS
+                    + ": '" + opt + "' - using " + DEFAULT_THREADS);
+            return DEFAULT_THREADS;
+        }
+    }
+
+    /**
+     * Queue a builder to be rendered, and written at the end of the round.
+     *
+     * @param builder A class builder
+     * @param elements The elements it was generated from
+     */
+    void submit(ClassBuilder<String> builder, Element... elements) {
+        String problem = incremental.checkOriginatingElements(builder.fqn(), elements);
+        if (problem != null) {
+            if (elements.length == 0) {
+                utils.warn(problem);
+            } else {
+                utils.warn(problem, elements[0]);
+            }
+        }
+        // The builder is built on another thread, so it will never be
+        // removed from the context of this one unless done here
+        builder.detachContext();
+        CompletableFuture<List<Rendered>> render;
+        if (threads == 0) {
+            render = new CompletableFuture<>();
+            try {
+                render.complete(render(builder));
+            } catch (RuntimeException | Error ex) {
+                render.completeExceptionally(ex);
+            }
+        } else {
+            render = CompletableFuture.supplyAsync(() -> render(builder), executor());
+        }
+        pending.add(new Job(builder.fqn(), elements, render, recording));
+        if (recording != null) {
+            recording.jobs++;
+        }
+    }
+
+    /**
+     * Queue sources retrieved from the generation cache to be written at the
+     * end of the round.
+     *
+     * @param files The sources
+     * @param elements The elements they were generated from
+     */
+    void submitCached(List<Rendered> files, Element... elements) {
+        String name = files.isEmpty() ? "cached sources" : files.get(0).fqn;
+        pending.add(new Job(name, elements, CompletableFuture.completedFuture(files), null));
+    }
+
+    /**
+     * Start collecting the sources submitted from now on, to store them in
+     * the cache.
+     */
+    void startRecording() {
+        recording = new Recording();
+    }
+
+    /**
+     * Stop collecting sources; if given a key, they will be stored under it
+     * once written, if anything was submitted and all of it is written
+     * successfully.
+     *
+     * @param key The cache key, or null to discard what was collected
+     */
+    void endRecording(String key) {
+        if (recording != null) {
+            recording.key = key;
+            recording = null;
+        }
+    }
+
+    /**
+     * Write everything submitted so far, in submission order, waiting for
+     * rendering to complete as needed. Must be called on javac's thread.
+     *
+     * @return true if everything was written successfully
+     */
+    boolean flush() {
+        boolean result = true;
+        List<Job> jobs = new ArrayList<>(pending);
+        pending.clear();
+        Filer filer = env.getFiler();
+        for (Job job : jobs) {
+            List<Rendered> rendered;
+            try {
+                rendered = job.render.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                job.recordingFailed();
+                job.fail("Interrupted rendering " + job.name, ex);
+                result = false;
+                continue;
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+                job.recordingFailed();
+                job.fail("Exception rendering " + job.name, cause);
+                result = false;
+                continue;
+            }
+            boolean written = true;
+            for (Rendered r : rendered) {
+                long start = metrics.start();
+                Object event = ProcessorEvents.beginWrite("source", r.fqn);
+                long size = -1;
+                try {
+                    JavaFileObject file = filer.createSourceFile(r.fqn, job.elements);
+                    try (OutputStream out = file.openOutputStream()) {
+                        out.write(r.bytes);
+                    }
+                    size = r.bytes.length;
+                    metrics.time(ProcessorMetrics.FILER, "source files", start);
+                    metrics.bytes(r.bytes.length);
+                } catch (IOException | RuntimeException ex) {
+                    job.fail("Exception writing " + r.fqn, ex);
+                    result = false;
+                    written = false;
+                } finally {
+                    ProcessorEvents.endWrite(event, size);
+                }
+            }
+            if (job.recording != null) {
+                job.recording.written(rendered, written);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write anything pending and release the worker threads.
+     *
+     * @return true if everything was written successfully
+     */
+    boolean close() {
+        try {
+            return flush();
+        } finally {
+            if (cache != null) {
+                cache.close();
+            }
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+
+    private Executor executor() {
+        if (executor == null) {
+            // Bounded queue with caller-runs, so a processor generating
+            // classes faster than they can be rendered renders some of them
+            // itself instead of queueing without limit
+            executor = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(threads * 8), r -> {
+                        Thread t = new Thread(r, "class-builder-render-"
+                                + THREAD_IDS.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private List<Rendered> render(ClassBuilder<String> builder) {
+        long start = metrics.start();
+        List<Rendered> result = new ArrayList<>(1);
+        result.add(new Rendered(builder.fqn(), builder.build().getBytes(UTF_8)));
+        // If the builder is partitioned, its companion classes were fixed
+        // when its source was generated
+        for (ClassBuilder<String> part : builder.partitions()) {
+            result.add(new Rendered(part.fqn(), part.build().getBytes(UTF_8)));
+        }
+        metrics.time(ProcessorMetrics.RENDER, "classes", start);
+        return result;
+    }
+
+    private final class Job {
+
+        private final String name;
+        private final Element[] elements;
+        private final CompletableFuture<List<Rendered>> render;
+        private final Recording recording;
+
+        Job(String name, Element[] elements,
+                CompletableFuture<List<Rendered>> render, Recording recording) {
+            this.name = name;
+            this.elements = elements;
+            this.render = render;
+            this.recording = recording;
+        }
+
+        void recordingFailed() {
+            if (recording != null) {
+                recording.written(null, false);
+            }
+        }
+
+        void fail(String msg, Throwable thrown) {
+            thrown.printStackTrace(System.err);
+            String text = msg + ": " + thrown;
+            if (elements.length == 0) {
+                utils.fail(text);
+            } else {
+                for (Element el : elements) {
+                    utils.fail(text, el);
+                }
+            }
+        }
+    }
+
+    /**
+     * The sources generated for one annotated element, collected for the
+     * cache as they are written.
+     */
+    private final class Recording {
+
+        private final List<Rendered> files = new ArrayList<>(2);
+        private String key;
+        private int jobs;
+        private boolean failed;
+
+        void written(List<Rendered> rendered, boolean success) {
+            if (success) {
+                files.addAll(rendered);
+            } else {
+                failed = true;
+            }
+            if (--jobs == 0 && !failed && key != null) {
+                cache.put(key, files);
+            }
+        }
+    }
+
+    static final class Rendered {
+
+        final String fqn;
+        final byte[] bytes;
+
+        Rendered(String fqn, byte[] bytes) {
+            this.fqn = fqn;
+            this.bytes = bytes;
+        }
+    }
+}
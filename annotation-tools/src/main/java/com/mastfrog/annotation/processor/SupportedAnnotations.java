@@ -0,0 +1,144 @@
+package com.mastfrog.annotation.processor;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * The annotation types a processor supports, resolved to TypeElements once per
+ * round, so that finding which of them are present on an element means walking
+ * its annotation mirrors once and doing a map lookup for each, rather than
+ * resolving each type by name and rescanning the element's mirrors for every
+ * supported type.
+ * <p>
+ * Lookups use the annotation type's qualified <code>Name</code>, which javac
+ * interns, so no string conversion is done.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+final class SupportedAnnotations {
+
+    private final String[] names;
+    private final TypeElement[] types;
+    private final Map<Name, Integer> indices;
+
+    SupportedAnnotations(Collection<String> annotationTypes, AnnotationUtils utils) {
+        names = annotationTypes.toArray(new String[annotationTypes.size()]);
+        types = new TypeElement[names.length];
+        indices = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            types[i] = utils.typeElement(names[i]);
+            if (types[i] != null) {
+                indices.putIfAbsent(types[i].getQualifiedName(), i);
+            }
+        }
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String name(int index) {
+        return names[index];
+    }
+
+    TypeElement type(int index) {
+        return types[index];
+    }
+
+    /**
+     * Get the elements annotated with any of the supported types, in the
+     * order the annotation types are listed.
+     *
+     * @param roundEnv The round
+     * @return A set of elements
+     */
+    Set<Element> annotatedElements(RoundEnvironment roundEnv) {
+        Set<Element> result = new LinkedHashSet<>();
+        for (TypeElement type : types) {
+            if (type != null) {
+                result.addAll(roundEnv.getElementsAnnotatedWith(type));
+            }
+        }
+        return result;
+    }
+
+    Set<? extends Element> annotatedElements(RoundEnvironment roundEnv, int index) {
+        return types[index] == null ? Collections.emptySet()
+                : roundEnv.getElementsAnnotatedWith(types[index]);
+    }
+
+    /**
+     * Bucket the annotation mirrors on an element by supported type, in a
+     * single pass over them.
+     *
+     * @param el An element
+     * @param into An array of at least <code>size()</code> elements, which is
+     * cleared and then populated with the mirror at the index of its type, if
+     * any
+     * @param utils Used to report an element which has more than one
+     * annotation of the same type, in which case the first is used
+     * @return The number of supported annotations found
+     */
+    int mirrorsOf(Element el, AnnotationMirror[] into, AnnotationUtils utils) {
+        Arrays.fill(into, 0, names.length, null);
+        int result = 0;
+        for (AnnotationMirror mirror : el.getAnnotationMirrors()) {
+            Integer index = indexOf(mirror);
+            if (index != null) {
+                if (into[index] != null) {
+                    utils.fail("Found more than one annotation of type "
+                            + names[index] + " on " + el, el, into[index]);
+                } else {
+                    into[index] = mirror;
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the mirror of one supported type on an element.
+     *
+     * @param el An element
+     * @param index The index of the type
+     * @param utils Used to report an element which has more than one
+     * annotation of the type, in which case the first is used
+     * @return A mirror or null
+     */
+    AnnotationMirror mirrorOf(Element el, int index, AnnotationUtils utils) {
+        AnnotationMirror result = null;
+        for (AnnotationMirror mirror : el.getAnnotationMirrors()) {
+            Integer ix = indexOf(mirror);
+            if (ix != null && ix == index) {
+                if (result != null) {
+                    utils.fail("Found more than one annotation of type "
+                            + names[index] + " on " + el, el, result);
+                } else {
+                    result = mirror;
+                }
+            }
+        }
+        return result;
+    }
+
+    private Integer indexOf(AnnotationMirror mirror) {
+        Element type = mirror.getAnnotationType().asElement();
+        if (type instanceof TypeElement) {
+            return indices.get(((TypeElement) type).getQualifiedName());
+        }
+        return null;
+    }
+}
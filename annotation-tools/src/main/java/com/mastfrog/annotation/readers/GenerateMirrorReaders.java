@@ -0,0 +1,29 @@
+package com.mastfrog.annotation.readers;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generate a typed reader class for each listed annotation type, in the
+ * package of the annotated class, named <code>[AnnotationName]Reader</code>.
+ * Typically placed on an annotation processor that consumes those annotations;
+ * processed by <code><a href="MirrorReaderProcessor.html">MirrorReaderProcessor</a></code>.
+ * It has CLASS retention so that Gradle's incremental compilation can tell
+ * which classes use it.
+ *
+ * @author Tim Boudreau
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface GenerateMirrorReaders {
+
+    /**
+     * The annotation types to generate readers for.
+     *
+     * @return An array of annotation types
+     */
+    Class<? extends Annotation>[] value();
+}
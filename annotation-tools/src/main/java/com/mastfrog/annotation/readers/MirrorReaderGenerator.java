@@ -0,0 +1,297 @@
+package com.mastfrog.annotation.readers;
+
+import com.mastfrog.java.vogon.ClassBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * Generates the source of a typed reader for one annotation type: a class
+ * with a field and accessor per annotation member, and a static
+ * <code>read(AnnotationMirror, Elements)</code> method which decodes a mirror
+ * into it in a single pass over its values, including defaults. That replaces
+ * string-keyed lookups such as
+ * <code>utils.annotationValue(mirror, "name", String.class)</code>, which
+ * rescan the mirror for each member and only fail at runtime if a member name
+ * is misspelled, with plain field reads checked by the compiler.
+ * <p>
+ * Members are mapped to reader types as follows: primitives to primitives,
+ * <code>String</code> to <code>String</code>, <code>Class</code> to
+ * <code>TypeMirror</code>, enum constants to their names as
+ * <code>String</code>s (the processor may not be able to load the enum class),
+ * nested annotations to <code>AnnotationMirror</code>, and arrays of any of
+ * those to an unmodifiable <code>List</code> of the (boxed) element type.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class MirrorReaderGenerator {
+
+    private static final String VALUES_TYPE = "List<? extends AnnotationValue>";
+    // Private members use names an annotation member cannot sensibly have;
+    // these are the public ones, which it must not have
+    private static final String ANNOTATION_TYPE_FIELD = "ANNOTATION_TYPE";
+    private static final String MIRROR_ACCESSOR = "mirror";
+    private static final String MIRROR_FIELD = "$mirror";
+    private static final String LIST_HELPER = "$list";
+    private static final String ENUM_NAMES_HELPER = "$enumNames";
+    private final TypeElement annotationType;
+    private final List<Member> members = new ArrayList<>();
+
+    /**
+     * Create a generator for an annotation type.
+     *
+     * @param annotationType The annotation type
+     * @throws IllegalArgumentException if the type is not an annotation type,
+     * has a member of a type that cannot appear in an annotation, or has a
+     * member named <code>mirror</code> or <code>ANNOTATION_TYPE</code>, which
+     * would clash with the reader's own
+     */
+    public MirrorReaderGenerator(TypeElement annotationType) {
+        if (annotationType.getKind() != ElementKind.ANNOTATION_TYPE) {
+            throw new IllegalArgumentException("Not an annotation type: "
+                    + annotationType.getQualifiedName());
+        }
+        this.annotationType = annotationType;
+        for (Element el : annotationType.getEnclosedElements()) {
+            if (el.getKind() == ElementKind.METHOD) {
+                Member m = new Member((ExecutableElement) el);
+                if (MIRROR_ACCESSOR.equals(m.name) || ANNOTATION_TYPE_FIELD.equals(m.name)) {
+                    throw new IllegalArgumentException("Cannot generate a reader for "
+                            + annotationType.getQualifiedName() + ": its member "
+                            + m.name + "() would clash with the reader's own "
+                            + m.name);
+                }
+                members.add(m);
+            }
+        }
+    }
+
+    /**
+     * Get the conventional name of the reader for an annotation type -
+     * <code>[AnnotationName]Reader</code>.
+     *
+     * @param annotationType An annotation type
+     * @return A simple class name
+     */
+    public static String readerName(TypeElement annotationType) {
+        return annotationType.getSimpleName() + "Reader";
+    }
+
+    /**
+     * Generate the reader class.
+     *
+     * @param pkg The package to generate it in
+     * @param className The simple name of the reader class
+     * @return A class builder
+     */
+    public ClassBuilder<String> generate(String pkg, String className) {
+        String annotationName = annotationType.getQualifiedName().toString();
+        ClassBuilder<String> cb = ClassBuilder.forPackage(pkg).named(className)
+                .withModifier(PUBLIC, FINAL)
+                .importing("java.util.ArrayList", "java.util.Collections",
+                        "java.util.List", "java.util.Map",
+                        "javax.lang.model.element.AnnotationMirror",
+                        "javax.lang.model.element.AnnotationValue",
+                        "javax.lang.model.element.ExecutableElement",
+                        "javax.lang.model.element.TypeElement",
+                        "javax.lang.model.element.VariableElement",
+                        "javax.lang.model.type.TypeMirror",
+                        "javax.lang.model.util.Elements")
+                .docComment("Typed reader for the annotation <code>" + annotationName
+                        + "</code>, generated from its declaration; use <code>read()</code> "
+                        + "to decode an annotation mirror in one pass.");
+        cb.field(ANNOTATION_TYPE_FIELD, fb -> {
+            fb.withModifier(PUBLIC, STATIC, FINAL)
+                    .initializedWith(annotationName);
+        });
+        cb.field(MIRROR_FIELD).withModifier(PRIVATE, FINAL).ofType("AnnotationMirror");
+        for (Member m : members) {
+            cb.field(m.name).withModifier(PRIVATE).ofType(m.readerType);
+        }
+        cb.constructor(con -> {
+            con.setModifier(PRIVATE).addArgument("AnnotationMirror", "mirror")
+                    .body(bb -> bb.statement("this." + MIRROR_FIELD + " = mirror"));
+        });
+        cb.method("read", mb -> {
+            mb.withModifier(PUBLIC, STATIC)
+                    .docComment("Decode an annotation mirror, using the defaults declared "
+                            + "by the annotation for members it does not set."
+                            + "\n@param mirror An annotation mirror of type <code>"
+                            + annotationName + "</code>"
+                            + "\n@param elements The Elements from the processing environment"
+                            + "\n@return A reader"
+                            + "\n@throws IllegalArgumentException if the mirror is of some other type")
+                    .addArgument("AnnotationMirror", "mirror")
+                    .addArgument("Elements", "elements")
+                    .returning(className)
+                    .body(bb -> {
+                        bb.iff().booleanExpression("!ANNOTATION_TYPE.contentEquals(((TypeElement) "
+                                + "mirror.getAnnotationType().asElement()).getQualifiedName())")
+                                .statement("throw new IllegalArgumentException(\"Not a \" + ANNOTATION_TYPE + \": \" + mirror)")
+                                .endIf();
+                        bb.statement(className + " result = new " + className + "(mirror)");
+                        if (!members.isEmpty()) {
+                            bb.simpleLoop("Map.Entry<? extends ExecutableElement, ? extends AnnotationValue>", "e", loop -> {
+                                loop.over("elements.getElementValuesWithDefaults(mirror).entrySet()", body -> {
+                                    body.statement("Object value = e.getValue().getValue()");
+                                    body.switchingOn("e.getKey().getSimpleName().toString()", sw -> {
+                                        for (Member m : members) {
+                                            sw.inStringLiteralCase(m.name, cs -> {
+                                                cs.statement("result." + m.name + " = " + m.decode)
+                                                        .statement("break");
+                                            });
+                                        }
+                                    });
+                                });
+                            });
+                        }
+                        bb.returning("result");
+                    });
+        });
+        cb.method(MIRROR_ACCESSOR, mb -> {
+            mb.withModifier(PUBLIC)
+                    .docComment("Get the annotation mirror this reader was created from."
+                            + "\n@return The mirror")
+                    .returning("AnnotationMirror")
+                    .body(bb -> bb.returning(MIRROR_FIELD));
+        });
+        for (Member m : members) {
+            cb.method(m.name, mb -> {
+                mb.withModifier(PUBLIC)
+                        .docComment("Get the value of <code>" + m.name + "()</code>."
+                                + "\n@return The value, or its default")
+                        .returning(m.readerType)
+                        .body(bb -> bb.returning(m.name));
+            });
+        }
+        if (needsHelper(false)) {
+            cb.method(LIST_HELPER, mb -> {
+                mb.withModifier(PRIVATE, STATIC)
+                        .annotatedWith("SuppressWarnings").addArgument("value", "unchecked").closeAnnotation()
+                        .withTypeParam("T")
+                        .addArgument("Object", "value")
+                        .addArgument("Class<T>", "type")
+                        .returning("List<T>")
+                        .body(bb -> {
+                            bb.statement(VALUES_TYPE + " values = (" + VALUES_TYPE + ") value");
+                            bb.statement("List<T> result = new ArrayList<>(values.size())");
+                            bb.simpleLoop("AnnotationValue", "v", loop -> {
+                                loop.over("values", body -> body.statement("result.add(type.cast(v.getValue()))"));
+                            });
+                            bb.returning("Collections.unmodifiableList(result)");
+                        });
+            });
+        }
+        if (needsHelper(true)) {
+            cb.method(ENUM_NAMES_HELPER, mb -> {
+                mb.withModifier(PRIVATE, STATIC)
+                        .annotatedWith("SuppressWarnings").addArgument("value", "unchecked").closeAnnotation()
+                        .addArgument("Object", "value")
+                        .returning("List<String>")
+                        .body(bb -> {
+                            bb.statement(VALUES_TYPE + " values = (" + VALUES_TYPE + ") value");
+                            bb.statement("List<String> result = new ArrayList<>(values.size())");
+                            bb.simpleLoop("AnnotationValue", "v", loop -> {
+                                loop.over("values", body -> body.statement(
+                                        "result.add(((VariableElement) v.getValue()).getSimpleName().toString())"));
+                            });
+                            bb.returning("Collections.unmodifiableList(result)");
+                        });
+            });
+        }
+        return cb;
+    }
+
+    private boolean needsHelper(boolean enums) {
+        for (Member m : members) {
+            if (m.array && m.enumType == enums) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Member {
+
+        final String name;
+        final String readerType;
+        final String decode;
+        final boolean array;
+        final boolean enumType;
+
+        Member(ExecutableElement method) {
+            name = method.getSimpleName().toString();
+            TypeMirror type = method.getReturnType();
+            array = type.getKind() == TypeKind.ARRAY;
+            if (array) {
+                type = ((ArrayType) type).getComponentType();
+            }
+            enumType = isKind(type, ElementKind.ENUM);
+            String elementType;
+            if (type.getKind().isPrimitive()) {
+                elementType = boxed(type.getKind());
+            } else if (enumType) {
+                elementType = "String";
+            } else if (isKind(type, ElementKind.ANNOTATION_TYPE)) {
+                elementType = "AnnotationMirror";
+            } else if (type.getKind() == TypeKind.DECLARED) {
+                String qname = ((TypeElement) ((DeclaredType) type).asElement())
+                        .getQualifiedName().toString();
+                switch (qname) {
+                    case "java.lang.String":
+                        elementType = "String";
+                        break;
+                    case "java.lang.Class":
+                        elementType = "TypeMirror";
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unsupported type "
+                                + "for annotation member " + name + ": " + type);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported type "
+                        + "for annotation member " + name + ": " + type);
+            }
+            if (array) {
+                readerType = "List<" + elementType + ">";
+                decode = enumType ? ENUM_NAMES_HELPER + "(value)"
+                        : LIST_HELPER + "(value, " + elementType + ".class)";
+            } else {
+                readerType = type.getKind().isPrimitive()
+                        ? type.getKind().name().toLowerCase() : elementType;
+                decode = enumType
+                        ? "((VariableElement) value).getSimpleName().toString()"
+                        : "(" + elementType + ") value";
+            }
+        }
+
+        private static boolean isKind(TypeMirror type, ElementKind kind) {
+            return type.getKind() == TypeKind.DECLARED
+                    && ((DeclaredType) type).asElement().getKind() == kind;
+        }
+
+        private static String boxed(TypeKind kind) {
+            switch (kind) {
+                case INT:
+                    return "Integer";
+                case CHAR:
+                    return "Character";
+                default:
+                    String name = kind.name().toLowerCase();
+                    return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            }
+        }
+    }
+}
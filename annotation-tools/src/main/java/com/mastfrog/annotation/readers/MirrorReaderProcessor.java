@@ -0,0 +1,75 @@
+package com.mastfrog.annotation.readers;
+
+import com.mastfrog.annotation.processor.AbstractDelegatingProcessor;
+import com.mastfrog.annotation.processor.IncrementalProcessing;
+import java.util.List;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * Generates typed mirror readers for the annotation types listed in
+ * <code>&#064;<a href="GenerateMirrorReaders.html">GenerateMirrorReaders</a></code>,
+ * using <code><a href="MirrorReaderGenerator.html">MirrorReaderGenerator</a></code>.
+ * It is not registered as a service, since this library is on the classpath
+ * of every processor built with it; enable it explicitly, e.g. with
+ * <code>-processor com.mastfrog.annotation.readers.MirrorReaderProcessor</code>
+ * or in the annotation processor paths of the build. Each reader is generated
+ * from the one type that requests it, so it is an isolating processor for
+ * Gradle's incremental annotation processing.
+ *
+ * @author Tim Boudreau
+ */
+@SupportedAnnotationTypes(MirrorReaderProcessor.GENERATE_MIRROR_READERS)
+public final class MirrorReaderProcessor extends AbstractDelegatingProcessor {
+
+    static final String GENERATE_MIRROR_READERS
+            = "com.mastfrog.annotation.readers.GenerateMirrorReaders";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    protected IncrementalProcessing incrementalProcessing() {
+        return IncrementalProcessing.ISOLATING;
+    }
+
+    @Override
+    protected boolean processTypeAnnotation(TypeElement type, AnnotationMirror mirror, RoundEnvironment roundEnv) throws Exception {
+        String pkg = packageOf(type).getQualifiedName().toString();
+        List<TypeMirror> annotationTypes = utils().typeValues(mirror, "value", utils()::fail);
+        for (TypeMirror tm : annotationTypes) {
+            Element el = ((DeclaredType) tm).asElement();
+            if (el.getKind() != ElementKind.ANNOTATION_TYPE) {
+                utils().fail("Not an annotation type: " + tm, type, mirror);
+                continue;
+            }
+            TypeElement annotationType = (TypeElement) el;
+            MirrorReaderGenerator gen;
+            try {
+                gen = new MirrorReaderGenerator(annotationType);
+            } catch (IllegalArgumentException ex) {
+                utils().fail(ex.getMessage(), type, mirror);
+                continue;
+            }
+            writeOne(gen.generate(pkg, MirrorReaderGenerator.readerName(annotationType)), type);
+        }
+        return true;
+    }
+
+    private static PackageElement packageOf(Element el) {
+        while (el.getKind() != ElementKind.PACKAGE) {
+            el = el.getEnclosingElement();
+        }
+        return (PackageElement) el;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+import javax.lang.model.element.Element;
+
+/**
+ * Registration processor which writes binary indexes, readable at runtime
+ * with <code>com.mastfrog.annotation.index.BinaryIndex</code>, rather than
+ * lines of text.
+ *
+ * @author Tim Boudreau
+ */
+public abstract class AbstractBinaryRegistrationAnnotationProcessor extends AbstractRegistrationAnnotationProcessor<BinaryEntry> {
+
+    private int entryCount;
+
+    public AbstractBinaryRegistrationAnnotationProcessor(String... annotationLegalOnFqns) {
+        super(new BinaryIndexFactory(), annotationLegalOnFqns);
+    }
+
+    public AbstractBinaryRegistrationAnnotationProcessor(boolean processOnFinalRound, String... annotationLegalOnFqns) {
+        super(processOnFinalRound, new BinaryIndexFactory(), annotationLegalOnFqns);
+    }
+
+    protected AbstractBinaryRegistrationAnnotationProcessor(boolean processOnFinalRound,
+            AnnotationIndexFactory<BinaryEntry> indexer, String... annotationLegalOnFqns) {
+        super(processOnFinalRound, indexer, annotationLegalOnFqns);
+    }
+
+    protected AbstractBinaryRegistrationAnnotationProcessor(boolean processOnFinalRound,
+            IndexFactory<BinaryEntry, ?> indexer, String... annotationLegalOnFqns) {
+        super(processOnFinalRound, indexer, annotationLegalOnFqns);
+    }
+
+    protected boolean addEntry(String path, String value, Element... el) {
+        return addIndexElement(path, new BinaryEntry(entryCount++, null, value, el), el);
+    }
+
+    protected boolean addEntry(String path, String key, String value, Element... el) {
+        if (key == null) {
+            throw new IllegalArgumentException("Null key for " + value);
+        }
+        return addIndexElement(path, new BinaryEntry(entryCount++, key, value, el), el);
+    }
+}
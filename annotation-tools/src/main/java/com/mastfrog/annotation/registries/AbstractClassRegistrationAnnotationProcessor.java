@@ -0,0 +1,43 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+/**
+ * Registration processor which generates each registry as a Java class with
+ * its entries as static data, using <code>ClassIndexFactory</code>; the
+ * <code>path</code> passed to <code>addEntry()</code> is the fully-qualified
+ * name of the registry class.
+ *
+ * @author Tim Boudreau
+ */
+public abstract class AbstractClassRegistrationAnnotationProcessor extends AbstractBinaryRegistrationAnnotationProcessor {
+
+    public AbstractClassRegistrationAnnotationProcessor(String... annotationLegalOnFqns) {
+        super(true, new ClassIndexFactory(), annotationLegalOnFqns);
+    }
+
+    public AbstractClassRegistrationAnnotationProcessor(boolean processOnFinalRound, String... annotationLegalOnFqns) {
+        super(processOnFinalRound, new ClassIndexFactory(), annotationLegalOnFqns);
+    }
+}
@@ -25,10 +25,13 @@ package com.mastfrog.annotation.registries;
 
 import com.mastfrog.annotation.AnnotationUtils;
 import java.lang.annotation.AnnotationTypeMismatchException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,7 +39,9 @@ import javax.annotation.processing.RoundEnvironment;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.AnnotationValue;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
 import javax.tools.Diagnostic;
 
 /**
@@ -53,17 +58,33 @@ public abstract class AbstractRegistrationAnnotationProcessor<E extends IndexEnt
     protected final Set<String> legalOn;
     Set<Element> elements = new HashSet<>();
     private final List<String> deferred = new LinkedList<>();
+    private final String legalOnDescription;
+    // The erased legal-on types, and whether each element checked is a
+    // subtype of one of them, for the current round
+    private TypeMirror[] legalTypes;
+    private final Map<Element, Boolean> legalVerdicts = new IdentityHashMap<>();
 
     public AbstractRegistrationAnnotationProcessor(AnnotationIndexFactory<E> indexer,
             String... annotationLegalOnFqns) {
-        super(true, indexer);
-        this.legalOn = new HashSet<>(Arrays.asList(annotationLegalOnFqns));
+        this(true, indexer, annotationLegalOnFqns);
     }
 
     public AbstractRegistrationAnnotationProcessor(boolean processOnFinalRound, AnnotationIndexFactory<E> indexer,
             String... annotationLegalOnFqns) {
+        this(processOnFinalRound, (IndexFactory<E, ?>) indexer, annotationLegalOnFqns);
+    }
+
+    public AbstractRegistrationAnnotationProcessor(IndexFactory<E, ?> indexer,
+            String... annotationLegalOnFqns) {
+        this(true, indexer, annotationLegalOnFqns);
+    }
+
+    public AbstractRegistrationAnnotationProcessor(boolean processOnFinalRound, IndexFactory<E, ?> indexer,
+            String... annotationLegalOnFqns) {
         super(processOnFinalRound, indexer);
         this.legalOn = new HashSet<>(Arrays.asList(annotationLegalOnFqns));
+        this.legalOnDescription = AnnotationUtils.join('/',
+                legalOn.toArray(new String[legalOn.size()]));
     }
 
 
@@ -71,12 +92,47 @@ public abstract class AbstractRegistrationAnnotationProcessor<E extends IndexEnt
         return 0;
     }
 
+    /**
+     * Determine if an annotation may appear on an element; by default, if the
+     * element's type (or a method's return type) is a subtype of one of the
+     * legal-on types passed to the constructor. The legal-on types are
+     * resolved once per round, and the result is cached per element, since
+     * it does not depend on the annotation.
+     *
+     * @param e An element
+     * @param mirror An annotation on it
+     * @return true if it is legal
+     */
     protected boolean isLegalForAnnotation(Element e, AnnotationMirror mirror) {
         if (legalOn.isEmpty()) {
             return true;
         }
-        for (String type : legalOn) {
-            if (utils().isSubtypeOf(e, type).isSubtype()) {
+        Boolean result = legalVerdicts.get(e);
+        if (result == null) {
+            result = isSubtypeOfLegalType(e);
+            legalVerdicts.put(e, result);
+        }
+        return result;
+    }
+
+    private boolean isSubtypeOfLegalType(Element e) {
+        if (legalTypes == null) {
+            List<TypeMirror> types = new ArrayList<>(legalOn.size());
+            for (String type : legalOn) {
+                TypeMirror erased = utils().erasedType(type);
+                if (erased != null) {
+                    types.add(erased);
+                }
+            }
+            legalTypes = types.toArray(new TypeMirror[types.size()]);
+        }
+        if (legalTypes.length == 0) {
+            return false;
+        }
+        TypeMirror type = utils().erasureOf(e instanceof ExecutableElement
+                ? ((ExecutableElement) e).getReturnType() : e.asType());
+        for (TypeMirror legal : legalTypes) {
+            if (utils().isSubtypeOf(type, legal)) {
                 return true;
             }
         }
@@ -108,6 +164,9 @@ public abstract class AbstractRegistrationAnnotationProcessor<E extends IndexEnt
     @Override
     public boolean handleProcess(Set<? extends TypeElement> annotations,
             RoundEnvironment roundEnv, AnnotationUtils utils) {
+        // Types resolved in an earlier round may not be valid in this one
+        legalTypes = null;
+        legalVerdicts.clear();
         Set<Element> all = utils.findAnnotatedElements(roundEnv);
         List<String> failed = new LinkedList<>();
 
@@ -116,7 +175,7 @@ public abstract class AbstractRegistrationAnnotationProcessor<E extends IndexEnt
         // correctly into a generated page subclass if the type of its value will be
         // generated by Numble in a later round of processing)
         for (String type : deferred) {
-            TypeElement retry = processingEnv.getElementUtils().getTypeElement(type);
+            TypeElement retry = utils.typeElement(type);
             all.add(retry);
         }
         deferred.clear();
@@ -129,8 +188,7 @@ public abstract class AbstractRegistrationAnnotationProcessor<E extends IndexEnt
                         if (isAcceptable(am)) {
                             int order = getOrder(am);
                             if (!isLegalForAnnotation(e, am)) {
-                                String[] strings = legalOn.toArray(new String[legalOn.size()]);
-                                fail("Not a subclass of " + AnnotationUtils.join('/', strings) + ": " + e.asType(), e, am);
+                                fail("Not a subclass of " + legalOnDescription + ": " + e.asType(), e, am);
                                 continue;
                             }
                             elements.add(e);
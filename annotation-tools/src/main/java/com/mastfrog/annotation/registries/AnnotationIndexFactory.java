@@ -23,126 +23,393 @@
  */
 package com.mastfrog.annotation.registries;
 
+import com.mastfrog.annotation.processor.ProcessorEvents;
+import java.io.BufferedReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
 import javax.annotation.processing.Filer;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.util.Elements;
 import javax.tools.Diagnostic;
 import javax.tools.FileObject;
 import javax.tools.StandardLocation;
 
 /**
+ * Factory for indexes written as resources in CLASS_OUTPUT, encoded by an
+ * <code>IndexEncoder</code>, which can be merged with a previous
+ * compilation's output in incremental mode.
  *
  * @author Tim Boudreau
  */
-public abstract class AnnotationIndexFactory<T extends IndexEntry> {
+public abstract class AnnotationIndexFactory<T extends IndexEntry> extends IndexFactory<T, AnnotationIndexFactory.AnnotationIndex<T>> {
 
-    protected final Map<Filer, Map<String, AnnotationIndex<T>>> indexesByProcessor = new HashMap<>();
+    private static final String PATHS_DIR = "META-INF/incremental-indexes/";
+    private final Set<String> recompiled = new HashSet<>();
+    // A type compiled in this build, whose source can be found on the source
+    // path unless the compilation has none
+    private Element probe;
+    private Boolean sourcePathUsable;
+    private boolean incremental;
+    private String owner = getClass().getName();
+    private IndexEncoder encoder = IndexEncoder.commented();
 
     public static LineIndexFactory lines() {
         return new LineIndexFactory();
     }
 
-    public int totalSize() {
-        int result = 0;
-        for (Map.Entry<Filer, Map<String, AnnotationIndex<T>>> indexes : indexesByProcessor.entrySet()) {
-            for (Map.Entry<String, AnnotationIndex<T>> ixForPath : indexes.getValue().entrySet()) {
-                result += ixForPath.getValue().size();
-            }
-        }
-        return result;
+    public static BinaryIndexFactory binary() {
+        return new BinaryIndexFactory();
+    }
+
+    /**
+     * Enable or disable incremental mode, in which each index records the
+     * types its entries originate from, and is merged when written with the
+     * entries of the previous index at the same path in CLASS_OUTPUT whose
+     * types were neither recompiled nor deleted (see
+     * <code>AnnotationUtils.AU_INCREMENTAL_INDEXES</code>). Only indexes
+     * which implement <code>AnnotationIndex.readPrevious()</code> - text and
+     * binary ones - are merged.
+     * <p>
+     * The paths written are listed in a resource under
+     * <code>META-INF/incremental-indexes/</code> named for the factory's
+     * owner, so that every index written by the previous build is rewritten,
+     * even if nothing adds to it this time - as an empty index if none of its
+     * entries survive, since the Filer cannot delete files. A type counts as
+     * deleted if its source file can no longer be found on the source path,
+     * since its class file may still be in CLASS_OUTPUT; if the compilation
+     * has no source path, only types which cannot be resolved at all count as
+     * deleted. The source file of a type is expected to be named for it, as
+     * it must be for public types. Note that javac only runs a processor if a
+     * type it compiles has one of its annotations, so a build which
+     * recompiles none cannot update its indexes.
+     * </p>
+     *
+     * @param incremental Whether to merge with previous output
+     * @return this
+     */
+    public AnnotationIndexFactory<T> setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
     }
 
-    public final AnnotationIndex<T> get(String path, ProcessingEnvironment processingEnv) {
-        if (path == null || path.isEmpty()) {
-            throw new IllegalArgumentException("Path cannot be null or empty");
+    /**
+     * Set the name of the resource listing the indexes written in incremental
+     * mode, which must differ between factories writing to the same
+     * CLASS_OUTPUT; <code>IndexGeneratingProcessor</code> uses its class
+     * name. The default is the factory's class name.
+     *
+     * @param owner A name
+     * @return this
+     */
+    public AnnotationIndexFactory<T> setOwner(String owner) {
+        if (owner == null || owner.isEmpty()) {
+            throw new IllegalArgumentException("Null or empty owner");
         }
-        Filer filer = processingEnv.getFiler();
-        Map<String, AnnotationIndex<T>> forFiler = indexesByProcessor.get(filer);
-        if (forFiler == null) {
-            forFiler = new HashMap<>();
-            indexesByProcessor.put(filer, forFiler);
+        this.owner = owner;
+        return this;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Set the encoder used for indexes this factory writes, which determines
+     * whether text indexes are commented with the origins of each line, and
+     * can compress them; the default is <code>IndexEncoder.commented()</code>.
+     *
+     * @param encoder An encoder
+     * @return this
+     */
+    public AnnotationIndexFactory<T> setEncoder(IndexEncoder encoder) {
+        if (encoder == null) {
+            throw new IllegalArgumentException("Null encoder");
         }
-        AnnotationIndex<T> result = forFiler.get(path);
-        if (result == null) {
-            result = newIndex(path);
-            forFiler.put(path, result);
+        this.encoder = encoder;
+        return this;
+    }
+
+    public IndexEncoder encoder() {
+        return encoder;
+    }
+
+    /**
+     * Record the root elements of a processing round, which are the types
+     * being compiled, whose entries in a previous index are replaced by any
+     * they contribute now.
+     *
+     * @param roots The root elements of a round
+     */
+    @Override
+    public void rootElements(Set<? extends Element> roots) {
+        if (incremental) {
+            for (Element el : roots) {
+                String name = Origins.nameOf(el);
+                if (name != null) {
+                    recompiled.add(name);
+                    if (probe == null) {
+                        probe = el;
+                    }
+                }
+            }
         }
-        return result;
     }
 
+    @Override
+    void onCreated(AnnotationIndex<T> index) {
+        index.incremental = incremental;
+        index.encoder = encoder;
+    }
+
+    @Override
     public void write(ProcessingEnvironment processingEnv) {
         try {
-            for (Map.Entry<Filer, Map<String, AnnotationIndex<T>>> outputFiles : indexesByProcessor.entrySet()) {
-                Filer filer = outputFiles.getKey();
-                for (Map.Entry<String, AnnotationIndex<T>> entry : outputFiles.getValue().entrySet()) {
-                    try {
-                        List<Element> elements = new ArrayList<>();
-                        for (T line : entry.getValue()) {
-                            elements.addAll(Arrays.asList(line.elements()));
-                        }
-                        FileObject out = filer.createResource(StandardLocation.CLASS_OUTPUT, "", entry.getKey(),
-                                elements.toArray(new Element[0]));
-                        try (OutputStream os = out.openOutputStream()) {
-                            entry.getValue().write(os, processingEnv);
-                        }
-                    } catch (IOException x) {
-                        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write to " + entry.getKey() + ": " + x.toString());
-                    }
-                }
+            if (!incremental) {
+                super.write(processingEnv);
+                return;
+            }
+            for (String path : readPaths(processingEnv)) {
+                // Rewritten with whatever survives of it, even nothing
+                get(path, processingEnv);
             }
+            Set<String> paths = new TreeSet<>();
+            for (Map<String, AnnotationIndex<T>> forFiler : indexesByProcessor.values()) {
+                paths.addAll(forFiler.keySet());
+            }
+            super.write(processingEnv);
+            writePaths(paths, processingEnv);
         } finally {
-            indexesByProcessor.clear();
+            recompiled.clear();
+            probe = null;
+            sourcePathUsable = null;
         }
     }
 
-    public final boolean add(String path, T entry, ProcessingEnvironment processingEnv, Element... associatedWith) {
-        AnnotationIndex<T> index = get(path, processingEnv);
-        int size = index.size();
-        int newSize = index.add(entry);
-        return newSize > size;
+    private Set<String> readPaths(ProcessingEnvironment processingEnv) {
+        Set<String> result = new TreeSet<>();
+        try {
+            FileObject old = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT,
+                    "", PATHS_DIR + owner);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(old.openInputStream(), UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (!line.isEmpty()) {
+                        result.add(line);
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            // No previous build in incremental mode
+        }
+        return result;
     }
 
-    protected abstract AnnotationIndex<T> newIndex(String path);
+    private void writePaths(Set<String> paths, ProcessingEnvironment processingEnv) {
+        String file = PATHS_DIR + owner;
+        try {
+            FileObject out = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                    "", file);
+            try (OutputStream os = out.openOutputStream()) {
+                for (String path : paths) {
+                    os.write((path + "\n").getBytes(UTF_8));
+                }
+            }
+        } catch (IOException x) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write to " + file + ": " + x.toString());
+        }
+    }
 
-    public static abstract class AnnotationIndex<T extends IndexEntry> implements Iterable<T> {
+    /**
+     * Resolve a type or package recorded as the origin of an entry in a
+     * previous index, returning null if it was recompiled or deleted.
+     */
+    private Element resolveOrigin(String name, Filer filer, ProcessingEnvironment processingEnv) {
+        if (recompiled.contains(name)) {
+            return null;
+        }
+        Elements elements = processingEnv.getElementUtils();
+        Element result = elements.getTypeElement(name);
+        if (result == null) {
+            result = elements.getPackageElement(name);
+        }
+        if (result == null) {
+            return null;
+        }
+        if (sourcePathUsable == null) {
+            sourcePathUsable = probe != null && hasSource(probe, filer, elements);
+        }
+        // Resolving a deleted type finds its stale class file
+        return !sourcePathUsable || hasSource(result, filer, elements) ? result : null;
+    }
 
-//        private SortedSet<T> entries = new TreeSet<>();
-        private Set<T> entries = new HashSet<>();
+    private static boolean hasSource(Element el, Filer filer, Elements elements) {
+        PackageElement pkg = elements.getPackageOf(el);
+        String file = el == pkg ? "package-info.java" : el.getSimpleName() + ".java";
+        // Generated types have their sources in SOURCE_OUTPUT, which the
+        // Filer hands out whether or not the file exists, so open it
+        for (StandardLocation location : new StandardLocation[]{StandardLocation.SOURCE_PATH,
+            StandardLocation.SOURCE_OUTPUT}) {
+            try {
+                filer.getResource(location, pkg.getQualifiedName(), file).openInputStream().close();
+                return true;
+            } catch (IOException | IllegalArgumentException ex) {
+                // Not in this location
+            }
+        }
+        return false;
+    }
 
-        public final int size() {
-            return entries.size();
+    /**
+     * In incremental mode, add the surviving entries of the index written at
+     * the same path by a previous compilation, if there is one.
+     *
+     * @param filer The filer
+     * @param path The index path
+     * @param index The index
+     * @param processingEnv The processing environment
+     */
+    protected final void mergePrevious(Filer filer, String path, AnnotationIndex<T> index,
+            ProcessingEnvironment processingEnv) {
+        if (!incremental) {
+            return;
         }
+        List<T> previous;
+        try {
+            FileObject old = filer.getResource(StandardLocation.CLASS_OUTPUT, "", path);
+            try (InputStream in = encoder.decode(old.openInputStream())) {
+                previous = index.readPrevious(in, processingEnv,
+                        name -> resolveOrigin(name, filer, processingEnv));
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            // No previous index, e.g. a clean build, or one we can't read
+            return;
+        }
+        for (T entry : previous) {
+            index.add(entry);
+        }
+    }
 
-        public int add(T entry) {
-            int oldSize = entries.size();
-            for (T existing : entries) {
-                if (entry.equals(existing)) {
-                    existing.addElements(entry.elements());
-                    return oldSize;
+    /**
+     * Write one index, by creating a resource in CLASS_OUTPUT at the index's
+     * path and calling its <code>write()</code> method with a stream wrapped
+     * by the encoder.
+     *
+     * @param filer The filer
+     * @param path The path the index was created for
+     * @param index The index
+     * @param processingEnv The processing environment
+     * @throws IOException If writing fails
+     */
+    @Override
+    protected void writeIndex(Filer filer, String path, AnnotationIndex<T> index,
+            ProcessingEnvironment processingEnv) throws IOException {
+        // In incremental mode the index may be empty, if everything which
+        // contributed to the previous one was recompiled without its
+        // annotations or deleted; it is still written, since the Filer
+        // cannot delete files
+        mergePrevious(filer, path, index, processingEnv);
+        Object event = ProcessorEvents.beginWrite("resource", path);
+        long written = -1;
+        try {
+            FileObject out = filer.createResource(StandardLocation.CLASS_OUTPUT, "", path,
+                    index.elements());
+            try (CountingOutputStream os = new CountingOutputStream(out.openOutputStream())) {
+                // Closed before counting, so compressing encoders have
+                // written their trailers
+                try (OutputStream encoded = encoder.encode(os)) {
+                    index.write(encoded, processingEnv);
                 }
+                written = os.count;
             }
-            entries.add(entry);
-            return entries.size();
+        } finally {
+            ProcessorEvents.endWrite(event, written);
         }
+    }
 
-        public abstract void write(OutputStream out, ProcessingEnvironment processingEnv) throws IOException;
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
 
         @Override
-        public final Iterator<T> iterator() {
-            List<T> l = new ArrayList<>(entries);
-            Collections.sort(l);
-            return l.iterator();
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * An index written to an output stream by its factory.
+     *
+     * @param <T> The entry type
+     */
+    public static abstract class AnnotationIndex<T extends IndexEntry> extends EntryIndex<T> {
+
+        boolean incremental;
+        IndexEncoder encoder = IndexEncoder.commented();
+
+        public abstract void write(OutputStream out, ProcessingEnvironment processingEnv) throws IOException;
+
+        /**
+         * Determine if this index belongs to a factory in incremental mode, in
+         * which case <code>write()</code> should record the origins of each
+         * entry in a form <code>readPrevious()</code> can read back.
+         *
+         * @return true if in incremental mode
+         */
+        protected final boolean isIncremental() {
+            return incremental;
+        }
+
+        /**
+         * Get the encoder of the factory this index belongs to.
+         *
+         * @return An encoder
+         */
+        protected final IndexEncoder encoder() {
+            return encoder;
+        }
+
+        /**
+         * Read the entries of an index written by a previous compilation, for
+         * merging with this one in incremental mode. Each recorded origin
+         * should be passed to the resolver, which returns null for types
+         * which were recompiled or deleted; entries none of whose origins
+         * resolve should be omitted, and the others associated with the
+         * resolved elements. Entries with no recorded origins are kept. The
+         * default implementation returns an empty list, for index types which
+         * cannot be merged.
+         *
+         * @param in The previous index
+         * @param processingEnv The processing environment
+         * @param origins Resolves origin names to elements
+         * @return A list of entries
+         * @throws IOException If reading fails
+         */
+        protected List<T> readPrevious(InputStream in, ProcessingEnvironment processingEnv,
+                Function<String, Element> origins) throws IOException {
+            return Collections.emptyList();
         }
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+import java.util.Objects;
+import javax.lang.model.element.Element;
+
+/**
+ * An entry in a binary index - a value, with a key if the index is keyed.
+ *
+ * @author Tim Boudreau
+ */
+public final class BinaryEntry implements IndexEntry {
+
+    final int index;
+    private final String key;
+    private final String value;
+    private final ElementSet el;
+
+    public BinaryEntry(int index, String key, String value, Element... el) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null value");
+        }
+        this.index = index;
+        this.key = key;
+        this.value = value;
+        this.el = new ElementSet(el);
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    String origins() {
+        return Origins.join(el);
+    }
+
+    @Override
+    public int compareTo(IndexEntry other) {
+        return Integer.compare(index, ((BinaryEntry) other).index);
+    }
+
+    @Override
+    public Element[] elements() {
+        return el.toArray();
+    }
+
+    @Override
+    public void collectElements(ElementSet into) {
+        into.addAll(el);
+    }
+
+    @Override
+    public void addElements(Element... els) {
+        el.addAll(els);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (!(o instanceof BinaryEntry)) {
+            return false;
+        }
+        BinaryEntry other = (BinaryEntry) o;
+        return value.equals(other.value) && Objects.equals(key, other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return value.hashCode() * 31 + Objects.hashCode(key);
+    }
+
+    @Override
+    public String toString() {
+        return key == null ? value : key + "=" + value;
+    }
+}
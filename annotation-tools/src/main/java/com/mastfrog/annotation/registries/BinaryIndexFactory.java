@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+import com.mastfrog.annotation.index.BinaryIndex;
+import com.mastfrog.annotation.index.BinaryIndexWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+
+/**
+ * Writes indexes in the binary format read by
+ * <code>com.mastfrog.annotation.index.BinaryIndex</code>, which applications
+ * can memory-map and query by key without parsing them at startup. An index
+ * is keyed if its entries have keys; keyed and unkeyed entries cannot be mixed
+ * in one index.
+ *
+ * @author Tim Boudreau
+ */
+public final class BinaryIndexFactory extends AnnotationIndexFactory<BinaryEntry> {
+
+    BinaryIndexFactory() {
+
+    }
+
+    @Override
+    protected AnnotationIndex<BinaryEntry> newIndex(String path) {
+        return new BinaryAnnotationIndex(path);
+    }
+
+    private static final class BinaryAnnotationIndex extends AnnotationIndex<BinaryEntry> {
+
+        private final Keyedness keyed;
+
+        BinaryAnnotationIndex(String path) {
+            keyed = new Keyedness(path);
+        }
+
+        @Override
+        public int add(BinaryEntry entry) {
+            keyed.check(entry);
+            return super.add(entry);
+        }
+
+        @Override
+        public void write(OutputStream out, ProcessingEnvironment processingEnv) throws IOException {
+            BinaryIndexWriter writer = new BinaryIndexWriter(keyed.isKeyed());
+            for (BinaryEntry entry : this) {
+                if (isIncremental()) {
+                    writer.addWithOrigin(writer.isKeyed() ? entry.key() : null,
+                            entry.value(), entry.origins());
+                } else if (writer.isKeyed()) {
+                    writer.add(entry.key(), entry.value());
+                } else {
+                    writer.add(entry.value());
+                }
+            }
+            writer.write(out);
+        }
+
+        @Override
+        protected List<BinaryEntry> readPrevious(InputStream in, ProcessingEnvironment processingEnv,
+                Function<String, Element> origins) throws IOException {
+            BinaryIndex previous = BinaryIndex.read(in);
+            int count = previous.size();
+            List<BinaryEntry> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Element[] elements = Origins.resolve(previous.hasOrigins()
+                        ? previous.origin(i) : null, origins);
+                if (elements != null) {
+                    result.add(new BinaryEntry(i - count,
+                            previous.isKeyed() ? previous.key(i) : null,
+                            previous.value(i), elements));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+import com.mastfrog.annotation.processor.ProcessorEvents;
+import static com.mastfrog.code.generation.common.LinesBuilder.stringLiteral;
+import com.mastfrog.java.vogon.ClassBuilder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates each index as a Java class holding its entries as static data,
+ * rather than as a resource, so applications read a registry with a single
+ * class load - no resource scanning or parsing at startup, and the data can
+ * be archived by CDS or AOT compilers. The path of each index is the
+ * fully-qualified name of the class to generate.
+ * <p>
+ * The generated class has static methods <code>size()</code>,
+ * <code>value(int)</code> and <code>values()</code>; for keyed indexes,
+ * entries are sorted by key, and it also has <code>key(int)</code> and
+ * <code>values(String key)</code>, which binary-searches the keys. The data
+ * is filled in by chunks from the static initializer, and very large
+ * registries are partitioned into companion classes, so they stay within the
+ * JVM's limits on method and constant pool size.
+ * </p><p>
+ * Each registry class is generated at the end of the round its entries were
+ * added in, rather than once processing is over, so it is compiled like any
+ * other source and javac does not warn about it. A registry cannot be
+ * generated twice, so adding entries to one in a later round - from types
+ * generated by another processor, say - is reported as an error on their
+ * elements.
+ * </p><p>
+ * Unlike <code>AnnotationIndexFactory</code>, this factory has no encoder,
+ * since it writes no resources, and no incremental mode, since generated
+ * classes cannot be merged with a previous compilation's output; an
+ * <code>IndexGeneratingProcessor</code> using it ignores the
+ * <code>AnnotationUtils.AU_INCREMENTAL_INDEXES</code> option, and relies on
+ * the build tool to recompile all of the registered types when any change.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class ClassIndexFactory extends IndexFactory<BinaryEntry, ClassIndexFactory.ClassIndex> {
+
+    private static final int CHUNK_SIZE = 1000;
+    private final Set<String> generated = new HashSet<>();
+
+    ClassIndexFactory() {
+
+    }
+
+    @Override
+    public void roundCompleted(ProcessingEnvironment processingEnv) {
+        write(processingEnv);
+    }
+
+    @Override
+    protected ClassIndex newIndex(String path) {
+        if (!SourceVersion.isName(path) || path.indexOf('.') < 0) {
+            throw new IllegalArgumentException("Not a fully qualified class name "
+                    + "in a package: " + path);
+        }
+        return new ClassIndex(path);
+    }
+
+    @Override
+    protected void writeIndex(Filer filer, String path, ClassIndex index,
+            ProcessingEnvironment processingEnv) throws IOException {
+        if (!generated.add(path)) {
+            for (Element el : index.elements()) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Registry class " + path + " was generated in an earlier "
+                        + "round of processing, and cannot be added to", el);
+            }
+            return;
+        }
+        ClassBuilder<String> cb = index.toClass();
+        List<ClassBuilder<String>> all = new ArrayList<>();
+        all.add(cb);
+        // Rendering the class fixes its partitions, so build it first
+        String source = cb.build();
+        all.addAll(cb.partitions());
+        for (ClassBuilder<String> c : all) {
+            String text = c == cb ? source : c.build();
+            Object event = ProcessorEvents.beginWrite("source", c.fqn());
+            long written = -1;
+            try {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                JavaFileObject file = filer.createSourceFile(c.fqn(), index.elements());
+                try (OutputStream out = file.openOutputStream()) {
+                    out.write(bytes);
+                }
+                written = bytes.length;
+            } finally {
+                ProcessorEvents.endWrite(event, written);
+            }
+        }
+    }
+
+    /**
+     * The entries of one generated registry class.
+     */
+    public static final class ClassIndex extends EntryIndex<BinaryEntry> {
+
+        private final String path;
+        private final Keyedness keyedness;
+
+        ClassIndex(String path) {
+            this.path = path;
+            keyedness = new Keyedness(path);
+        }
+
+        @Override
+        public int add(BinaryEntry entry) {
+            keyedness.check(entry);
+            return super.add(entry);
+        }
+
+        ClassBuilder<String> toClass() {
+            boolean keyed = keyedness.isKeyed();
+            List<BinaryEntry> entries = new ArrayList<>(size());
+            for (BinaryEntry e : this) {
+                entries.add(e);
+            }
+            if (keyed) {
+                // Stable, so the values of each key stay in the order they
+                // were registered
+                Collections.sort(entries, (a, b) -> a.key().compareTo(b.key()));
+            }
+            int dot = path.lastIndexOf('.');
+            ClassBuilder<String> cb = ClassBuilder.forPackage(path.substring(0, dot))
+                    .named(path.substring(dot + 1))
+                    .partitioned()
+                    .withModifier(PUBLIC, FINAL)
+                    .importing("java.util.Arrays", "java.util.Collections", "java.util.List")
+                    .docComment("Generated registry of " + entries.size() + " entries.");
+            if (keyed) {
+                cb.field("KEYS").withModifier(PRIVATE, STATIC, FINAL).ofType("String[]");
+            }
+            cb.field("VALUES").withModifier(PRIVATE, STATIC, FINAL).ofType("String[]");
+            int chunks = (entries.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            cb.staticBlock(bb -> {
+                if (keyed) {
+                    bb.statement("KEYS = new String[" + entries.size() + "]");
+                }
+                bb.statement("VALUES = new String[" + entries.size() + "]");
+                for (int i = 0; i < chunks; i++) {
+                    bb.statement("entries" + i + (keyed ? "(KEYS, VALUES)" : "(VALUES)"));
+                }
+            });
+            for (int i = 0; i < chunks; i++) {
+                int start = i * CHUNK_SIZE;
+                int end = Math.min(entries.size(), start + CHUNK_SIZE);
+                cb.method("entries" + i, mb -> {
+                    mb.withModifier(PRIVATE, STATIC);
+                    if (keyed) {
+                        mb.addArgument("String[]", "keys");
+                    }
+                    mb.addArgument("String[]", "values").body(bb -> {
+                        for (int j = start; j < end; j++) {
+                            BinaryEntry e = entries.get(j);
+                            if (keyed) {
+                                bb.statement("keys[" + j + "] = " + stringLiteral(e.key()));
+                            }
+                            bb.statement("values[" + j + "] = " + stringLiteral(e.value()));
+                        }
+                    });
+                });
+            }
+            cb.constructor(con -> {
+                con.setModifier(PRIVATE).body(bb -> bb.statement("throw new AssertionError()"));
+            });
+            cb.method("size", mb -> {
+                mb.withModifier(PUBLIC, STATIC).returning("int")
+                        .body(bb -> bb.returning("VALUES.length"));
+            });
+            cb.method("value", mb -> {
+                mb.withModifier(PUBLIC, STATIC).addArgument("int", "index").returning("String")
+                        .body(bb -> bb.returning("VALUES[index]"));
+            });
+            cb.method("values", mb -> {
+                mb.withModifier(PUBLIC, STATIC).returning("List<String>")
+                        .body(bb -> bb.returning("Collections.unmodifiableList(Arrays.asList(VALUES))"));
+            });
+            if (keyed) {
+                cb.method("key", mb -> {
+                    mb.withModifier(PUBLIC, STATIC).addArgument("int", "index").returning("String")
+                            .body(bb -> bb.returning("KEYS[index]"));
+                });
+                cb.method("values", mb -> {
+                    mb.withModifier(PUBLIC, STATIC).addArgument("String", "key").returning("List<String>")
+                            .body(bb -> {
+                                bb.statement("int ix = Arrays.binarySearch(KEYS, key)");
+                                bb.iff().booleanExpression("ix < 0")
+                                        .returning("Collections.emptyList()").endIf();
+                                bb.statement("int first = ix");
+                                bb.statement("while (first > 0 && KEYS[first - 1].equals(key)) first--");
+                                bb.statement("int last = ix + 1");
+                                bb.statement("while (last < KEYS.length && KEYS[last].equals(key)) last++");
+                                bb.returning("Collections.unmodifiableList(Arrays.asList(VALUES).subList(first, last))");
+                            });
+                });
+            }
+            return cb;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+import java.util.Arrays;
+import javax.lang.model.element.Element;
+
+/**
+ * A compact, insertion-ordered set of the elements an index entry originates
+ * from, which grows in place as duplicate entries are merged into it. Elements
+ * are compared by identity, as javac's are; small sets are searched linearly,
+ * and larger ones through an open-addressed table of indices into the element
+ * array, so merging the same element repeatedly allocates nothing.
+ *
+ * @author Tim Boudreau
+ */
+public final class ElementSet {
+
+    private static final Element[] EMPTY = new Element[0];
+    private static final int LINEAR_LIMIT = 8;
+    private Element[] elements;
+    private int size;
+    // Slot values are an index into elements plus one, so zero is empty
+    private int[] table;
+    private Element[] snapshot;
+
+    public ElementSet() {
+        elements = EMPTY;
+    }
+
+    public ElementSet(Element... initial) {
+        elements = initial.length == 0 ? EMPTY : new Element[initial.length];
+        addAll(initial);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Element get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index + " of " + size);
+        }
+        return elements[index];
+    }
+
+    public boolean contains(Element el) {
+        return indexOf(el) >= 0;
+    }
+
+    public void addAll(Element... els) {
+        for (Element el : els) {
+            add(el);
+        }
+    }
+
+    public void addAll(ElementSet other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.elements[i]);
+        }
+    }
+
+    public boolean add(Element el) {
+        if (el == null || indexOf(el) >= 0) {
+            return false;
+        }
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, Math.max(4, size * 2));
+        }
+        elements[size++] = el;
+        snapshot = null;
+        if (table != null) {
+            if (size * 2 > table.length) {
+                rehash(table.length * 2);
+            } else {
+                insert(el, size);
+            }
+        } else if (size > LINEAR_LIMIT) {
+            rehash(Integer.highestOneBit(size) * 4);
+        }
+        return true;
+    }
+
+    /**
+     * Get the contents as an array; the array is cached until the set is next
+     * modified, and must not be altered by the caller.
+     *
+     * @return An array
+     */
+    public Element[] toArray() {
+        if (snapshot == null) {
+            snapshot = size == 0 ? EMPTY : Arrays.copyOf(elements, size);
+        }
+        return snapshot;
+    }
+
+    private int indexOf(Element el) {
+        if (table == null) {
+            for (int i = 0; i < size; i++) {
+                if (elements[i] == el) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = table.length - 1;
+        for (int slot = hash(el) & mask;; slot = (slot + 1) & mask) {
+            int ix = table[slot];
+            if (ix == 0) {
+                return -1;
+            } else if (elements[ix - 1] == el) {
+                return ix - 1;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            insert(elements[i], i + 1);
+        }
+    }
+
+    private void insert(Element el, int indexPlusOne) {
+        int mask = table.length - 1;
+        int slot = hash(el) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = indexPlusOne;
+    }
+
+    private static int hash(Element el) {
+        int h = System.identityHashCode(el);
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
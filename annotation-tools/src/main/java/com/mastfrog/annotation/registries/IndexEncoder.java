@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Controls how an <code>AnnotationIndexFactory</code> encodes the indexes it
+ * writes: whether text indexes annotate each line with a comment naming the
+ * types it came from, and any transformation, such as compression, of the
+ * bytes written to the Filer. Set with
+ * <code>AnnotationIndexFactory.setEncoder()</code>; the default is
+ * {@link #commented()}, the format text indexes have always had.
+ * <p>
+ * Compressed indexes must be decompressed by whatever reads them, and should
+ * be given a path that says so, such as one ending in <code>.gz</code>.
+ * <code>ClassIndexFactory</code>, which generates Java classes, has no encoder.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public interface IndexEncoder {
+
+    /**
+     * Whether text indexes should precede lines with a comment naming the
+     * types they originate from. Indexes written in incremental mode always
+     * record their origins, since merging depends on them.
+     *
+     * @return true if origins should be written
+     */
+    boolean commentOrigins();
+
+    /**
+     * Wrap the stream an index is written to.
+     *
+     * @param out The stream from the Filer
+     * @return A stream, or the same one
+     * @throws IOException If something goes wrong
+     */
+    default OutputStream encode(OutputStream out) throws IOException {
+        return out;
+    }
+
+    /**
+     * Wrap a stream an index previously written with this encoder is read
+     * from, the inverse of <code>encode()</code>.
+     *
+     * @param in The stream from the Filer
+     * @return A stream, or the same one
+     * @throws IOException If something goes wrong
+     */
+    default InputStream decode(InputStream in) throws IOException {
+        return in;
+    }
+
+    /**
+     * Plain text - one entry per line, with no comments.
+     *
+     * @return An encoder
+     */
+    static IndexEncoder plain() {
+        return () -> false;
+    }
+
+    /**
+     * Text with each line preceded by a comment naming the types it came
+     * from, unless the line already contains it.
+     *
+     * @return An encoder
+     */
+    static IndexEncoder commented() {
+        return () -> true;
+    }
+
+    /**
+     * Compress the output of another encoder with gzip.
+     *
+     * @param encoder The encoder whose output should be compressed
+     * @return An encoder
+     */
+    static IndexEncoder gzip(IndexEncoder encoder) {
+        return new IndexEncoder() {
+            @Override
+            public boolean commentOrigins() {
+                return encoder.commentOrigins();
+            }
+
+            @Override
+            public OutputStream encode(OutputStream out) throws IOException {
+                return new GZIPOutputStream(encoder.encode(out), 65536);
+            }
+
+            @Override
+            public InputStream decode(InputStream in) throws IOException {
+                return new GZIPInputStream(encoder.decode(in), 65536);
+            }
+        };
+    }
+}
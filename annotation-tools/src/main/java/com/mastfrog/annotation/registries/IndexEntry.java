@@ -48,4 +48,17 @@ public interface IndexEntry extends Comparable<IndexEntry> {
      */
     void addElements(Element... els);
 
+    /**
+     * Add the source elements this entry is associated with to a set, for
+     * passing to the Filer when the index is written.  The default
+     * implementation adds the contents of <code>elements()</code>;
+     * implementations which already keep their elements in an
+     * <code>ElementSet</code> can add them without copying.
+     *
+     * @param into The set to add to
+     */
+    default void collectElements(ElementSet into) {
+        into.addAll(elements());
+    }
+
 }
@@ -0,0 +1,225 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.tools.Diagnostic;
+
+/**
+ * Collects index entries by path over the rounds of a compilation, and
+ * writes each index once it is complete. Subclasses decide what kind of
+ * file an index becomes, and when: <code>AnnotationIndexFactory</code>
+ * writes resources in CLASS_OUTPUT once processing is over, with a
+ * configurable encoder and optional incremental merging, and
+ * <code>ClassIndexFactory</code> generates Java sources at the end of the
+ * round their entries were added in.
+ *
+ * @param <T> The entry type
+ * @param <I> The index type
+ * @author Tim Boudreau
+ */
+public abstract class IndexFactory<T extends IndexEntry, I extends IndexFactory.EntryIndex<T>> {
+
+    protected final Map<Filer, Map<String, I>> indexesByProcessor = new HashMap<>();
+
+    IndexFactory() {
+        // Subclassed only through AnnotationIndexFactory and ClassIndexFactory
+    }
+
+    public static ClassIndexFactory classes() {
+        return new ClassIndexFactory();
+    }
+
+    /**
+     * Record the root elements of a processing round. The default
+     * implementation does nothing.
+     *
+     * @param roots The root elements of a round
+     */
+    public void rootElements(Set<? extends Element> roots) {
+        // do nothing
+    }
+
+    public int totalSize() {
+        int result = 0;
+        for (Map.Entry<Filer, Map<String, I>> indexes : indexesByProcessor.entrySet()) {
+            for (Map.Entry<String, I> ixForPath : indexes.getValue().entrySet()) {
+                result += ixForPath.getValue().size();
+            }
+        }
+        return result;
+    }
+
+    public final I get(String path, ProcessingEnvironment processingEnv) {
+        if (path == null || path.isEmpty()) {
+            throw new IllegalArgumentException("Path cannot be null or empty");
+        }
+        Filer filer = processingEnv.getFiler();
+        Map<String, I> forFiler = indexesByProcessor.get(filer);
+        if (forFiler == null) {
+            forFiler = new HashMap<>();
+            indexesByProcessor.put(filer, forFiler);
+        }
+        I result = forFiler.get(path);
+        if (result == null) {
+            result = newIndex(path);
+            onCreated(result);
+            forFiler.put(path, result);
+        }
+        return result;
+    }
+
+    /**
+     * Called when a new index is created, before anything is added to it.
+     *
+     * @param index The index
+     */
+    void onCreated(I index) {
+        // do nothing
+    }
+
+    /**
+     * Called at the end of each round of processing except the last, after
+     * the round's entries have been added. Indexes which are written as
+     * sources must be written here, since javac does not compile or process
+     * sources created in the last round, and warns about them. The default
+     * implementation does nothing, leaving everything for
+     * <code>write()</code>.
+     *
+     * @param processingEnv The processing environment
+     */
+    public void roundCompleted(ProcessingEnvironment processingEnv) {
+        // do nothing
+    }
+
+    public void write(ProcessingEnvironment processingEnv) {
+        try {
+            for (Map.Entry<Filer, Map<String, I>> outputFiles : indexesByProcessor.entrySet()) {
+                Filer filer = outputFiles.getKey();
+                for (Map.Entry<String, I> entry : outputFiles.getValue().entrySet()) {
+                    try {
+                        writeIndex(filer, entry.getKey(), entry.getValue(), processingEnv);
+                    } catch (IOException x) {
+                        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write to " + entry.getKey() + ": " + x.toString());
+                    }
+                }
+            }
+        } finally {
+            indexesByProcessor.clear();
+        }
+    }
+
+    /**
+     * Write one index.
+     *
+     * @param filer The filer
+     * @param path The path the index was created for
+     * @param index The index
+     * @param processingEnv The processing environment
+     * @throws IOException If writing fails
+     */
+    protected abstract void writeIndex(Filer filer, String path, I index,
+            ProcessingEnvironment processingEnv) throws IOException;
+
+    public final boolean add(String path, T entry, ProcessingEnvironment processingEnv, Element... associatedWith) {
+        I index = get(path, processingEnv);
+        int size = index.size();
+        int newSize = index.add(entry);
+        return newSize > size;
+    }
+
+    protected abstract I newIndex(String path);
+
+    /**
+     * The entries added for one path, merged and sorted, whatever form they
+     * are written in.
+     *
+     * @param <T> The entry type
+     */
+    public static abstract class EntryIndex<T extends IndexEntry> implements Iterable<T> {
+
+        // Maps each entry to the first equal entry added, which duplicates
+        // are merged into, so adding is constant time rather than a scan
+        private final Map<T, T> entries = new HashMap<>();
+        private List<T> sorted;
+
+        EntryIndex() {
+            // Subclassed only through AnnotationIndex and ClassIndex
+        }
+
+        public final int size() {
+            return entries.size();
+        }
+
+        public int add(T entry) {
+            T existing = entries.putIfAbsent(entry, entry);
+            if (existing != null) {
+                existing.addElements(entry.elements());
+            } else {
+                sorted = null;
+            }
+            return entries.size();
+        }
+
+        /**
+         * Get the elements associated with all entries in this index, without
+         * duplicates.
+         *
+         * @return An array of elements
+         */
+        public final Element[] elements() {
+            ElementSet result = new ElementSet();
+            for (T entry : sorted()) {
+                entry.collectElements(result);
+            }
+            return result.toArray();
+        }
+
+        private List<T> sorted() {
+            // Sorted once, on first iteration after an addition, rather than
+            // on every iteration
+            if (sorted == null) {
+                List<T> l = new ArrayList<>(entries.keySet());
+                Collections.sort(l);
+                sorted = Collections.unmodifiableList(l);
+            }
+            return sorted;
+        }
+
+        @Override
+        public final Iterator<T> iterator() {
+            return sorted().iterator();
+        }
+    }
+}
@@ -24,6 +24,10 @@
 package com.mastfrog.annotation.registries;
 
 import com.mastfrog.annotation.AnnotationUtils;
+import com.mastfrog.annotation.processor.IncrementalProcessing;
+import com.mastfrog.annotation.processor.ProcessorEvents;
+import com.mastfrog.annotation.processor.ProcessorMetrics;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
@@ -36,16 +40,26 @@ import javax.tools.Diagnostic.Kind;
  * An annotation processor that generates an index correctly, waiting until all
  * rounds of annotation processing have been completed before writing the output
  * so as to avoid a FilerException on opening a file for writing twice in one
- * compile sequence.
+ * compile sequence. Indexes generated as Java sources are the exception: they
+ * are written at the end of the round their entries were added in, since
+ * sources created once processing is over are never compiled.
  *
  * @author Tim Boudreau
  */
 public abstract class IndexGeneratingProcessor<T extends IndexEntry> extends AbstractProcessor {
 
     private final boolean processOnFinalRound;
+    /**
+     * The index factory, if it writes resources; null if this processor was
+     * created with another kind of factory, such as a
+     * <code>ClassIndexFactory</code>. Use <code>indexFactory()</code> to get
+     * the factory in either case.
+     */
     protected final AnnotationIndexFactory<T> indexer;
+    private final IndexFactory<T, ?> indexFactory;
     protected ProcessingEnvironment processingEnv;
     private AnnotationUtils utils;
+    private ProcessorMetrics metrics;
     private int roundIndex;
 
     protected IndexGeneratingProcessor(AnnotationIndexFactory<T> indexer) {
@@ -53,8 +67,28 @@ public abstract class IndexGeneratingProcessor<T extends IndexEntry> extends Abs
     }
 
     protected IndexGeneratingProcessor(boolean processOnFinalRound, AnnotationIndexFactory<T> indexer) {
+        this(processOnFinalRound, (IndexFactory<T, ?>) indexer);
+    }
+
+    protected IndexGeneratingProcessor(IndexFactory<T, ?> indexer) {
+        this(false, indexer);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected IndexGeneratingProcessor(boolean processOnFinalRound, IndexFactory<T, ?> indexer) {
         this.processOnFinalRound = processOnFinalRound;
-        this.indexer = indexer;
+        this.indexFactory = indexer;
+        this.indexer = indexer instanceof AnnotationIndexFactory<?>
+                ? (AnnotationIndexFactory<T>) indexer : null;
+    }
+
+    /**
+     * Get the factory this processor adds index entries to.
+     *
+     * @return The factory
+     */
+    protected final IndexFactory<T, ?> indexFactory() {
+        return indexFactory;
     }
 
     /**
@@ -72,10 +106,64 @@ public abstract class IndexGeneratingProcessor<T extends IndexEntry> extends Abs
         return utils;
     }
 
+    /**
+     * Get the metrics for this processor, which are only collected if enabled
+     * by the <code>{@value AnnotationUtils#AU_PERF}</code> processor option.
+     *
+     * @return The metrics
+     * @throws IllegalStateException if called before javac has initialized
+     * this processor (e.g. from the constructor).
+     */
+    protected final ProcessorMetrics metrics() {
+        if (metrics == null) {
+            throw new IllegalStateException("Cannot call metrics() before "
+                    + "javac has called AnnotationProcessor.init()");
+        }
+        return metrics;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        Set<String> result = new LinkedHashSet<>(super.getSupportedOptions());
+        result.add(AnnotationUtils.AU_LOG);
+        result.add(AnnotationUtils.AU_PERF);
+        result.add(AnnotationUtils.AU_PERF_FILE);
+        result.add(AnnotationUtils.AU_INCREMENTAL_INDEXES);
+        return incrementalProcessing().addTo(result);
+    }
+
+    /**
+     * Declare how this processor takes part in Gradle's incremental annotation
+     * processing (see <code>IncrementalProcessing</code>). Indexes combine
+     * entries from many types, so the default is AGGREGATING; Gradle then
+     * regenerates them from all of the annotated types whenever any change,
+     * so the <code>{@value AnnotationUtils#AU_INCREMENTAL_INDEXES}</code>
+     * option is not needed with it. Override to return NONE if the processor
+     * reads SOURCE-retention annotations, which Gradle cannot track.
+     *
+     * @return The category
+     */
+    protected IncrementalProcessing incrementalProcessing() {
+        return IncrementalProcessing.AGGREGATING;
+    }
+
     @Override
     public synchronized final void init(ProcessingEnvironment processingEnv) {
         utils = new AnnotationUtils(processingEnv, getSupportedAnnotationTypes(), getClass());
+        metrics = ProcessorMetrics.forProcessor(processingEnv, getClass());
         this.processingEnv = processingEnv;
+        if (processingEnv.getOptions().containsKey(AnnotationUtils.AU_INCREMENTAL_INDEXES)) {
+            String spec = processingEnv.getOptions().get(AnnotationUtils.AU_INCREMENTAL_INDEXES);
+            boolean incremental = spec == null || spec.isEmpty() || "true".equals(spec)
+                    || "on".equals(spec) || "yes".equals(spec);
+            if (indexer != null) {
+                indexer.setIncremental(incremental).setOwner(getClass().getName());
+            } else if (incremental) {
+                processingEnv.getMessager().printMessage(Kind.NOTE, getClass().getSimpleName()
+                        + " generates indexes which cannot be merged with a previous build; ignoring "
+                        + AnnotationUtils.AU_INCREMENTAL_INDEXES);
+            }
+        }
         super.init(processingEnv);
         onInit(processingEnv, utils);
     }
@@ -131,17 +219,33 @@ public abstract class IndexGeneratingProcessor<T extends IndexEntry> extends Abs
             return false;
         }
         boolean over = roundEnv.processingOver();
+        metrics.roundStarted();
+        utils.newRound();
+        indexFactory.rootElements(roundEnv.getRootElements());
+        Object roundEvent = ProcessorEvents.beginRound(this, roundIndex, over);
         try {
             onBeforeRound(roundEnv, over, roundIndex);
             if (over) {
                 if (processOnFinalRound) {
-                    handleProcess(annotations, roundEnv, utils);
+                    handleProcess(annotations, roundEnv);
                 }
-                indexer.write(processingEnv);
+                metrics.count(ProcessorMetrics.ELEMENTS, "index entries", indexFactory.totalSize());
+                long start = metrics.start();
+                indexFactory.write(processingEnv);
+                metrics.time(ProcessorMetrics.FILER, "index files", start);
                 onDone();
                 return true;
             } else {
-                return handleProcess(annotations, roundEnv, utils);
+                boolean result = handleProcess(annotations, roundEnv);
+                int pending = indexFactory.totalSize();
+                long start = metrics.start();
+                indexFactory.roundCompleted(processingEnv);
+                int written = pending - indexFactory.totalSize();
+                if (written > 0) {
+                    metrics.count(ProcessorMetrics.ELEMENTS, "index entries", written);
+                    metrics.time(ProcessorMetrics.FILER, "index files", start);
+                }
+                return result;
             }
         } catch (Exception e) {
             if (processingEnv != null) {
@@ -152,6 +256,17 @@ public abstract class IndexGeneratingProcessor<T extends IndexEntry> extends Abs
         } finally {
             roundIndex++;
             onAfterRound(roundEnv, over, roundIndex - 1);
+            ProcessorEvents.end(roundEvent);
+            metrics.roundFinished(over);
+        }
+    }
+
+    private boolean handleProcess(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        long start = metrics.start();
+        try {
+            return handleProcess(annotations, roundEnv, utils);
+        } finally {
+            metrics.time(ProcessorMetrics.PROCESS, "handleProcess", start);
         }
     }
 
@@ -174,6 +289,6 @@ public abstract class IndexGeneratingProcessor<T extends IndexEntry> extends Abs
      * @return true if the index will be different as a result of this call
      */
     protected final boolean addIndexElement(String path, T l, Element... el) {
-        return indexer.add(path, l, processingEnv, el);
+        return indexFactory.add(path, l, processingEnv, el);
     }
 }
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+/**
+ * Tracks whether the BinaryEntry instances added to an index are keyed, which
+ * they must either all be or all not be.
+ *
+ * @author Tim Boudreau
+ */
+final class Keyedness {
+
+    private final String path;
+    private Boolean keyed;
+
+    Keyedness(String path) {
+        this.path = path;
+    }
+
+    boolean isKeyed() {
+        return Boolean.TRUE.equals(keyed);
+    }
+
+    /**
+     * Check that an entry is keyed if those added before it were.
+     *
+     * @param entry An entry about to be added
+     * @throws IllegalArgumentException if keyed and unkeyed entries are mixed
+     */
+    void check(BinaryEntry entry) {
+        boolean entryKeyed = entry.key() != null;
+        if (keyed == null) {
+            keyed = entryKeyed;
+        } else if (keyed != entryKeyed) {
+            throw new IllegalArgumentException("Cannot mix keyed and unkeyed "
+                    + "entries in " + path + ": " + entry);
+        }
+    }
+}
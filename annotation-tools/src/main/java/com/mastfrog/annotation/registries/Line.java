@@ -24,10 +24,7 @@
 
 package com.mastfrog.annotation.registries;
 
-import java.io.PrintWriter;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
@@ -39,12 +36,12 @@ import javax.lang.model.element.TypeElement;
 public final class Line implements IndexEntry {
 
     final int index;
-    private Element[] el;
+    private final ElementSet el;
     private final String line;
 
     public Line(int index, Element[] el, String line) {
         this.index = index;
-        this.el = el;
+        this.el = new ElementSet(el);
         this.line = line;
     }
 
@@ -58,29 +55,49 @@ public final class Line implements IndexEntry {
         return mine.compareTo(((Line) other).index);
     }
 
-    void write(PrintWriter w) {
-        String origin = origin();
-        if (origin != null && !line.contains(origin)) {
-            w.println(comment(origin));
+    /**
+     * Write this line, preceded by a comment naming the types it originates
+     * from if the encoder wants one and the line does not contain it; in
+     * incremental mode the comment is always written, and names the top-level
+     * type of each element, so the index can be merged later.
+     *
+     * @param w A writer
+     * @param comments Whether to comment lines with their origins
+     * @param incremental Whether the origins must be recorded
+     * @throws IOException If writing fails
+     */
+    void write(TextIndexWriter w, boolean comments, boolean incremental) throws IOException {
+        if (comments || incremental) {
+            String origin = w.origin(el, incremental);
+            if (origin != null && (incremental || !line.contains(origin))) {
+                w.comment(origin);
+            }
         }
-        w.println(line);
+        w.line(line);
     }
 
     @Override
     public Element[] elements() {
-        return el;
+        return el.toArray();
+    }
+
+    @Override
+    public void collectElements(ElementSet into) {
+        into.addAll(el);
     }
 
     String origin() {
-        if (el.length == 1) {
-            if (el[0] instanceof TypeElement) {
-                return ((TypeElement) el[0]).getQualifiedName().toString();
-            } else if (el[0] instanceof PackageElement) {
-                return ((PackageElement) el[0]).getQualifiedName().toString();
+        if (el.size() == 1) {
+            Element e = el.get(0);
+            if (e instanceof TypeElement) {
+                return ((TypeElement) e).getQualifiedName().toString();
+            } else if (e instanceof PackageElement) {
+                return ((PackageElement) e).getQualifiedName().toString();
             }
         } else {
             StringBuilder sb = new StringBuilder();
-            for (Element e : el) {
+            for (int i = 0; i < el.size(); i++) {
+                Element e = el.get(i);
                 if (sb.length() > 0) {
                     sb.append(", ");
                 }
@@ -118,8 +135,6 @@ public final class Line implements IndexEntry {
 
     @Override
     public void addElements(Element... els) {
-        Set<Element> initial = new HashSet<>(Arrays.asList(this.el));
-        initial.addAll(Arrays.asList(els));
-        this.el = initial.toArray(new Element[initial.size()]);
+        el.addAll(els);
     }
 }
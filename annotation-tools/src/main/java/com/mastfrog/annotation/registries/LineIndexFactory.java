@@ -23,11 +23,16 @@
  */
 package com.mastfrog.annotation.registries;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
 import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
 
 /**
  *
@@ -39,21 +44,72 @@ public final class LineIndexFactory extends AnnotationIndexFactory<Line> {
 
     }
 
+    private final TextIndexWriter writer = new TextIndexWriter();
+
     @Override
     protected AnnotationIndex<Line> newIndex(String path) {
-        return new LineIndex();
+        return new LineIndex(writer);
+    }
+
+    @Override
+    public void write(ProcessingEnvironment processingEnv) {
+        try {
+            super.write(processingEnv);
+        } finally {
+            writer.clear();
+        }
     }
 
     private static final class LineIndex extends AnnotationIndex<Line> {
 
+        private final TextIndexWriter writer;
+
+        LineIndex(TextIndexWriter writer) {
+            this.writer = writer;
+        }
+
         @Override
         public void write(OutputStream out, ProcessingEnvironment processingEnv) throws IOException {
-            try (PrintWriter w = new PrintWriter(new OutputStreamWriter(out, "UTF-8"))) {
+            boolean comments = encoder().commentOrigins();
+            boolean incremental = isIncremental();
+            writer.open(out);
+            try {
                 for (Line line : this) {
-                    line.write(w);
+                    line.write(writer, comments, incremental);
+                }
+            } finally {
+                writer.finish();
+            }
+        }
+
+        @Override
+        protected List<Line> readPrevious(InputStream in, ProcessingEnvironment processingEnv,
+                Function<String, Element> origins) throws IOException {
+            List<String> lines = new ArrayList<>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+            // Each entry is preceded by a comment listing its origins, if it
+            // has any; previous entries sort before any added this round
+            List<Line> result = new ArrayList<>(lines.size());
+            int count = lines.size();
+            String origin = null;
+            for (int i = 0; i < count; i++) {
+                String line = lines.get(i);
+                if (line.isEmpty()) {
+                    continue;
+                } else if (origin == null && line.startsWith("# ") && i < count - 1) {
+                    origin = line.substring(2);
+                    continue;
+                }
+                Element[] elements = Origins.resolve(origin, origins);
+                origin = null;
+                if (elements != null) {
+                    result.add(new Line(i - count, elements, line));
                 }
-                w.flush();
             }
+            return result;
         }
     }
 }
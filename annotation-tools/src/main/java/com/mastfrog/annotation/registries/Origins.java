@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * Names of the source types index entries originate from, as recorded in
+ * indexes written in incremental mode so a later compilation can tell which
+ * entries belong to types it did not recompile.
+ *
+ * @author Tim Boudreau
+ */
+final class Origins {
+
+    private Origins() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Get the name of the compilation unit an element belongs to - the
+     * qualified name of its top-level type, or of a package for package-info.
+     *
+     * @param el An element
+     * @return A name, or null
+     */
+    static String nameOf(Element el) {
+        while (el != null) {
+            if (el.getKind() == ElementKind.PACKAGE) {
+                return ((PackageElement) el).getQualifiedName().toString();
+            }
+            Element enclosing = el.getEnclosingElement();
+            if (el instanceof TypeElement && (enclosing == null
+                    || enclosing.getKind() == ElementKind.PACKAGE)) {
+                return ((TypeElement) el).getQualifiedName().toString();
+            }
+            el = enclosing;
+        }
+        return null;
+    }
+
+    static String join(ElementSet elements) {
+        Set<String> names = new LinkedHashSet<>();
+        for (int i = 0; i < elements.size(); i++) {
+            String name = nameOf(elements.get(i));
+            if (name != null) {
+                names.add(name);
+            }
+        }
+        return names.isEmpty() ? null : String.join(", ", names);
+    }
+
+    /**
+     * Resolve the recorded origins of an entry read from a previous index.
+     *
+     * @param origins The recorded origins, or null
+     * @param resolver Resolves names, returning null for types which were
+     * recompiled or no longer exist
+     * @return The elements to associate with the entry, empty if it had no
+     * recorded origins, or null if none of its origins survive and it should
+     * be dropped
+     */
+    static Element[] resolve(String origins, Function<String, Element> resolver) {
+        if (origins == null || origins.trim().isEmpty()) {
+            return new Element[0];
+        }
+        List<Element> result = new ArrayList<>(2);
+        for (String name : origins.split(",")) {
+            Element el = resolver.apply(name.trim());
+            if (el != null) {
+                result.add(el);
+            }
+        }
+        return result.isEmpty() ? null : result.toArray(new Element[result.size()]);
+    }
+}
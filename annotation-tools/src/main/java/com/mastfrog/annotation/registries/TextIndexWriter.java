@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.annotation.registries;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * Streams the lines of text indexes to an output stream, encoding them as
+ * UTF-8 straight into a large buffer which is reused for every index a
+ * factory writes, rather than through a chain of writers; and caches the
+ * names of the elements lines originate from, which many lines share.
+ *
+ * @author Tim Boudreau
+ */
+final class TextIndexWriter {
+
+    private static final int BUFFER_SIZE = 65536;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final Map<Element, String> names = new IdentityHashMap<>();
+    private final Map<Element, String> topLevelNames = new IdentityHashMap<>();
+    private final StringBuilder scratch = new StringBuilder();
+    private OutputStream out;
+    private int pos;
+
+    TextIndexWriter open(OutputStream out) {
+        this.out = out;
+        pos = 0;
+        return this;
+    }
+
+    /**
+     * Flush the buffer and release the stream; the caches of element names
+     * are kept until processing is over.
+     *
+     * @throws IOException If writing fails
+     */
+    void finish() throws IOException {
+        drain();
+        out.flush();
+        out = null;
+    }
+
+    void clear() {
+        names.clear();
+        topLevelNames.clear();
+    }
+
+    /**
+     * Get the comment text for a line - the names of the types and packages
+     * among its elements, or, if <code>topLevel</code>, the top-level types
+     * every element belongs to, as recorded for incremental merging.
+     *
+     * @param elements The elements
+     * @param topLevel Whether to name top-level types
+     * @return A comma-delimited list of names, or null
+     */
+    String origin(ElementSet elements, boolean topLevel) {
+        if (elements.size() == 1) {
+            return name(elements.get(0), topLevel);
+        }
+        scratch.setLength(0);
+        for (int i = 0; i < elements.size(); i++) {
+            String name = name(elements.get(i), topLevel);
+            if (name != null && (!topLevel || !contains(scratch, name))) {
+                if (scratch.length() > 0) {
+                    scratch.append(", ");
+                }
+                scratch.append(name);
+            }
+        }
+        return scratch.length() == 0 ? null : scratch.toString();
+    }
+
+    private String name(Element el, boolean topLevel) {
+        Map<Element, String> cache = topLevel ? topLevelNames : names;
+        String result = cache.get(el);
+        if (result == null && !cache.containsKey(el)) {
+            if (topLevel) {
+                result = Origins.nameOf(el);
+            } else if (el instanceof TypeElement) {
+                result = ((TypeElement) el).getQualifiedName().toString();
+            } else if (el instanceof PackageElement) {
+                result = ((PackageElement) el).getQualifiedName().toString();
+            }
+            cache.put(el, result);
+        }
+        return result;
+    }
+
+    private static boolean contains(StringBuilder names, String name) {
+        for (int ix = names.indexOf(name); ix >= 0; ix = names.indexOf(name, ix + 1)) {
+            int end = ix + name.length();
+            if ((ix == 0 || names.charAt(ix - 1) == ' ')
+                    && (end == names.length() || names.charAt(end) == ',')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    TextIndexWriter comment(String text) throws IOException {
+        return write("# ").line(text);
+    }
+
+    TextIndexWriter line(String text) throws IOException {
+        write(text);
+        if (pos == BUFFER_SIZE) {
+            drain();
+        }
+        buffer[pos++] = '\n';
+        return this;
+    }
+
+    private TextIndexWriter write(String text) throws IOException {
+        int len = text.length();
+        for (int i = 0; i < len; i++) {
+            // Room for the longest encoding of one code point
+            if (pos > BUFFER_SIZE - 4) {
+                drain();
+            }
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xC0 | (c >> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+                buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired, as OutputStreamWriter would encode it
+                buffer[pos++] = '?';
+            } else {
+                buffer[pos++] = (byte) (0xE0 | (c >> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    private void drain() throws IOException {
+        if (pos > 0) {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+}
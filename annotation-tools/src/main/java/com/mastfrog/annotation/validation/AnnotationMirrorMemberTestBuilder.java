@@ -362,10 +362,9 @@ public final class AnnotationMirrorMemberTestBuilder<T> extends AbstractPredicat
 
     public AnnotationMirrorMemberTestBuilder<T> stringValueMustMatch(Predicate<String> bp) {
         return addPredicate("string-value-of-" + memberName + "-must-match-" + bp, (mirror) -> {
-            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : mirror.getElementValues().entrySet()) {
-                if (memberName.equals(e.getKey().getSimpleName().toString())) {
-                    testAnnotationValueOrValues(e.getValue(), String.class, bp);
-                }
+            AnnotationValue value = utils.memberValue(mirror, memberName, false);
+            if (value != null) {
+                testAnnotationValueOrValues(value, String.class, bp);
             }
             return true;
         });
@@ -391,7 +390,7 @@ public final class AnnotationMirrorMemberTestBuilder<T> extends AbstractPredicat
             for (TypeMirror found : l) {
                 boolean foundIt = true;
                 for (TypeMirror e : expected) {
-                    if (t.isSameType(e, found) || t.isSubtype(e, found)) {
+                    if (t.isSameType(e, found) || utils.isSubtypeOf(e, found)) {
                         foundIt = true;
                         break;
                     }
@@ -408,7 +407,7 @@ public final class AnnotationMirrorMemberTestBuilder<T> extends AbstractPredicat
     private Set<TypeMirror> toTypeMirrors(Iterable<String> names) {
         Set<TypeMirror> result = new HashSet<>();
         for (String name : names) {
-            TypeElement el = utils.processingEnv().getElementUtils().getTypeElement(name);
+            TypeElement el = utils.typeElement(name);
             if (el == null) {
                 warn("Could not load " + name + " from classpath");
                 continue;
@@ -434,7 +433,7 @@ public final class AnnotationMirrorMemberTestBuilder<T> extends AbstractPredicat
         List<TypeMirror> els = new ArrayList<>(types.size());
         types.forEach((type) -> {
 type = type.replace('$', '.');
-            TypeElement te = utils.processingEnv().getElementUtils().getTypeElement(type);
+            TypeElement te = utils.typeElement(type);
             if (te != null) {
                 els.add(te.asType());
             } else {
@@ -469,7 +468,7 @@ type = type.replace('$', '.');
         if (mir instanceof DeclaredType) {
             return (TypeElement) ((DeclaredType) mir).asElement();
         } else {
-            return utils.processingEnv().getElementUtils().getTypeElement(mir.toString());
+            return utils.typeElement(mir.toString());
         }
     }
 
@@ -252,13 +252,13 @@ public class ElementTestBuilder<E extends Element, R, B extends ElementTestBuild
     public B typeParameterExtends(int ix, String name) {
         return addPredicate("type-param-" + ix + "-must-extends-" + simpleName(name), (e) -> {
             TypeMirror expected = utils.getTypeParameter(ix, e, this::fail);
-            TypeElement el = utils.processingEnv().getElementUtils().getTypeElement(name);
+            TypeElement el = utils.typeElement(name);
             if (el == null) {
                 fail("Could not load " + name + " from the classpath");
                 return false;
             }
             TypeMirror real = e.asType();
-            boolean result = utils.processingEnv().getTypeUtils().isSameType(real, expected) || utils.processingEnv().getTypeUtils().isAssignable(expected, real);
+            boolean result = utils.processingEnv().getTypeUtils().isSameType(real, expected) || utils.isAssignable(expected, real);
             return maybeFail(result, real + " is not assignable as " + expected);
         });
     }
@@ -275,12 +275,12 @@ public class ElementTestBuilder<E extends Element, R, B extends ElementTestBuild
             TypeMirror real = e.asType();
             boolean result = false;
             for (String a : all) {
-                TypeElement el = utils.processingEnv().getElementUtils().getTypeElement(name);
+                TypeElement el = utils.typeElement(name);
                 if (el == null) {
                     fail("Could not load " + name + " from the classpath");
                     return false;
                 }
-                result |= utils.processingEnv().getTypeUtils().isSameType(real, expected) || utils.processingEnv().getTypeUtils().isAssignable(expected, real);
+                result |= utils.processingEnv().getTypeUtils().isSameType(real, expected) || utils.isAssignable(expected, real);
                 if (result) {
                     break;
                 }
@@ -75,23 +75,23 @@ enum TypeMirrorComparison {
                                 + " is not the same type as " + u);
                         break;
                     case IS_ASSIGNABLE:
-                        result = b.apply(types.isAssignable(t, u), t
+                        result = b.apply(utils.isAssignable(t, u), t
                                 + " is not assignable as " + u);
                         break;
                     case IS_ERASURE_ASSIGNABLE:
-                        result = b.apply(types.isAssignable(utils.erasureOf(t), utils.erasureOf(u)), t
+                        result = b.apply(utils.isAssignable(utils.erasureOf(t), utils.erasureOf(u)), t
                                 + " is not assignable as " + u);
                         break;
                     case IS_SUBTYPE:
-                        result = b.apply(types.isSubtype(t, u), t
+                        result = b.apply(utils.isSubtypeOf(t, u), t
                                 + " is not a subtype of " + u);
                         break;
                     case IS_ERASURE_SUBTYPE:
-                        result = b.apply(types.isSubtype(utils.erasureOf(u), utils.erasureOf(t)), t
+                        result = b.apply(utils.isSubtypeOf(utils.erasureOf(u), utils.erasureOf(t)), t
                                 + " is not a subtype of " + u);
                         break;
                     case IS_SUPERTYPE:
-                        result = b.apply(types.isSubtype(u, t), t
+                        result = b.apply(utils.isSubtypeOf(u, t), t
                                 + " is not a supertype of " + u);
                         break;
                     case IS_SUBSIGNATURE:
@@ -42,7 +42,7 @@ public class TypeMirrorTestBuilder<T> extends AbstractPredicateBuilder<TypeMirro
 
         @Override
         public TypeMirror get() {
-            TypeElement el = utils.processingEnv().getElementUtils().getTypeElement(type);
+            TypeElement el = utils.typeElement(type);
             if (el == null) {
                 fail("Could not load type " + type);
                 return null;
@@ -199,7 +199,7 @@ public class TypeMirrorTestBuilder<T> extends AbstractPredicateBuilder<TypeMirro
                 return (TypeElement) e;
             }
         }
-        return utils.processingEnv().getElementUtils().getTypeElement(mir.toString());
+        return utils.typeElement(mir.toString());
     }
 
     public TypeElementTestBuilder<TypeMirrorTestBuilder<T>, ? extends TypeElementTestBuilder<TypeMirrorTestBuilder<T>, ?>> asElement() {
@@ -210,7 +210,7 @@ public class TypeMirrorTestBuilder<T> extends AbstractPredicateBuilder<TypeMirro
 
     public TypeMirrorTestBuilder<T> nestingKindMustBe(NestingKind kind) {
         return addPredicate(namedPredicate("require-nesting=" + kind, tm -> {
-            TypeElement el = utils.processingEnv().getElementUtils().getTypeElement(tm.toString());
+            TypeElement el = utils.typeElement(tm.toString());
             return maybeFail(el != null, "Could not find a type element for " + tm, () -> {
                 return kind == el.getNestingKind();
             });
@@ -219,7 +219,7 @@ public class TypeMirrorTestBuilder<T> extends AbstractPredicateBuilder<TypeMirro
 
     public TypeMirrorTestBuilder<T> nestingKindMustNotBe(NestingKind kind) {
         return addPredicate(namedPredicate("require-notnesting=" + kind, tm -> {
-            TypeElement el = utils.processingEnv().getElementUtils().getTypeElement(tm.toString());
+            TypeElement el = utils.typeElement(tm.toString());
             return maybeFail(el != null, "Could not find a type element for " + tm, () -> {
                 return kind != el.getNestingKind();
             });
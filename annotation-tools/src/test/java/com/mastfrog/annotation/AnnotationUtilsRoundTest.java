@@ -0,0 +1,123 @@
+package com.mastfrog.annotation;
+
+import com.mastfrog.annotation.processor.Compilation;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class AnnotationUtilsRoundTest {
+
+    @Test
+    public void testTypesGeneratedInARoundAreFoundInTheNext() throws Exception {
+        Compilation comp = Compilation.create()
+                .source("c.Base", "package c;\npublic class Base {}\n")
+                .source("c.User", "package c;\n@Deprecated\nclass User {}\n");
+        try {
+            LookupProcessor proc = new LookupProcessor(true);
+            assertTrue(comp.compile(proc), comp.messages(Diagnostic.Kind.ERROR));
+            // Missing in the round it is generated in, even though looked up
+            // again after being generated; then found, and a Base, in the next
+            assertEquals(2, proc.results.size(), proc.results::toString);
+            assertEquals("missing missing missing", proc.results.get(0));
+            assertEquals("found found subtype", proc.results.get(1));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testNothingIsCachedWithoutNewRound() throws Exception {
+        Compilation comp = Compilation.create()
+                .source("c.Base", "package c;\npublic class Base {}\n")
+                .source("c.User", "package c;\n@Deprecated\nclass User {}\n");
+        try {
+            LookupProcessor proc = new LookupProcessor(false);
+            assertTrue(comp.compile(proc), comp.messages(Diagnostic.Kind.ERROR));
+            // A processor which never calls newRound() must not see the
+            // first round's misses in the second
+            assertEquals(2, proc.results.size(), proc.results::toString);
+            assertEquals("missing missing missing", proc.results.get(0));
+            assertEquals("found found subtype", proc.results.get(1));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    /**
+     * Looks up c.Later, which it generates in the first round, in every round
+     * but the last.
+     */
+    static final class LookupProcessor extends AbstractProcessor {
+
+        private final boolean callNewRound;
+        private AnnotationUtils utils;
+        final List<String> results = new ArrayList<>();
+
+        LookupProcessor(boolean callNewRound) {
+            this.callNewRound = callNewRound;
+        }
+
+        @Override
+        public synchronized void init(ProcessingEnvironment env) {
+            super.init(env);
+            utils = new AnnotationUtils(env, getSupportedAnnotationTypes(), getClass());
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton("*");
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (roundEnv.processingOver()) {
+                return false;
+            }
+            if (callNewRound) {
+                utils.newRound();
+            }
+            TypeElement later = utils.typeElement("c.Later");
+            TypeMirror erased = utils.erasedType("c.Later");
+            if (results.isEmpty()) {
+                try (Writer w = processingEnv.getFiler().createSourceFile("c.Later").openWriter()) {
+                    w.write("package c;\npublic class Later extends Base {}\n");
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                // Cached for the rest of the round
+                results.add((later == null ? "missing" : "found")
+                        + (erased == null ? " missing" : " found")
+                        + (utils.typeElement("c.Later") == null ? " missing" : " found"));
+            } else if (results.size() == 1) {
+                results.add((later == null ? "missing" : "found")
+                        + (erased == null ? " missing" : " found")
+                        + (erased != null && utils.isSubtypeOf(erased, utils.erasedType("c.Base"))
+                        ? " subtype" : " unrelated"));
+            }
+            return false;
+        }
+    }
+}
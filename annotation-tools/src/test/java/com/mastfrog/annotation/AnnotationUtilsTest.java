@@ -0,0 +1,305 @@
+package com.mastfrog.annotation;
+
+import com.mastfrog.annotation.processor.Compilation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class AnnotationUtilsTest {
+
+    private static final String OUTER = "package a;\n"
+            + "public class Outer {\n"
+            + "    public @interface Inner {\n"
+            + "        String value() default \"d\";\n"
+            + "        int n() default 3;\n"
+            + "        String[] tags() default {\"t\"};\n"
+            + "    }\n"
+            + "    public @interface Other {}\n"
+            + "}\n";
+
+    // Same simple names in another package
+    private static final String OTHER_OUTER = "package b;\n"
+            + "public class Outer {\n"
+            + "    public @interface Inner {}\n"
+            + "}\n";
+
+    @Test
+    public void testFindMirrorOnNestedAnnotationTypes() throws Exception {
+        for (boolean caching : new boolean[]{false, true}) {
+            Map<String, Object> values = run(caching, (utils, proc) -> {
+                Element used = utils.typeElement("a.Used");
+                Element elsewhere = utils.typeElement("a.Elsewhere");
+                for (String name : new String[]{"a.Outer$Inner", "a.Outer.Inner",
+                    "java.lang.Deprecated", "a.Outer$Other", "a.Outer.Other", "a.Missing",
+                    "a.Outer$Missing"}) {
+                    proc.values.put(name, describe(utils.findMirror(used, name)));
+                }
+                proc.values.put("elsewhere$", describe(utils.findMirror(elsewhere, "a.Outer$Inner")));
+                proc.values.put("elsewhere.", describe(utils.findMirror(elsewhere, "a.Outer.Inner")));
+                proc.values.put("class", describe(utils.findMirror(used, Deprecated.class)));
+            }, "package a;\n@Deprecated\n@Outer.Inner(\"x\")\nclass Used {}\n",
+                    "package a;\n@b.Outer.Inner\nclass Elsewhere {}\n");
+            String msg = caching + ": " + values;
+            // The binary name is matched by canonical name, the dotted name
+            // by the identity of the type element
+            assertEquals("a.Outer.Inner", values.get("a.Outer$Inner"), msg);
+            assertEquals("a.Outer.Inner", values.get("a.Outer.Inner"), msg);
+            assertEquals("java.lang.Deprecated", values.get("java.lang.Deprecated"), msg);
+            assertEquals("java.lang.Deprecated", values.get("class"), msg);
+            assertEquals("none", values.get("a.Outer$Other"), msg);
+            assertEquals("none", values.get("a.Outer.Other"), msg);
+            assertEquals("none", values.get("a.Missing"), msg);
+            assertEquals("none", values.get("a.Outer$Missing"), msg);
+            assertEquals("none", values.get("elsewhere$"), msg);
+            assertEquals("none", values.get("elsewhere."), msg);
+        }
+    }
+
+    @Test
+    public void testTypeRelationsAreOnlyMemoizedForNonGenericTypes() throws Exception {
+        Map<String, Object> values = run(true, (utils, proc) -> {
+            Types types = utils.processingEnv().getTypeUtils();
+            TypeMirror base = utils.type("a.Base");
+            TypeMirror sub = utils.type("a.Sub");
+            TypeMirror string = utils.type("java.lang.String");
+            TypeMirror integer = utils.type("java.lang.Integer");
+            TypeElement list = utils.typeElement("java.util.List");
+            TypeElement coll = utils.typeElement("java.util.Collection");
+            DeclaredType listOfString = types.getDeclaredType(list, string);
+            DeclaredType listOfInteger = types.getDeclaredType(list, integer);
+            DeclaredType collOfString = types.getDeclaredType(coll, string);
+            DeclaredType collOfInteger = types.getDeclaredType(coll, integer);
+            TypeMirror intType = types.getPrimitiveType(TypeKind.INT);
+            TypeMirror longType = types.getPrimitiveType(TypeKind.LONG);
+            Map<String, Object> v = proc.values;
+            Counts counts = proc.counts;
+
+            int before = counts.subtype;
+            v.put("subBase", utils.isSubtypeOf(sub, base) + " " + utils.isSubtypeOf(sub, base));
+            v.put("baseSub", utils.isSubtypeOf(base, sub));
+            v.put("nonGenericCalls", counts.subtype - before);
+
+            before = counts.subtype;
+            // Were these keyed by their elements, the second would get the
+            // first's answer
+            v.put("generic", utils.isSubtypeOf(listOfString, collOfInteger)
+                    + " " + utils.isSubtypeOf(listOfString, collOfString)
+                    + " " + utils.isSubtypeOf(listOfString, collOfString));
+            v.put("genericCalls", counts.subtype - before);
+
+            before = counts.assignable;
+            v.put("primitives", utils.isAssignable(intType, longType)
+                    + " " + utils.isAssignable(intType, longType)
+                    + " " + utils.isAssignable(longType, intType));
+            v.put("primitiveCalls", counts.assignable - before);
+
+            before = counts.erasure;
+            TypeMirror a = utils.erasureOf(listOfString);
+            TypeMirror b = utils.erasureOf(listOfInteger);
+            v.put("erasureCalls", counts.erasure - before);
+            v.put("erasures", a.toString() + " " + types.isSameType(a, b)
+                    + " " + types.isSameType(a, types.erasure(list.asType())));
+            before = counts.erasure;
+            v.put("nonGenericErasure", utils.erasureOf(sub) == sub);
+            v.put("nonGenericErasureCalls", counts.erasure - before);
+        }, "package a;\npublic class Base {}\n", "package a;\npublic class Sub extends Base {}\n");
+        String msg = values.toString();
+        assertEquals("true true", values.get("subBase"), msg);
+        assertEquals(false, values.get("baseSub"), msg);
+        assertEquals(2, values.get("nonGenericCalls"), msg);
+        assertEquals("false true true", values.get("generic"), msg);
+        assertEquals(3, values.get("genericCalls"), msg);
+        assertEquals("true true false", values.get("primitives"), msg);
+        assertEquals(2, values.get("primitiveCalls"), msg);
+        assertEquals("java.util.List true true", values.get("erasures"), msg);
+        assertEquals(1, values.get("erasureCalls"), msg);
+        assertEquals(true, values.get("nonGenericErasure"), msg);
+        assertEquals(0, values.get("nonGenericErasureCalls"), msg);
+    }
+
+    @Test
+    public void testTypeRelationsAreNotMemoizedWithoutNewRound() throws Exception {
+        Map<String, Object> values = run(false, (utils, proc) -> {
+            TypeMirror base = utils.type("a.Base");
+            TypeMirror sub = utils.type("a.Sub");
+            Counts counts = proc.counts;
+            int before = counts.subtype;
+            proc.values.put("subBase", utils.isSubtypeOf(sub, base) + " " + utils.isSubtypeOf(sub, base));
+            proc.values.put("calls", counts.subtype - before);
+        }, "package a;\npublic class Base {}\n", "package a;\npublic class Sub extends Base {}\n");
+        assertEquals("true true", values.get("subBase"), values::toString);
+        assertEquals(2, values.get("calls"), values::toString);
+    }
+
+    @Test
+    public void testDefaultsAreOnlyReadWhenAskedFor() throws Exception {
+        for (boolean caching : new boolean[]{false, true}) {
+            Map<String, Object> values = run(caching, (utils, proc) -> {
+                AnnotationMirror mir = utils.findMirror(utils.typeElement("a.Used"), "a.Outer.Inner");
+                Map<String, Object> v = proc.values;
+                v.put("value", utils.annotationValue(mir, "value", String.class));
+                v.put("n", String.valueOf(utils.annotationValue(mir, "n", Integer.class)));
+                v.put("nFallback", utils.annotationValue(mir, "n", Integer.class, 7));
+                v.put("nDefault", utils.annotationValueOrDefault(mir, "n", Integer.class));
+                v.put("valueDefault", utils.annotationValueOrDefault(mir, "value", String.class));
+                v.put("tags", utils.annotationValues(mir, "tags", String.class));
+                v.put("member", describe(utils.memberValue(mir, "n", false)));
+                v.put("memberDefault", describe(utils.memberValue(mir, "n", true)));
+                v.put("memberValue", describe(utils.memberValue(mir, "value", false)));
+                v.put("missing", describe(utils.memberValue(mir, "nope", true)));
+                v.put("missingDefault", String.valueOf(utils.annotationValueOrDefault(mir, "nope", String.class)));
+            }, "package a;\n@Outer.Inner(\"x\")\nclass Used {}\n");
+            String msg = caching + ": " + values;
+            assertEquals("x", values.get("value"), msg);
+            assertEquals("null", values.get("n"), msg);
+            assertEquals(7, values.get("nFallback"), msg);
+            assertEquals(3, values.get("nDefault"), msg);
+            assertEquals("x", values.get("valueDefault"), msg);
+            assertEquals(Collections.emptyList(), values.get("tags"), msg);
+            assertEquals("none", values.get("member"), msg);
+            assertEquals("3", values.get("memberDefault"), msg);
+            assertEquals("x", values.get("memberValue"), msg);
+            assertEquals("none", values.get("missing"), msg);
+            assertEquals("null", values.get("missingDefault"), msg);
+        }
+    }
+
+    private static Map<String, Object> run(boolean caching,
+            BiConsumer<AnnotationUtils, CheckProcessor> check, String... sources) throws Exception {
+        Compilation comp = Compilation.create()
+                .source("a.Outer", OUTER)
+                .source("b.Outer", OTHER_OUTER);
+        for (String src : sources) {
+            int start = src.indexOf("class ") + 6;
+            comp.source("a." + src.substring(start, src.indexOf(' ', start)), src);
+        }
+        try {
+            CheckProcessor proc = new CheckProcessor(caching, check);
+            assertTrue(comp.compile(proc), comp.messages(Diagnostic.Kind.ERROR));
+            return proc.values;
+        } finally {
+            comp.delete();
+        }
+    }
+
+    private static String describe(AnnotationMirror mir) {
+        return mir == null ? "none" : ((TypeElement) mir.getAnnotationType().asElement())
+                .getQualifiedName().toString();
+    }
+
+    private static String describe(AnnotationValue val) {
+        return val == null ? "none" : String.valueOf(val.getValue());
+    }
+
+    /**
+     * Number of calls AnnotationUtils made to javac's Types.
+     */
+    static final class Counts {
+
+        int subtype;
+        int assignable;
+        int erasure;
+    }
+
+    /**
+     * Runs a check in the first round, against an AnnotationUtils whose
+     * processing environment counts calls to the Types it provides.
+     */
+    static final class CheckProcessor extends AbstractProcessor {
+
+        private final boolean callNewRound;
+        private final BiConsumer<AnnotationUtils, CheckProcessor> check;
+        final Map<String, Object> values = new LinkedHashMap<>();
+        final Counts counts = new Counts();
+        private AnnotationUtils utils;
+        private boolean done;
+
+        CheckProcessor(boolean callNewRound, BiConsumer<AnnotationUtils, CheckProcessor> check) {
+            this.callNewRound = callNewRound;
+            this.check = check;
+        }
+
+        @Override
+        public synchronized void init(ProcessingEnvironment env) {
+            super.init(env);
+            Types types = env.getTypeUtils();
+            Types counting = (Types) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{Types.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "isSubtype":
+                                counts.subtype++;
+                                break;
+                            case "isAssignable":
+                                counts.assignable++;
+                                break;
+                            case "erasure":
+                                counts.erasure++;
+                                break;
+                            default:
+                                break;
+                        }
+                        return invoke(method, types, args);
+                    });
+            ProcessingEnvironment wrapped = (ProcessingEnvironment) Proxy.newProxyInstance(
+                    getClass().getClassLoader(), new Class<?>[]{ProcessingEnvironment.class},
+                    (proxy, method, args) -> "getTypeUtils".equals(method.getName())
+                    ? counting : invoke(method, env, args));
+            utils = new AnnotationUtils(wrapped, getSupportedAnnotationTypes(), getClass());
+        }
+
+        private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton("*");
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (!done) {
+                done = true;
+                if (callNewRound) {
+                    utils.newRound();
+                }
+                check.accept(utils, this);
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.mastfrog.annotation.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Runs javac in-process over sources in a temporary directory with a set of
+ * annotation processor instances, so processors can be tested end to end.
+ * Each call to <code>compile()</code> is a separate compilation into the same
+ * output directories, which are also on its classpath, like an incremental
+ * build; sources can be replaced or removed between them.
+ *
+ * @author Tim Boudreau
+ */
+public final class Compilation {
+
+    private final Path root;
+    private final Path sources;
+    private final Path classes;
+    private final Path generated;
+    private final Map<String, String> sourceFiles = new LinkedHashMap<>();
+    private final Set<File> classpath = new LinkedHashSet<>();
+    private final List<String> options = new ArrayList<>();
+    private boolean sourcePath;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+
+    private Compilation(Path root) throws IOException {
+        this.root = root;
+        sources = Files.createDirectories(root.resolve("src"));
+        classes = Files.createDirectories(root.resolve("classes"));
+        generated = Files.createDirectories(root.resolve("generated"));
+        classpath.add(classes.toFile());
+    }
+
+    public static Compilation create() throws IOException {
+        return new Compilation(Files.createTempDirectory("anno-test"))
+                .classpathOf(Compilation.class);
+    }
+
+    /**
+     * Put the JAR or directory a class was loaded from on the classpath.
+     *
+     * @param types Some types
+     * @return this
+     */
+    public Compilation classpathOf(Class<?>... types) {
+        for (Class<?> type : types) {
+            try {
+                classpath.add(Paths.get(type.getProtectionDomain()
+                        .getCodeSource().getLocation().toURI()).toFile());
+            } catch (URISyntaxException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        return this;
+    }
+
+    public Compilation option(String option) {
+        options.add(option);
+        return this;
+    }
+
+    /**
+     * Put the source directory on the source path, as build tools do, so
+     * sources which are not compiled can still be found.
+     *
+     * @return this
+     */
+    public Compilation withSourcePath() {
+        sourcePath = true;
+        return this;
+    }
+
+    public Compilation source(String fqn, String text) {
+        sourceFiles.put(fqn, text);
+        return this;
+    }
+
+    public Compilation removeSource(String fqn) throws IOException {
+        sourceFiles.remove(fqn);
+        Files.deleteIfExists(sourceFile(fqn));
+        return this;
+    }
+
+    private Path sourceFile(String fqn) {
+        return sources.resolve(fqn.replace('.', '/') + ".java");
+    }
+
+    /**
+     * Compile the current sources.
+     *
+     * @param processors The processors to run
+     * @return true if compilation succeeded
+     * @throws IOException If something goes wrong
+     */
+    public boolean compile(Processor... processors) throws IOException {
+        return compile(sourceFiles.keySet(), processors);
+    }
+
+    /**
+     * Compile some of the current sources, as an incremental build would;
+     * the rest are still written to the source directory.
+     *
+     * @param fqns The names of the types to compile
+     * @param processors The processors to run
+     * @return true if compilation succeeded
+     * @throws IOException If something goes wrong
+     */
+    public boolean compile(Collection<String> fqns, Processor... processors) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager mgr = compiler.getStandardFileManager(diagnostics, Locale.US, UTF_8);
+        mgr.setLocation(StandardLocation.CLASS_OUTPUT, Arrays.asList(classes.toFile()));
+        mgr.setLocation(StandardLocation.SOURCE_OUTPUT, Arrays.asList(generated.toFile()));
+        mgr.setLocation(StandardLocation.CLASS_PATH, classpath);
+        if (sourcePath) {
+            mgr.setLocation(StandardLocation.SOURCE_PATH, Arrays.asList(sources.toFile()));
+        }
+        List<File> files = new ArrayList<>();
+        for (Map.Entry<String, String> e : sourceFiles.entrySet()) {
+            Path file = sourceFile(e.getKey());
+            byte[] bytes = e.getValue().getBytes(UTF_8);
+            // Left alone if unchanged, so it is not newer than its class file
+            if (!Files.exists(file) || !Arrays.equals(bytes, Files.readAllBytes(file))) {
+                Files.createDirectories(file.getParent());
+                Files.write(file, bytes);
+            }
+            if (fqns.contains(e.getKey())) {
+                files.add(file.toFile());
+            }
+        }
+        JavaCompiler.CompilationTask task = compiler.getTask(null, mgr, diagnostics,
+                options, null, mgr.getJavaFileObjectsFromFiles(files));
+        task.setProcessors(Arrays.asList(processors));
+        try {
+            return task.call();
+        } finally {
+            mgr.close();
+        }
+    }
+
+    public List<Diagnostic<? extends JavaFileObject>> diagnostics() {
+        return diagnostics.getDiagnostics();
+    }
+
+    /**
+     * Get the messages of all diagnostics of a kind, for assertions.
+     *
+     * @param kind The kind
+     * @return The messages, one per line
+     */
+    public String messages(Diagnostic.Kind kind) {
+        return diagnostics().stream().filter(d -> d.getKind() == kind)
+                .map(d -> d.getMessage(Locale.US)).collect(Collectors.joining("\n"));
+    }
+
+    public Path classes() {
+        return classes;
+    }
+
+    public Path generatedSource(String fqn) {
+        return generated.resolve(fqn.replace('.', '/') + ".java");
+    }
+
+    public String generatedSourceText(String fqn) throws IOException {
+        return new String(Files.readAllBytes(generatedSource(fqn)), UTF_8);
+    }
+
+    /**
+     * Get the relative paths of all files generated as sources or resources
+     * (including classes), sorted.
+     *
+     * @return A list of paths
+     * @throws IOException If something goes wrong
+     */
+    public List<String> outputFiles() throws IOException {
+        List<String> result = new ArrayList<>();
+        for (Path dir : new Path[]{generated, classes}) {
+            try (Stream<Path> all = Files.walk(dir)) {
+                all.filter(Files::isRegularFile).map(p -> dir.relativize(p).toString())
+                        .forEach(result::add);
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    public void delete() throws IOException {
+        deleteTree(root);
+    }
+
+    public static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
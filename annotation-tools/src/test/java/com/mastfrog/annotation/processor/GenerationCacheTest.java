@@ -0,0 +1,239 @@
+package com.mastfrog.annotation.processor;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import com.mastfrog.java.vogon.ClassBuilder;
+import java.io.IOException;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class GenerationCacheTest {
+
+    private Path cacheDir;
+
+    @Test
+    public void testCacheHitWritesIdenticalOutput() throws Exception {
+        Compilation first = sources("Hello", "Goodbye");
+        Compilation second = sources("Hello", "Goodbye");
+        try {
+            GreetProcessor miss = new GreetProcessor();
+            assertTrue(first.compile(miss), first.messages(Diagnostic.Kind.ERROR));
+            assertEquals(2, miss.delegate.processed);
+            assertEquals(2, cacheEntries().size());
+
+            GreetProcessor hit = new GreetProcessor();
+            assertTrue(second.compile(hit), second.messages(Diagnostic.Kind.ERROR));
+            assertEquals(0, hit.delegate.processed, "Cached elements should not be processed");
+            assertEquals(2, hit.delegate.completedElements,
+                    "Delegates should still see cached elements when the round completes");
+            for (String name : new String[]{"g.AGreeting", "g.BGreeting"}) {
+                assertEquals(first.generatedSourceText(name), second.generatedSourceText(name));
+            }
+            assertEquals(first.outputFiles(), second.outputFiles());
+            Class<?> type = new URLClassLoader(new URL[]{second.classes().toUri().toURL()},
+                    getClass().getClassLoader()).loadClass("g.BGreeting");
+            assertEquals("Goodbye", type.getMethod("greeting").invoke(null));
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
+    @Test
+    public void testChangedElementMisses() throws Exception {
+        Compilation first = sources("Hello", "Goodbye");
+        Compilation second = sources("Hello", "Farewell");
+        try {
+            assertTrue(first.compile(new GreetProcessor()), first.messages(Diagnostic.Kind.ERROR));
+            GreetProcessor proc = new GreetProcessor();
+            assertTrue(second.compile(proc), second.messages(Diagnostic.Kind.ERROR));
+            assertEquals(1, proc.delegate.processed);
+            assertTrue(second.generatedSourceText("g.BGreeting").contains("\"Farewell\""));
+            assertEquals(3, cacheEntries().size());
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+        Compilation comp = Compilation.create()
+                .option("-A" + AnnotationUtils.AU_GENERATION_CACHE + "=" + cacheDir)
+                .option("-A" + AnnotationUtils.AU_GENERATION_CACHE_SIZE + "=1");
+        try {
+            // Each generated class holds a ~60Kb string; 24 of them exceed 1Mb
+            for (int i = 0; i < 24; i++) {
+                comp.source("g.T" + i, "package g;\n@" + Greet.class.getCanonicalName()
+                        + "(value = \"T" + i + "\", padding = 60000)\nclass T" + i + " {}\n");
+            }
+            assertTrue(comp.compile(new GreetProcessor()), comp.messages(Diagnostic.Kind.ERROR));
+            List<Path> entries = cacheEntries();
+            long total = 0;
+            for (Path p : entries) {
+                total += Files.size(p);
+            }
+            assertTrue(entries.size() > 0 && entries.size() < 24, entries::toString);
+            assertTrue(total <= 1024 * 1024 - (1024 * 1024 / 10), "Cache holds " + total);
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testProcessorOverridingProcessingIsNotCached() throws Exception {
+        Compilation comp = sources("Hello", "Goodbye");
+        try {
+            assertTrue(comp.compile(new OverridingGreetProcessor()), comp.messages(Diagnostic.Kind.ERROR));
+            assertEquals(0, cacheEntries().size());
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testKeysAreSaltedWithTheJavaVogonVersion() {
+        GreetProcessor proc = new GreetProcessor();
+        List<Class<?>> types = GenerationCache.saltTypes(proc.getClass(),
+                Collections.singletonList(proc.delegate));
+        assertTrue(types.contains(ClassBuilder.class), types::toString);
+        assertTrue(types.contains(GreetDelegate.class), types::toString);
+        // Located, and so not disabling the cache
+        for (Class<?> type : types) {
+            String version = GenerationCache.codeVersion(type);
+            assertNotNull(version, type::getName);
+            assertTrue(version.matches("\\d+:\\d+"), version);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("generation-cache");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Compilation.deleteTree(cacheDir);
+    }
+
+    private List<Path> cacheEntries() throws IOException {
+        try (Stream<Path> all = Files.walk(cacheDir)) {
+            return all.filter(p -> p.getFileName().toString().endsWith(".gen"))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Compilation sources(String a, String b) throws IOException {
+        String anno = "@" + Greet.class.getCanonicalName();
+        return Compilation.create()
+                .option("-A" + AnnotationUtils.AU_GENERATION_CACHE + "=" + cacheDir)
+                .source("g.A", "package g;\n" + anno + "(\"" + a + "\")\nclass A {}\n")
+                .source("g.B", "package g;\n" + anno + "(\"" + b + "\")\nclass B {}\n");
+    }
+
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.TYPE)
+    public @interface Greet {
+
+        String value();
+
+        int padding() default 0;
+    }
+
+    static class GreetProcessor extends AbstractDelegatingProcessor {
+
+        final GreetDelegate delegate = new GreetDelegate();
+
+        @Override
+        protected void installDelegates(Delegates delegates) {
+            delegates.apply(delegate).to(ElementKind.CLASS)
+                    .whenAnnotationTypes(Greet.class.getCanonicalName());
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+    }
+
+    static final class OverridingGreetProcessor extends GreetProcessor {
+
+        @Override
+        protected boolean processTypeAnnotation(TypeElement type, AnnotationMirror mirror,
+                RoundEnvironment roundEnv) throws Exception {
+            return true;
+        }
+    }
+
+    static final class GreetDelegate extends Delegate {
+
+        int processed;
+        int completedElements;
+
+        @Override
+        protected String generationFingerprint(Element el, AnnotationMirror mirror) {
+            return elementFingerprint(el, mirror);
+        }
+
+        @Override
+        protected boolean processTypeAnnotation(TypeElement type, AnnotationMirror mirror,
+                RoundEnvironment roundEnv) throws Exception {
+            processed++;
+            String greeting = utils().annotationValue(mirror, "value", String.class);
+            int padding = utils().annotationValue(mirror, "padding", Integer.class, 0);
+            StringBuilder pad = new StringBuilder(padding);
+            for (int i = 0; i < padding; i++) {
+                pad.append((char) ('a' + (i % 26)));
+            }
+            ClassBuilder<String> cb = ClassBuilder.forPackage("g")
+                    .named(type.getSimpleName() + "Greeting").withModifier(PUBLIC, FINAL)
+                    .method("greeting", mb -> {
+                        mb.withModifier(PUBLIC, STATIC).returning("String")
+                                .body(bb -> bb.returningStringLiteral(greeting));
+                    })
+                    .method("padding", mb -> {
+                        mb.withModifier(PUBLIC, STATIC).returning("String")
+                                .body(bb -> bb.returningStringLiteral(pad.toString()));
+                    });
+            writeOne(cb, type);
+            return true;
+        }
+
+        @Override
+        protected boolean onRoundCompleted(Map<AnnotationMirror, Element> processed,
+                RoundEnvironment roundEnv) throws Exception {
+            completedElements += processed.size();
+            return true;
+        }
+    }
+}
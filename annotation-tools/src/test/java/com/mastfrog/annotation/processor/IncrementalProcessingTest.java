@@ -0,0 +1,222 @@
+package com.mastfrog.annotation.processor;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import com.mastfrog.annotation.readers.MirrorReaderProcessor;
+import com.mastfrog.annotation.registries.AbstractClassRegistrationAnnotationProcessor;
+import com.mastfrog.java.vogon.ClassBuilder;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import javax.tools.Diagnostic;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class IncrementalProcessingTest {
+
+    private static final String ISOLATING_OPTION = "org.gradle.annotation.processing.isolating";
+    private static final String AGGREGATING_OPTION = "org.gradle.annotation.processing.aggregating";
+
+    @Test
+    public void testIsolatingProcessorIsWarnedAboutOriginatingElements() throws Exception {
+        List<String> warnings = submit(IncrementalProcessing.ISOLATING);
+        assertEquals(2, warnings.size(), warnings::toString);
+        assertTrue(warnings.get(0).contains("gen.NothingGenerated has no originating elements"),
+                warnings::toString);
+        assertTrue(warnings.get(1).contains("gen.BothGenerated must originate from exactly one "
+                + "top-level type for isolating incremental processing, but originates from 2: "
+                + "gen.A, gen.B"), warnings::toString);
+    }
+
+    @Test
+    public void testAggregatingProcessorIsOnlyWarnedAboutMissingElements() throws Exception {
+        List<String> warnings = submit(IncrementalProcessing.AGGREGATING);
+        assertEquals(1, warnings.size(), warnings::toString);
+        assertTrue(warnings.get(0).contains("gen.NothingGenerated has no originating elements; "
+                + "with aggregating incremental processing"), warnings::toString);
+    }
+
+    @Test
+    public void testNonIncrementalProcessorIsNotWarned() throws Exception {
+        List<String> warnings = submit(IncrementalProcessing.NONE);
+        assertEquals(Collections.emptyList(), warnings);
+        assertNull(IncrementalProcessing.NONE.checkOriginatingElements("x"));
+        assertNotNull(IncrementalProcessing.ISOLATING.checkOriginatingElements("x", (Element) null));
+    }
+
+    @Test
+    public void testLayerGeneratingProcessorCannotBeIsolating() {
+        AbstractLayerGeneratingDelegatingProcessor proc = new AbstractLayerGeneratingDelegatingProcessor() {
+            @Override
+            protected IncrementalProcessing incrementalProcessing() {
+                return IncrementalProcessing.ISOLATING;
+            }
+        };
+        IllegalStateException ex = assertThrows(IllegalStateException.class, () -> proc.init(null));
+        assertTrue(ex.getMessage().contains("cannot be isolating"), ex.getMessage());
+    }
+
+    @Test
+    public void testSupportedOptionsDeclareTheCategory() {
+        Set<String> none = new AbstractDelegatingProcessor() {
+        }.getSupportedOptions();
+        assertFalse(none.contains(ISOLATING_OPTION), none::toString);
+        assertFalse(none.contains(AGGREGATING_OPTION), none::toString);
+        assertTrue(none.contains(AnnotationUtils.AU_RENDER_THREADS), none::toString);
+
+        Set<String> isolating = new MirrorReaderProcessor().getSupportedOptions();
+        assertTrue(isolating.contains(ISOLATING_OPTION), isolating::toString);
+        assertFalse(isolating.contains(AGGREGATING_OPTION), isolating::toString);
+
+        Set<String> layer = new AbstractLayerGeneratingDelegatingProcessor() {
+            @Override
+            protected IncrementalProcessing incrementalProcessing() {
+                return IncrementalProcessing.AGGREGATING;
+            }
+        }.getSupportedOptions();
+        assertTrue(layer.contains(AGGREGATING_OPTION), layer::toString);
+
+        Set<String> index = new AbstractClassRegistrationAnnotationProcessor() {
+            @Override
+            protected void handleOne(Element e, AnnotationMirror anno, int order, AnnotationUtils utils) {
+            }
+        }.getSupportedOptions();
+        assertTrue(index.contains(AGGREGATING_OPTION), index::toString);
+        assertTrue(index.contains(AnnotationUtils.AU_INCREMENTAL_INDEXES), index::toString);
+    }
+
+    @Test
+    public void testDynamicProcessorsAreRegisteredForGradle() throws Exception {
+        List<String> entries = new ArrayList<>();
+        Enumeration<URL> urls = getClass().getClassLoader()
+                .getResources("META-INF/gradle/incremental.annotation.processors");
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            if (!url.toString().contains("annotation-tools")) {
+                continue;
+            }
+            try (InputStream in = url.openStream()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (!line.trim().isEmpty()) {
+                        entries.add(line.trim());
+                    }
+                }
+            }
+        }
+        assertEquals(Collections.singletonList(MirrorReaderProcessor.class.getName() + ",dynamic"),
+                entries);
+        for (String entry : entries) {
+            // Gradle only believes a dynamic processor which declares its
+            // category in its supported options
+            Processor proc = (Processor) Class.forName(entry.substring(0, entry.indexOf(',')))
+                    .getConstructor().newInstance();
+            Set<String> options = proc.getSupportedOptions();
+            assertTrue(options.contains(ISOLATING_OPTION) || options.contains(AGGREGATING_OPTION),
+                    entry + ": " + options);
+        }
+    }
+
+    private static List<String> submit(IncrementalProcessing category) throws Exception {
+        Compilation comp = Compilation.create()
+                .source("gen.A", "package gen;\n@Deprecated\nclass A {\n    void nested() {}\n}\n")
+                .source("gen.B", "package gen;\n@Deprecated\nclass B {}\n");
+        try {
+            assertTrue(comp.compile(new SubmittingProcessor(category)),
+                    comp.messages(Diagnostic.Kind.ERROR));
+            List<String> result = new ArrayList<>();
+            for (Diagnostic<?> d : comp.diagnostics()) {
+                if (d.getKind() == Diagnostic.Kind.WARNING
+                        && d.getMessage(null).contains("Generated")) {
+                    result.add(d.getMessage(null));
+                }
+            }
+            return result;
+        } finally {
+            comp.delete();
+        }
+    }
+
+    /**
+     * Submits classes generated from one type, one type and a member of it,
+     * two types, and nothing.
+     */
+    static final class SubmittingProcessor extends AbstractProcessor {
+
+        private final IncrementalProcessing category;
+        private RenderPipeline pipeline;
+        private boolean done;
+
+        SubmittingProcessor(IncrementalProcessing category) {
+            this.category = category;
+        }
+
+        @Override
+        public synchronized void init(ProcessingEnvironment env) {
+            super.init(env);
+            AnnotationUtils utils = new AnnotationUtils(processingEnv,
+                    getSupportedAnnotationTypes(), getClass());
+            pipeline = new RenderPipeline(processingEnv, utils,
+                    ProcessorMetrics.forProcessor(processingEnv, getClass()), category, null);
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton("java.lang.Deprecated");
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (!done) {
+                done = true;
+                TypeElement a = processingEnv.getElementUtils().getTypeElement("gen.A");
+                TypeElement b = processingEnv.getElementUtils().getTypeElement("gen.B");
+                pipeline.submit(generated("One"), a);
+                pipeline.submit(generated("Nested"), a, a.getEnclosedElements().get(0));
+                pipeline.submit(generated("Nothing"));
+                pipeline.submit(generated("Both"), a, b);
+            }
+            if (roundEnv.processingOver()) {
+                pipeline.close();
+            } else {
+                pipeline.flush();
+            }
+            return false;
+        }
+
+        private static ClassBuilder<String> generated(String name) {
+            return ClassBuilder.forPackage("gen").named(name + "Generated")
+                    .withModifier(PUBLIC, FINAL);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.mastfrog.annotation.processor;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ProcessorEventsTest {
+
+    private static final String[] EVENTS = {"com.mastfrog.annotation.ProcessorRound",
+        "com.mastfrog.annotation.DelegateInvocation", "com.mastfrog.annotation.Validation",
+        "com.mastfrog.annotation.FilerWrite"};
+
+    @Test
+    public void testEventsAreCommittedWhenRecording() throws Exception {
+        Path file = Files.createTempFile("events", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String event : EVENTS) {
+                recording.enable(event).withoutThreshold();
+            }
+            recording.start();
+            Object round = ProcessorEvents.beginRound(this, 3, true);
+            assertNotNull(round);
+            Object write = ProcessorEvents.beginWrite("source", "a.B");
+            assertNotNull(write);
+            ProcessorEvents.endWrite(write, 42);
+            ProcessorEvents.end(round);
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            RecordedEvent roundEvent = find(events, EVENTS[0]);
+            assertEquals(getClass().getName(), roundEvent.getString("processor"));
+            assertEquals(3, roundEvent.getInt("round"));
+            assertTrue(roundEvent.getBoolean("processingOver"));
+            RecordedEvent writeEvent = find(events, EVENTS[3]);
+            assertEquals("a.B", writeEvent.getString("name"));
+            assertEquals(42L, writeEvent.getLong("bytes"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testNothingIsRecordedWithoutJfr() throws Exception {
+        URL classes = ProcessorEvents.class.getProtectionDomain().getCodeSource().getLocation();
+        try (Recording recording = new Recording();
+                NoJfrClassLoader loader = new NoJfrClassLoader(classes, ProcessorEvents.class)) {
+            // Even with the events enabled, a copy which cannot see jdk.jfr
+            // creates none, and never loads the classes that extend Event
+            for (String event : EVENTS) {
+                recording.enable(event).withoutThreshold();
+            }
+            recording.start();
+            assertThrows(ClassNotFoundException.class,
+                    () -> Class.forName("jdk.jfr.Event", false, loader));
+            Class<?> events = Class.forName(ProcessorEvents.class.getName(), true, loader);
+            assertEquals(loader, events.getClassLoader());
+            assertNull(call(events, "beginRound", new Class<?>[]{Object.class, int.class, boolean.class},
+                    this, 0, false));
+            assertNull(call(events, "beginDelegate", new Class<?>[]{Object.class, String.class,
+                AnnotationMirror.class, Element.class}, this, "processTypeAnnotation", null, null));
+            assertNull(call(events, "beginValidation", new Class<?>[]{AnnotationMirror.class, Element.class},
+                    null, null));
+            assertNull(call(events, "beginWrite", new Class<?>[]{String.class, String.class},
+                    "source", "a.B"));
+            call(events, "end", new Class<?>[]{Object.class}, (Object) null);
+            call(events, "endValidation", new Class<?>[]{Object.class, boolean.class}, null, true);
+            call(events, "endWrite", new Class<?>[]{Object.class, long.class}, null, 1L);
+            recording.stop();
+        }
+    }
+
+    private static Object call(Class<?> type, String name, Class<?>[] params, Object... args) throws Exception {
+        Method m = type.getMethod(name, params);
+        return m.invoke(null, args);
+    }
+
+    private static RecordedEvent find(List<RecordedEvent> events, String name) {
+        for (RecordedEvent e : events) {
+            if (name.equals(e.getEventType().getName())) {
+                return e;
+            }
+        }
+        throw new AssertionError("No " + name + " in " + events);
+    }
+
+    /**
+     * Loads one class and its nested classes itself, from the passed location,
+     * and behaves as if jdk.jfr did not exist.
+     */
+    static final class NoJfrClassLoader extends URLClassLoader {
+
+        private final String prefix;
+
+        NoJfrClassLoader(URL location, Class<?> isolated) {
+            super(new URL[]{location}, isolated.getClassLoader());
+            prefix = isolated.getName();
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith("jdk.jfr.")) {
+                throw new ClassNotFoundException(name);
+            }
+            if (!name.equals(prefix) && !name.startsWith(prefix + "$")) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> result = findLoadedClass(name);
+                if (result == null) {
+                    result = findClass(name);
+                }
+                if (resolve) {
+                    resolveClass(result);
+                }
+                return result;
+            }
+        }
+    }
+}
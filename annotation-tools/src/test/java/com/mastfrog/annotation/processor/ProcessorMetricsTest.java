@@ -0,0 +1,203 @@
+package com.mastfrog.annotation.processor;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ProcessorMetricsTest {
+
+    @Test
+    public void testSummaryIsANoteAndJsonIsWrittenToAFile() throws Exception {
+        Compilation comp = Compilation.create().source("m.A", "package m;\nclass A {}\n");
+        try {
+            // In a directory which does not exist yet
+            Path file = comp.classes().getParent().resolve("perf").resolve("metrics.json");
+            comp.option("-A" + AnnotationUtils.AU_PERF + "=true")
+                    .option("-A" + AnnotationUtils.AU_PERF_FILE + "=" + file);
+            String out = compileCapturingOutput(comp);
+            assertFalse(out.contains("Performance of"), out);
+
+            String notes = comp.messages(Diagnostic.Kind.NOTE);
+            assertTrue(notes.contains("Performance of " + MetricsProcessor.class.getName()
+                    + " over 2 rounds"), notes);
+            assertTrue(notes.contains("200 bytes generated"), notes);
+            assertTrue(notes.contains("round 1: "), notes);
+
+            assertTrue(Files.exists(file), file::toString);
+            assertJson(new String(Files.readAllBytes(file), UTF_8));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testJsonIsWrittenToAFileNamedForTheProcessorInADirectory() throws Exception {
+        Compilation comp = Compilation.create().source("m.A", "package m;\nclass A {}\n");
+        try {
+            Path dir = Files.createDirectories(comp.classes().getParent().resolve("perf"));
+            comp.option("-A" + AnnotationUtils.AU_PERF + "=" + MetricsProcessor.class.getSimpleName())
+                    .option("-A" + AnnotationUtils.AU_PERF_FILE + "=" + dir);
+            compileCapturingOutput(comp);
+            Path file = dir.resolve(MetricsProcessor.class.getName() + ".json");
+            assertTrue(Files.exists(file), file::toString);
+            assertJson(new String(Files.readAllBytes(file), UTF_8));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testNothingIsReportedForOtherProcessors() throws Exception {
+        Compilation comp = Compilation.create().source("m.A", "package m;\nclass A {}\n");
+        try {
+            Path dir = Files.createDirectories(comp.classes().getParent().resolve("perf"));
+            comp.option("-A" + AnnotationUtils.AU_PERF + "=SomeOtherProcessor")
+                    .option("-A" + AnnotationUtils.AU_PERF_FILE + "=" + dir);
+            compileCapturingOutput(comp);
+            String notes = comp.messages(Diagnostic.Kind.NOTE);
+            assertFalse(notes.contains("Performance of"), notes);
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(0, files.count());
+            }
+        } finally {
+            comp.delete();
+        }
+    }
+
+    private static void assertJson(String json) {
+        assertTrue(json.startsWith("{\n  \"processor\": \"" + MetricsProcessor.class.getName() + "\",\n"), json);
+        assertBalanced(json);
+        assertTrue(json.contains("{\"round\": 0, \"wallNanos\": "), json);
+        assertTrue(json.contains("{\"round\": 1, \"wallNanos\": "), json);
+        assertFalse(json.contains("{\"round\": 2,"), json);
+        assertTrue(json.contains(", \"bytes\": 100, \"stats\": ["), json);
+        // Each round, and the totals, which sum them
+        assertEquals(2, occurrences(json, "{\"category\": \"elements\", \"name\": \"types\", \"count\": 2, \"nanos\": 0}"), json);
+        int totals = json.indexOf("\"totals\": [");
+        assertTrue(totals > 0, json);
+        String tot = json.substring(totals);
+        assertTrue(tot.contains("{\"category\": \"elements\", \"name\": \"types\", \"count\": 4, \"nanos\": 0}"), tot);
+        assertTrue(tot.contains("{\"category\": \"delegate\", \"name\": \"quote\\\" tab\\t\", \"count\": 2, \"nanos\": "), tot);
+    }
+
+    private static int occurrences(String in, String what) {
+        int result = 0;
+        for (int ix = in.indexOf(what); ix >= 0; ix = in.indexOf(what, ix + 1)) {
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Check that brackets and braces outside strings are balanced, and that
+     * strings are terminated.
+     */
+    private static void assertBalanced(String json) {
+        StringBuilder stack = new StringBuilder();
+        boolean inString = false;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (inString) {
+                assertTrue(c >= 0x20, json);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            switch (c) {
+                case '"':
+                    inString = true;
+                    break;
+                case '{':
+                case '[':
+                    stack.append(c);
+                    break;
+                case '}':
+                case ']':
+                    assertTrue(stack.length() > 0, json);
+                    assertEquals(c == '}' ? '{' : '[', stack.charAt(stack.length() - 1), json);
+                    stack.setLength(stack.length() - 1);
+                    break;
+                default:
+                    break;
+            }
+        }
+        assertFalse(inString, json);
+        assertEquals(0, stack.length(), json);
+    }
+
+    private static String compileCapturingOutput(Compilation comp) throws Exception {
+        PrintStream old = System.out;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out, true, "UTF-8"));
+        try {
+            assertTrue(comp.compile(new MetricsProcessor()), comp.messages(Diagnostic.Kind.ERROR));
+        } finally {
+            System.setOut(old);
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Records the same timings, counts and bytes in every round.
+     */
+    static final class MetricsProcessor extends AbstractProcessor {
+
+        private ProcessorMetrics metrics;
+
+        @Override
+        public synchronized void init(ProcessingEnvironment env) {
+            super.init(env);
+            metrics = ProcessorMetrics.forProcessor(env, getClass());
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton("*");
+        }
+
+        @Override
+        public Set<String> getSupportedOptions() {
+            return new HashSet<>(Arrays.asList(AnnotationUtils.AU_PERF, AnnotationUtils.AU_PERF_FILE));
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            metrics.roundStarted();
+            metrics.time(ProcessorMetrics.DELEGATE, "quote\" tab\t", metrics.start());
+            metrics.count(ProcessorMetrics.ELEMENTS, "types", 2);
+            metrics.bytes(100);
+            metrics.roundFinished(roundEnv.processingOver());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.mastfrog.annotation.processor;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import com.mastfrog.java.vogon.ClassBuilder;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+import javax.tools.Diagnostic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class RenderPipelineTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 4})
+    public void testSourcesAreWrittenInSubmissionOrder(int threads) throws Exception {
+        Compilation comp = sources(threads, "@Gen(delay = 300) class A {}",
+                "@Gen(delay = 200) class B {}", "@Gen class C {}",
+                "@Gen(delay = 100) class D {}", "@Gen class E {}");
+        try {
+            GenProcessor proc = new GenProcessor();
+            assertTrue(comp.compile(proc), comp.messages(Diagnostic.Kind.ERROR));
+            assertEquals(Arrays.asList("gen.AGenerated", "gen.BGenerated", "gen.CGenerated",
+                    "gen.DGenerated", "gen.EGenerated"), proc.written);
+            assertTrue(comp.generatedSourceText("gen.DGenerated").contains("return \"D\";"));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 4})
+    public void testRenderingFailureIsReportedOnItsElement(int threads) throws Exception {
+        Compilation comp = sources(threads, "@Gen class A {}",
+                "@Gen(fail = true) class B {}", "@Gen class C {}");
+        try {
+            GenProcessor proc = new GenProcessor();
+            assertFalse(comp.compile(proc));
+            String errors = comp.messages(Diagnostic.Kind.ERROR);
+            assertTrue(errors.contains("Exception rendering gen.BGenerated"), errors);
+            assertTrue(errors.contains("Boom"), errors);
+            assertTrue(comp.diagnostics().stream().anyMatch(d -> d.getKind() == Diagnostic.Kind.ERROR
+                    && d.getSource() != null && d.getSource().getName().endsWith("B.java")),
+                    comp.diagnostics()::toString);
+            assertEquals(Arrays.asList("gen.AGenerated", "gen.CGenerated"), proc.written);
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 4})
+    public void testSubmittedBuildersCanBeCollected(int threads) throws Exception {
+        Compilation comp = sources(threads, "@Gen class A {}", "@Gen class B {}");
+        try {
+            GenProcessor proc = new GenProcessor();
+            assertTrue(comp.compile(proc), comp.messages(Diagnostic.Kind.ERROR));
+            assertEquals(2, proc.submitted.size());
+            for (int i = 0; i < 50 && !allCollected(proc.submitted); i++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+            assertTrue(allCollected(proc.submitted), "Submitted builders are still "
+                    + "reachable after they were written");
+        } finally {
+            comp.delete();
+        }
+    }
+
+    private static boolean allCollected(List<WeakReference<ClassBuilder<?>>> refs) {
+        for (WeakReference<ClassBuilder<?>> ref : refs) {
+            if (ref.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Compilation sources(int threads, String... types) throws Exception {
+        Compilation result = Compilation.create()
+                .option("-A" + AnnotationUtils.AU_RENDER_THREADS + "=" + threads);
+        for (String type : types) {
+            String name = type.substring(type.indexOf("class ") + 6, type.indexOf(" {"));
+            result.source("gen." + name, "package gen;\nimport "
+                    + Gen.class.getCanonicalName() + ";\n" + type + "\n");
+        }
+        return result;
+    }
+
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.TYPE)
+    public @interface Gen {
+
+        int delay() default 0;
+
+        boolean fail() default false;
+    }
+
+    /**
+     * Generates a class for each type annotated with Gen, in name order,
+     * recording the order the Filer is asked to create them in.
+     */
+    static final class GenProcessor extends AbstractProcessor {
+
+        final List<String> written = Collections.synchronizedList(new ArrayList<>());
+        final List<WeakReference<ClassBuilder<?>>> submitted = new ArrayList<>();
+        private RenderPipeline pipeline;
+
+        @Override
+        public synchronized void init(ProcessingEnvironment env) {
+            super.init(recordingWrites(env));
+            AnnotationUtils utils = new AnnotationUtils(processingEnv,
+                    getSupportedAnnotationTypes(), getClass());
+            pipeline = new RenderPipeline(processingEnv, utils,
+                    ProcessorMetrics.forProcessor(processingEnv, getClass()),
+                    IncrementalProcessing.NONE, null);
+        }
+
+        private ProcessingEnvironment recordingWrites(ProcessingEnvironment env) {
+            Filer filer = (Filer) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{Filer.class}, (proxy, method, args) -> {
+                        if ("createSourceFile".equals(method.getName())) {
+                            written.add(args[0].toString());
+                        }
+                        return invoke(method, env.getFiler(), args);
+                    });
+            return (ProcessingEnvironment) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{ProcessingEnvironment.class}, (proxy, method, args) -> {
+                        return "getFiler".equals(method.getName())
+                                ? filer : invoke(method, env, args);
+                    });
+        }
+
+        private static Object invoke(java.lang.reflect.Method method, Object on,
+                Object[] args) throws Throwable {
+            try {
+                return method.invoke(on, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton(Gen.class.getCanonicalName());
+        }
+
+        @Override
+        public Set<String> getSupportedOptions() {
+            return Collections.singleton(AnnotationUtils.AU_RENDER_THREADS);
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            List<TypeElement> types = new ArrayList<>();
+            for (Element el : roundEnv.getElementsAnnotatedWith(Gen.class)) {
+                types.add((TypeElement) el);
+            }
+            types.sort((a, b) -> a.getSimpleName().toString().compareTo(b.getSimpleName().toString()));
+            for (TypeElement type : types) {
+                Gen gen = type.getAnnotation(Gen.class);
+                String name = type.getSimpleName().toString();
+                ClassBuilder<String> cb = ClassBuilder.forPackage("gen").named(name + "Generated")
+                        .withModifier(PUBLIC, FINAL)
+                        .method("name", mb -> {
+                            mb.withModifier(PUBLIC, STATIC).returning("String")
+                                    .body(bb -> bb.returningStringLiteral(name));
+                        });
+                if (gen.delay() > 0 || gen.fail()) {
+                    int delay = gen.delay();
+                    boolean failing = gen.fail();
+                    boolean[] slept = new boolean[1];
+                    cb.optimizing((node, position) -> {
+                        if (failing) {
+                            throw new IllegalStateException("Boom");
+                        } else if (!slept[0]) {
+                            slept[0] = true;
+                            try {
+                                Thread.sleep(delay);
+                            } catch (InterruptedException ex) {
+                                fail(ex);
+                            }
+                        }
+                        return node;
+                    });
+                }
+                submitted.add(new WeakReference<>(cb));
+                pipeline.submit(cb, type);
+            }
+            if (roundEnv.processingOver()) {
+                pipeline.close();
+            } else {
+                pipeline.flush();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.mastfrog.annotation.processor;
+
+import com.mastfrog.java.vogon.ClassBuilder;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.ElementKind;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SharedDataTest {
+
+    @Test
+    public void testRoundScopedDataIsDiscardedWhenTheRoundEnds() throws Exception {
+        String anno = "@" + Shared.class.getCanonicalName();
+        Compilation comp = Compilation.create()
+                .source("s.A", "package s;\n" + anno + "\nclass A {}\n")
+                .source("s.B", "package s;\n" + anno + "\nclass B {}\n");
+        try {
+            SharingProcessor proc = new SharingProcessor();
+            assertTrue(comp.compile(proc), comp.messages(Diagnostic.Kind.ERROR));
+            Map<String, Set<String>> round = proc.delegate.roundData;
+            Map<String, Set<String>> all = proc.delegate.allData;
+            assertEquals(new TreeSet<>(Arrays.asList("A", "AGen", "B", "BGen")), round.keySet(),
+                    "Generated types should be processed in a second round");
+
+            // Within the first round, both kinds of data are shared
+            String second = round.get("A").isEmpty() ? "B" : "A";
+            String first = second.equals("A") ? "B" : "A";
+            assertEquals(new TreeSet<>(Arrays.asList(first)), round.get(second));
+            assertEquals(new TreeSet<>(Arrays.asList(first)), all.get(second));
+
+            // In the second, only the data shared under a plain key survives
+            for (String gen : new String[]{"AGen", "BGen"}) {
+                assertTrue(!round.get(gen).contains("A") && !round.get(gen).contains("B"),
+                        gen + " saw data from the previous round: " + round.get(gen));
+                assertTrue(all.get(gen).containsAll(Arrays.asList("A", "B")),
+                        gen + " lost data from the previous round: " + all.get(gen));
+            }
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.TYPE)
+    public @interface Shared {
+    }
+
+    static final class SharingProcessor extends AbstractDelegatingProcessor {
+
+        final SharingDelegate delegate = new SharingDelegate();
+
+        @Override
+        protected void installDelegates(Delegates delegates) {
+            delegates.apply(delegate).to(ElementKind.CLASS)
+                    .whenAnnotationTypes(Shared.class.getCanonicalName());
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+    }
+
+    /**
+     * Records what has been shared when each type is processed, then shares
+     * its name, and generates an annotated type for a second round.
+     */
+    static final class SharingDelegate extends Delegate {
+
+        private static final Key<String> ROUND = roundKey(String.class, "round");
+        private static final Key<String> ALL = key(String.class, "all");
+        final Map<String, Set<String>> roundData = new TreeMap<>();
+        final Map<String, Set<String>> allData = new TreeMap<>();
+
+        @Override
+        protected boolean processTypeAnnotation(TypeElement type, AnnotationMirror mirror,
+                RoundEnvironment roundEnv) throws Exception {
+            String name = type.getSimpleName().toString();
+            roundData.put(name, new TreeSet<>(getAll(ROUND)));
+            allData.put(name, new TreeSet<>(getAll(ALL)));
+            share(ROUND, name);
+            share(ALL, name);
+            if (!name.endsWith("Gen")) {
+                ClassBuilder<String> cb = ClassBuilder.forPackage("s").named(name + "Gen")
+                        .withModifier(PUBLIC)
+                        .annotatedWith(Shared.class.getCanonicalName()).closeAnnotation();
+                writeOne(cb, type);
+            }
+            return true;
+        }
+    }
+}
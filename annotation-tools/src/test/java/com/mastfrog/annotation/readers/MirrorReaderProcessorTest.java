@@ -0,0 +1,142 @@
+package com.mastfrog.annotation.readers;
+
+import com.mastfrog.annotation.processor.Compilation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class MirrorReaderProcessorTest {
+
+    private static final String SAMPLE = "package r;\n"
+            + "import java.lang.annotation.*;\n"
+            + "@Retention(RetentionPolicy.CLASS)\n"
+            + "public @interface Sample {\n"
+            + "    String name() default \"x\";\n"
+            + "    int count() default 3;\n"
+            + "    Class<?> type() default Object.class;\n"
+            + "    ElementType kind() default ElementType.TYPE;\n"
+            + "    String[] tags() default {\"a\", \"b\"};\n"
+            + "    ElementType[] kinds() default {ElementType.FIELD};\n"
+            + "    Retention retention() default @Retention(RetentionPolicy.SOURCE);\n"
+            // Named like the reader's methods
+            + "    String[] list() default {};\n"
+            + "    int read() default 7;\n"
+            + "    ElementType[] enumNames() default {};\n"
+            + "}\n";
+
+    @Test
+    public void testGeneratedReaderReadsValuesAndDefaults() throws Exception {
+        Compilation comp = Compilation.create().classpathOf(GenerateMirrorReaders.class)
+                .source("r.Sample", SAMPLE)
+                .source("r.Holder", "package r;\n@" + GenerateMirrorReaders.class.getName()
+                        + "(Sample.class)\nclass Holder {}\n")
+                .source("r.Used", "package r;\n@Sample(name = \"hello\", list = {\"q\", \"r\"}, "
+                        + "enumNames = java.lang.annotation.ElementType.METHOD)\nclass Used {}\n");
+        try {
+            assertTrue(comp.compile(new MirrorReaderProcessor()), comp.messages(Diagnostic.Kind.ERROR));
+            ReadingProcessor reading = new ReadingProcessor(comp);
+            assertTrue(comp.compile(reading), comp.messages(Diagnostic.Kind.ERROR));
+            Map<String, Object> values = reading.values;
+            assertNotNull(values.get("mirror"), values::toString);
+            assertEquals("hello", values.get("name"));
+            assertEquals(3, values.get("count"));
+            assertEquals("java.lang.Object", values.get("type").toString());
+            assertEquals("TYPE", values.get("kind"));
+            assertEquals(Arrays.asList("a", "b"), values.get("tags"));
+            assertEquals(Arrays.asList("FIELD"), values.get("kinds"));
+            assertTrue(values.get("retention").toString().contains("SOURCE"), values::toString);
+            assertEquals(Arrays.asList("q", "r"), values.get("list"));
+            assertEquals(7, values.get("read"));
+            assertEquals(Arrays.asList("METHOD"), values.get("enumNames"));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testClashingMemberIsReportedNotThrown() throws Exception {
+        Compilation comp = Compilation.create().classpathOf(GenerateMirrorReaders.class)
+                .source("r.Clash", "package r;\npublic @interface Clash {\n"
+                        + "    String mirror() default \"\";\n}\n")
+                .source("r.Holder", "package r;\n@" + GenerateMirrorReaders.class.getName()
+                        + "(Clash.class)\nclass Holder {}\n");
+        try {
+            assertFalse(comp.compile(new MirrorReaderProcessor()));
+            String errors = comp.messages(Diagnostic.Kind.ERROR);
+            assertTrue(errors.contains("mirror() would clash"), errors);
+        } finally {
+            comp.delete();
+        }
+    }
+
+    /**
+     * Reads each r.Sample annotation with the reader generated by an earlier
+     * compilation, calling every public accessor.
+     */
+    static final class ReadingProcessor extends AbstractProcessor {
+
+        private final Compilation comp;
+        final Map<String, Object> values = new LinkedHashMap<>();
+
+        ReadingProcessor(Compilation comp) {
+            this.comp = comp;
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton("r.Sample");
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            try (URLClassLoader ldr = new URLClassLoader(new URL[]{comp.classes().toUri().toURL()},
+                    getClass().getClassLoader())) {
+                Class<?> readerType = ldr.loadClass("r.SampleReader");
+                for (TypeElement anno : annotations) {
+                    for (Element el : roundEnv.getElementsAnnotatedWith(anno)) {
+                        for (AnnotationMirror mirror : el.getAnnotationMirrors()) {
+                            Object reader = readerType.getMethod("read", AnnotationMirror.class,
+                                    Elements.class).invoke(null, mirror, processingEnv.getElementUtils());
+                            for (Method m : readerType.getDeclaredMethods()) {
+                                if (m.getParameterCount() == 0 && Modifier.isPublic(m.getModifiers())) {
+                                    values.put(m.getName(), m.invoke(reader));
+                                }
+                            }
+                        }
+                    }
+                }
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.mastfrog.annotation.registries;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import com.mastfrog.annotation.processor.Compilation;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ClassIndexFactoryTest {
+
+    @Test
+    public void testEmptyRegistry() throws Exception {
+        Compilation comp = Compilation.create()
+                .source("r.Empty", new ClassIndexFactory.ClassIndex("r.Empty").toClass().build());
+        try {
+            assertTrue(comp.compile(), comp.messages(Diagnostic.Kind.ERROR));
+            Class<?> type = load(comp, "r.Empty");
+            assertEquals(0, call(type, "size"));
+            assertEquals(Collections.emptyList(), call(type, "values"));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testUnkeyedRegistryLargerThanOneChunk() throws Exception {
+        Compilation comp = sources("@Reg(registry = \"r.Big\", value = \"v\", count = 2500) class A {}");
+        try {
+            assertTrue(comp.compile(new RegProcessor()), comp.messages(Diagnostic.Kind.ERROR));
+            assertNoLastRoundWarning(comp);
+            String source = comp.generatedSourceText("r.Big");
+            assertTrue(source.contains("entries2(VALUES)"), source);
+            assertFalse(source.contains("entries3("), source);
+            Class<?> type = load(comp, "r.Big");
+            assertEquals(2500, call(type, "size"));
+            assertEquals("v0", call(type, "value", 0));
+            assertEquals("v1000", call(type, "value", 1000));
+            assertEquals("v2499", call(type, "value", 2499));
+            List<?> values = (List<?>) call(type, "values");
+            assertEquals(2500, values.size());
+            assertEquals("v1999", values.get(1999));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testKeyedRegistry() throws Exception {
+        Compilation comp = sources(
+                "@Reg(registry = \"r.Keyed\", key = \"b\", value = \"x\") class X {}",
+                "@Reg(registry = \"r.Keyed\", key = \"a\", value = \"y\", count = 3) class Y {}",
+                "@Reg(registry = \"r.Keyed\", key = \"c\", value = \"z\") class Z {}");
+        try {
+            assertTrue(comp.compile(new RegProcessor()), comp.messages(Diagnostic.Kind.ERROR));
+            assertNoLastRoundWarning(comp);
+            Class<?> type = load(comp, "r.Keyed");
+            assertEquals(5, call(type, "size"));
+            assertEquals("a", call(type, "key", 0));
+            assertEquals("c", call(type, "key", 4));
+            assertEquals(Arrays.asList("y0", "y1", "y2"), call(type, "values", "a"));
+            assertEquals(Arrays.asList("x"), call(type, "values", "b"));
+            assertEquals(Arrays.asList("z"), call(type, "values", "c"));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testLookupOfMissingKey() throws Exception {
+        Compilation comp = sources(
+                "@Reg(registry = \"r.Keyed\", key = \"b\", value = \"x\") class X {}",
+                "@Reg(registry = \"r.Keyed\", key = \"d\", value = \"y\") class Y {}");
+        try {
+            assertTrue(comp.compile(new RegProcessor()), comp.messages(Diagnostic.Kind.ERROR));
+            Class<?> type = load(comp, "r.Keyed");
+            // Before the first key, between two, and after the last
+            for (String missing : new String[]{"a", "c", "e"}) {
+                assertEquals(Collections.emptyList(), call(type, "values", missing), missing);
+            }
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testEntriesAddedAfterGenerationAreReported() throws Exception {
+        Compilation comp = sources("@Reg(registry = \"r.Keyed\", key = \"a\", value = \"x\") class X {}");
+        try {
+            // First, since RegProcessor claims the annotation
+            assertFalse(comp.compile(new LateTypeProcessor(), new RegProcessor()));
+            String errors = comp.messages(Diagnostic.Kind.ERROR);
+            assertTrue(errors.contains("Registry class r.Keyed was generated in an earlier round"),
+                    errors);
+        } finally {
+            comp.delete();
+        }
+    }
+
+    private static void assertNoLastRoundWarning(Compilation comp) {
+        String warnings = comp.messages(Diagnostic.Kind.WARNING);
+        assertFalse(warnings.contains("last round"), warnings);
+    }
+
+    private static Compilation sources(String... types) throws IOException {
+        Compilation result = Compilation.create();
+        for (String type : types) {
+            String name = type.substring(type.indexOf("class ") + 6, type.indexOf(" {"));
+            result.source("r." + name, "package r;\nimport "
+                    + Reg.class.getCanonicalName() + ";\n" + type + "\n");
+        }
+        return result;
+    }
+
+    private static Class<?> load(Compilation comp, String name) throws Exception {
+        return new URLClassLoader(new URL[]{comp.classes().toUri().toURL()},
+                ClassIndexFactoryTest.class.getClassLoader()).loadClass(name);
+    }
+
+    private static Object call(Class<?> type, String method, Object... args) throws Exception {
+        Class<?>[] params = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            params[i] = args[i] instanceof Integer ? int.class : args[i].getClass();
+        }
+        return type.getMethod(method, params).invoke(null, args);
+    }
+
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.TYPE)
+    public @interface Reg {
+
+        String registry();
+
+        String key() default "";
+
+        String value();
+
+        int count() default 1;
+    }
+
+    /**
+     * Adds <code>count</code> entries for each type annotated with Reg,
+     * numbered if there is more than one.
+     */
+    static final class RegProcessor extends AbstractClassRegistrationAnnotationProcessor {
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton(Reg.class.getCanonicalName());
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        protected void handleOne(Element e, AnnotationMirror anno, int order, AnnotationUtils utils) {
+            String registry = utils.annotationValue(anno, "registry", String.class);
+            String key = utils.annotationValue(anno, "key", String.class, "");
+            String value = utils.annotationValue(anno, "value", String.class);
+            int count = utils.annotationValue(anno, "count", Integer.class, 1);
+            for (int i = 0; i < count; i++) {
+                String v = count == 1 ? value : value + i;
+                if (key.isEmpty()) {
+                    addEntry(registry, v, e);
+                } else {
+                    addEntry(registry, key, v, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates another type registered in r.Keyed in the first round, so
+     * it is only seen in the second.
+     */
+    static final class LateTypeProcessor extends AbstractProcessor {
+
+        private boolean done;
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton(Reg.class.getCanonicalName());
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (!done) {
+                done = true;
+                try (Writer w = processingEnv.getFiler().createSourceFile("r.Late").openWriter()) {
+                    w.write("package r;\n@" + Reg.class.getCanonicalName()
+                            + "(registry = \"r.Keyed\", key = \"b\", value = \"late\")\nclass Late {}\n");
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            return false;
+        }
+    }
+}
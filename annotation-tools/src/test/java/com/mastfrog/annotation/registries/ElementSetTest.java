@@ -0,0 +1,123 @@
+package com.mastfrog.annotation.registries;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import javax.lang.model.element.Element;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ElementSetTest {
+
+    @Test
+    public void testSmallSetKeepsOrderAndIgnoresDuplicates() {
+        List<Element> els = elements(5);
+        ElementSet set = new ElementSet(els.get(0), els.get(1), els.get(0));
+        assertEquals(2, set.size());
+        assertTrue(set.add(els.get(2)));
+        assertFalse(set.add(els.get(1)));
+        assertFalse(set.add(null));
+        assertTrue(set.contains(els.get(2)));
+        assertFalse(set.contains(els.get(3)));
+        assertArrayEquals(new Element[]{els.get(0), els.get(1), els.get(2)}, set.toArray());
+    }
+
+    @Test
+    public void testLargeSetKeepsOrderAndIgnoresDuplicates() {
+        // Past the linear search limit, and through several rehashes
+        List<Element> els = elements(1000);
+        ElementSet set = new ElementSet();
+        for (Element el : els) {
+            assertTrue(set.add(el));
+        }
+        for (Element el : els) {
+            assertFalse(set.add(el));
+            assertTrue(set.contains(el));
+        }
+        assertEquals(els.size(), set.size());
+        assertArrayEquals(els.toArray(new Element[0]), set.toArray());
+        assertFalse(set.contains(elements(1).get(0)));
+        for (int i = 0; i < els.size(); i++) {
+            assertSame(els.get(i), set.get(i));
+        }
+    }
+
+    @Test
+    public void testElementsAreComparedByIdentity() {
+        // Proxies for which every element equals every other
+        Element a = element(true);
+        Element b = element(true);
+        ElementSet set = new ElementSet(a, b);
+        assertEquals(2, set.size());
+        for (Element el : elements(20)) {
+            set.add(el);
+        }
+        assertTrue(set.contains(a) && set.contains(b));
+        assertEquals(22, set.size());
+    }
+
+    @Test
+    public void testAddAllMergesAnotherSet() {
+        List<Element> els = elements(30);
+        ElementSet first = new ElementSet(els.subList(0, 20).toArray(new Element[0]));
+        ElementSet second = new ElementSet(els.subList(10, 30).toArray(new Element[0]));
+        first.addAll(second);
+        assertArrayEquals(els.toArray(new Element[0]), first.toArray());
+        assertEquals(20, second.size());
+    }
+
+    @Test
+    public void testArrayIsCachedUntilModified() {
+        List<Element> els = elements(3);
+        ElementSet set = new ElementSet(els.get(0), els.get(1));
+        Element[] arr = set.toArray();
+        assertSame(arr, set.toArray());
+        set.add(els.get(0));
+        assertSame(arr, set.toArray(), "A duplicate should not invalidate the array");
+        set.add(els.get(2));
+        assertNotSame(arr, set.toArray());
+        assertEquals(3, set.toArray().length);
+        assertEquals(0, new ElementSet().toArray().length);
+    }
+
+    @Test
+    public void testGetChecksBounds() {
+        ElementSet set = new ElementSet(elements(2).toArray(new Element[0]));
+        assertThrows(IndexOutOfBoundsException.class, () -> set.get(2));
+        assertThrows(IndexOutOfBoundsException.class, () -> set.get(-1));
+    }
+
+    private static List<Element> elements(int count) {
+        List<Element> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(element(false));
+        }
+        return result;
+    }
+
+    private static Element element(boolean equalsEverything) {
+        return (Element) Proxy.newProxyInstance(ElementSetTest.class.getClassLoader(),
+                new Class<?>[]{Element.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return equalsEverything || proxy == args[0];
+                        case "hashCode":
+                            return equalsEverything ? 1 : System.identityHashCode(proxy);
+                        case "toString":
+                            return "element@" + System.identityHashCode(proxy);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
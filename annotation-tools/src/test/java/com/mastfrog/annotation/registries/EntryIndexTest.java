@@ -0,0 +1,97 @@
+package com.mastfrog.annotation.registries;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import javax.lang.model.element.Element;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class EntryIndexTest {
+
+    @Test
+    public void testDuplicatesAreMergedIntoTheFirstEntry() {
+        Element a = element("a");
+        Element b = element("b");
+        Element c = element("c");
+        IndexFactory.EntryIndex<Line> index = new IndexFactory.EntryIndex<Line>() {
+        };
+        assertEquals(1, index.add(new Line(0, new Element[]{a}, "x")));
+        assertEquals(2, index.add(new Line(1, new Element[]{b}, "y")));
+        // Equal to the first, so its element is added to it and it is
+        // otherwise discarded, along with its later position
+        assertEquals(2, index.add(new Line(2, new Element[]{c, a}, "x")));
+        assertEquals(2, index.size());
+        assertEquals(Arrays.asList("x", "y"), lines(index));
+        Line x = index.iterator().next();
+        assertArrayEquals(new Element[]{a, c}, x.elements());
+        assertArrayEquals(new Element[]{a, c, b}, index.elements());
+    }
+
+    @Test
+    public void testEntriesAddedAfterReadingAreSorted() {
+        IndexFactory.EntryIndex<Line> index = new IndexFactory.EntryIndex<Line>() {
+        };
+        Element a = element("a");
+        Element b = element("b");
+        index.add(new Line(5, new Element[]{a}, "e"));
+        index.add(new Line(2, new Element[]{b}, "b"));
+        assertEquals(Arrays.asList("b", "e"), lines(index));
+        assertArrayEquals(new Element[]{b, a}, index.elements());
+
+        Element c = element("c");
+        index.add(new Line(0, new Element[]{c}, "a"));
+        index.add(new Line(9, new Element[]{c}, "z"));
+        assertEquals(Arrays.asList("a", "b", "e", "z"), lines(index));
+        assertArrayEquals(new Element[]{c, b, a}, index.elements());
+
+        // A duplicate changes the elements but not the order
+        Element d = element("d");
+        index.add(new Line(1, new Element[]{d}, "e"));
+        assertEquals(Arrays.asList("a", "b", "e", "z"), lines(index));
+        assertArrayEquals(new Element[]{c, b, a, d}, index.elements());
+    }
+
+    @Test
+    public void testSortedViewCannotBeModified() {
+        IndexFactory.EntryIndex<Line> index = new IndexFactory.EntryIndex<Line>() {
+        };
+        index.add(new Line(0, new Element[0], "a"));
+        Iterator<Line> it = index.iterator();
+        it.next();
+        assertThrows(UnsupportedOperationException.class, it::remove);
+        assertEquals(1, index.size());
+    }
+
+    private static List<String> lines(Iterable<Line> index) {
+        List<String> result = new ArrayList<>();
+        for (Line line : index) {
+            result.add(line.toString().trim());
+        }
+        return result;
+    }
+
+    private static Element element(String name) {
+        return (Element) Proxy.newProxyInstance(EntryIndexTest.class.getClassLoader(),
+                new Class<?>[]{Element.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return name;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
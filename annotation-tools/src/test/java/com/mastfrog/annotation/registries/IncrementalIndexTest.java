@@ -0,0 +1,269 @@
+package com.mastfrog.annotation.registries;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import com.mastfrog.annotation.index.BinaryIndex;
+import com.mastfrog.annotation.processor.Compilation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class IncrementalIndexTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"plain", "commented", "gzip"})
+    public void testEntriesOfTypesNotRecompiledSurvive(String encoding) throws Exception {
+        IndexEncoder encoder = encoder(encoding);
+        Compilation comp = sources("A", "one", "B", "one", "C", "two");
+        try {
+            assertTrue(comp.compile(new IndexProcessor(encoder)), comp.messages(Diagnostic.Kind.ERROR));
+            assertEquals(Arrays.asList("i.A", "i.B"), index(comp, "one", encoder));
+            assertEquals(Arrays.asList("i.C"), index(comp, "two", encoder));
+
+            comp.source("i.B", type("B", "one") + "\n// edited\n");
+            assertTrue(comp.compile(Arrays.asList("i.B"), new IndexProcessor(encoder)),
+                    comp.messages(Diagnostic.Kind.ERROR));
+            assertEquals(Arrays.asList("i.A", "i.B"), index(comp, "one", encoder));
+            assertEquals(Arrays.asList("i.C"), index(comp, "two", encoder));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testIndexLosingItsLastEntryIsEmptied() throws Exception {
+        IndexEncoder encoder = IndexEncoder.commented();
+        Compilation comp = sources("A", "one", "B", "two");
+        try {
+            assertTrue(comp.compile(new IndexProcessor(encoder)), comp.messages(Diagnostic.Kind.ERROR));
+            assertEquals(Arrays.asList("i.B"), index(comp, "two", encoder));
+
+            // javac only runs the processor if something compiled has its
+            // annotation, so recompile A too
+            comp.source("i.B", "package i;\nclass B {}\n");
+            assertTrue(comp.compile(Arrays.asList("i.A", "i.B"), new IndexProcessor(encoder)),
+                    comp.messages(Diagnostic.Kind.ERROR));
+            assertEquals(Collections.emptyList(), index(comp, "two", encoder));
+            assertEquals(Arrays.asList("i.A"), index(comp, "one", encoder));
+
+            // And B does not come back from the class file the first build
+            // left behind
+            comp.source("i.A", type("A", "one") + "\n// edited\n");
+            assertTrue(comp.compile(Arrays.asList("i.A"), new IndexProcessor(encoder)),
+                    comp.messages(Diagnostic.Kind.ERROR));
+            assertEquals(Collections.emptyList(), index(comp, "two", encoder));
+            assertEquals(Arrays.asList("i.A"), index(comp, "one", encoder));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testEntriesOfDeletedSourcesAreDropped() throws Exception {
+        IndexEncoder encoder = IndexEncoder.commented();
+        Compilation comp = sources("A", "one", "C", "one");
+        try {
+            assertTrue(comp.compile(new IndexProcessor(encoder)), comp.messages(Diagnostic.Kind.ERROR));
+            assertEquals(Arrays.asList("i.A", "i.C"), index(comp, "one", encoder));
+
+            comp.removeSource("i.C");
+            comp.source("i.A", type("A", "one") + "\n// edited\n");
+            assertTrue(comp.compile(Arrays.asList("i.A"), new IndexProcessor(encoder)),
+                    comp.messages(Diagnostic.Kind.ERROR));
+            assertTrue(Files.exists(comp.classes().resolve("i/C.class")),
+                    "Test should leave the deleted type's class file behind");
+            assertEquals(Arrays.asList("i.A"), index(comp, "one", encoder));
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testBinaryEntriesOfDeletedSourcesAreDropped() throws Exception {
+        Compilation comp = sources("A", "one", "B", "one", "C", "two");
+        try {
+            assertTrue(comp.compile(new BinaryIndexProcessor()), comp.messages(Diagnostic.Kind.ERROR));
+            BinaryIndex index = binaryIndex(comp);
+            assertTrue(index.hasOrigins());
+            assertEquals(Arrays.asList("i.A", "i.B"), sorted(index.values("one")));
+            assertEquals(Arrays.asList("i.C"), index.values("two"));
+
+            comp.removeSource("i.C");
+            comp.source("i.A", type("A", "one") + "\n// edited\n");
+            assertTrue(comp.compile(Arrays.asList("i.A"), new BinaryIndexProcessor()),
+                    comp.messages(Diagnostic.Kind.ERROR));
+            assertTrue(Files.exists(comp.classes().resolve("i/C.class")),
+                    "Test should leave the deleted type's class file behind");
+            index = binaryIndex(comp);
+            // B was not recompiled but its source still exists, so it survives
+            assertEquals(Arrays.asList("i.A", "i.B"), sorted(index.values("one")));
+            assertEquals(Collections.emptyList(), index.values("two"));
+            assertEquals(2, index.size());
+        } finally {
+            comp.delete();
+        }
+    }
+
+    private static BinaryIndex binaryIndex(Compilation comp) throws IOException {
+        try (InputStream in = Files.newInputStream(comp.classes().resolve(BinaryIndexProcessor.PATH))) {
+            return BinaryIndex.read(in);
+        }
+    }
+
+    private static List<String> sorted(List<String> values) {
+        List<String> result = new ArrayList<>(values);
+        Collections.sort(result);
+        return result;
+    }
+
+    private static IndexEncoder encoder(String name) {
+        switch (name) {
+            case "plain":
+                return IndexEncoder.plain();
+            case "commented":
+                return IndexEncoder.commented();
+            case "gzip":
+                return IndexEncoder.gzip(IndexEncoder.plain());
+            default:
+                throw new AssertionError(name);
+        }
+    }
+
+    private static Compilation sources(String... namesAndIndexes) throws IOException {
+        Compilation result = Compilation.create().withSourcePath()
+                .option("-A" + AnnotationUtils.AU_INCREMENTAL_INDEXES);
+        for (int i = 0; i < namesAndIndexes.length; i += 2) {
+            result.source("i." + namesAndIndexes[i], type(namesAndIndexes[i], namesAndIndexes[i + 1]));
+        }
+        return result;
+    }
+
+    private static String type(String name, String index) {
+        return "package i;\n@" + Indexed.class.getCanonicalName() + "(\"" + index
+                + "\")\nclass " + name + " {}\n";
+    }
+
+    private static Path indexFile(Compilation comp, String index) {
+        return comp.classes().resolve(IndexProcessor.PREFIX + index);
+    }
+
+    /**
+     * Read the entries of an index, sorted, skipping comments.
+     */
+    private static List<String> index(Compilation comp, String index, IndexEncoder encoder) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (InputStream in = encoder.decode(Files.newInputStream(indexFile(comp, index)))) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    result.add(line);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.TYPE)
+    public @interface Indexed {
+
+        String value();
+    }
+
+    /**
+     * Lists each type annotated with Indexed in one binary index, keyed by
+     * the name its annotation gives.
+     */
+    static final class BinaryIndexProcessor extends IndexGeneratingProcessor<BinaryEntry> {
+
+        static final String PATH = "META-INF/indexed.bin";
+        private int count;
+
+        BinaryIndexProcessor() {
+            super(AnnotationIndexFactory.binary());
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton(Indexed.class.getCanonicalName());
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        protected boolean handleProcess(Set<? extends TypeElement> annotations,
+                RoundEnvironment roundEnv, AnnotationUtils utils) {
+            for (Element el : roundEnv.getElementsAnnotatedWith(Indexed.class)) {
+                TypeElement type = (TypeElement) el;
+                addIndexElement(PATH, new BinaryEntry(count++, type.getAnnotation(Indexed.class).value(),
+                        type.getQualifiedName().toString(), type), type);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Lists each type annotated with Indexed in the index its annotation
+     * names.
+     */
+    static final class IndexProcessor extends IndexGeneratingProcessor<Line> {
+
+        static final String PREFIX = "META-INF/indexed/";
+        private int count;
+
+        IndexProcessor(IndexEncoder encoder) {
+            super(AnnotationIndexFactory.lines().setEncoder(encoder));
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton(Indexed.class.getCanonicalName());
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        protected boolean handleProcess(Set<? extends TypeElement> annotations,
+                RoundEnvironment roundEnv, AnnotationUtils utils) {
+            for (Element el : roundEnv.getElementsAnnotatedWith(Indexed.class)) {
+                TypeElement type = (TypeElement) el;
+                addIndexElement(PREFIX + type.getAnnotation(Indexed.class).value(),
+                        new Line(count++, new Element[]{type}, type.getQualifiedName().toString()), type);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.mastfrog.annotation.registries;
+
+import com.mastfrog.annotation.AnnotationUtils;
+import com.mastfrog.annotation.processor.Compilation;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class LegalOnTest {
+
+    private static final String[] LEGAL_ON = {"java.lang.Runnable", "r.Api"};
+
+    @Test
+    public void testLegalOnTypesAreResolvedAgainInEachRound() throws Exception {
+        Compilation comp = Compilation.create()
+                .source("r.Early", "package r;\n@" + Handler.class.getCanonicalName()
+                        + "\nclass Early implements Runnable {\n    public void run() {}\n}\n");
+        try {
+            // r.Api does not exist in the first round, so only Runnable is
+            // legal then; r.Late, generated in the first round, implements it
+            ApiProcessor api = new ApiProcessor();
+            HandlerProcessor handlers = new HandlerProcessor();
+            assertTrue(comp.compile(api, handlers), comp.messages(Diagnostic.Kind.ERROR));
+            assertEquals(Arrays.asList("r.Early", "r.Late"), handlers.handled);
+            List<String> lines = new ArrayList<>(Files.readAllLines(
+                    comp.classes().resolve(HandlerProcessor.PATH), UTF_8));
+            lines.removeIf(line -> line.isEmpty() || line.startsWith("#"));
+            Collections.sort(lines);
+            assertEquals(Arrays.asList("r.Early", "r.Late"), lines);
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Test
+    public void testIllegalTypeIsReported() throws Exception {
+        Compilation comp = Compilation.create()
+                .source("r.Api", "package r;\npublic interface Api {}\n")
+                .source("r.Good", "package r;\n@" + Handler.class.getCanonicalName()
+                        + "\nclass Good implements Api {}\n")
+                .source("r.Bad", "package r;\n@" + Handler.class.getCanonicalName()
+                        + "\nclass Bad {}\n");
+        try {
+            HandlerProcessor handlers = new HandlerProcessor();
+            assertFalse(comp.compile(handlers));
+            assertEquals(Arrays.asList("r.Good"), handlers.handled);
+            String expected = "Not a subclass of " + AnnotationUtils.join('/',
+                    new HashSet<>(Arrays.asList(LEGAL_ON)).toArray(new String[0])) + ": r.Bad";
+            List<String> errors = new ArrayList<>();
+            for (Diagnostic<?> d : comp.diagnostics()) {
+                if (d.getKind() == Diagnostic.Kind.ERROR) {
+                    errors.add(d.getMessage(null));
+                }
+            }
+            assertEquals(Arrays.asList(expected), errors);
+        } finally {
+            comp.delete();
+        }
+    }
+
+    @Retention(RetentionPolicy.CLASS)
+    @Target(ElementType.TYPE)
+    public @interface Handler {
+    }
+
+    /**
+     * Lists each type annotated with Handler which is a Runnable or an
+     * r.Api.
+     */
+    static final class HandlerProcessor extends AbstractLineOrientedRegistrationAnnotationProcessor {
+
+        static final String PATH = "META-INF/handlers";
+        final List<String> handled = new ArrayList<>();
+
+        HandlerProcessor() {
+            super(LEGAL_ON);
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton(Handler.class.getCanonicalName());
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        protected void handleOne(Element e, AnnotationMirror anno, int order, AnnotationUtils utils) {
+            String name = ((TypeElement) e).getQualifiedName().toString();
+            handled.add(name);
+            addLine(PATH, name, e);
+        }
+    }
+
+    /**
+     * Generates r.Api, and a handler implementing it, in the first round.
+     */
+    static final class ApiProcessor extends AbstractProcessor {
+
+        private boolean done;
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton(Handler.class.getCanonicalName());
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (!done) {
+                done = true;
+                try {
+                    try (Writer w = processingEnv.getFiler().createSourceFile("r.Api").openWriter()) {
+                        w.write("package r;\npublic interface Api {}\n");
+                    }
+                    try (Writer w = processingEnv.getFiler().createSourceFile("r.Late").openWriter()) {
+                        w.write("package r;\n@" + Handler.class.getCanonicalName()
+                                + "\nclass Late implements Api {}\n");
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.mastfrog.annotation.registries;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Arrays;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TextIndexWriterTest {
+
+    @Test
+    public void testEncodesLikeStringGetBytes() throws IOException {
+        String[] lines = {
+            "com.foo.Plain",
+            "caf\u00e9 \u00fcber",
+            "\u20ac \u4e2d\u6587 \uffff",
+            "smile \ud83d\ude00 and \ud834\udd1e",
+            "unpaired \ud83d high",
+            "unpaired \ude00 low",
+            "trailing high \ud83d",
+            ""
+        };
+        assertWritten(lines);
+    }
+
+    @Test
+    public void testCommentsArePrefixed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TextIndexWriter().open(out).comment("com.foo.Bar").line("x\u00e9").finish();
+        assertEquals("# com.foo.Bar\nx\u00e9\n", new String(out.toByteArray(), UTF_8));
+    }
+
+    @Test
+    public void testCharactersSpanningBufferBoundaries() throws IOException {
+        // Every offset of a multi-byte character relative to the end of the
+        // 64K buffer, including the newline landing exactly on it
+        for (int pad = 65530; pad <= 65537; pad++) {
+            char[] filler = new char[pad];
+            Arrays.fill(filler, 'a');
+            String prefix = new String(filler);
+            assertWritten(prefix + "\ud83d\ude00\u20ac\u00e9", prefix, "\u00e9" + prefix + "\ud83d");
+        }
+    }
+
+    @Test
+    public void testWriterIsReusable() throws IOException {
+        TextIndexWriter writer = new TextIndexWriter();
+        for (String text : new String[]{"first \u00e9", "second \ud83d\ude00"}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writer.open(out).line(text).finish();
+            assertArrayEquals((text + "\n").getBytes(UTF_8), out.toByteArray());
+        }
+    }
+
+    private static void assertWritten(String... lines) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TextIndexWriter writer = new TextIndexWriter().open(out);
+        StringBuilder expected = new StringBuilder();
+        for (String line : lines) {
+            writer.line(line);
+            expected.append(line).append('\n');
+        }
+        writer.finish();
+        assertArrayEquals(expected.toString().getBytes(UTF_8), out.toByteArray());
+    }
+}
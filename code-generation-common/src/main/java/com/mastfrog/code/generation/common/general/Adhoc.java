@@ -24,6 +24,7 @@
 package com.mastfrog.code.generation.common.general;
 
 import com.mastfrog.code.generation.common.LinesBuilder;
+import com.mastfrog.code.generation.common.util.Interner;
 import com.mastfrog.code.generation.common.util.Utils;
 import java.util.Objects;
 
@@ -35,6 +36,12 @@ import java.util.Objects;
  */
 public final class Adhoc extends CodeGeneratorBase {
 
+    private static final Interner<Adhoc> TOKENS = new Interner<>(4096, 64,
+            Adhoc::new, Adhoc::toString,
+            new Adhoc("null"), new Adhoc("true"), new Adhoc("false"),
+            new Adhoc("this"), new Adhoc("super"), new Adhoc("new"),
+            new Adhoc("return"), new Adhoc("throw"), new Adhoc("="),
+            new Adhoc("=="), new Adhoc("!="), new Adhoc("0"), new Adhoc("1"));
     private final String what;
     private boolean hangingWrap;
 
@@ -46,6 +53,19 @@ public final class Adhoc extends CodeGeneratorBase {
         this.what = Utils.notNull("what", what);
     }
 
+    /**
+     * Get a possibly shared instance for the passed string; since instances
+     * are immutable, this is preferable to the constructor for tokens which
+     * are likely to recur many times in a source file, such as keywords,
+     * names and operators.
+     *
+     * @param what The text
+     * @return An Adhoc
+     */
+    public static Adhoc of(String what) {
+        return TOKENS.intern(what);
+    }
+
     @Override
     public String toString() {
         return what;
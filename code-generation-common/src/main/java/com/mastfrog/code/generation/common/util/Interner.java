@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.code.generation.common.util;
+
+import static com.mastfrog.code.generation.common.util.Utils.notNull;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Bounded canonical table for immutable code generators which are fully
+ * described by a string, such as single tokens and type names, so that the
+ * hundreds of thousands of nodes in a large generated source share a few
+ * hundred instances rather than each holding its own.
+ * <p>
+ * The table is a fixed size, direct-mapped cache: a string hashes to exactly
+ * one slot, and a miss simply replaces whatever was there. So it never grows,
+ * needs no locking, and retains at most one entry per slot - at worst, two
+ * tokens which collide evict each other and get a few more allocations. Values
+ * passed as <i>pinned</i> are held in a separate, immutable map and are never
+ * evicted. Strings longer than the maximum token length are never cached, since
+ * those are usually one-off expressions.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+public final class Interner<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final Function<? super String, ? extends T> factory;
+    private final Function<? super T, String> keyOf;
+    private final Map<String, T> pinned;
+    private final int maxTokenLength;
+    private final int mask;
+
+    /**
+     * Create a new interner.
+     *
+     * @param size The number of slots, which is rounded up to a power of two
+     * @param maxTokenLength The longest string which will be interned
+     * @param factory Creates a new instance for a string
+     * @param keyOf Gets the string an instance was created for
+     * @param pinned Instances which should always be returned for their key
+     */
+    @SafeVarargs
+    public Interner(int size, int maxTokenLength,
+            Function<? super String, ? extends T> factory,
+            Function<? super T, String> keyOf, T... pinned) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be > 0 but was " + size);
+        }
+        int sz = Integer.highestOneBit(size);
+        if (sz < size) {
+            sz <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(sz);
+        this.mask = sz - 1;
+        this.maxTokenLength = maxTokenLength;
+        this.factory = notNull("factory", factory);
+        this.keyOf = notNull("keyOf", keyOf);
+        Map<String, T> pins = new HashMap<>(pinned.length * 2);
+        for (T p : pinned) {
+            pins.put(keyOf.apply(notNull("pinned", p)), p);
+        }
+        this.pinned = pins;
+    }
+
+    /**
+     * Get the canonical instance for a string, creating it if necessary.
+     *
+     * @param key A string
+     * @return An instance, which may be shared with other callers
+     */
+    public T intern(String key) {
+        notNull("key", key);
+        T result = pinned.get(key);
+        if (result != null) {
+            return result;
+        }
+        if (key.length() > maxTokenLength) {
+            return factory.apply(key);
+        }
+        int hash = key.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        T existing = slots.get(slot);
+        if (existing != null && key.equals(keyOf.apply(existing))) {
+            return existing;
+        }
+        result = factory.apply(key);
+        // Racing threads may each create an instance; either is fine, since
+        // instances are immutable and compare by value
+        slots.lazySet(slot, result);
+        return result;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.code.generation.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class InternerTest {
+
+    @Test
+    public void testEqualStringsGetTheSameInstance() {
+        AtomicInteger created = new AtomicInteger();
+        Interner<Token> interner = interner(64, 8, created);
+        Token a = interner.intern("abc");
+        assertEquals("abc", a.key);
+        assertSame(a, interner.intern(new String("abc")));
+        assertSame(a, interner.intern("ab" + "c".trim()));
+        assertEquals(1, created.get());
+        Token b = interner.intern("abd");
+        assertEquals("abd", b.key);
+        assertNotSame(a, b);
+        assertEquals(2, created.get());
+    }
+
+    @Test
+    public void testPinnedInstancesAreAlwaysReturned() {
+        AtomicInteger created = new AtomicInteger();
+        Token pinned = new Token("this");
+        Interner<Token> interner = new Interner<>(1, 8, key -> {
+            created.incrementAndGet();
+            return new Token(key);
+        }, Token::key, pinned);
+        assertSame(pinned, interner.intern("this"));
+        // Evicting whatever is in the only slot does not affect it
+        interner.intern("that");
+        assertSame(pinned, interner.intern(new String("this")));
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void testLongStringsAreNotCached() {
+        AtomicInteger created = new AtomicInteger();
+        Interner<Token> interner = interner(64, 4, created);
+        Token a = interner.intern("abcd");
+        assertSame(a, interner.intern("abcd"));
+        Token b = interner.intern("abcde");
+        Token c = interner.intern("abcde");
+        assertEquals("abcde", b.key);
+        assertEquals("abcde", c.key);
+        assertNotSame(b, c);
+        assertEquals(3, created.get());
+        // And did not evict the short one
+        assertSame(a, interner.intern("abcd"));
+    }
+
+    @Test
+    public void testCollidingKeysEvictEachOther() {
+        AtomicInteger created = new AtomicInteger();
+        // Rounded up to one slot, so every key collides
+        Interner<Token> interner = interner(1, 8, created);
+        Token a = interner.intern("a");
+        Token b = interner.intern("b");
+        assertEquals("b", b.key);
+        Token a2 = interner.intern("a");
+        assertEquals("a", a2.key);
+        assertNotSame(a, a2);
+        assertEquals(a, a2);
+        assertSame(a2, interner.intern("a"));
+        assertEquals(3, created.get());
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> interner(0, 8, new AtomicInteger()));
+        assertThrows(IllegalArgumentException.class, () -> interner(-1, 8, new AtomicInteger()));
+        Interner<Token> interner = interner(4, 8, new AtomicInteger());
+        assertThrows(IllegalArgumentException.class, () -> interner.intern(null));
+    }
+
+    @Test
+    public void testConcurrentInterningAlwaysReturnsTheRightKey() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        // Far fewer slots than keys, so threads constantly overwrite each
+        // other's slots
+        Interner<Token> interner = interner(16, 8, created);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            keys.add("k" + i);
+        }
+        int threads = 8;
+        int passes = 500;
+        ExecutorService svc = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t * 17;
+                results.add(svc.submit(() -> {
+                    start.await();
+                    int checked = 0;
+                    for (int pass = 0; pass < passes; pass++) {
+                        for (int i = 0; i < keys.size(); i++) {
+                            // A fresh string each time, so only equality
+                            // can find the slot's instance
+                            String key = new String(keys.get((i + offset) % keys.size()));
+                            Token tok = interner.intern(key);
+                            if (!key.equals(tok.key)) {
+                                throw new AssertionError("Asked for " + key + " got " + tok.key);
+                            }
+                            checked++;
+                        }
+                    }
+                    return checked;
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> f : results) {
+                assertEquals(passes * keys.size(), (int) f.get(1, TimeUnit.MINUTES));
+            }
+        } finally {
+            svc.shutdownNow();
+        }
+        // Once the threads are done, whatever each slot holds is stable
+        for (String key : keys) {
+            Token tok = interner.intern(key);
+            assertEquals(key, tok.key);
+            assertSame(tok, interner.intern(key));
+        }
+    }
+
+    private static Interner<Token> interner(int size, int maxLength, AtomicInteger created) {
+        return new Interner<>(size, maxLength, key -> {
+            created.incrementAndGet();
+            return new Token(key);
+        }, Token::key);
+    }
+
+    static final class Token {
+
+        final String key;
+
+        Token(String key) {
+            this.key = key;
+        }
+
+        String key() {
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Token && ((Token) o).key.equals(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.java.vogon;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Emits a Java Flight Recorder event for each call to
+ * <code>ClassBuilder.build()</code>, so code generation shows up on the
+ * timeline of a JFR recording of javac. The event class is only loaded if
+ * <code>jdk.jfr</code> is present, and nothing is allocated unless the event
+ * is enabled in a running recording. Compiling it requires JDK 11 or later,
+ * which the build enforces.
+ *
+ * @author Tim Boudreau
+ */
+final class BuildEvents {
+
+    private static final boolean JFR_PRESENT = jfrPresent();
+
+    private BuildEvents() {
+        throw new AssertionError();
+    }
+
+    private static boolean jfrPresent() {
+        try {
+            Class.forName("jdk.jfr.Event", false, BuildEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    static Object start() {
+        return JFR_PRESENT ? BuildEvent.start() : null;
+    }
+
+    static void finish(Object event, ClassBuilder<?> builder, Object result) {
+        if (event != null) {
+            BuildEvent.finish(event, builder, result);
+        }
+    }
+
+    @Name("com.mastfrog.java.vogon.ClassBuilderBuild")
+    @Label("ClassBuilder Build")
+    @Description("Rendering of a generated class to source")
+    @Category({"Mastfrog", "Code Generation"})
+    @StackTrace(false)
+    static final class BuildEvent extends Event {
+
+        @Label("Class")
+        String className;
+
+        @Label("Source Characters")
+        long sourceLength;
+
+        static Object start() {
+            BuildEvent event = new BuildEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.begin();
+            return event;
+        }
+
+        static void finish(Object event, ClassBuilder<?> builder, Object result) {
+            BuildEvent ev = (BuildEvent) event;
+            ev.end();
+            if (ev.shouldCommit()) {
+                ev.className = builder.fqn();
+                ev.sourceLength = result instanceof CharSequence
+                        ? ((CharSequence) result).length() : -1;
+                ev.commit();
+            }
+        }
+    }
+}
@@ -9,6 +9,7 @@ import com.mastfrog.code.generation.common.CodeGenerator;
 import com.mastfrog.code.generation.common.LinesBuilder;
 import com.mastfrog.code.generation.common.SourceFileBuilder;
 import com.mastfrog.code.generation.common.util.Holder;
+import com.mastfrog.code.generation.common.util.Interner;
 import static com.mastfrog.code.generation.common.util.Utils.notEmpty;
 import static com.mastfrog.code.generation.common.util.Utils.notNull;
 import static com.mastfrog.java.vogon.AssignmentOperator.AND_EQUALS;
@@ -30,11 +31,13 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -131,20 +134,25 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
     private EnumConstantBuilder<ClassBuilder<T>> constants;
     private final List<CodeGenerator> members = new LinkedList<>();
     private final Set<String> imports = new TreeSet<>();
-    private final Set<Modifier> modifiers = new TreeSet<>();
+    private final Set<Modifier> modifiers = EnumSet.noneOf(Modifier.class);
     private final Function<ClassBuilder<T>, T> converter;
     private String extendsType;
-    private final Set<String> implementsTypes = new LinkedHashSet<>();
-    private final Set<CodeGenerator> annotations = new LinkedHashSet<>();
+    // Secondary collections are allocated on first use, since most
+    // builders never need them
+    private Set<String> implementsTypes = Collections.emptySet();
+    private Set<CodeGenerator> annotations = Collections.emptySet();
     private String docComment;
     private String classType = "class";
     private boolean loggerField;
     private static ThreadLocal<ClassBuilder<?>> CONTEXT = new ThreadLocal<>();
     private ClassBuilder<?> prev;
     private boolean generateDebugCode;
-    private final Set<String> typeParams = new LinkedHashSet<>();
+    private Set<String> typeParams = Collections.emptySet();
     private Consumer<String> importConsumer;
     private ClassBuilder<?> parent;
+    private PartitionLimits partitionLimits;
+    private List<ClassBuilder<String>> partitions;
+    private List<OptimizationPass> optimizations;
 
     @SuppressWarnings("LeakingThisInConstructor")
     ClassBuilder(Object pkg, Object name, Function<ClassBuilder<T>, T> converter) {
@@ -333,16 +341,30 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
      * @return this
      */
     public ClassBuilder<T> withTypeParameters(String first, String... more) {
-        typeParams.add(first);
+        typeParams().add(first);
         typeParams.addAll(Arrays.asList(more));
         return this;
     }
 
     public ClassBuilder<T> withTypeParameters(Collection<? extends String> all) {
-        typeParams.addAll(all);
+        typeParams().addAll(all);
         return this;
     }
 
+    private Set<String> typeParams() {
+        if (typeParams.isEmpty()) {
+            typeParams = new LinkedHashSet<>(4);
+        }
+        return typeParams;
+    }
+
+    private Set<String> implementsTypes() {
+        if (implementsTypes.isEmpty()) {
+            implementsTypes = new LinkedHashSet<>(4);
+        }
+        return implementsTypes;
+    }
+
     public ClassBuilder<T> lineComment(String what) {
         return lineComment(what, false);
     }
@@ -373,7 +395,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
     }
 
     public ClassBuilder<T> insertText(String text) {
-        members.add(new Adhoc(text));
+        members.add(Adhoc.of(text));
         return this;
     }
 
@@ -438,7 +460,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
      */
     public ClassBuilder<T> extending(String type) {
         if ("interface".equals(classType)) {
-            implementsTypes.add(type);
+            implementsTypes().add(type);
             return this;
         }
         if (extendsType != null) {
@@ -465,6 +487,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
     private AnnotationBuilder<ClassBuilder<T>> annotatedWith(String anno, boolean[] built) {
         checkIdentifier(anno);
         return new AnnotationBuilder<>(ab -> {
+            if (annotations.isEmpty()) {
+                annotations = new LinkedHashSet<>(4);
+            }
             annotations.add(ab);
             built[0] = true;
             return ClassBuilder.this;
@@ -480,7 +505,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
     }
 
     public ClassBuilder<T> implementing(String type) {
-        implementsTypes.add(checkIdentifier(notNull("type", type)));
+        implementsTypes().add(checkIdentifier(notNull("type", type)));
         return this;
     }
 
@@ -720,7 +745,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                     + "It cannot have a static block.");
         }
         return new BlockBuilder<>(bb -> {
-            members.add(new Composite(new Adhoc("static"), bb, new DoubleNewline()));
+            members.add(new Composite(Adhoc.of("static"), bb, new DoubleNewline()));
             built[0] = true;
             return ClassBuilder.this;
         }, true);
@@ -917,7 +942,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public EnumConstantBuilder<T> add(String name) {
-            constants.add(new Adhoc(checkIdentifier(name)));
+            constants.add(Adhoc.of(checkIdentifier(name)));
             return this;
         }
 
@@ -925,7 +950,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             if (docComment != null) {
                 constants.add(new DocComment(docComment));
             }
-            constants.add(new Adhoc(checkIdentifier(name)));
+            constants.add(Adhoc.of(checkIdentifier(name)));
             return this;
         }
 
@@ -995,7 +1020,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         @Override
         public final P addArgument(String type, String name) {
-            putArgument(new Adhoc(checkIdentifier(notNull("name", name))), parseTypeName(type));
+            putArgument(Adhoc.of(checkIdentifier(notNull("name", name))), parseTypeName(type));
             return cast();
         }
 
@@ -1004,7 +1029,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return new AnnotatedArgumentBuilder<>(
                     annotationsAndType -> {
                         return new ParameterNameBuilder<>(name -> {
-                            putArgument(new Adhoc(name), annotationsAndType);
+                            putArgument(Adhoc.of(name), annotationsAndType);
                             return cast();
                         });
                     }).annotatedWith(annotationType);
@@ -1017,7 +1042,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                     = new AnnotatedArgumentBuilder<ParameterNameBuilder<Void>>(
                             annotationsAndType -> {
                                 return new ParameterNameBuilder<>(name -> {
-                                    putArgument(new Adhoc(name), annotationsAndType);
+                                    putArgument(Adhoc.of(name), annotationsAndType);
                                     hold.set(cast());
                                     return null;
                                 });
@@ -1033,7 +1058,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return new MultiAnnotatedArgumentBuilder<ParameterNameBuilder<TypeNameBuilder<P>>>(bldr -> {
                 return new ParameterNameBuilder<>(name -> {
                     return new TypeNameBuilder<>(typeName -> {
-                        putArgument(new Adhoc(name), bldr.appendingType(typeName.type));
+                        putArgument(Adhoc.of(name), bldr.appendingType(typeName.type));
                         return cast();
                     });
                 });
@@ -1046,7 +1071,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return new MultiAnnotatedArgumentBuilder<>(bldr -> {
                 return new ParameterNameBuilder<>(name -> {
                     return new TypeNameBuilder<>(typeName -> {
-                        putArgument(new Adhoc(name), bldr.appendingType(typeName.type));
+                        putArgument(Adhoc.of(name), bldr.appendingType(typeName.type));
                         return cast();
                     });
                 });
@@ -1062,7 +1087,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                     = new MultiAnnotatedArgumentBuilder<>(bldr -> {
                         return new ParameterNameBuilder<>(name -> {
                             return new TypeNameBuilder<>(type -> {
-                                putArgument(new Adhoc(name), bldr.appendingType(type.type));
+                                putArgument(Adhoc.of(name), bldr.appendingType(type.type));
                                 hold.set(bldr);
                                 return null;
                             });
@@ -1080,13 +1105,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             extends ParameterConsumerBase<T, ConstructorBuilder<T>>
             implements ParameterConsumer<ConstructorBuilder<T>>,
             CodeBlockOwner<T, BlockBuilder<T>, BlockBuilder<?>>,
-            Annotatable<T, ConstructorBuilder<T>> {
+            Annotatable<T, ConstructorBuilder<T>>, Rewritable {
 
         private final Function<ConstructorBuilder<T>, T> converter;
         private BlockBuilder<?> body;
-        private final Set<AnnotationBuilder<?>> annotations = new LinkedHashSet<>();
+        private Set<AnnotationBuilder<?>> annotations = Collections.emptySet();
         private final Set<Modifier> modifiers = EnumSet.noneOf(Modifier.class);
-        private final Set<String> throwing = new TreeSet<>();
+        private Set<String> throwing = Collections.emptySet();
         private final Map<CodeGenerator, CodeGenerator> arguments = new LinkedHashMap<>();
         private StringBuilder docComment;
 
@@ -1115,14 +1140,24 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public ConstructorBuilder<T> throwing(String thrown) {
+            if (throwing.isEmpty()) {
+                throwing = new TreeSet<>();
+            }
             throwing.add(thrown);
             return this;
         }
 
+        private void addAnnotation(AnnotationBuilder<?> ab) {
+            if (annotations.isEmpty()) {
+                annotations = new LinkedHashSet<>(4);
+            }
+            annotations.add(ab);
+        }
+
         @Override
         public AnnotationBuilder<ConstructorBuilder<T>> annotatedWith(String what) {
             return new AnnotationBuilder<>(ab -> {
-                annotations.add(ab);
+                addAnnotation(ab);
                 return this;
             }, what);
         }
@@ -1131,7 +1166,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         public ConstructorBuilder<T> annotatedWith(String what, Consumer<? super AnnotationBuilder<?>> c) {
             boolean[] built = new boolean[1];
             AnnotationBuilder<Void> bldr = new AnnotationBuilder<>(ab -> {
-                annotations.add(ab);
+                addAnnotation(ab);
                 built[0] = true;
                 return null;
             }, what);
@@ -1179,6 +1214,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             }, true);
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            if (body != null) {
+                rewriter.rewrite(body, ExpressionPosition.STANDALONE);
+            }
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             lines.hangingWrap(lb1 -> {
@@ -1245,7 +1287,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                 lb.onNewLine();
             }
             for (Modifier m : modifiers) {
-                lb.word(m.toString());
+                lb.word(modifierWord(m));
             }
             lb.word(name);
             generateInto(lb);
@@ -1367,24 +1409,416 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
     public static final class PackageBuilder {
 
         private final Object pkg;
+        private PartitionLimits partitionLimits;
 
         PackageBuilder(Object pkg) {
             this.pkg = pkg;
         }
 
+        /**
+         * Cause all class builders created by this package builder to be
+         * partitioned using the passed limits.
+         *
+         * @see ClassBuilder#partitioned(PartitionLimits)
+         * @param limits The limits
+         * @return this
+         */
+        public PackageBuilder partitioned(PartitionLimits limits) {
+            this.partitionLimits = notNull("limits", limits);
+            return this;
+        }
+
+        public PackageBuilder partitioned() {
+            return partitioned(PartitionLimits.DEFAULT);
+        }
+
         public ClassBuilder<String> named(String name) {
-            return ClassBuilder.create(pkg, name);
+            ClassBuilder<String> result = ClassBuilder.create(pkg, name);
+            if (partitionLimits != null) {
+                result.partitioned(partitionLimits);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Enable partitioning of this class, for generated classes with enormous
+     * numbers of static members or large static data tables, which can run
+     * into the 65535-entry limit on the constant pool or the 64Kb limit on the
+     * size of a static initializer, and which are slow to compile and load.
+     * <p>
+     * When the source is first generated, if the estimated size of the class
+     * exceeds any of the passed limits, all <code>private static</code> fields
+     * and methods are moved into package-private <i>companion classes</i> in
+     * the same package, each filled up to the limits. The JVM initializes each
+     * companion only when one of its members is first used, so large tables
+     * which are rarely touched cost nothing until they are. The class itself
+     * retains its public API, and static-imports each companion, so code in it
+     * which refers to moved members by name does not need to change.
+     * </p><p>
+     * Moved members lose their <code>private</code> modifier so that the
+     * facade and its companions can see each other's members; static final
+     * fields with no initializer (which must be assigned in the facade's
+     * static block) are never moved, and methods which share a name with a
+     * member that cannot be moved stay with it. Any private field, method,
+     * nested type or constructor left in the facade whose name appears in
+     * moved code loses its <code>private</code> modifier too, so moved code
+     * can still refer to it.
+     * </p><p>
+     * A static field whose array literal initializer (built with
+     * <code>initializedAsArrayLiteral()</code>) is too large for the limits on
+     * its own is instead initialized by a method which joins the slices
+     * returned by several generated methods, each within the limits. Nothing
+     * else is split: a single oversized static block, method, or initializer
+     * passed in as a string still has to fit in one class.
+     * </p><p>
+     * The companion classes must be written alongside this one - see
+     * {@link #partitions()}.
+     * </p>
+     *
+     * @param limits The limits to partition at
+     * @return this
+     */
+    public ClassBuilder<T> partitioned(PartitionLimits limits) {
+        if (pkg == null) {
+            throw new IllegalStateException("Only top-level classes can be "
+                    + "partitioned: " + name);
+        }
+        if (partitions != null) {
+            throw new IllegalStateException(name + " has already been partitioned");
+        }
+        this.partitionLimits = notNull("limits", limits);
+        return this;
+    }
+
+    public ClassBuilder<T> partitioned() {
+        return partitioned(PartitionLimits.DEFAULT);
+    }
+
+    /**
+     * Run the passed optimization passes over the code in this class - and any
+     * nested classes - once, before its source is first generated. Builders
+     * emit exactly the code they are told to; this allows code generators
+     * which compose expressions and conditions from fragments to do so naively
+     * and still get clean output - e.g. <code>x * (2 + 3)</code> becomes
+     * <code>x * 5</code>, and <code>if (false) {...}</code> disappears.
+     * Passes run in the order added.
+     *
+     * @param passes Some passes, such as those in
+     * <code>StandardOptimizations</code>
+     * @return this
+     */
+    public ClassBuilder<T> optimizing(OptimizationPass... passes) {
+        if (passes.length == 0) {
+            throw new IllegalArgumentException("No passes");
+        }
+        if (optimizations == null) {
+            optimizations = new ArrayList<>(passes.length);
+        }
+        for (OptimizationPass pass : passes) {
+            optimizations.add(notNull("pass", pass));
+        }
+        return this;
+    }
+
+    /**
+     * Run all of the standard optimization passes over the code in this class
+     * before its source is generated.
+     *
+     * @see #optimizing(OptimizationPass...)
+     * @return this
+     */
+    public ClassBuilder<T> optimizing() {
+        return optimizing(StandardOptimizations.values());
+    }
+
+    /**
+     * Walk the contents of this class - constructors, fields, methods, nested
+     * classes and the statements and expressions within them - with the
+     * passed visitor, without generating any code.
+     *
+     * @param <V> The visitor type
+     * @param visitor A visitor
+     * @return the visitor
+     */
+    public <V extends CodeVisitor> V accept(V visitor) {
+        new CodeWalker(notNull("visitor", visitor)).walk(this);
+        return visitor;
+    }
+
+    void rewriteChildren(Rewriter rewriter) {
+        for (ConstructorBuilder<?> con : constructors) {
+            rewriter.rewrite(con, ExpressionPosition.STANDALONE);
+        }
+        rewriteAll(members, ExpressionPosition.STANDALONE, false, rewriter);
+    }
+
+    /**
+     * If partitioning is enabled, get the companion classes which hold any
+     * static members moved out of this one, which need to be written as
+     * separate source files in the same package. Calling this method (or
+     * generating the source of this class) fixes the partitioning - members
+     * added afterwards stay in this class.
+     *
+     * @return A list of companion classes, which is empty if partitioning is
+     * not enabled or the class is within its limits
+     */
+    public List<ClassBuilder<String>> partitions() {
+        if (partitionLimits == null) {
+            return Collections.emptyList();
+        }
+        if (partitions == null) {
+            partitions = new ArrayList<>();
+            partition(partitionLimits);
+        }
+        return Collections.unmodifiableList(partitions);
+    }
+
+    private void partition(PartitionLimits limits) {
+        if (!"class".equals(classType) && !"enum".equals(classType)) {
+            return;
+        }
+        // Each member is rendered once; the estimates decide both whether the
+        // class needs partitioning and how its members are grouped
+        Map<CodeGenerator, SizeEstimate> sizes = new IdentityHashMap<>();
+        SizeEstimate total = new SizeEstimate();
+        for (ConstructorBuilder<?> con : constructors) {
+            LinesBuilder lb = new LinesBuilder();
+            con.buildInto(lb, name);
+            total.add(lb.toString());
+        }
+        for (CodeGenerator gen : members) {
+            total.add(sizeOf(gen, sizes));
+        }
+        if (!limits.exceededBy(total)) {
+            return;
+        }
+        splitArrayInitializers(limits, sizes);
+        Map<String, List<CodeGenerator>> movable = new LinkedHashMap<>();
+        Set<String> pinned = new HashSet<>();
+        for (CodeGenerator gen : members) {
+            String memberName = gen instanceof NamedMember ? ((NamedMember) gen).name() : null;
+            if (gen instanceof FieldBuilder<?>) {
+                memberName = "field:" + memberName;
+            }
+            if (memberName == null) {
+                continue;
+            }
+            if (isMovableToPartition(gen)) {
+                movable.computeIfAbsent(memberName, nm -> new ArrayList<>()).add(gen);
+            } else {
+                pinned.add(memberName);
+            }
+        }
+        movable.keySet().removeAll(pinned);
+        if (movable.isEmpty()) {
+            return;
+        }
+        SizeEstimate current = null;
+        SizeEstimate moved = new SizeEstimate();
+        ClassBuilder<String> companion = null;
+        for (List<CodeGenerator> group : movable.values()) {
+            SizeEstimate groupSize = new SizeEstimate();
+            for (CodeGenerator gen : group) {
+                groupSize.add(sizeOf(gen, sizes));
+            }
+            moved.add(groupSize);
+            if (current == null || (!current.isEmpty() && !current.fitsWith(groupSize, limits))) {
+                companion = newPartition(limits.companionSuffix() + (partitions.size() + 1));
+                partitions.add(companion);
+                current = new SizeEstimate();
+            }
+            current.add(groupSize);
+            for (CodeGenerator gen : group) {
+                members.remove(gen);
+                if (gen instanceof FieldBuilder<?>) {
+                    ((FieldBuilder<?>) gen).modifiers.remove(PRIVATE);
+                } else {
+                    ((MethodBuilder<?>) gen).modifiers.remove(PRIVATE);
+                }
+                companion.members.add(gen);
+            }
+        }
+        // Private members left here which moved code refers to by name -
+        // fields, methods pinned by an overload, nested types - must be
+        // visible to the companions
+        for (CodeGenerator gen : members) {
+            if (gen instanceof NamedMember && moved.mentions(((NamedMember) gen).name())) {
+                if (gen instanceof FieldBuilder<?>) {
+                    ((FieldBuilder<?>) gen).modifiers.remove(PRIVATE);
+                } else if (gen instanceof MethodBuilder<?>) {
+                    ((MethodBuilder<?>) gen).modifiers.remove(PRIVATE);
+                } else if (gen instanceof ClassBuilder<?>) {
+                    ((ClassBuilder<?>) gen).modifiers.remove(PRIVATE);
+                }
+            }
         }
+        if (moved.mentions(name)) {
+            for (ConstructorBuilder<?> con : constructors) {
+                con.modifiers.remove(PRIVATE);
+            }
+        }
+        for (ClassBuilder<String> part : partitions) {
+            part.imports.addAll(imports);
+            part.imports.add("static " + fqn() + ".*");
+            for (ClassBuilder<String> other : partitions) {
+                if (other != part) {
+                    part.imports.add("static " + other.fqn() + ".*");
+                }
+            }
+        }
+        for (ClassBuilder<String> part : partitions) {
+            imports.add("static " + part.fqn() + ".*");
+        }
+    }
+
+    /**
+     * A static array field whose literal initializer is too big for any one
+     * class on its own is rewritten to be initialized by a method which
+     * concatenates the results of methods that each return a slice of the
+     * literal; those methods are private static, so the partitioning which
+     * follows spreads them across companions like any other member.
+     */
+    private void splitArrayInitializers(PartitionLimits limits, Map<CodeGenerator, SizeEstimate> sizes) {
+        List<FieldBuilder<?>> oversized = new ArrayList<>();
+        for (CodeGenerator gen : members) {
+            if (gen instanceof FieldBuilder<?>) {
+                FieldBuilder<?> fb = (FieldBuilder<?>) gen;
+                if (fb.isStatic() && fb.type != null && fb.initializer instanceof ArrayLiteralBuilder<?>
+                        && ((ArrayLiteralBuilder<?>) fb.initializer).type != null
+                        && limits.exceededBy(SizeEstimate.of(fb.initializer.stringify()))) {
+                    oversized.add(fb);
+                }
+            }
+        }
+        for (FieldBuilder<?> fb : oversized) {
+            ArrayLiteralBuilder<?> literal = (ArrayLiteralBuilder<?>) fb.initializer;
+            String arrayType = fb.type.stringify().trim();
+            String elementType = literal.type.stringify().trim();
+            List<List<CodeGenerator>> chunks = new ArrayList<>();
+            List<CodeGenerator> chunk = new ArrayList<>();
+            SizeEstimate chunkSize = new SizeEstimate();
+            for (CodeGenerator element : literal.all) {
+                SizeEstimate elementSize = SizeEstimate.ofArrayElement(element.stringify());
+                if (!chunk.isEmpty() && !chunkSize.fitsWith(elementSize, limits)) {
+                    chunks.add(chunk);
+                    chunk = new ArrayList<>();
+                    chunkSize = new SizeEstimate();
+                }
+                chunk.add(element);
+                chunkSize.add(elementSize);
+            }
+            chunks.add(chunk);
+            if (chunks.size() == 1) {
+                continue;
+            }
+            String init = fb.name + "$init";
+            method(init, mb -> {
+                mb.withModifier(PRIVATE, STATIC).returning(arrayType).body(bb -> {
+                    bb.statement(arrayType + " result = java.util.Arrays.copyOf("
+                            + fb.name + "$1(), " + literal.all.size() + ")");
+                    int offset = chunks.get(0).size();
+                    for (int i = 1; i < chunks.size(); i++) {
+                        String slice = fb.name + "$" + (i + 1) + "()";
+                        bb.statement("System.arraycopy(" + slice + ", 0, result, "
+                                + offset + ", " + chunks.get(i).size() + ")");
+                        offset += chunks.get(i).size();
+                    }
+                    bb.returning("result");
+                });
+            });
+            for (int i = 0; i < chunks.size(); i++) {
+                List<CodeGenerator> slice = chunks.get(i);
+                method(fb.name + "$" + (i + 1), mb -> {
+                    mb.withModifier(PRIVATE, STATIC).returning(arrayType).body(bb -> {
+                        ArrayLiteralBuilder<?> alb = bb.returningValue().toArrayLiteral(elementType);
+                        alb.all.addAll(slice);
+                        alb.closeArrayLiteral();
+                    });
+                });
+            }
+            fb.initializer = Adhoc.of(init + "()");
+            sizes.remove(fb);
+        }
+    }
+
+    private static SizeEstimate sizeOf(CodeGenerator gen, Map<CodeGenerator, SizeEstimate> sizes) {
+        SizeEstimate result = sizes.get(gen);
+        if (result == null) {
+            LinesBuilder lb = new LinesBuilder();
+            gen.generateInto(lb);
+            result = SizeEstimate.of(lb.toString());
+            sizes.put(gen, result);
+        }
+        return result;
+    }
+
+    private static boolean isMovableToPartition(CodeGenerator gen) {
+        if (gen instanceof FieldBuilder<?>) {
+            FieldBuilder<?> fb = (FieldBuilder<?>) gen;
+            return fb.isStatic() && fb.modifiers.contains(PRIVATE)
+                    && (fb.initializer != null || !fb.modifiers.contains(FINAL));
+        } else if (gen instanceof MethodBuilder<?>) {
+            MethodBuilder<?> mb = (MethodBuilder<?>) gen;
+            return mb.modifiers.contains(STATIC) && mb.modifiers.contains(PRIVATE);
+        }
+        return false;
+    }
+
+    private ClassBuilder<String> newPartition(String suffix) {
+        ClassBuilder<?> ctx = CONTEXT.get();
+        ClassBuilder<String> result = new ClassBuilder<>(pkg, name + suffix,
+                new ClassBuilderStringFunction());
+        CONTEXT.set(ctx);
+        result.prev = null;
+        result.withModifier(FINAL)
+                .docComment("Holds static members of " + name + " which are "
+                        + "loaded on first use.")
+                .constructor().setModifier(PRIVATE)
+                .body().statement("throw new AssertionError()").endBlock();
+        return result;
     }
 
     public T build() {
+        Object event = BuildEvents.start();
         T result = converter.apply(this);
-        if (CONTEXT.get() == this) {
-            CONTEXT.set(prev);
+        BuildEvents.finish(event, this, result);
+        if (pkg != null) {
+            detachContext();
         }
         return result;
     }
 
+    /**
+     * Remove this builder from the calling thread's record of the top-level
+     * builders being constructed on it, which otherwise happens when it is
+     * built. Call this on the thread which created a builder before handing
+     * it off to be built on another one - otherwise the creating thread keeps
+     * it, and the builders created before it, reachable.
+     *
+     * @return this
+     */
+    public ClassBuilder<T> detachContext() {
+        ClassBuilder<?> top = CONTEXT.get();
+        if (top == this) {
+            if (prev == null) {
+                CONTEXT.remove();
+            } else {
+                CONTEXT.set(prev);
+            }
+        } else {
+            // Builders created after this one point back to it
+            for (ClassBuilder<?> b = top; b != null; b = b.prev) {
+                if (b.prev == this) {
+                    b.prev = prev;
+                    break;
+                }
+            }
+        }
+        prev = null;
+        return this;
+    }
+
     @Override
     public ClassBuilder<T> importing(Iterable<? extends String> types) {
         for (String type : types) {
@@ -1475,6 +1909,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
     @Override
     public void generateInto(LinesBuilder lines) {
+        if (optimizations != null) {
+            List<OptimizationPass> passes = optimizations;
+            optimizations = null;
+            rewriteChildren((child, pos) -> optimize(child, pos, passes));
+        }
+        partitions();
         lines.onNewLine();
         if (constants != null && !"enum".equals(classType)) {
             throw new IllegalStateException(name + " is a " + classType
@@ -1501,7 +1941,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             lines.onNewLine();
         }
         for (Modifier m : modifiers) {
-            lines.word(m.toString());
+            lines.word(modifierWord(m));
         }
         lines.word(classType);
         lines.word(name);
@@ -1556,7 +1996,10 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                 FieldBuilder<Void> fb = new FieldBuilder<>(f -> {
                     return null;
                 }, "LOGGER");
-                fb.withModifier(PRIVATE).withModifier(STATIC).withModifier(FINAL)
+                if (partitions == null || partitions.isEmpty()) {
+                    fb.withModifier(PRIVATE);
+                }
+                fb.withModifier(STATIC).withModifier(FINAL)
                         .initializedTo("Logger.getLogger(" + LinesBuilder.stringLiteral(fqn()) + ")")
                         .ofType("Logger");
                 fb.generateInto(lines);
@@ -1870,7 +2313,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T of(String what) {
-            return setReferent(new Adhoc(what));
+            return setReferent(Adhoc.of(what));
         }
 
         public T ofThis() {
@@ -1981,17 +2424,17 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T withDefault(boolean defaultValue) {
-            this.defaultValue = new Adhoc(Boolean.toString(defaultValue));
+            this.defaultValue = Adhoc.of(Boolean.toString(defaultValue));
             return setType("boolean");
         }
 
         public T withDefault(String defaultValue) {
-            this.defaultValue = new Adhoc(LinesBuilder.stringLiteral(defaultValue));
+            this.defaultValue = Adhoc.of(LinesBuilder.stringLiteral(defaultValue));
             return setType("String");
         }
 
         public T withDefault(char defaultValue) {
-            this.defaultValue = new Adhoc(LinesBuilder.escapeCharLiteral(defaultValue));
+            this.defaultValue = Adhoc.of(LinesBuilder.escapeCharLiteral(defaultValue));
             return setType("char");
         }
 
@@ -2213,13 +2656,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             extends ParameterConsumerBase<T, MethodBuilder<T>>
             implements NamedMember, ParameterConsumer<MethodBuilder<T>>,
             CodeBlockOwner<T, BlockBuilder<T>, BlockBuilder<?>>,
-            Annotatable<T, MethodBuilder<T>> {
+            Annotatable<T, MethodBuilder<T>>, Rewritable {
 
         private final Function<MethodBuilder<T>, T> converter;
-        private final Set<Modifier> modifiers = new TreeSet<>();
-        private final Set<String> typeParams = new LinkedHashSet<>();
-        private final Set<CodeGenerator> annotations = new LinkedHashSet<>();
-        private final Set<CodeGenerator> throwing = new LinkedHashSet<>();
+        private final Set<Modifier> modifiers = EnumSet.noneOf(Modifier.class);
+        private Set<String> typeParams = Collections.emptySet();
+        private Set<CodeGenerator> annotations = Collections.emptySet();
+        private Set<CodeGenerator> throwing = Collections.emptySet();
         private BlockBuilderBase<?, ?, ?> block;
         private String type = "void";
         private final String name;
@@ -2331,6 +2774,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                 }
 
             }
+            if (typeParams.isEmpty()) {
+                typeParams = new LinkedHashSet<>(4);
+            }
             typeParams.add(tp);
         }
 
@@ -2340,6 +2786,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         public MethodBuilder<T> throwing(String throwable) {
 //            throwing.add(new Adhoc(throwable, true));
+            if (throwing.isEmpty()) {
+                throwing = new LinkedHashSet<>(4);
+            }
             throwing.add(parseTypeName(throwable));
             return this;
         }
@@ -2441,6 +2890,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         private AnnotationBuilder<MethodBuilder<T>> annotatedWith(String annotationType, boolean[] built) {
             return new AnnotationBuilder<>(ab -> {
+                if (annotations.isEmpty()) {
+                    annotations = new LinkedHashSet<>(4);
+                }
                 annotations.add(ab);
                 built[0] = true;
                 return MethodBuilder.this;
@@ -2508,6 +2960,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             }, false);
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            if (block != null) {
+                rewriter.rewrite(block, ExpressionPosition.STANDALONE);
+            }
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             lines.doubleNewline();
@@ -2521,7 +2980,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                 }
             }
             for (Modifier m : modifiers) {
-                lines.word(m.toString());
+                lines.word(modifierWord(m));
             }
             if (!typeParams.isEmpty()) {
                 lines.appendRaw(' ');
@@ -2631,6 +3090,27 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
     private static final Pattern ARRAY = Pattern.compile("\\s*?(.*?)\\s*?(\\[.*\\])\\s*?");
     private static final Pattern VARARG = Pattern.compile("\\s*?(.*?)\\s*?\\.\\.\\.");
 
+    private static final String[] MODIFIER_WORDS;
+
+    static {
+        Modifier[] all = Modifier.values();
+        MODIFIER_WORDS = new String[all.length];
+        for (Modifier m : all) {
+            MODIFIER_WORDS[m.ordinal()] = m.toString();
+        }
+    }
+
+    /**
+     * Modifier.toString() lower-cases the enum name on every call; this
+     * returns a shared string instead.
+     *
+     * @param m A modifier
+     * @return The modifier's keyword
+     */
+    static String modifierWord(Modifier m) {
+        return MODIFIER_WORDS[m.ordinal()];
+    }
+
     static CodeGenerator parseTypeName(String typeName) {
         Matcher arrM = ARRAY.matcher(notNull("typeName", typeName));
         if (arrM.find()) {
@@ -2650,7 +3130,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             visitGenericTypes(typeName, 0, gtv);
             return gtv.result();
         } else {
-            return new TypeNameItem(typeName);
+            return TypeNameItem.of(typeName);
         }
     }
 
@@ -2666,7 +3146,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         ArgPair(CodeGenerator type, String name) {
             this.type = type;
-            this.name = new Adhoc(checkIdentifier(name));
+            this.name = Adhoc.of(checkIdentifier(name));
         }
 
         @Override
@@ -2710,14 +3190,38 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 //        System.out.println(nm);
 //    }
 //
-    static class TypeNameItem extends CodeGeneratorBase {
-
+    static final class TypeNameItem extends CodeGeneratorBase {
+
+        private static final Interner<TypeNameItem> TYPE_NAMES = new Interner<>(1024, 96,
+                TypeNameItem::new, item -> item.name,
+                new TypeNameItem("void"), new TypeNameItem("boolean"), new TypeNameItem("byte"),
+                new TypeNameItem("short"), new TypeNameItem("char"), new TypeNameItem("int"),
+                new TypeNameItem("long"), new TypeNameItem("float"), new TypeNameItem("double"),
+                new TypeNameItem("Object"), new TypeNameItem("String"), new TypeNameItem("Boolean"),
+                new TypeNameItem("Byte"), new TypeNameItem("Short"), new TypeNameItem("Character"),
+                new TypeNameItem("Integer"), new TypeNameItem("Long"), new TypeNameItem("Float"),
+                new TypeNameItem("Double"), new TypeNameItem("Number"), new TypeNameItem("Class"),
+                new TypeNameItem("StringBuilder"), new TypeNameItem("CharSequence"),
+                new TypeNameItem("Exception"), new TypeNameItem("RuntimeException"),
+                new TypeNameItem("Throwable"), new TypeNameItem("List"), new TypeNameItem("Map"),
+                new TypeNameItem("Set"), new TypeNameItem("Collection"), new TypeNameItem("T"));
         private final String name;
 
-        TypeNameItem(String name) {
+        private TypeNameItem(String name) {
             this.name = name;
         }
 
+        /**
+         * Get a possibly shared instance for a type name; common JDK types
+         * are singletons.
+         *
+         * @param name A type name
+         * @return A type name item
+         */
+        static TypeNameItem of(String name) {
+            return TYPE_NAMES.intern(name);
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             lines.word(name, '<', true);
@@ -2816,7 +3320,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                 items.add(COMMA);
                 sb.append(", ");
             }
-            items.add(new TypeNameItem(type));
+            items.add(TypeNameItem.of(type));
             sb.append(type);
         }
 
@@ -2927,7 +3431,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
     }
     private static CodeGenerator RAW_BRACKETS = new BackupAndAppendRaw("[]");
-    private static CodeGenerator WRAPPABLE_BRACKETS = new Adhoc("[]");
+    private static CodeGenerator WRAPPABLE_BRACKETS = Adhoc.of("[]");
 
     /**
      * Gen an array literal or dimensions builder, generate the front half of a
@@ -2959,7 +3463,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T of(String of) {
-            return super.of(new Adhoc(checkIdentifier(of)));
+            return super.of(Adhoc.of(checkIdentifier(of)));
         }
 
         public FieldReferenceBuilder<T> ofField(String field) {
@@ -3003,7 +3507,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         AbstractArrayElementsBuilder(Function<CodeGenerator, T> converter, Object... initial) {
             this.converter = converter;
             for (Object s : initial) {
-                elements.add(new Adhoc(s.toString()));
+                elements.add(Adhoc.of(s.toString()));
             }
         }
 
@@ -3090,7 +3594,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         private final CodeGenerator what;
 
         Cast(String what) {
-            this(new Adhoc(what));
+            this(Adhoc.of(what));
         }
 
         Cast(CodeGenerator what) {
@@ -3103,7 +3607,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    public static final class AssignmentBuilder<T> extends CodeGeneratorBase {
+    public static final class AssignmentBuilder<T> extends CodeGeneratorBase implements Rewritable {
 
         private final Function<AssignmentBuilder<T>, T> converter;
         private CodeGenerator type;
@@ -3118,6 +3622,14 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             this.varName = varName;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            if (!(assignment instanceof ArrayLiteralBuilder<?>)) {
+                assignment = rewrite(assignment, CodeGenerator.class, cast == null && !complement
+                        ? ExpressionPosition.STANDALONE : ExpressionPosition.OPERAND, rewriter);
+            }
+        }
+
         /**
          * Use a particular assignment operator (+=, *=, etc.) in this
          * assignment.
@@ -3144,7 +3656,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T toExpression(String what) {
-            assignment = new Adhoc(what);
+            assignment = Adhoc.of(what);
             return converter.apply(this);
         }
 
@@ -3231,12 +3743,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T toLiteral(String what) {
-            this.type = new TypeNameItem("String");
+            this.type = TypeNameItem.of("String");
             return toExpression(LinesBuilder.stringLiteral(what));
         }
 
         public T toLiteral(char c) {
-            this.type = new TypeNameItem("char");
+            this.type = TypeNameItem.of("char");
             return toExpression(friendlyChar(c));
         }
 
@@ -3252,8 +3764,8 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T toLiteral(boolean val) {
-            this.type = new TypeNameItem("boolean");
-            this.assignment = new Adhoc(Boolean.toString(val));
+            this.type = TypeNameItem.of("boolean");
+            this.assignment = Adhoc.of(Boolean.toString(val));
             return converter.apply(this);
         }
 
@@ -3370,7 +3882,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         ArrayDimensionsBuilder(Function<ArrayDeclarationBuilder<T>, T> converter, CodeGenerator type, Object firstDimension) {
             this.converter = converter;
             this.type = type;
-            dimensions.add(new Adhoc(firstDimension.toString()));
+            dimensions.add(Adhoc.of(firstDimension.toString()));
         }
 
         @Override
@@ -3384,12 +3896,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public ArrayDimensionsBuilder<T> withDimension(int dim) {
-            dimensions.add(new Adhoc(Integer.toString(dim)));
+            dimensions.add(Adhoc.of(Integer.toString(dim)));
             return this;
         }
 
         public ArrayDimensionsBuilder<T> withDimension(String exp) {
-            dimensions.add(new Adhoc(exp));
+            dimensions.add(Adhoc.of(exp));
             return this;
         }
 
@@ -3575,7 +4087,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public ArrayLiteralBuilder<T> add(String expression) {
-            all.add(new Adhoc(expression));
+            all.add(Adhoc.of(expression));
             return this;
         }
 
@@ -3620,7 +4132,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T on(String what) {
-            this.on = new Adhoc(what);
+            this.on = Adhoc.of(what);
             return converter.apply(cast());
         }
 
@@ -3663,7 +4175,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
     }
 
     public static abstract class InvocationBuilderBase<T, B extends InvocationBuilderBase<T, B>>
-            extends CodeGeneratorBase implements ArgumentConsumer<B> {
+            extends CodeGeneratorBase implements ArgumentConsumer<B>, Rewritable {
 
         final Function<B, T> converter;
         String name;
@@ -3683,6 +4195,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             this.isNew = isNew;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            on = rewrite(on, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+            rewriteAll(arguments, ExpressionPosition.STANDALONE, false, rewriter);
+        }
+
         public FieldReferenceBuilder<T> onField(String field) {
             FieldReferenceBuilder<T> result = new FieldReferenceBuilder<>(field, frb -> {
                 this.on = frb;
@@ -3869,7 +4387,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         private ArrayValueBuilder<B> withNewArrayArgument(String arrayType, boolean[] built) {
             return new ArrayValueBuilder<>('{', '}', av -> {
-                arguments.add(new Composite(new Adhoc("new"), new Adhoc(arrayType + "[]"), av));
+                arguments.add(new Composite(Adhoc.of("new"), Adhoc.of(arrayType + "[]"), av));
                 built[0] = true;
                 return cast();
             });
@@ -3913,32 +4431,32 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         @Override
         public B withArgument(char arg) {
-            arguments.add(new Adhoc(LinesBuilder.escapeCharLiteral(arg)));
+            arguments.add(Adhoc.of(LinesBuilder.escapeCharLiteral(arg)));
             return cast();
         }
 
         @Override
         public B withArgument(String arg) {
-            arguments.add(new Adhoc(arg));
+            arguments.add(Adhoc.of(arg));
             return cast();
         }
 
         public OnTypeOrInstance<B> withMethodReference(String method) {
             return new OnTypeOrInstance<B>(tb -> {
-                arguments.add(new MethodReference(new Adhoc(method), tb));
+                arguments.add(new MethodReference(Adhoc.of(method), tb));
                 return cast();
             });
         }
 
         @Override
         public B withClassArgument(String arg) {
-            arguments.add(new Adhoc(arg + ".class"));
+            arguments.add(Adhoc.of(arg + ".class"));
             return cast();
         }
 
         @Override
         public B withArgument(boolean arg) {
-            arguments.add(new Adhoc(Boolean.toString(arg)));
+            arguments.add(Adhoc.of(Boolean.toString(arg)));
             return cast();
         }
 
@@ -4001,7 +4519,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         @Override
         public StringConcatenationBuilder<B> withStringConcatentationArgument(String initialLiteral) {
-            StringConcatenationBuilder<B> sb = new StringConcatenationBuilder<>(new Adhoc(LinesBuilder.stringLiteral(initialLiteral)), scb -> {
+            StringConcatenationBuilder<B> sb = new StringConcatenationBuilder<>(Adhoc.of(LinesBuilder.stringLiteral(initialLiteral)), scb -> {
                 arguments.add(scb);
                 return cast();
             });
@@ -4011,7 +4529,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         @Override
         public B withStringConcatentationArgument(String initialLiteral, Consumer<StringConcatenationBuilder<?>> c) {
             Holder<B> holder = new Holder<>();
-            StringConcatenationBuilder<Void> sb = new StringConcatenationBuilder<>(new Adhoc(LinesBuilder.stringLiteral(initialLiteral)), scb -> {
+            StringConcatenationBuilder<Void> sb = new StringConcatenationBuilder<>(Adhoc.of(LinesBuilder.stringLiteral(initialLiteral)), scb -> {
                 arguments.add(scb);
                 holder.set(cast());
                 return null;
@@ -4234,7 +4752,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T on(String expression) {
-            return converter.apply(new Adhoc(notNull("expression", expression)));
+            return converter.apply(Adhoc.of(notNull("expression", expression)));
         }
 
         public T onType(String typeName) {
@@ -4246,7 +4764,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
     }
 
-    public static final class SimpleLoopBuilder<T> implements CodeGenerator {
+    public static final class SimpleLoopBuilder<T> implements CodeGenerator, Rewritable {
 
         private final Function<SimpleLoopBuilder<T>, T> converter;
         private final String loopVar;
@@ -4319,7 +4837,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             Holder<T> holder = new Holder<>();
             BlockBuilder<Void> bldr = new BlockBuilder<>(bb -> {
                 this.body = bb;
-                this.from = new Adhoc(expression);
+                this.from = Adhoc.of(expression);
                 holder.set(converter.apply(this));
                 return null;
             }, true);
@@ -4332,7 +4850,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         private BlockBuilder<T> over(String what, boolean[] built) {
-            this.from = new Adhoc(what);
+            this.from = Adhoc.of(what);
             return new BlockBuilder<>(bb -> {
                 this.body = bb;
                 built[0] = true;
@@ -4368,6 +4886,14 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             }, name);
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            from = rewrite(from, CodeGenerator.class, ExpressionPosition.STANDALONE, rewriter);
+            if (body != null) {
+                rewriter.rewrite(body, ExpressionPosition.STANDALONE);
+            }
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             lines.onNewLine();
@@ -4401,11 +4927,11 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
     }
 
-    public static final class ForVarBuilder<T> extends CodeGeneratorBase {
+    public static final class ForVarBuilder<T> extends CodeGeneratorBase implements Rewritable {
 
         private final Function<ForVarBuilder<T>, T> converter;
         private String loopVarType = "int";
-        private CodeGenerator initializedWith = new Adhoc("0");
+        private CodeGenerator initializedWith = Adhoc.of("0");
         private boolean increment = true;
         private CodeGenerator condition;
         private final String loopVar;
@@ -4496,6 +5022,16 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             });
             body.generateInto(lines);
         }
+
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            initializedWith = rewrite(initializedWith, CodeGenerator.class,
+                    ExpressionPosition.STANDALONE, rewriter);
+            condition = rewrite(condition, CodeGenerator.class, ExpressionPosition.STANDALONE, rewriter);
+            if (body != null) {
+                rewriter.rewrite(body, ExpressionPosition.STANDALONE);
+            }
+        }
     }
 
     public static final class TryBuilder<T> extends BlockBuilderBase<T, TryBuilder<T>, T> {
@@ -4539,6 +5075,16 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             }
         }
 
+        @Override
+        void rewriteOtherChildren(Rewriter rewriter) {
+            for (CatchBuilder<?> cb : catches) {
+                rewriter.rewrite(cb, ExpressionPosition.STANDALONE);
+            }
+            if (finallyBlock != null) {
+                rewriter.rewrite(finallyBlock, ExpressionPosition.STANDALONE);
+            }
+        }
+
         @Override
         protected T endBlock() {
             // We can get built on each catch or finally, so
@@ -4706,8 +5252,8 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         all.add(parseTypeName(notNull("type", type)));
         if (more.length > 0) {
             for (int i = 0; i < more.length; i++) {
-                all.add(new Adhoc("|"));
-                all.add(new Adhoc(notNull("more[" + i + "]", more[i])));
+                all.add(Adhoc.of("|"));
+                all.add(Adhoc.of(notNull("more[" + i + "]", more[i])));
             }
         }
         CodeGenerator types = (new Composite(all.toArray(new CodeGenerator[all.size()])));
@@ -4715,7 +5261,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
     }
 
-    private static final class SynchronizedBlockBuilder<T> implements CodeGenerator {
+    private static final class SynchronizedBlockBuilder<T> implements CodeGenerator, Rewritable {
 
         private final Function<SynchronizedBlockBuilder<T>, T> converter;
         private BlockBuilder<?> body;
@@ -4742,10 +5288,17 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             });
             body.generateInto(lines);
         }
+
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            if (body != null) {
+                rewriter.rewrite(body, ExpressionPosition.STANDALONE);
+            }
+        }
     }
 
     public static final class LambdaBuilder<T> extends CodeGeneratorBase
-            implements CodeBlockOwner<T, BlockBuilder<T>, BlockBuilder<?>> {
+            implements CodeBlockOwner<T, BlockBuilder<T>, BlockBuilder<?>>, Rewritable {
 
         private final Function<LambdaBuilder<T>, T> converter;
         private BlockBuilder<?> body;
@@ -4839,6 +5392,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             body.generateInto(lines);
             lines.backup();
         }
+
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            if (body != null) {
+                rewriter.rewrite(body, ExpressionPosition.STANDALONE);
+            }
+        }
     }
 
     interface Operator extends CodeGenerator {
@@ -4846,39 +5406,31 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         boolean applicableTo(Number num);
     }
 
-    public static class StringConcatenationBuilder<T> implements CodeGenerator {
+    public static class StringConcatenationBuilder<T> implements CodeGenerator, Rewritable {
 
-        private CodeGenerator leftSide;
+        private final List<CodeGenerator> parts = new ArrayList<>();
         private final Function<? super StringConcatenationBuilder<T>, T> converter;
 
         StringConcatenationBuilder(CodeGenerator leftSide, Function<? super StringConcatenationBuilder<T>, T> converter) {
-            this.leftSide = leftSide;
+            if (leftSide != null) {
+                parts.add(leftSide);
+            }
             this.converter = converter;
         }
 
         @Override
         public String toString() {
-            return "StringConcatenationBuilder(" + leftSide + ")";
+            return "StringConcatenationBuilder(" + parts + ")";
         }
 
         public StringConcatenationBuilder<T> with(Value val) {
-            if (leftSide == null) {
-                leftSide = val;
-                return this;
-            }
-            CodeGenerator newLeftSide = new Composite(leftSide, Operators.PLUS, val);
-            leftSide = newLeftSide;
+            parts.add(val);
             return this;
         }
 
         public ValueExpressionBuilder<StringConcatenationBuilder<T>> with() {
             return new ValueExpressionBuilder<>(veb -> {
-                if (leftSide == null) {
-                    leftSide = veb;
-                    return this;
-                }
-                CodeGenerator newLeftSide = new Composite(leftSide, Operators.PLUS, veb);
-                leftSide = newLeftSide;
+                parts.add(veb);
                 return this;
             });
         }
@@ -4887,12 +5439,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             Holder<StringConcatenationBuilder<T>> hold = new Holder<>();
             ValueExpressionBuilder<Void> vb = new ValueExpressionBuilder<Void>(veb -> {
                 hold.set(this);
-                if (leftSide == null) {
-                    leftSide = veb;
-                    return null;
-                }
-                CodeGenerator newLeftSide = new Composite(leftSide, Operators.PLUS, veb);
-                leftSide = newLeftSide;
+                parts.add(veb);
                 return null;
             });
             c.accept(vb);
@@ -4969,15 +5516,44 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T endConcatenation() {
-            if (leftSide == null) {
+            if (parts.isEmpty()) {
                 throw new IllegalStateException("String concatenation never added to");
             }
             return converter.apply(this);
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            rewriteAll(parts, ExpressionPosition.OPERAND, false, rewriter);
+        }
+
+        void mergeLiterals(ExpressionPosition position) {
+            // Concatenation is left-associative, so two literals can be merged
+            // if the first is a string - "a" + 1 + 2 is "a12" - or if there is
+            // nothing before them, but 1 + 2 preceded by x + cannot be
+            int start = position == ExpressionPosition.STANDALONE ? 0 : 1;
+            for (int i = start; i < parts.size() - 1;) {
+                Object a = ExpressionFolder.constant(parts.get(i));
+                Object b = a == null ? null : ExpressionFolder.constant(parts.get(i + 1));
+                Object merged = b == null || !(a instanceof String || i == 0)
+                        ? null : ExpressionFolder.apply(Operators.PLUS, a, b);
+                if (merged != null) {
+                    parts.set(i, ExpressionFolder.literal(merged));
+                    parts.remove(i + 1);
+                } else {
+                    i++;
+                }
+            }
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
-            leftSide.generateInto(lines);
+            for (int i = 0; i < parts.size(); i++) {
+                if (i > 0) {
+                    Operators.PLUS.generateInto(lines);
+                }
+                parts.get(i).generateInto(lines);
+            }
         }
     }
 
@@ -5016,7 +5592,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
      */
     public static abstract class NumericExpressionBuilderBase<T, N extends NumericExpressionBuilderBase<T, N, F>, F> {
 
-        final CodeGenerator leftSide;
+        CodeGenerator leftSide;
         final Function<F, T> converter;
         boolean parenthesized;
         NumericCast castTo;
@@ -5183,7 +5759,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         public N nested(String startingExpression, Consumer<NumericExpressionBuilder<?>> c) {
             Holder<FinishableNumericExpressionBuilder<Void>> f = new Holder();
             Holder<N> hold = new Holder<>();
-            NumericExpressionBuilder<Void> nu = new NumericExpressionBuilder<>(new Adhoc(startingExpression),
+            NumericExpressionBuilder<Void> nu = new NumericExpressionBuilder<>(Adhoc.of(startingExpression),
                     fcb -> {
                         f.set(fcb);
                         fcb.parenthesized();
@@ -5736,9 +6312,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
      *
      * @param <T> The type
      */
-    public static final class FinishableNumericExpressionBuilder<T> extends NumericExpressionBuilderBase<T, FinishableNumericExpressionBuilder<T>, FinishableNumericExpressionBuilder<T>> implements CodeGenerator {
+    public static final class FinishableNumericExpressionBuilder<T> extends NumericExpressionBuilderBase<T, FinishableNumericExpressionBuilder<T>, FinishableNumericExpressionBuilder<T>> implements CodeGenerator, Rewritable {
 
-        private final CodeGenerator rightSide;
+        private CodeGenerator rightSide;
         private final Operator op;
 
         FinishableNumericExpressionBuilder(CodeGenerator rightSide, CodeGenerator leftSide, Operator op, boolean parenthesized, Function<FinishableNumericExpressionBuilder<T>, T> converter) {
@@ -5757,6 +6333,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return converter.apply(this);
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            leftSide = rewrite(leftSide, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+            rightSide = rewrite(rightSide, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             if (parenthesized) {
@@ -5776,9 +6358,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    public static final class FinishableNumericOrBitwiseExpressionBuilder<T> extends NumericOrBitwiseExpressionBuilderBase<T, FinishableNumericOrBitwiseExpressionBuilder<T>, FinishableNumericOrBitwiseExpressionBuilder<T>> implements CodeGenerator {
+    public static final class FinishableNumericOrBitwiseExpressionBuilder<T> extends NumericOrBitwiseExpressionBuilderBase<T, FinishableNumericOrBitwiseExpressionBuilder<T>, FinishableNumericOrBitwiseExpressionBuilder<T>> implements CodeGenerator, Rewritable {
 
-        private final CodeGenerator rightSide;
+        private CodeGenerator rightSide;
         private final Operator op;
 
         FinishableNumericOrBitwiseExpressionBuilder(CodeGenerator rightSide, CodeGenerator leftSide, Operator op, boolean parenthesized, Function<FinishableNumericOrBitwiseExpressionBuilder<T>, T> converter) {
@@ -5797,6 +6379,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return converter.apply(this);
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            leftSide = rewrite(leftSide, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+            rightSide = rewrite(rightSide, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             if (parenthesized) {
@@ -5827,7 +6415,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
      *
      * @param <T> The type under construction
      */
-    public static class ValueExpressionBuilder<T> implements CodeGenerator {
+    public static class ValueExpressionBuilder<T> implements CodeGenerator, Rewritable {
 
         private CodeGenerator value;
         private final Function<ValueExpressionBuilder<T>, T> converter;
@@ -5852,6 +6440,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return this;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            value = rewrite(value, CodeGenerator.class, parenthesized
+                    ? ExpressionPosition.STANDALONE : ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public String toString() {
             return "ValueExpressionBuilder(" + value + ")";
@@ -5978,7 +6572,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T expression(String expression) {
-            value = new Adhoc(expression);
+            value = Adhoc.of(expression);
             return converter.apply(this);
         }
 
@@ -5992,12 +6586,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T literal(char ch) {
-            value = new Adhoc(friendlyChar(ch));
+            value = Adhoc.of(friendlyChar(ch));
             return converter.apply(this);
         }
 
         public T literal(String s) {
-            value = new Adhoc(LinesBuilder.stringLiteral(s));
+            value = Adhoc.of(LinesBuilder.stringLiteral(s));
             return converter.apply(this);
         }
 
@@ -6046,7 +6640,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public StringConcatenationBuilder<T> concatenate(String stringLiteral) {
-            CodeGenerator base = new Adhoc(LinesBuilder.stringLiteral(stringLiteral));
+            CodeGenerator base = Adhoc.of(LinesBuilder.stringLiteral(stringLiteral));
             return new StringConcatenationBuilder<>(base, scb -> {
                 value = scb;
                 return converter.apply(this);
@@ -6312,11 +6906,11 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    static class TernaryBuilder<T> implements CodeGenerator {
+    static class TernaryBuilder<T> implements CodeGenerator, Rewritable {
 
         private final Function<TernaryBuilder<T>, T> converter;
 
-        private final CodeGenerator condition;
+        private CodeGenerator condition;
         private CodeGenerator trueSide;
         private CodeGenerator falseSide;
 
@@ -6337,6 +6931,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return first;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            condition = rewrite(condition, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+            trueSide = rewrite(trueSide, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+            falseSide = rewrite(falseSide, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public void generateInto(LinesBuilder lb) {
 //            lines.wrappable(lb -> {
@@ -6417,6 +7018,11 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return hold.get("Condition not applied - call underCondition() to close while builder");
         }
 
+        @Override
+        void rewriteOtherChildren(Rewriter rewriter) {
+            condition = rewrite(condition, CodeGenerator.class, ExpressionPosition.STANDALONE, rewriter);
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             if (tailCondition) {
@@ -6513,7 +7119,8 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
      * should close the builder, where which that does not make sense for all
      * subtypes.
      */
-    public static abstract class BlockBuilderBase<T, B extends BlockBuilderBase<T, B, X>, X> extends CodeGeneratorBase {
+    public static abstract class BlockBuilderBase<T, B extends BlockBuilderBase<T, B, X>, X> extends CodeGeneratorBase
+            implements Rewritable {
 
         final List<CodeGenerator> statements = new LinkedList<>();
         final Function<? super B, T> converter;
@@ -6849,12 +7456,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             }
 
             public LogLineBuilder<T> argument(String arg) {
-                arguments.add(new Adhoc(arg));
+                arguments.add(Adhoc.of(arg));
                 return this;
             }
 
             public LogLineBuilder<T> stringLiteral(String arg) {
-                arguments.add(new Adhoc(LinesBuilder.stringLiteral(arg)));
+                arguments.add(Adhoc.of(LinesBuilder.stringLiteral(arg)));
                 return this;
             }
 
@@ -7049,6 +7656,22 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             }, name);
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            rewriteAll(statements, ExpressionPosition.STANDALONE, true, rewriter);
+            rewriteOtherChildren(rewriter);
+        }
+
+        /**
+         * Rewrite any children which are not statements in this block, such as
+         * a loop condition or catch clauses.
+         *
+         * @param rewriter A rewriter
+         */
+        void rewriteOtherChildren(Rewriter rewriter) {
+            // do nothing
+        }
+
         private void writeStatements(LinesBuilder into) {
             if (statements.isEmpty()) {
                 into.onNewLine().appendRaw("// do nothing");
@@ -7159,13 +7782,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T andThrow(String what) {
-            add(new StatementWrapper(new Composite(new Adhoc("throw"), new Adhoc(checkIdentifier(notNull("what", what))))));
+            add(new StatementWrapper(new Composite(Adhoc.of("throw"), Adhoc.of(checkIdentifier(notNull("what", what))))));
             return endBlock();
         }
 
         public NewBuilder<T> andThrow() {
             NewBuilder<T> result = new NewBuilder<>(nb -> {
-                add(new StatementWrapper(new Composite(new Adhoc("throw"), nb)));
+                add(new StatementWrapper(new Composite(Adhoc.of("throw"), nb)));
                 return endBlock();
             });
             return result;
@@ -7174,7 +7797,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         public B andThrow(Consumer<? super NewBuilder<?>> c) {
             Holder<B> h = new Holder<>();
             NewBuilder<Void> result = new NewBuilder<>(nb -> {
-                add(new StatementWrapper(new Composite(new Adhoc("throw"), nb)));
+                add(new StatementWrapper(new Composite(Adhoc.of("throw"), nb)));
                 h.set(cast());
                 return null;
             });
@@ -7188,7 +7811,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         public AssignmentBuilder<B> assign(String variable) {
             return new AssignmentBuilder<>(b -> {
                 return add(new StatementWrapper(b));
-            }, new Adhoc(variable));
+            }, Adhoc.of(variable));
         }
 
         public FieldReferenceBuilder<AssignmentBuilder<B>> assignField(String variable) {
@@ -7272,9 +7895,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         public B assign(String variable, Consumer<? super AssignmentBuilder<?>> c) {
             Holder<B> holder = new Holder<>();
             AssignmentBuilder<Void> ab = new AssignmentBuilder<>(b -> {
-                holder.set(add(new Composite(b, new Adhoc(";"))));
+                holder.set(add(new Composite(b, Adhoc.of(";"))));
                 return null;
-            }, new Adhoc(variable));
+            }, Adhoc.of(variable));
             c.accept(ab);
             return holder.get(".to() not called on AssignmentBuilder - "
                     + "statement not complete");
@@ -7287,12 +7910,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             if (expression.trim().charAt(expression.length() - 1) != ';') {
                 expression = expression.trim() + ';';
             }
-            return add(new Composite(new Adhoc("assert", true), new Adhoc(expression, true)));
+            return add(new Composite(Adhoc.of("assert"), new Adhoc(expression, true)));
         }
 
         public B assertingNotNull(String expression) {
-            return add(new StatementWrapper(new Composite(new Adhoc("assert", true), new Adhoc(expression, true),
-                    new Adhoc("!=", true), new Adhoc("null", true))));
+            return add(new StatementWrapper(new Composite(Adhoc.of("assert"), new Adhoc(expression, true),
+                    Adhoc.of("!="), Adhoc.of("null"))));
         }
 
         public ValueExpressionBuilder<AssertionBuilder<B>> assertingNotNull() {
@@ -7313,7 +7936,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                     return null;
                 }, true);
                 secondary.set(result);
-                result.assertThat = new Composite(veb, new Adhoc("!=", true), new Adhoc("null", true));
+                result.assertThat = new Composite(veb, Adhoc.of("!="), Adhoc.of("null"));
                 return result;
             });
             c.accept(bldr);
@@ -7404,7 +8027,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public B returning(String s) {
-            return add(new ReturnStatement(new Adhoc(s)));
+            return add(new ReturnStatement(Adhoc.of(s)));
         }
 
         public B returning(Value value) {
@@ -7417,7 +8040,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
          * @return this
          */
         public B returningThis() {
-            return add(new ReturnStatement(new Adhoc("this")));
+            return add(new ReturnStatement(Adhoc.of("this")));
         }
 
         /**
@@ -7459,7 +8082,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public B returning(boolean what) {
-            return add(new ReturnStatement(new Adhoc(Boolean.toString(what))));
+            return add(new ReturnStatement(Adhoc.of(Boolean.toString(what))));
         }
 
         public B returningNull() {
@@ -7471,7 +8094,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public B returningStringLiteral(String s) {
-            return add(new ReturnStatement(new Adhoc(LinesBuilder.stringLiteral(s))));
+            return add(new ReturnStatement(Adhoc.of(LinesBuilder.stringLiteral(s))));
         }
 
         public StringConcatenationBuilder<B> returningStringConcatenation() {
@@ -7495,7 +8118,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         public B returningStringConcatenation(String initialLiteral, Consumer<StringConcatenationBuilder<?>> c) {
             Holder<B> hold = new Holder<>();
             StringConcatenationBuilder<Void> scb = new StringConcatenationBuilder<>(
-                    new Adhoc(LinesBuilder.stringLiteral(initialLiteral)), bldr -> {
+                    Adhoc.of(LinesBuilder.stringLiteral(initialLiteral)), bldr -> {
                         hold.set(add(new ReturnStatement(bldr)));
                         return null;
                     });
@@ -7507,7 +8130,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         public B returningStringConcatenationExpression(String initialExpression, Consumer<StringConcatenationBuilder<?>> c) {
             Holder<B> hold = new Holder<>();
             StringConcatenationBuilder<Void> scb = new StringConcatenationBuilder<>(
-                    new Adhoc(initialExpression), bldr -> {
+                    Adhoc.of(initialExpression), bldr -> {
                         hold.set(add(new ReturnStatement(bldr)));
                         return null;
                     });
@@ -7760,13 +8383,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public StringConcatenationBuilder<T> assertingNotNull(String expression) {
-            assertThat = new Composite(new Adhoc(expression, true), new Adhoc("!=", true), new Adhoc("null", true));
+            assertThat = new Composite(new Adhoc(expression, true), Adhoc.of("!="), Adhoc.of("null"));
             return withMessage();
         }
 
         ValueExpressionBuilder<AssertionBuilder<T>> assertingNotNull() {
             return new ValueExpressionBuilder<>(veb -> {
-                assertThat = new Composite(veb, new Adhoc("!=", true), new Adhoc("null", true));
+                assertThat = new Composite(veb, Adhoc.of("!="), Adhoc.of("null"));
                 return this;
             });
         }
@@ -7868,7 +8491,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    public static final class DeclarationBuilder<T> extends CodeGeneratorBase {
+    public static final class DeclarationBuilder<T> extends CodeGeneratorBase implements Rewritable {
 
         private final Function<DeclarationBuilder<T>, T> converter;
         private final String name;
@@ -7886,6 +8509,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return this;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            if (!(initializer instanceof ArrayLiteralBuilder<?>)) {
+                initializer = rewrite(initializer, CodeGenerator.class, ExpressionPosition.STANDALONE, rewriter);
+            }
+        }
+
         public String declaredVariableName() {
             return name;
         }
@@ -7980,7 +8610,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public TypeAssignment<T> initializedWith(String init) {
-            this.initializer = new Adhoc(init);
+            this.initializer = Adhoc.of(init);
             return new TypeAssignment<>(ta -> {
                 this.as = ta.type;
                 return converter.apply(this);
@@ -7988,7 +8618,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public TypeAssignment<T> initializedWithStringLiteral(String init) {
-            this.initializer = new Adhoc(LinesBuilder.stringLiteral(init));
+            this.initializer = Adhoc.of(LinesBuilder.stringLiteral(init));
             return new TypeAssignment<>(ta -> {
                 this.as = ta.type;
                 return converter.apply(this);
@@ -8007,43 +8637,43 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         public T initializedTo(int intVal) {
             this.initializer = new NumberLiteral(intVal);
-            this.as = new Adhoc("int");
+            this.as = Adhoc.of("int");
             return converter.apply(this);
         }
 
         public T initializedTo(long longVal) {
             this.initializer = new NumberLiteral(longVal);
-            this.as = new Adhoc("long");
+            this.as = Adhoc.of("long");
             return converter.apply(this);
         }
 
         public T initializedTo(short shortVal) {
             this.initializer = new NumberLiteral(shortVal);
-            this.as = new Adhoc("short");
+            this.as = Adhoc.of("short");
             return converter.apply(this);
         }
 
         public T initializedTo(byte byteVal) {
             this.initializer = new NumberLiteral(byteVal);
-            this.as = new Adhoc("byte");
+            this.as = Adhoc.of("byte");
             return converter.apply(this);
         }
 
         public T initializedTo(double doubleVal) {
             this.initializer = new NumberLiteral(doubleVal);
-            this.as = new Adhoc("double");
+            this.as = Adhoc.of("double");
             return converter.apply(this);
         }
 
         public T initializedTo(float floatVal) {
             this.initializer = new NumberLiteral(floatVal);
-            this.as = new Adhoc("float");
+            this.as = Adhoc.of("float");
             return converter.apply(this);
         }
 
         public T initializedTo(boolean booleanLiteral) {
-            this.initializer = new Adhoc(booleanLiteral ? "true" : "false");
-            this.as = new Adhoc("boolean");
+            this.initializer = Adhoc.of(booleanLiteral ? "true" : "false");
+            this.as = Adhoc.of("boolean");
             return converter.apply(this);
         }
 
@@ -8060,7 +8690,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         public ConditionBuilder<T> initializedWithBooleanExpression() {
             return new ConditionBuilder<>(fcb -> {
                 initializer = fcb;
-                as = new TypeNameItem("boolean");
+                as = TypeNameItem.of("boolean");
                 return converter.apply(DeclarationBuilder.this);
             });
         }
@@ -8148,7 +8778,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T ofExpression(String expression) {
-            target = new Adhoc(notNull("expression", expression));
+            target = Adhoc.of(notNull("expression", expression));
             return converter.apply(this);
         }
 
@@ -8238,7 +8868,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
     public static final class IfBuilder<T> extends BlockBuilderBase<T, IfBuilder<T>, IfBuilder<T>> {
 
-        private BlockBuilderBase<?, ?, ?> finalElse;
+        private CodeGenerator finalElse;
         private final List<Pair<CodeGenerator, IfBuilder<?>>> clausePairs = new ArrayList<>();
 
         IfBuilder(Function<? super IfBuilder<T>, T> converter, CodeGenerator condition) {
@@ -8322,11 +8952,98 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         @Override
-        public void generateInto(LinesBuilder lines) {
-            lines.backup().onNewLine(); // XXX
-            assert !clausePairs.isEmpty();
-            for (int i = 0; i < clausePairs.size(); i++) {
-                Pair<CodeGenerator, IfBuilder<?>> pair = clausePairs.get(i);
+        public void rewriteChildren(Rewriter rewriter) {
+            for (ListIterator<Pair<CodeGenerator, IfBuilder<?>>> it = clausePairs.listIterator(); it.hasNext();) {
+                Pair<CodeGenerator, IfBuilder<?>> pair = it.next();
+                CodeGenerator cond = rewrite(pair.a, CodeGenerator.class, ExpressionPosition.STANDALONE, rewriter);
+                if (cond != pair.a) {
+                    it.set(new Pair<>(cond, pair.b));
+                }
+                if (pair.b == this) {
+                    super.rewriteChildren(rewriter);
+                } else {
+                    // Earlier clauses are IfBuilders which share our clause
+                    // list, so only their bodies are fair game
+                    rewriteAll(pair.b.statements, ExpressionPosition.STANDALONE, true, rewriter);
+                }
+            }
+            if (finalElse != null) {
+                rewriter.rewrite(finalElse, ExpressionPosition.STANDALONE);
+            }
+        }
+
+        Boolean completesNormally() {
+            return completesNormally(clausePairs, finalElse);
+        }
+
+        private static Boolean completesNormally(List<Pair<CodeGenerator, IfBuilder<?>>> clauses,
+                CodeGenerator elseBlock) {
+            if (elseBlock == null) {
+                // An if with no else can always complete normally, even if
+                // its condition is the literal true
+                return true;
+            }
+            boolean unknown = false;
+            for (Pair<CodeGenerator, IfBuilder<?>> pair : clauses) {
+                Boolean result = ClassBuilder.completesNormally(pair.b.statements);
+                if (result == null) {
+                    unknown = true;
+                } else if (result) {
+                    return true;
+                }
+            }
+            Boolean result = ClassBuilder.completesNormally(elseBlock);
+            if (result != null && result) {
+                return true;
+            }
+            return unknown || result == null ? null : false;
+        }
+
+        CodeGenerator withoutDeadClauses() {
+            List<Pair<CodeGenerator, IfBuilder<?>>> live = new ArrayList<>(clausePairs.size());
+            CodeGenerator newElse = finalElse;
+            boolean changed = false;
+            for (Pair<CodeGenerator, IfBuilder<?>> pair : clausePairs) {
+                Boolean val = constantCondition(pair.a);
+                if (val == null) {
+                    live.add(pair);
+                } else {
+                    changed = true;
+                    if (val) {
+                        newElse = new ClauseBlock(pair.b);
+                        break;
+                    }
+                }
+            }
+            if (!changed) {
+                return this;
+            }
+            // javac does not treat if (true) or if (false) specially when
+            // deciding if the code after an if is reachable, so removing a
+            // branch can make an if which could not complete normally into
+            // one that can, or vice versa; leave those alone
+            Boolean before = completesNormally();
+            Boolean after = live.isEmpty()
+                    ? (newElse == null ? Boolean.TRUE : ClassBuilder.completesNormally(newElse))
+                    : completesNormally(live, newElse);
+            if (before == null || !before.equals(after)) {
+                return this;
+            }
+            if (live.isEmpty()) {
+                return newElse == null ? CodeGenerator.EMPTY : new BareBlock(newElse);
+            }
+            clausePairs.clear();
+            clausePairs.addAll(live);
+            finalElse = newElse;
+            return this;
+        }
+
+        @Override
+        public void generateInto(LinesBuilder lines) {
+            lines.backup().onNewLine(); // XXX
+            assert !clausePairs.isEmpty();
+            for (int i = 0; i < clausePairs.size(); i++) {
+                Pair<CodeGenerator, IfBuilder<?>> pair = clausePairs.get(i);
                 if (i == 0) {
                     lines.onNewLine();
                     lines.word("if ");
@@ -8380,7 +9097,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    public static final class ConditionBuilder<T> extends CodeGeneratorBase {
+    public static final class ConditionBuilder<T> extends CodeGeneratorBase implements Rewritable {
 
         private final Function<CodeGenerator, T> converter;
         private boolean negated;
@@ -8399,6 +9116,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             this.op = op;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            prev = rewrite(prev, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+            clause = rewrite(clause, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         public ConditionBuilder<ParenthesizedCondition<ComparisonBuilder<T>>> parenthesize() {
             ConditionBuilder<ParenthesizedCondition<ComparisonBuilder<T>>> cp
                     = new ConditionBuilder<ParenthesizedCondition<ComparisonBuilder<T>>>(cb -> {
@@ -8453,7 +9176,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public NumericOrBitwiseExpressionBuilder<ComparisonBuilder<T>> numericCondition(String initialExpression) {
-            return numericCondition(new Adhoc(initialExpression));
+            return numericCondition(Adhoc.of(initialExpression));
         }
 
         public NumericOrBitwiseExpressionBuilder<ComparisonBuilder<T>> numericCondition(Number initialLiteral) {
@@ -8461,7 +9184,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public ComparisonBuilder<T> numericCondition(String initialExpression, Consumer<NumericOrBitwiseExpressionBuilder<?>> c) {
-            return numericCondition(new Adhoc(initialExpression), c);
+            return numericCondition(Adhoc.of(initialExpression), c);
         }
 
         public ComparisonBuilder<T> numericCondition(Number initialLiteral, Consumer<NumericOrBitwiseExpressionBuilder<?>> c) {
@@ -8499,14 +9222,14 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         public FinishableConditionBuilder<T> isNotNull(String name) {
             ConditionRightSideBuilder<T> crb = new ConditionRightSideBuilder<T>(converter,
-                    new Adhoc(name), ComparisonOperation.NE);
-            return new FinishableConditionBuilder<T>(converter, crb, new Adhoc("null"));
+                    Adhoc.of(name), ComparisonOperation.NE);
+            return new FinishableConditionBuilder<T>(converter, crb, Adhoc.of("null"));
         }
 
         public FinishableConditionBuilder<T> isNull(String name) {
             ConditionRightSideBuilder<T> crb = new ConditionRightSideBuilder<T>(converter,
-                    new Adhoc(name), ComparisonOperation.EQ);
-            return new FinishableConditionBuilder<T>(converter, crb, new Adhoc("null"));
+                    Adhoc.of(name), ComparisonOperation.EQ);
+            return new FinishableConditionBuilder<T>(converter, crb, Adhoc.of("null"));
         }
 
         @Deprecated
@@ -8525,7 +9248,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public ComparisonBuilder<T> variable(String name) {
-            clause = new Adhoc(name);
+            clause = Adhoc.of(name);
             return new ComparisonBuilder<>(this);
         }
 
@@ -8557,12 +9280,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T booleanExpression(String expression) {
-            clause = new Adhoc(expression);
+            clause = Adhoc.of(expression);
             return converter.apply(this);
         }
 
         public ComparisonBuilder<T> literal(String lit) {
-            clause = new Adhoc(LinesBuilder.stringLiteral(lit));
+            clause = Adhoc.of(LinesBuilder.stringLiteral(lit));
             return new ComparisonBuilder<>(this);
         }
 
@@ -8572,12 +9295,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public ComparisonBuilder<T> literal(char val) {
-            clause = new Adhoc(friendlyChar(val));
+            clause = Adhoc.of(friendlyChar(val));
             return new ComparisonBuilder<>(this);
         }
 
         public FinishableConditionBuilder<T> literal(boolean val) {
-            clause = new Adhoc(Boolean.toString(val));
+            clause = Adhoc.of(Boolean.toString(val));
             FinishableConditionBuilder<T> result = new FinishableConditionBuilder<>(fcb -> {
                 return converter.apply(fcb);
             }, new ConditionRightSideBuilder<>(null, this, null), null);
@@ -8677,7 +9400,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         public FinishableConditionBuilder<T> isFalse() {
             ConditionRightSideBuilder<T> cb = new ConditionRightSideBuilder<>(converter(), leftSide, null);
             return new FinishableConditionBuilder<>(fcb -> {
-                return converter().apply(new Composite(new Adhoc("!"), fcb));
+                return converter().apply(new Composite(Adhoc.of("!"), fcb));
             }, cb, null);
         }
 
@@ -8751,21 +9474,21 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
          */
         public T isEquals(String expression) {
             return leftSide.converter.apply(new Composite(leftSide,
-                    new Adhoc(".equals", true),
+                    Adhoc.of(".equals"),
                     new Punctuation('('),
-                    new Adhoc(expression), new Punctuation(')')));
+                    Adhoc.of(expression), new Punctuation(')')));
         }
 
         public InvocationBuilder<T> equalsInvocationOf(String what) {
             return new InvocationBuilder<>(ib -> {
-                return converter().apply(new Composite(leftSide, new Adhoc(".equals", true),
+                return converter().apply(new Composite(leftSide, Adhoc.of(".equals"),
                         new Punctuation('('), ib, new Punctuation(')')));
             }, what);
         }
 
         public InvocationBuilder<T> notEqualsInvocationOf(String what) {
             return new InvocationBuilder<>(ib -> {
-                return converter().apply(new Composite(new Punctuation('!'), leftSide, new Adhoc(".equals", true),
+                return converter().apply(new Composite(new Punctuation('!'), leftSide, Adhoc.of(".equals"),
                         new Punctuation('('), ib, new Punctuation(')')));
             }, what);
         }
@@ -8808,7 +9531,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         public FieldReferenceBuilder<T> equalsField(String name) {
             return new FieldReferenceBuilder<>(name, frb -> {
-                return converter().apply(new Composite(leftSide, new Adhoc(".equals", true),
+                return converter().apply(new Composite(leftSide, Adhoc.of(".equals"),
                         new Punctuation('('),
                         frb, new Punctuation(')')));
             });
@@ -8817,7 +9540,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         public FieldReferenceBuilder<T> isNotEqualsField(String name) {
             return new FieldReferenceBuilder<>(name, frb -> {
                 return converter().apply(new Composite(new Punctuation('!'),
-                        leftSide, new Adhoc(".equals", true),
+                        leftSide, Adhoc.of(".equals"),
                         new Punctuation('('),
                         frb, new Punctuation(')')));
             });
@@ -8860,23 +9583,23 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public T isEqualToString(String lit) {
-            return converter().apply(new Composite(leftSide, new Adhoc(".equals", true),
+            return converter().apply(new Composite(leftSide, Adhoc.of(".equals"),
                     new Punctuation('('),
-                    new Adhoc(LinesBuilder.stringLiteral(lit)), new Punctuation(')')));
+                    Adhoc.of(LinesBuilder.stringLiteral(lit)), new Punctuation(')')));
         }
 
         public T isNotEquals(String expression) {
             return converter().apply(new Composite(new Punctuation('!'),
-                    leftSide, new Adhoc(".equals", true),
+                    leftSide, Adhoc.of(".equals"),
                     new Punctuation('('),
-                    new Adhoc(expression), new Punctuation(')')));
+                    Adhoc.of(expression), new Punctuation(')')));
         }
 
         public T isNotEqualToString(String lit) {
             return converter().apply(new Composite(new Punctuation('!'),
-                    leftSide, new Adhoc(".equals", true),
+                    leftSide, Adhoc.of(".equals"),
                     new Punctuation('('),
-                    new Adhoc(LinesBuilder.stringLiteral(lit)), new Punctuation(')')));
+                    Adhoc.of(LinesBuilder.stringLiteral(lit)), new Punctuation(')')));
         }
 
         public ValueExpressionBuilder<T> isEqualTo() {
@@ -9114,11 +9837,11 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    public static final class ConditionRightSideBuilder<T> extends CodeGeneratorBase {
+    public static final class ConditionRightSideBuilder<T> extends CodeGeneratorBase implements Rewritable {
 
         private final Function<CodeGenerator, T> converter;
         boolean negated;
-        final CodeGenerator leftSide;
+        CodeGenerator leftSide;
         final ComparisonOperation op;
 
         ConditionRightSideBuilder(Function<CodeGenerator, T> converter, CodeGenerator leftSide, ComparisonOperation op) {
@@ -9135,6 +9858,11 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return (negated ? "!" : "") + leftSide + " " + op;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            leftSide = rewrite(leftSide, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         public FieldReferenceBuilder<FinishableConditionBuilder<T>> field(String name) {
             return veb().field(name);
         }
@@ -9152,7 +9880,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public FinishableConditionBuilder<T> expression(String expression) {
-            return new FinishableConditionBuilder<>(converter, this, new Adhoc(expression));
+            return new FinishableConditionBuilder<>(converter, this, Adhoc.of(expression));
         }
 
         public FinishableConditionBuilder<T> literal(boolean val) {
@@ -9260,14 +9988,19 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    static final class NegatedWrapper implements CodeGenerator {
+    static final class NegatedWrapper implements CodeGenerator, Rewritable {
 
-        private final CodeGenerator bb;
+        private CodeGenerator bb;
 
         NegatedWrapper(CodeGenerator bb) {
             this.bb = bb;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            bb = rewrite(bb, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             lines.appendRaw('!');
@@ -9279,11 +10012,11 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    public static final class FinishableConditionBuilder<T> extends CodeGeneratorBase {
+    public static final class FinishableConditionBuilder<T> extends CodeGeneratorBase implements Rewritable {
 
         private final Function<CodeGenerator, T> converter;
         final ConditionRightSideBuilder<?> leftSideAndOp;
-        private final CodeGenerator rightSide;
+        private CodeGenerator rightSide;
 
         FinishableConditionBuilder(Function<CodeGenerator, T> converter, ConditionRightSideBuilder<?> leftSideAndOp, CodeGenerator rightSide) {
             this.converter = converter;
@@ -9296,6 +10029,14 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             return leftSideAndOp + " " + rightSide;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            if (leftSideAndOp != null) {
+                rewriter.rewrite(leftSideAndOp, ExpressionPosition.OPERAND);
+            }
+            rightSide = rewrite(rightSide, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         public ConditionBuilder<T> or() {
             return new ConditionBuilder<>(converter, this, LogicalOperation.OR);
         }
@@ -9454,7 +10195,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    public static final class SwitchBuilder<T> extends CodeGeneratorBase {
+    public static final class SwitchBuilder<T> extends CodeGeneratorBase implements Rewritable {
 
         private final Function<SwitchBuilder<T>, T> converter;
         private final Map<Object, CodeGenerator> cases = new LinkedHashMap<>();
@@ -9463,7 +10204,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         SwitchBuilder(Function<SwitchBuilder<T>, T> converter, String on) {
             this.converter = converter;
-            this.what = new Adhoc(on);
+            this.what = Adhoc.of(on);
         }
 
         SwitchBuilder(Function<SwitchBuilder<T>, T> converter, CodeGenerator on) {
@@ -9613,6 +10354,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                 }
             });
         }
+
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            for (CodeGenerator body : cases.values()) {
+                rewriter.rewrite(body, ExpressionPosition.STANDALONE);
+            }
+        }
     }
 
     public static final class ArrayValueBuilder<T> extends CodeGeneratorBase {
@@ -9793,12 +10541,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public AnnotationBuilder<T> addExpressionArgument(String name, String value) {
-            arguments.put(name, new Adhoc(value));
+            arguments.put(name, Adhoc.of(value));
             return this;
         }
 
         public AnnotationBuilder<T> addArgument(String name, boolean value) {
-            arguments.put(name, new Adhoc(Boolean.toString(value)));
+            arguments.put(name, Adhoc.of(Boolean.toString(value)));
             return this;
         }
 
@@ -9808,7 +10556,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public AnnotationBuilder<T> addArgument(String name, String value) {
-            arguments.put(name, new Adhoc(LinesBuilder.stringLiteral(value)));
+            arguments.put(name, Adhoc.of(LinesBuilder.stringLiteral(value)));
             return this;
         }
 
@@ -9829,7 +10577,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
                     }
                 }).closeAnnotation();
             }
-            arguments.put("value", new Adhoc(LinesBuilder.stringLiteral(value)));
+            arguments.put("value", Adhoc.of(LinesBuilder.stringLiteral(value)));
             return converter.apply(this);
         }
 
@@ -9838,7 +10586,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         public AnnotationBuilder<T> addClassArgument(String name, String type) {
-            arguments.put(name, new Adhoc(type + ".class"));
+            arguments.put(name, Adhoc.of(type + ".class"));
             return this;
         }
 
@@ -9966,14 +10714,14 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
     }
 
     public static final class FieldBuilder<T> extends CodeGeneratorBase
-            implements NamedMember, Annotatable<T, FieldBuilder<T>> {
+            implements NamedMember, Annotatable<T, FieldBuilder<T>>, Rewritable {
 
         private final Function<FieldBuilder<T>, T> converter;
         private CodeGenerator type;
         private CodeGenerator initializer;
-        private final Set<Modifier> modifiers = new TreeSet<>();
+        private final Set<Modifier> modifiers = EnumSet.noneOf(Modifier.class);
         private final String name;
-        private Set<AnnotationBuilder> annotations = new LinkedHashSet<>();
+        private Set<AnnotationBuilder> annotations = Collections.emptySet();
         private String docComment;
 
         FieldBuilder(Function<FieldBuilder<T>, T> converter, String name) {
@@ -10089,6 +10837,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         private AnnotationBuilder<FieldBuilder<T>> annotatedWith(String anno, boolean[] built) {
             return new AnnotationBuilder<>(ab -> {
+                if (annotations.isEmpty()) {
+                    annotations = new LinkedHashSet<>(4);
+                }
                 annotations.add(ab);
                 built[0] = true;
                 return this;
@@ -10117,8 +10868,8 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             if (initializer != null) {
                 throw new IllegalStateException("Initializer already set");
             }
-            initializer = new Adhoc(LinesBuilder.stringLiteral(stringLiteral));
-            type = new TypeNameItem("String");
+            initializer = Adhoc.of(LinesBuilder.stringLiteral(stringLiteral));
+            type = TypeNameItem.of("String");
             return converter.apply(this);
         }
 
@@ -10126,8 +10877,8 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             if (initializer != null) {
                 throw new IllegalStateException("Initializer already set");
             }
-            initializer = new Adhoc(LinesBuilder.escapeCharLiteral(ch));
-            type = new TypeNameItem("char");
+            initializer = Adhoc.of(LinesBuilder.escapeCharLiteral(ch));
+            type = TypeNameItem.of("char");
             return converter.apply(this);
         }
 
@@ -10142,7 +10893,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             } else {
                 typeName = num.getClass().getSimpleName().toLowerCase();
             }
-            type = new TypeNameItem(typeName);
+            type = TypeNameItem.of(typeName);
             return converter.apply(this);
         }
 
@@ -10150,11 +10901,16 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             if (initializer != null) {
                 throw new IllegalStateException("Initializer already set");
             }
-            initializer = new Adhoc(Boolean.toString(val));
-            type = new TypeNameItem("boolean");
+            initializer = Adhoc.of(Boolean.toString(val));
+            type = TypeNameItem.of("boolean");
             return converter.apply(this);
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            initializer = rewrite(initializer, CodeGenerator.class, ExpressionPosition.STANDALONE, rewriter);
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             lines.onNewLine();
@@ -10167,7 +10923,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             }
             lines.statement(lb -> {
                 for (Modifier m : modifiers) {
-                    lb.word(m.toString());
+                    lb.word(modifierWord(m));
                 }
                 if (type != null) {
                     type.generateInto(lb);
@@ -10188,7 +10944,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             if (this.initializer != null) {
                 throw new IllegalStateException("Initializer already set");
             }
-            this.initializer = new Adhoc(expression);
+            this.initializer = Adhoc.of(expression);
             return this;
         }
 
@@ -10311,9 +11067,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    static class StatementWrapper extends CodeGeneratorBase {
+    static class StatementWrapper extends CodeGeneratorBase implements Rewritable {
 
-        private final CodeGenerator bb;
+        private CodeGenerator bb;
 
         StatementWrapper(CodeGenerator... multi) {
             this(new Composite(multi));
@@ -10324,11 +11080,16 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
 
         StatementWrapper(String what) {
-            this(new Adhoc(what));
+            this(Adhoc.of(what));
         }
 
         StatementWrapper(String a, String b) {
-            this(new Adhoc(a), new Adhoc(b));
+            this(Adhoc.of(a), Adhoc.of(b));
+        }
+
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            bb = rewrite(bb, CodeGenerator.class, ExpressionPosition.STANDALONE, rewriter);
         }
 
         @Override
@@ -10377,14 +11138,19 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    static final class ReturnStatement extends CodeGeneratorBase {
+    static final class ReturnStatement extends CodeGeneratorBase implements Rewritable {
 
-        private final CodeGenerator what;
+        private CodeGenerator what;
 
         ReturnStatement(CodeGenerator what) {
             this.what = what;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            what = rewrite(what, CodeGenerator.class, ExpressionPosition.STANDALONE, rewriter);
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             lines.statement(lb -> {
@@ -10396,159 +11162,1442 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    private static final Pattern ARR = Pattern.compile("^\\s*?(\\S+)\\s*?\\[\\s*?\\]\\s*$");
-
-    private static String checkIdentifier(String name) {
-        return checkIdentifier(name, false);
+    /**
+     * Where a node being optimized is rendered relative to the code around it,
+     * which determines whether it is safe to rewrite it in ways that change
+     * which operands its operators bind to.
+     *
+     * @see OptimizationPass
+     */
+    public enum ExpressionPosition {
+        /**
+         * The node is a statement, or is rendered somewhere nothing else can
+         * bind to its operators - a return value, an initializer, an
+         * invocation argument, or inside parentheses.
+         */
+        STANDALONE,
+        /**
+         * The node is rendered, without parentheses of its own, as one operand
+         * of some enclosing expression - so, for example, <code>2 + 3</code>
+         * cannot be replaced with <code>5</code> if it is preceded by
+         * <code>4 *</code>.
+         */
+        OPERAND
     }
 
-    private static void checkKeyword(String name) {
-        if (Arrays.binarySearch(JAVA_RESERVED_SANS_IDENTIFIER_LIKE, name) >= 0) {
-            throw new IllegalArgumentException("'" + name + "' is a java keyword.");
-        }
+    /**
+     * A rewriting pass over the tree of code generators held by a
+     * ClassBuilder, run once, just before its source is generated, if enabled
+     * with {@link ClassBuilder#optimizing(OptimizationPass...)}. Passes are
+     * applied bottom-up - the children of a node have already been optimized
+     * when the node is passed to a pass - and are reapplied to a node until
+     * it stops changing.
+     *
+     * @see StandardOptimizations
+     */
+    @FunctionalInterface
+    public interface OptimizationPass {
+
+        /**
+         * Optimize one node.
+         *
+         * @param node A node
+         * @param position Whether operators in the node's output can bind to
+         * the code around it
+         * @return The node itself (possibly altered), a replacement for it, or
+         * <code>CodeGenerator.EMPTY</code> to remove a statement; a
+         * replacement of a type its parent cannot hold is ignored
+         */
+        CodeGenerator optimize(CodeGenerator node, ExpressionPosition position);
     }
 
-    private static String checkIdentifier(String name, boolean emptyOk) {
-        if (name == null) {
-            throw new IllegalArgumentException("Null identifier");
-        }
-        if (name.trim().isEmpty()) {
-            if (emptyOk) {
-                return name;
+    /**
+     * The built-in optimization passes. Each is conservative: anything whose
+     * meaning it cannot be sure of, such as expressions passed in as strings,
+     * is left as-is.
+     */
+    public enum StandardOptimizations implements OptimizationPass {
+        /**
+         * Evaluate arithmetic, bitwise and logical operations whose operands
+         * are all literals, following Java's rules for numeric promotion and
+         * operator precedence, and drop logical operations which cannot change
+         * their operand, such as <code>true &amp;&amp; x</code>. Numeric
+         * identities such as <code>x * 1</code> are kept, since the type of
+         * <code>x</code> is not known and dropping them could change the type
+         * or value of the result.
+         */
+        FOLD_CONSTANT_ARITHMETIC,
+        /**
+         * Merge adjacent literals in string concatenations into a single
+         * string literal.
+         */
+        FOLD_STRING_CONCATENATION,
+        /**
+         * Remove if-clauses whose condition is the literal
+         * <code>false</code>, everything after a clause whose condition is the
+         * literal <code>true</code>, <code>while(false)</code> loops, and the
+         * untaken side of ternaries with a literal test. An if statement is
+         * only rewritten if doing so cannot change whether the code after it
+         * is reachable.
+         */
+        REMOVE_DEAD_BRANCHES,
+        /**
+         * Remove parentheses around single variables and literals, and around
+         * anything in a position where they cannot affect operator binding.
+         */
+        COLLAPSE_REDUNDANT_PARENTHESES;
+
+        @Override
+        public CodeGenerator optimize(CodeGenerator node, ExpressionPosition position) {
+            switch (this) {
+                case FOLD_CONSTANT_ARITHMETIC:
+                    return ExpressionFolder.ARITHMETIC.fold(node, position);
+                case FOLD_STRING_CONCATENATION:
+                    if (node instanceof StringConcatenationBuilder<?>) {
+                        ((StringConcatenationBuilder<?>) node).mergeLiterals(position);
+                        return node;
+                    }
+                    return ExpressionFolder.STRINGS.fold(node, position);
+                case REMOVE_DEAD_BRANCHES:
+                    return removeDeadBranches(node, position);
+                case COLLAPSE_REDUNDANT_PARENTHESES:
+                    return collapseParentheses(node, position);
+                default:
+                    throw new AssertionError(this);
             }
-            throw new IllegalArgumentException("Empty or all-whitespace "
-                    + "identifier: '" + name + "'");
-        }
-        checkKeyword(name);
-        Matcher arrM = ARR.matcher(name);
-        if (arrM.find()) {
-            checkIdentifier(arrM.group(1));
-            return name;
         }
-        if (name.indexOf('<') > 0) {
-            visitTypeNames(name, nm -> {
-                checkIdentifier(nm, true);
-            });
-            return name;
-        } else if (name.indexOf('.') > 0) {
-            for (String nm : name.split("\\.")) {
-                checkIdentifier(nm, false);
+
+        /**
+         * Get the value of a code generator if it is a literal - a number,
+         * string, character or boolean, possibly parenthesized.
+         *
+         * @param gen A code generator
+         * @return The value, or empty if it is not a literal
+         */
+        public static Optional<Object> constantValue(CodeGenerator gen) {
+            return Optional.ofNullable(ExpressionFolder.constant(gen));
+        }
+
+        private static CodeGenerator removeDeadBranches(CodeGenerator node, ExpressionPosition position) {
+            if (node instanceof IfBuilder<?>) {
+                return ((IfBuilder<?>) node).withoutDeadClauses();
+            } else if (node instanceof WhileBuilder<?>) {
+                WhileBuilder<?> wb = (WhileBuilder<?>) node;
+                if (!wb.tailCondition && Boolean.FALSE.equals(constantCondition(wb.condition))) {
+                    // The body of while(false) is unreachable, and javac
+                    // would reject it unless it is empty
+                    return CodeGenerator.EMPTY;
+                }
+            } else if (position == ExpressionPosition.STANDALONE) {
+                if (node instanceof TernaryBuilder<?>) {
+                    TernaryBuilder<?> tb = (TernaryBuilder<?>) node;
+                    Boolean test = constantCondition(tb.condition);
+                    if (test != null) {
+                        return test ? tb.trueSide : tb.falseSide;
+                    }
+                } else if (node instanceof TernaryValue) {
+                    TernaryValue tv = (TernaryValue) node;
+                    Boolean test = constantCondition(tv.test);
+                    if (test != null) {
+                        return test ? tv.ifTrue : tv.ifFalse;
+                    }
+                }
             }
-            return name;
+            return node;
         }
-        int max = name.length();
-        for (int i = 0; i < max; i++) {
-            char c = name.charAt(i);
-            if (i == 0 && !Character.isJavaIdentifierStart(c)) {
-                throw new IllegalArgumentException("A java identifier cannot start with '" + c + "': " + name);
-            } else if (!Character.isJavaIdentifierPart(c)) {
-                throw new IllegalArgumentException("A java identifier cannot contain '" + c + "': " + name);
+
+        private static CodeGenerator collapseParentheses(CodeGenerator node, ExpressionPosition position) {
+            if (node instanceof Parenthesized) {
+                Parenthesized par = (Parenthesized) node;
+                if (par.contents.size() == 1 && par.contents.get(0) instanceof Value) {
+                    Value inner = (Value) par.contents.get(0);
+                    if (position == ExpressionPosition.STANDALONE || isAtomic(inner)) {
+                        return inner;
+                    }
+                }
+            } else if (node instanceof ValueExpressionBuilder<?>) {
+                ValueExpressionBuilder<?> veb = (ValueExpressionBuilder<?>) node;
+                if (veb.parenthesized && veb.cast == null
+                        && (position == ExpressionPosition.STANDALONE || isAtomic(veb.value))) {
+                    veb.parenthesized = false;
+                }
             }
+            return node;
         }
-        return name;
-    }
 
-    // This list MUST remain sorted
-    private static final String[] JAVA_RESERVED_SANS_IDENTIFIER_LIKE = new String[]{
-        "abstract", "assert", "break", "case",
-        "catch", "class", "const", "continue", "default",
-        "do", "else", "enum", "extends", "final",
-        "finally", "for", "goto", "if", "implements",
-        "import", "instanceof", "interface",
-        "native", "new", "package", "private", "protected",
-        "public", "return", "static", "strictfp",
-        "switch", "synchronized", "throw",
-        "throws", "transient", "try", "volatile", "while"
-    };
+        private static final Pattern ATOM = Pattern.compile(
+                "^(?:[\\p{javaJavaIdentifierStart}][\\p{javaJavaIdentifierPart}.]*|\\d[\\w.]*)$");
 
-    static CodeGenerator friendlyNumber(Number num) {
-        CodeGenerator result;
-        if (num instanceof Long) {
-            if (num.longValue() == Long.MAX_VALUE) {
-                result = new Adhoc("Long.MAX_VALUE");
-            } else if (num.longValue() == Long.MIN_VALUE) {
-                result = new Adhoc("Long.MIN_VALUE");
-            } else {
-                result = new Adhoc(friendlyLong((Long) num) + "L");
-            }
-        } else if (num instanceof Integer) {
-            if (num.intValue() == Integer.MAX_VALUE) {
-                return new Adhoc("Integer.MAX_VALUE");
-            } else if (num.intValue() == Integer.MIN_VALUE) {
-                return new Adhoc("Integer.MIN_VALUE");
-            } else {
-                result = new Adhoc(friendlyInt(num));
-            }
-        } else if (num instanceof Double) {
-            if (num.doubleValue() == Double.MAX_VALUE) {
-                return new Adhoc("Integer.MAX_VALUE");
-            } else if (num.doubleValue() == Double.MIN_VALUE) {
-                return new Adhoc("Double.MIN_VALUE");
-            } else {
-                result = new Adhoc(num.toString() + "D");
-            }
-        } else if (num instanceof Float) {
-            if (num.floatValue() == Float.MAX_VALUE) {
-                return new Adhoc("Float.MAX_VALUE");
-            } else if (num.floatValue() == Float.MIN_VALUE) {
-                return new Adhoc("Float.MIN_VALUE");
-            } else {
-                result = new Adhoc(num.toString() + "F");
-            }
-        } else if (num instanceof Short) {
-            if (num.shortValue() == Short.MAX_VALUE) {
-                return new Adhoc("Short.MAX_VALUE");
-            } else if (num.shortValue() == Short.MIN_VALUE) {
-                return new Adhoc("Short.MIN_VALUE");
-            } else {
-                result = new Adhoc("(short) " + Short.toString(num.shortValue()));
+        private static boolean isAtomic(CodeGenerator gen) {
+            if (gen instanceof Variable || gen instanceof StringLiteralValue
+                    || gen instanceof BooleanValue || gen instanceof Parenthesized) {
+                return true;
+            } else if (gen instanceof NumberLiteral) {
+                Number num = ((NumberLiteral) gen).num;
+                return !(num instanceof Short) && !(num instanceof Byte)
+                        && num.doubleValue() >= 0;
+            } else if (gen instanceof Adhoc) {
+                return ATOM.matcher(gen.toString()).matches();
             }
-        } else if (num instanceof Byte) {
-            if (num.byteValue() == Byte.MAX_VALUE) {
-                result = new Adhoc("Byte.MAX_VALUE");
-            } else if (num.byteValue() == Byte.MIN_VALUE) {
-                result = new Adhoc("Byte.MIN_VALUE");
+            return false;
+        }
+    }
+
+    /**
+     * Determine if a condition is the literal <code>true</code> or
+     * <code>false</code>, possibly parenthesized or negated.
+     *
+     * @param condition A condition
+     * @return The value, or null if it is not a literal
+     */
+    static Boolean constantCondition(CodeGenerator condition) {
+        if (condition == null) {
+            return null;
+        }
+        Object val = ExpressionFolder.constant(condition);
+        if (val instanceof Boolean) {
+            return (Boolean) val;
+        }
+        LinesBuilder lb = new LinesBuilder();
+        condition.generateInto(lb);
+        String txt = lb.toString().replaceAll("\\s+", "");
+        boolean negated = false;
+        for (;;) {
+            if (txt.startsWith("!")) {
+                negated = !negated;
+                txt = txt.substring(1);
+            } else if (txt.length() > 1 && txt.charAt(0) == '('
+                    && closingParen(txt) == txt.length() - 1) {
+                txt = txt.substring(1, txt.length() - 1);
             } else {
-//                result = new Adhoc("(byte) " + Integer.toString(num.byteValue()));
-                result = new Adhoc(friendlyByte(num.byteValue()));
+                break;
             }
-        } else {
-            result = new Adhoc(num.toString());
         }
-        return result;
+        switch (txt) {
+            case "true":
+                return !negated;
+            case "false":
+                return negated;
+            default:
+                return null;
+        }
     }
 
-    static String friendlyChar(char c) {
-        switch (c) {
-            case Character.MIN_VALUE:
-                return "Character.MIN_VALUE";
-            case Character.MAX_VALUE:
-                return "Character.MAX_VALUE";
-            case Character.MAX_HIGH_SURROGATE:
-                return "Character.MAX_HIGH_SURROGATE";
-            case Character.MAX_LOW_SURROGATE:
-                return "Character.MAX_LOW_SURROGATE";
-            case Character.MIN_LOW_SURROGATE:
-                return "Character.MIN_LOW_SURROGATE";
-            case Character.MIN_HIGH_SURROGATE:
-                return "Character.MIN_HIGH_SURROGATE";
-            default:
-                return LinesBuilder.escapeCharLiteral(c);
+    private static int closingParen(String txt) {
+        int depth = 0;
+        for (int i = 0; i < txt.length(); i++) {
+            switch (txt.charAt(i)) {
+                case '(':
+                    depth++;
+                    break;
+                case ')':
+                    if (--depth == 0) {
+                        return i;
+                    }
+                    break;
+                default:
+                    break;
+            }
         }
+        return -1;
     }
 
-    static String friendlyByte(byte b) {
-        int val = b & 0x000000FF;
-        String result = Integer.toHexString(val);
-        if (result.length() == 1) {
-            return "0x0" + result;
-        } else {
-            return "(byte) 0x" + result;
+    /**
+     * Determine whether a statement can complete normally in the sense of
+     * JLS 14.22, which is what decides whether the statement after it is
+     * reachable.
+     *
+     * @param statement A statement
+     * @return True or false, or null if it cannot be determined
+     */
+    static Boolean completesNormally(CodeGenerator statement) {
+        if (statement instanceof ReturnStatement) {
+            return false;
+        } else if (statement instanceof IfBuilder<?>) {
+            return ((IfBuilder<?>) statement).completesNormally();
+        } else if (statement instanceof BlockBuilder<?> || statement instanceof ElseClauseBuilder<?>) {
+            return completesNormally(((BlockBuilderBase<?, ?, ?>) statement).statements);
+        } else if (statement instanceof BareBlock) {
+            return completesNormally(((BareBlock) statement).block);
+        } else if (statement instanceof ClauseBlock) {
+            return completesNormally(((ClauseBlock) statement).clause.statements);
+        } else if (statement instanceof StatementWrapper) {
+            LinesBuilder lb = new LinesBuilder();
+            statement.generateInto(lb);
+            String txt = lb.toString().trim();
+            int end = 0;
+            while (end < txt.length() && Character.isJavaIdentifierPart(txt.charAt(end))) {
+                end++;
+            }
+            switch (txt.substring(0, end)) {
+                case "throw":
+                case "return":
+                case "break":
+                case "continue":
+                    return false;
+                case "do":
+                case "for":
+                case "while":
+                case "switch":
+                case "synchronized":
+                case "try":
+                case "yield":
+                    return null;
+                default:
+                    return true;
+            }
+        } else if (statement instanceof DeclarationBuilder<?> || statement instanceof AssignmentBuilder<?>
+                || statement instanceof InvocationBuilder<?> || statement instanceof LineComment
+                || statement instanceof DocComment || statement == CodeGenerator.EMPTY) {
+            return true;
         }
+        return null;
     }
 
-    static String friendlyLong(Number lng) {
-        return friendlyLong(lng.longValue());
+    static Boolean completesNormally(List<? extends CodeGenerator> statements) {
+        for (CodeGenerator st : statements) {
+            Boolean result = completesNormally(st);
+            if (result == null || !result) {
+                return result;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A block which used to be a branch of an if statement, emitted as a
+     * plain block so that anything declared in it stays scoped to it.
+     */
+    static final class BareBlock extends CodeGeneratorBase {
+
+        private final CodeGenerator block;
+
+        BareBlock(CodeGenerator block) {
+            this.block = block;
+        }
+
+        @Override
+        public void generateInto(LinesBuilder lines) {
+            lines.onNewLine();
+            block.generateInto(lines);
+        }
+    }
+
+    /**
+     * The body of one clause of an if statement, usable as its final else.
+     */
+    static final class ClauseBlock extends CodeGeneratorBase {
+
+        private final IfBuilder<?> clause;
+
+        ClauseBlock(IfBuilder<?> clause) {
+            this.clause = clause;
+        }
+
+        @Override
+        public void generateInto(LinesBuilder lines) {
+            clause.writeBlockInto(lines);
+        }
+    }
+
+    @FunctionalInterface
+    interface Rewriter {
+
+        CodeGenerator rewrite(CodeGenerator node, ExpressionPosition position);
+    }
+
+    /**
+     * Implemented by builders whose children can be replaced by an
+     * optimization pass.
+     */
+    interface Rewritable {
+
+        void rewriteChildren(Rewriter rewriter);
+    }
+
+    private static final int MAX_OPTIMIZATION_ROUNDS = 8;
+
+    static CodeGenerator optimize(CodeGenerator node, ExpressionPosition position,
+            List<? extends OptimizationPass> passes) {
+        if (node instanceof Rewritable) {
+            ((Rewritable) node).rewriteChildren((child, pos) -> optimize(child, pos, passes));
+        } else if (node instanceof ClassBuilder<?>) {
+            ((ClassBuilder<?>) node).rewriteChildren((child, pos) -> optimize(child, pos, passes));
+        }
+        CodeGenerator result = node;
+        for (int i = 0; i < MAX_OPTIMIZATION_ROUNDS; i++) {
+            CodeGenerator prev = result;
+            for (OptimizationPass pass : passes) {
+                CodeGenerator nue = pass.optimize(result, position);
+                if (nue == null) {
+                    throw new IllegalStateException(pass + " returned null for " + result);
+                }
+                result = nue;
+                if (result == CodeGenerator.EMPTY) {
+                    return result;
+                }
+            }
+            if (result == prev) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <C extends CodeGenerator> C rewrite(C orig, Class<? super C> type,
+            ExpressionPosition position, Rewriter rewriter) {
+        if (orig == null) {
+            return null;
+        }
+        CodeGenerator result = rewriter.rewrite(orig, position);
+        return result != CodeGenerator.EMPTY && type.isInstance(result) ? (C) result : orig;
+    }
+
+    static void rewriteAll(List<CodeGenerator> items, ExpressionPosition position,
+            boolean removable, Rewriter rewriter) {
+        for (ListIterator<CodeGenerator> it = items.listIterator(); it.hasNext();) {
+            CodeGenerator orig = it.next();
+            CodeGenerator result = rewriter.rewrite(orig, position);
+            if (result == CodeGenerator.EMPTY) {
+                if (removable) {
+                    it.remove();
+                }
+            } else if (result != orig) {
+                it.set(result);
+            }
+        }
+    }
+
+    /**
+     * An expression which was rewritten by constant folding, as the sequence
+     * of operands and operators it is rendered as.
+     */
+    static final class FlatExpression extends AbstractValue implements Rewritable {
+
+        private final List<CodeGenerator> tokens;
+
+        FlatExpression(List<CodeGenerator> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            rewriteAll(tokens, ExpressionPosition.OPERAND, false, rewriter);
+        }
+
+        @Override
+        public boolean isCompound() {
+            return tokens.size() > 1;
+        }
+
+        @Override
+        public void generateInto(LinesBuilder lines) {
+            for (CodeGenerator tok : tokens) {
+                tok.generateInto(lines);
+            }
+        }
+    }
+
+    /**
+     * Folds constant subexpressions. Operations, numeric expressions and
+     * their operands are rendered as a flat sequence of tokens, so the
+     * structure of the builder tree does not reflect how operators actually
+     * bind; so the sequence is reparsed using Java's operator precedence, and
+     * only subtrees of <i>that</i> are folded.
+     */
+    static final class ExpressionFolder {
+
+        static final ExpressionFolder ARITHMETIC = new ExpressionFolder(false);
+        static final ExpressionFolder STRINGS = new ExpressionFolder(true);
+        private static final Pattern INTEGRAL = Pattern.compile(
+                "^(-?)(?:0[xX]([0-9a-fA-F_]+)|([0-9][0-9_]*))([lL]?)$");
+        private static final Pattern FLOATING = Pattern.compile(
+                "^-?[0-9][0-9_]*(?:\\.[0-9_]*)?(?:[eE][-+]?[0-9]+)?([dDfF]?)$");
+        private final boolean strings;
+
+        private ExpressionFolder(boolean strings) {
+            this.strings = strings;
+        }
+
+        CodeGenerator fold(CodeGenerator node, ExpressionPosition position) {
+            boolean numeric = node instanceof NumericExpressionBuilderBase<?, ?, ?>;
+            boolean parenthesized = numeric && ((NumericExpressionBuilderBase<?, ?, ?>) node).parenthesized;
+            if (position != ExpressionPosition.STANDALONE && !parenthesized) {
+                if (!strings && node instanceof UnaryOp) {
+                    return foldComplement((UnaryOp) node);
+                }
+                return node;
+            }
+            if (node instanceof ValueExpressionBuilder<?>) {
+                ValueExpressionBuilder<?> veb = (ValueExpressionBuilder<?>) node;
+                if (veb.cast == null && veb.value != null) {
+                    veb.value = fold(veb.value, ExpressionPosition.STANDALONE);
+                }
+                return node;
+            } else if (!strings && node instanceof ComparisonValue) {
+                return foldComparison((ComparisonValue) node);
+            } else if (!strings && node instanceof UnaryOp) {
+                return foldComplement((UnaryOp) node);
+            }
+            if (!numeric && !(node instanceof Operation) && !(node instanceof FlatExpression)) {
+                return node;
+            }
+            List<CodeGenerator> tokens = new ArrayList<>();
+            if (!flatten(node, tokens, true) || tokens.size() < 3) {
+                return node;
+            }
+            Term tree = parse(tokens, new int[1], 0);
+            Term folded = fold(tree);
+            if (folded == tree) {
+                return node;
+            }
+            List<CodeGenerator> result = new ArrayList<>(tokens.size());
+            folded.emit(result);
+            CodeGenerator out = result.size() == 1 ? result.get(0) : new FlatExpression(result);
+            if (parenthesized && (result.size() > 1 || !StandardOptimizations.isAtomic(out))) {
+                return new Parenthesized(Collections.singletonList(out));
+            }
+            if (!(out instanceof Value)) {
+                out = new Wrapper(out);
+            }
+            return out;
+        }
+
+        private static boolean flatten(CodeGenerator node, List<CodeGenerator> into, boolean root) {
+            if (node instanceof Operation) {
+                Operation op = (Operation) node;
+                if (!op.not && precedence(op.op) > 0) {
+                    return flatten(op.leftSide, into, false) && into.add(op.op)
+                            && flatten(op.rightSide, into, false);
+                }
+            } else if (node instanceof FlatExpression) {
+                for (int i = 0; i < ((FlatExpression) node).tokens.size(); i++) {
+                    CodeGenerator tok = ((FlatExpression) node).tokens.get(i);
+                    if (i % 2 == 1) {
+                        into.add(tok);
+                    } else if (!flatten(tok, into, false)) {
+                        return false;
+                    }
+                }
+                return true;
+            } else if (node instanceof FinishableNumericExpressionBuilder<?>) {
+                FinishableNumericExpressionBuilder<?> fn = (FinishableNumericExpressionBuilder<?>) node;
+                if (fn.castTo == null && (root || !fn.parenthesized)) {
+                    return flatten(fn.leftSide, into, false) && into.add(fn.op)
+                            && flatten(fn.rightSide, into, false);
+                }
+            } else if (node instanceof FinishableNumericOrBitwiseExpressionBuilder<?>) {
+                FinishableNumericOrBitwiseExpressionBuilder<?> fn = (FinishableNumericOrBitwiseExpressionBuilder<?>) node;
+                if (fn.castTo == null && fn.op != COMPLEMENT && (root || !fn.parenthesized)) {
+                    return flatten(fn.leftSide, into, false) && into.add(fn.op)
+                            && flatten(fn.rightSide, into, false);
+                }
+            }
+            if (root) {
+                return false;
+            }
+            into.add(node);
+            return true;
+        }
+
+        private static int precedence(CodeGenerator op) {
+            if (op instanceof Operators) {
+                switch ((Operators) op) {
+                    case TIMES:
+                    case DIVIDED_BY:
+                    case MODULO:
+                        return 12;
+                    default:
+                        return 11;
+                }
+            } else if (op instanceof BitwiseOperators) {
+                switch ((BitwiseOperators) op) {
+                    case SHIFT_LEFT:
+                    case SHIFT_RIGHT:
+                    case ROTATE:
+                        return 10;
+                    case AND:
+                        return 7;
+                    case XOR:
+                        return 6;
+                    case OR:
+                        return 5;
+                    default:
+                        return -1;
+                }
+            } else if (op instanceof LogicalOperation) {
+                switch ((LogicalOperation) op) {
+                    case XOR:
+                        return 6;
+                    case AND:
+                        return 4;
+                    default:
+                        return 3;
+                }
+            }
+            return -1;
+        }
+
+        private static Term parse(List<CodeGenerator> tokens, int[] pos, int minPrecedence) {
+            Term left = new Term(tokens.get(pos[0]++));
+            while (pos[0] < tokens.size()) {
+                CodeGenerator op = tokens.get(pos[0]);
+                int prec = precedence(op);
+                if (prec < minPrecedence) {
+                    break;
+                }
+                pos[0]++;
+                left = new Term(left, op, parse(tokens, pos, prec + 1));
+            }
+            return left;
+        }
+
+        private Term fold(Term term) {
+            if (term.isLeaf()) {
+                return term;
+            }
+            Term left = fold(term.left);
+            Term right = fold(term.right);
+            if (left.value != null && right.value != null) {
+                Object val = apply(term.op, left.value, right.value);
+                if (val != null) {
+                    if (accepts(val)) {
+                        return new Term(literal(val), val);
+                    }
+                    // Keep the computed value so an enclosing expression
+                    // which is acceptable can use it
+                    return new Term(left, term.op, right, val);
+                }
+            }
+            if (!strings) {
+                if (isIdentity(term.op, right.value)) {
+                    return left;
+                } else if (isIdentity(term.op, left.value)) {
+                    return right;
+                } else if (isShortCircuit(term.op, left.value)) {
+                    return left;
+                }
+            }
+            if (left == term.left && right == term.right) {
+                return term;
+            }
+            return new Term(left, term.op, right, null);
+        }
+
+        private boolean accepts(Object val) {
+            return strings == (val instanceof String);
+        }
+
+        private static boolean isIdentity(CodeGenerator op, Object val) {
+            // Numeric identities such as x * 1 or x + 0 are not folded: without
+            // knowing the type of x, dropping them can change the type of the
+            // result (i * 1L is a long, c + 0 an int for a char c) or its value
+            // (-0.0 + 0 is 0.0), and there is no type information here
+            return val instanceof Boolean
+                    && ((op == LogicalOperation.AND && (Boolean) val)
+                    || (op == LogicalOperation.OR && !(Boolean) val));
+        }
+
+        private static boolean isShortCircuit(CodeGenerator op, Object leftValue) {
+            // The right side of false && x or true || x is never evaluated
+            return leftValue instanceof Boolean
+                    && ((op == LogicalOperation.AND && !(Boolean) leftValue)
+                    || (op == LogicalOperation.OR && (Boolean) leftValue));
+        }
+
+        private static Value literal(Object val) {
+            if (val instanceof Boolean) {
+                return (Boolean) val ? Value.TRUE : Value.FALSE;
+            } else if (val instanceof String) {
+                return new StringLiteralValue((String) val, true);
+            }
+            return new NumberLiteral((Number) val);
+        }
+
+        private static CodeGenerator foldComplement(UnaryOp op) {
+            if (op.unary == Unaries.COMPLEMENT) {
+                Object val = constant(op.target);
+                if (val instanceof Long) {
+                    return new NumberLiteral(~(Long) val);
+                } else if (val instanceof Integer || val instanceof Short || val instanceof Byte) {
+                    return new NumberLiteral(~((Number) val).intValue());
+                }
+            }
+            return op;
+        }
+
+        private static CodeGenerator foldComparison(ComparisonValue cv) {
+            Object l = constant(cv.leftSide);
+            Object r = constant(cv.rightSide);
+            if (l instanceof Boolean && r instanceof Boolean) {
+                if (cv.op == ComparisonOperation.EQ) {
+                    return l.equals(r) ? Value.TRUE : Value.FALSE;
+                } else if (cv.op == ComparisonOperation.NE) {
+                    return l.equals(r) ? Value.FALSE : Value.TRUE;
+                }
+                return cv;
+            }
+            Number a = numeric(l);
+            Number b = numeric(r);
+            if (a == null || b == null) {
+                return cv;
+            }
+            int cmp = isFloating(a) || isFloating(b)
+                    ? Double.compare(a.doubleValue(), b.doubleValue())
+                    : Long.compare(a.longValue(), b.longValue());
+            if (Double.isNaN(a.doubleValue()) || Double.isNaN(b.doubleValue())) {
+                return cv;
+            }
+            boolean result;
+            switch (cv.op) {
+                case EQ:
+                    result = cmp == 0;
+                    break;
+                case NE:
+                    result = cmp != 0;
+                    break;
+                case GT:
+                    result = cmp > 0;
+                    break;
+                case GTE:
+                    result = cmp >= 0;
+                    break;
+                case LT:
+                    result = cmp < 0;
+                    break;
+                case LTE:
+                    result = cmp <= 0;
+                    break;
+                default:
+                    return cv;
+            }
+            return result ? Value.TRUE : Value.FALSE;
+        }
+
+        static Object apply(CodeGenerator op, Object l, Object r) {
+            if (op == Operators.PLUS && (l instanceof String || r instanceof String)) {
+                return String.valueOf(l) + r;
+            }
+            if (l instanceof Boolean && r instanceof Boolean) {
+                boolean a = (Boolean) l;
+                boolean b = (Boolean) r;
+                if (op == LogicalOperation.AND || op == BitwiseOperators.AND) {
+                    return a && b;
+                } else if (op == LogicalOperation.OR || op == BitwiseOperators.OR) {
+                    return a || b;
+                } else if (op == LogicalOperation.XOR || op == BitwiseOperators.XOR) {
+                    return a ^ b;
+                }
+                return null;
+            }
+            Number a = numeric(l);
+            Number b = numeric(r);
+            if (a == null || b == null) {
+                return null;
+            }
+            if (op == BitwiseOperators.SHIFT_LEFT || op == BitwiseOperators.SHIFT_RIGHT
+                    || op == BitwiseOperators.ROTATE) {
+                if (isFloating(a) || isFloating(b)) {
+                    return null;
+                }
+                // The type of a shift is the promoted type of its left operand
+                if (a instanceof Long) {
+                    long v = a.longValue();
+                    long dist = b.longValue();
+                    return op == BitwiseOperators.SHIFT_LEFT ? v << dist
+                            : op == BitwiseOperators.SHIFT_RIGHT ? v >> dist : v >>> dist;
+                }
+                int v = a.intValue();
+                int dist = b.intValue();
+                return op == BitwiseOperators.SHIFT_LEFT ? v << dist
+                        : op == BitwiseOperators.SHIFT_RIGHT ? v >> dist : v >>> dist;
+            }
+            if (!(op instanceof Operators) && !(op instanceof BitwiseOperators)) {
+                return null;
+            }
+            if (isFloating(a) || isFloating(b)) {
+                if (!(op instanceof Operators)) {
+                    return null;
+                }
+                Number result;
+                if (a instanceof Double || b instanceof Double) {
+                    result = arithmetic((Operators) op, a.doubleValue(), b.doubleValue());
+                } else {
+                    result = (float) arithmetic((Operators) op, a.floatValue(), b.floatValue());
+                }
+                return Double.isFinite(result.doubleValue()) ? result : null;
+            }
+            if ((op == Operators.DIVIDED_BY || op == Operators.MODULO) && b.longValue() == 0) {
+                return null;
+            }
+            if (a instanceof Long || b instanceof Long) {
+                return integral(op, a.longValue(), b.longValue());
+            }
+            return integral(op, a.intValue(), b.intValue());
+        }
+
+        private static double arithmetic(Operators op, double a, double b) {
+            switch (op) {
+                case PLUS:
+                    return a + b;
+                case MINUS:
+                    return a - b;
+                case TIMES:
+                    return a * b;
+                case DIVIDED_BY:
+                    return a / b;
+                case MODULO:
+                    return a % b;
+                default:
+                    throw new AssertionError(op);
+            }
+        }
+
+        private static float arithmetic(Operators op, float a, float b) {
+            switch (op) {
+                case PLUS:
+                    return a + b;
+                case MINUS:
+                    return a - b;
+                case TIMES:
+                    return a * b;
+                case DIVIDED_BY:
+                    return a / b;
+                case MODULO:
+                    return a % b;
+                default:
+                    throw new AssertionError(op);
+            }
+        }
+
+        private static long integral(CodeGenerator op, long a, long b) {
+            if (op == Operators.PLUS) {
+                return a + b;
+            } else if (op == Operators.MINUS) {
+                return a - b;
+            } else if (op == Operators.TIMES) {
+                return a * b;
+            } else if (op == Operators.DIVIDED_BY) {
+                return a / b;
+            } else if (op == Operators.MODULO) {
+                return a % b;
+            } else if (op == BitwiseOperators.AND) {
+                return a & b;
+            } else if (op == BitwiseOperators.OR) {
+                return a | b;
+            } else if (op == BitwiseOperators.XOR) {
+                return a ^ b;
+            }
+            throw new AssertionError(op);
+        }
+
+        private static int integral(CodeGenerator op, int a, int b) {
+            // Separate from the long version so int overflow wraps as
+            // javac's own constant folding would
+            if (op == Operators.PLUS) {
+                return a + b;
+            } else if (op == Operators.MINUS) {
+                return a - b;
+            } else if (op == Operators.TIMES) {
+                return a * b;
+            } else if (op == Operators.DIVIDED_BY) {
+                return a / b;
+            } else if (op == Operators.MODULO) {
+                return a % b;
+            } else if (op == BitwiseOperators.AND) {
+                return a & b;
+            } else if (op == BitwiseOperators.OR) {
+                return a | b;
+            } else if (op == BitwiseOperators.XOR) {
+                return a ^ b;
+            }
+            throw new AssertionError(op);
+        }
+
+        private static boolean isFloating(Number num) {
+            return num instanceof Double || num instanceof Float;
+        }
+
+        private static Number numeric(Object o) {
+            if (o instanceof Character) {
+                return (int) (Character) o;
+            } else if (o instanceof Number) {
+                return (Number) o;
+            }
+            return null;
+        }
+
+        static Object constant(CodeGenerator gen) {
+            if (gen instanceof NumberLiteral) {
+                return ((NumberLiteral) gen).num;
+            } else if (gen instanceof BooleanValue) {
+                return ((BooleanValue) gen).val;
+            } else if (gen instanceof StringLiteralValue) {
+                return ((StringLiteralValue) gen).text;
+            } else if (gen instanceof ValueExpressionBuilder<?>) {
+                ValueExpressionBuilder<?> veb = (ValueExpressionBuilder<?>) gen;
+                return veb.cast == null && !veb.newline && veb.value != null ? constant(veb.value) : null;
+            } else if (gen instanceof Parenthesized) {
+                List<CodeGenerator> contents = ((Parenthesized) gen).contents;
+                return contents.size() == 1 ? constant(contents.get(0)) : null;
+            } else if (gen instanceof Adhoc) {
+                return parseLiteral(gen.toString().trim());
+            }
+            return null;
+        }
+
+        private static Object parseLiteral(String s) {
+            switch (s) {
+                case "true":
+                    return Boolean.TRUE;
+                case "false":
+                    return Boolean.FALSE;
+                case "Integer.MAX_VALUE":
+                    return Integer.MAX_VALUE;
+                case "Integer.MIN_VALUE":
+                    return Integer.MIN_VALUE;
+                case "Long.MAX_VALUE":
+                    return Long.MAX_VALUE;
+                case "Long.MIN_VALUE":
+                    return Long.MIN_VALUE;
+                case "Short.MAX_VALUE":
+                    return Short.MAX_VALUE;
+                case "Short.MIN_VALUE":
+                    return Short.MIN_VALUE;
+                case "Byte.MAX_VALUE":
+                    return Byte.MAX_VALUE;
+                case "Byte.MIN_VALUE":
+                    return Byte.MIN_VALUE;
+                default:
+                    break;
+            }
+            if (s.length() > 1 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"') {
+                return unescape(s.substring(1, s.length() - 1));
+            } else if (s.length() == 3 && s.charAt(0) == '\'' && s.charAt(2) == '\'' && s.charAt(1) != '\\') {
+                return s.charAt(1);
+            } else if (s.startsWith("(short) ")) {
+                Object val = parseLiteral(s.substring(8));
+                return val instanceof Integer && ((Integer) val) == ((Integer) val).shortValue()
+                        ? ((Integer) val).shortValue() : null;
+            } else if (s.startsWith("(byte) ")) {
+                Object val = parseLiteral(s.substring(7));
+                return val instanceof Integer && ((Integer) val) >= 0 && ((Integer) val) <= 0xFF
+                        ? ((Integer) val).byteValue() : null;
+            }
+            Matcher m = INTEGRAL.matcher(s);
+            if (m.find()) {
+                boolean hex = m.group(2) != null;
+                String digits = (hex ? m.group(2) : m.group(3)).replace("_", "");
+                boolean isLong = !m.group(4).isEmpty();
+                try {
+                    if (hex) {
+                        // Hex literals may use the sign bit, e.g. 0xFFFFFFFF is -1
+                        long val = Long.parseUnsignedLong(digits, 16);
+                        if (isLong) {
+                            return m.group(1).isEmpty() ? val : -val;
+                        } else if ((val >>> 32) != 0) {
+                            return null;
+                        }
+                        int ival = (int) val;
+                        return m.group(1).isEmpty() ? ival : -ival;
+                    }
+                    long val = Long.parseLong(m.group(1) + digits);
+                    if (isLong) {
+                        return val;
+                    }
+                    return val == (int) val ? (Object) (int) val : null;
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            }
+            m = FLOATING.matcher(s);
+            if (m.find()) {
+                try {
+                    String suffix = m.group(1);
+                    String num = suffix.isEmpty() ? s : s.substring(0, s.length() - 1);
+                    double val = Double.parseDouble(num.replace("_", ""));
+                    return suffix.equalsIgnoreCase("f") ? (Object) (float) val : (Object) val;
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        private static String unescape(String s) {
+            StringBuilder sb = new StringBuilder(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"') {
+                    // More than one literal, e.g. "a" + "b"
+                    return null;
+                } else if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (++i == s.length()) {
+                    return null;
+                }
+                switch (s.charAt(i)) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case '"':
+                    case '\'':
+                    case '\\':
+                        sb.append(s.charAt(i));
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            return sb.toString();
+        }
+
+        /**
+         * A node in an expression tree reparsed from a flat sequence of
+         * tokens; the subtrees of such a tree always correspond to
+         * contiguous ranges of the sequence, so folding a subtree and
+         * re-emitting the sequence never changes how the rest of it binds.
+         */
+        private static final class Term {
+
+            final CodeGenerator leaf;
+            final Term left;
+            final CodeGenerator op;
+            final Term right;
+            final Object value;
+
+            Term(CodeGenerator leaf) {
+                this(leaf, constant(leaf));
+            }
+
+            Term(CodeGenerator leaf, Object value) {
+                this.leaf = leaf;
+                this.value = value;
+                left = right = null;
+                op = null;
+            }
+
+            Term(Term left, CodeGenerator op, Term right) {
+                this(left, op, right, null);
+            }
+
+            Term(Term left, CodeGenerator op, Term right, Object value) {
+                this.left = left;
+                this.op = op;
+                this.right = right;
+                this.value = value;
+                this.leaf = null;
+            }
+
+            boolean isLeaf() {
+                return leaf != null;
+            }
+
+            void emit(List<CodeGenerator> into) {
+                if (leaf != null) {
+                    into.add(leaf);
+                } else {
+                    left.emit(into);
+                    into.add(op);
+                    right.emit(into);
+                }
+            }
+        }
+    }
+
+    /**
+     * Visitor over the content of a ClassBuilder, which allows for analyzing
+     * generated code - finding the types it references, counting statements,
+     * detecting duplicate local variables - without rendering it as source and
+     * parsing the result. All methods have empty default implementations, so
+     * implementations only need to override the ones they care about; methods
+     * named <code>enter</code><i>Something</i> return true to have the children
+     * of the passed element visited, and false to skip them, in which case the
+     * corresponding <code>exit</code> method is not called either.
+     * <p>
+     * Elements are visited in the order they are generated, with the
+     * exception of constructors, which are visited before other members. Each
+     * branch of an <code>if</code> / <code>else if</code> / <code>else</code>
+     * is visited as a separate block, since each is a separate scope.
+     * </p>
+     *
+     * @see ClassBuilder#accept(CodeVisitor)
+     */
+    public interface CodeVisitor {
+
+        default boolean enterClass(ClassBuilder<?> type) {
+            return true;
+        }
+
+        default void exitClass(ClassBuilder<?> type) {
+            // do nothing
+        }
+
+        default boolean enterConstructor(ConstructorBuilder<?> constructor) {
+            return true;
+        }
+
+        default void exitConstructor(ConstructorBuilder<?> constructor) {
+            // do nothing
+        }
+
+        default boolean enterMethod(MethodBuilder<?> method) {
+            return true;
+        }
+
+        default void exitMethod(MethodBuilder<?> method) {
+            // do nothing
+        }
+
+        default boolean enterField(FieldBuilder<?> field) {
+            return true;
+        }
+
+        default void exitField(FieldBuilder<?> field) {
+            // do nothing
+        }
+
+        /**
+         * Called on entering a block - the body of a method, loop, try or
+         * catch clause, lambda or branch of an if statement.
+         *
+         * @param block The block
+         * @return true if the statements in it should be visited
+         */
+        default boolean enterBlock(BlockBuilderBase<?, ?, ?> block) {
+            return true;
+        }
+
+        default void exitBlock(BlockBuilderBase<?, ?, ?> block) {
+            // do nothing
+        }
+
+        /**
+         * Called for each statement directly contained in a block, before
+         * the statement itself is visited.
+         *
+         * @param statement The statement
+         * @return true if the statement should be visited
+         */
+        default boolean enterStatement(CodeGenerator statement) {
+            return true;
+        }
+
+        default boolean enterDeclaration(DeclarationBuilder<?> declaration) {
+            return true;
+        }
+
+        /**
+         * Called for values and expressions - anything implementing
+         * <code>Value</code> - which do not have a more specific method.
+         *
+         * @param value A value
+         * @return true if the children of the value should be visited
+         */
+        default boolean enterValue(Value value) {
+            return true;
+        }
+
+        /**
+         * Called for any element which does not have a more specific method.
+         *
+         * @param element An element
+         * @return true if its children should be visited
+         */
+        default boolean enterOther(CodeGenerator element) {
+            return true;
+        }
+
+        /**
+         * Called with the name of each type referenced in a declaration - a
+         * superclass or interface, the type of a field, parameter or local
+         * variable, a method return type or a thrown exception - as it was
+         * passed to the builder, including any generic signature.
+         *
+         * @param typeName A type name
+         */
+        default void visitTypeReference(String typeName) {
+            // do nothing
+        }
+    }
+
+    /**
+     * Walks the builder tree, reusing the same enumeration of children which
+     * optimization passes use; it is a Rewriter which never rewrites
+     * anything.
+     */
+    private static final class CodeWalker implements Rewriter {
+
+        private final CodeVisitor visitor;
+
+        CodeWalker(CodeVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public CodeGenerator rewrite(CodeGenerator node, ExpressionPosition position) {
+            walk(node);
+            return node;
+        }
+
+        private void type(CodeGenerator type) {
+            if (type instanceof TypeNameItem) {
+                visitor.visitTypeReference(((TypeNameItem) type).name);
+            } else if (type != null && type != EMPTY) {
+                visitor.visitTypeReference(type.toString().trim());
+            }
+        }
+
+        private void type(String type) {
+            if (type != null) {
+                visitor.visitTypeReference(type);
+            }
+        }
+
+        void walk(CodeGenerator node) {
+            if (node == null) {
+                return;
+            }
+            if (node instanceof ClassBuilder<?>) {
+                ClassBuilder<?> cb = (ClassBuilder<?>) node;
+                if (visitor.enterClass(cb)) {
+                    type(cb.extendsType);
+                    cb.implementsTypes.forEach(this::type);
+                    cb.rewriteChildren(this);
+                    visitor.exitClass(cb);
+                }
+            } else if (node instanceof ConstructorBuilder<?>) {
+                ConstructorBuilder<?> con = (ConstructorBuilder<?>) node;
+                if (visitor.enterConstructor(con)) {
+                    con.arguments.values().forEach(this::type);
+                    con.throwing.forEach(this::type);
+                    con.rewriteChildren(this);
+                    visitor.exitConstructor(con);
+                }
+            } else if (node instanceof MethodBuilder<?>) {
+                MethodBuilder<?> mb = (MethodBuilder<?>) node;
+                if (visitor.enterMethod(mb)) {
+                    type(mb.type);
+                    for (ArgPair arg : mb.args) {
+                        type(arg.type);
+                    }
+                    mb.throwing.forEach(this::type);
+                    mb.rewriteChildren(this);
+                    visitor.exitMethod(mb);
+                }
+            } else if (node instanceof FieldBuilder<?>) {
+                FieldBuilder<?> fb = (FieldBuilder<?>) node;
+                if (visitor.enterField(fb)) {
+                    type(fb.type);
+                    fb.rewriteChildren(this);
+                    visitor.exitField(fb);
+                }
+            } else if (node instanceof IfBuilder<?>) {
+                IfBuilder<?> ib = (IfBuilder<?>) node;
+                for (Pair<CodeGenerator, IfBuilder<?>> pair : ib.clausePairs) {
+                    walk(pair.a);
+                    block(pair.b, false);
+                }
+                walk(ib.finalElse);
+            } else if (node instanceof BlockBuilderBase<?, ?, ?>) {
+                block((BlockBuilderBase<?, ?, ?>) node, true);
+            } else if (node instanceof DeclarationBuilder<?>) {
+                DeclarationBuilder<?> decl = (DeclarationBuilder<?>) node;
+                if (visitor.enterDeclaration(decl)) {
+                    type(decl.as);
+                    decl.rewriteChildren(this);
+                }
+            } else if (node instanceof Value ? visitor.enterValue((Value) node)
+                    : visitor.enterOther(node)) {
+                if (node instanceof Rewritable) {
+                    ((Rewritable) node).rewriteChildren(this);
+                }
+            }
+        }
+
+        private void block(BlockBuilderBase<?, ?, ?> block, boolean includeOthers) {
+            if (visitor.enterBlock(block)) {
+                for (CodeGenerator statement : block.statements) {
+                    if (visitor.enterStatement(statement)) {
+                        walk(statement);
+                    }
+                }
+                if (includeOthers) {
+                    block.rewriteOtherChildren(this);
+                }
+                visitor.exitBlock(block);
+            }
+        }
+    }
+
+    private static final Pattern ARR = Pattern.compile("^\\s*?(\\S+)\\s*?\\[\\s*?\\]\\s*$");
+
+    private static String checkIdentifier(String name) {
+        return checkIdentifier(name, false);
+    }
+
+    private static void checkKeyword(String name) {
+        if (Arrays.binarySearch(JAVA_RESERVED_SANS_IDENTIFIER_LIKE, name) >= 0) {
+            throw new IllegalArgumentException("'" + name + "' is a java keyword.");
+        }
+    }
+
+    private static String checkIdentifier(String name, boolean emptyOk) {
+        if (name == null) {
+            throw new IllegalArgumentException("Null identifier");
+        }
+        if (name.trim().isEmpty()) {
+            if (emptyOk) {
+                return name;
+            }
+            throw new IllegalArgumentException("Empty or all-whitespace "
+                    + "identifier: '" + name + "'");
+        }
+        checkKeyword(name);
+        Matcher arrM = ARR.matcher(name);
+        if (arrM.find()) {
+            checkIdentifier(arrM.group(1));
+            return name;
+        }
+        if (name.indexOf('<') > 0) {
+            visitTypeNames(name, nm -> {
+                checkIdentifier(nm, true);
+            });
+            return name;
+        } else if (name.indexOf('.') > 0) {
+            for (String nm : name.split("\\.")) {
+                checkIdentifier(nm, false);
+            }
+            return name;
+        }
+        int max = name.length();
+        for (int i = 0; i < max; i++) {
+            char c = name.charAt(i);
+            if (i == 0 && !Character.isJavaIdentifierStart(c)) {
+                throw new IllegalArgumentException("A java identifier cannot start with '" + c + "': " + name);
+            } else if (!Character.isJavaIdentifierPart(c)) {
+                throw new IllegalArgumentException("A java identifier cannot contain '" + c + "': " + name);
+            }
+        }
+        return name;
+    }
+
+    // This list MUST remain sorted
+    private static final String[] JAVA_RESERVED_SANS_IDENTIFIER_LIKE = new String[]{
+        "abstract", "assert", "break", "case",
+        "catch", "class", "const", "continue", "default",
+        "do", "else", "enum", "extends", "final",
+        "finally", "for", "goto", "if", "implements",
+        "import", "instanceof", "interface",
+        "native", "new", "package", "private", "protected",
+        "public", "return", "static", "strictfp",
+        "switch", "synchronized", "throw",
+        "throws", "transient", "try", "volatile", "while"
+    };
+
+    static CodeGenerator friendlyNumber(Number num) {
+        CodeGenerator result;
+        if (num instanceof Long) {
+            if (num.longValue() == Long.MAX_VALUE) {
+                result = Adhoc.of("Long.MAX_VALUE");
+            } else if (num.longValue() == Long.MIN_VALUE) {
+                result = Adhoc.of("Long.MIN_VALUE");
+            } else {
+                result = Adhoc.of(friendlyLong((Long) num) + "L");
+            }
+        } else if (num instanceof Integer) {
+            if (num.intValue() == Integer.MAX_VALUE) {
+                return Adhoc.of("Integer.MAX_VALUE");
+            } else if (num.intValue() == Integer.MIN_VALUE) {
+                return Adhoc.of("Integer.MIN_VALUE");
+            } else {
+                result = Adhoc.of(friendlyInt(num));
+            }
+        } else if (num instanceof Double) {
+            if (num.doubleValue() == Double.MAX_VALUE) {
+                return Adhoc.of("Integer.MAX_VALUE");
+            } else if (num.doubleValue() == Double.MIN_VALUE) {
+                return Adhoc.of("Double.MIN_VALUE");
+            } else {
+                result = Adhoc.of(num.toString() + "D");
+            }
+        } else if (num instanceof Float) {
+            if (num.floatValue() == Float.MAX_VALUE) {
+                return Adhoc.of("Float.MAX_VALUE");
+            } else if (num.floatValue() == Float.MIN_VALUE) {
+                return Adhoc.of("Float.MIN_VALUE");
+            } else {
+                result = Adhoc.of(num.toString() + "F");
+            }
+        } else if (num instanceof Short) {
+            if (num.shortValue() == Short.MAX_VALUE) {
+                return Adhoc.of("Short.MAX_VALUE");
+            } else if (num.shortValue() == Short.MIN_VALUE) {
+                return Adhoc.of("Short.MIN_VALUE");
+            } else {
+                result = Adhoc.of("(short) " + Short.toString(num.shortValue()));
+            }
+        } else if (num instanceof Byte) {
+            if (num.byteValue() == Byte.MAX_VALUE) {
+                result = Adhoc.of("Byte.MAX_VALUE");
+            } else if (num.byteValue() == Byte.MIN_VALUE) {
+                result = Adhoc.of("Byte.MIN_VALUE");
+            } else {
+//                result = new Adhoc("(byte) " + Integer.toString(num.byteValue()));
+                result = Adhoc.of(friendlyByte(num.byteValue()));
+            }
+        } else {
+            result = Adhoc.of(num.toString());
+        }
+        return result;
+    }
+
+    static String friendlyChar(char c) {
+        switch (c) {
+            case Character.MIN_VALUE:
+                return "Character.MIN_VALUE";
+            case Character.MAX_VALUE:
+                return "Character.MAX_VALUE";
+            case Character.MAX_HIGH_SURROGATE:
+                return "Character.MAX_HIGH_SURROGATE";
+            case Character.MAX_LOW_SURROGATE:
+                return "Character.MAX_LOW_SURROGATE";
+            case Character.MIN_LOW_SURROGATE:
+                return "Character.MIN_LOW_SURROGATE";
+            case Character.MIN_HIGH_SURROGATE:
+                return "Character.MIN_HIGH_SURROGATE";
+            default:
+                return LinesBuilder.escapeCharLiteral(c);
+        }
+    }
+
+    static String friendlyByte(byte b) {
+        int val = b & 0x000000FF;
+        String result = Integer.toHexString(val);
+        if (result.length() == 1) {
+            return "0x0" + result;
+        } else {
+            return "(byte) 0x" + result;
+        }
+    }
+
+    static String friendlyLong(Number lng) {
+        return friendlyLong(lng.longValue());
     }
 
     static String friendlyLong(long num) {
@@ -11007,9 +13056,15 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
     private static final class StringLiteralValue extends AbstractValue {
 
         private final String text;
+        private final boolean asWord;
 
         public StringLiteralValue(String text) {
+            this(text, false);
+        }
+
+        StringLiteralValue(String text, boolean asWord) {
             this.text = text;
+            this.asWord = asWord;
         }
 
         @Override
@@ -11019,16 +13074,22 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
         @Override
         public void generateInto(LinesBuilder lines) {
-            lines.appendStringLiteral(text);
+            if (asWord) {
+                // Spaced like any other literal, for literals folded from
+                // string concatenations
+                lines.word(LinesBuilder.stringLiteral(text));
+            } else {
+                lines.appendStringLiteral(text);
+            }
         }
 
     }
 
-    private static class TernaryValue extends AbstractValue {
+    private static class TernaryValue extends AbstractValue implements Rewritable {
 
-        private final Value test;
-        private final Value ifTrue;
-        private final Value ifFalse;
+        private Value test;
+        private Value ifTrue;
+        private Value ifFalse;
 
         public TernaryValue(Value test, Value ifTrue, Value ifFalse) {
             this.test = test;
@@ -11036,6 +13097,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             this.ifFalse = ifFalse;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            test = rewrite(test, Value.class, ExpressionPosition.OPERAND, rewriter);
+            ifTrue = rewrite(ifTrue, Value.class, ExpressionPosition.OPERAND, rewriter);
+            ifFalse = rewrite(ifFalse, Value.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public boolean isCompound() {
             return true;
@@ -11072,11 +13140,11 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    private static class ComparisonValue extends AbstractValue {
+    private static class ComparisonValue extends AbstractValue implements Rewritable {
 
         private final ComparisonOperation op;
-        private final Value leftSide;
-        private final CodeGenerator rightSide;
+        private Value leftSide;
+        private CodeGenerator rightSide;
 
         public ComparisonValue(ComparisonOperation op, Value leftSide, CodeGenerator rightSide) {
             this.op = op;
@@ -11084,6 +13152,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             this.rightSide = rightSide;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            leftSide = rewrite(leftSide, Value.class, ExpressionPosition.OPERAND, rewriter);
+            rightSide = rewrite(rightSide, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public boolean isCompound() {
             return true;
@@ -11098,9 +13172,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
 
     }
 
-    private static class ValueWithCast extends AbstractValue {
+    private static class ValueWithCast extends AbstractValue implements Rewritable {
 
-        private final Value target;
+        private Value target;
         private final String type;
 
         ValueWithCast(Value target, String type) {
@@ -11108,6 +13182,13 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             this.type = type;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            // Compound targets are rendered in parentheses
+            target = rewrite(target, Value.class, target.isCompound()
+                    ? ExpressionPosition.STANDALONE : ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public boolean isCompound() {
             return target.isCompound();
@@ -11137,14 +13218,19 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    private static class Wrapper extends AbstractValue {
+    private static class Wrapper extends AbstractValue implements Rewritable {
 
-        private final CodeGenerator bb;
+        private CodeGenerator bb;
 
         Wrapper(CodeGenerator bb) {
             this.bb = bb;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            bb = rewrite(bb, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public boolean isCompound() {
             return true;
@@ -11210,7 +13296,7 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    static class Parenthesized extends AbstractValue {
+    static class Parenthesized extends AbstractValue implements Rewritable {
 
         List<CodeGenerator> contents = new ArrayList<>(3);
 
@@ -11222,6 +13308,11 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             contents.addAll(cts);
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            rewriteAll(contents, ExpressionPosition.STANDALONE, false, rewriter);
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             if (contents.isEmpty()) {
@@ -11240,9 +13331,9 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    static class UnaryOp extends AbstractValue {
+    static class UnaryOp extends AbstractValue implements Rewritable {
 
-        private final Value target;
+        private Value target;
         private final Unaries unary;
 
         UnaryOp(Value target, Unaries unary) {
@@ -11250,6 +13341,11 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             this.unary = unary;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            target = rewrite(target, Value.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public void generateInto(LinesBuilder lines) {
             if (unary.isPre()) {
@@ -11309,11 +13405,11 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
         }
     }
 
-    static class Operation extends AbstractValue {
+    static class Operation extends AbstractValue implements Rewritable {
 
-        private final CodeGenerator leftSide;
+        private CodeGenerator leftSide;
         private final CodeGenerator op;
-        private final Value rightSide;
+        private Value rightSide;
         private final boolean not;
 
         Operation(CodeGenerator leftSide, CodeGenerator op, Value rightSide) {
@@ -11330,6 +13426,12 @@ public final class ClassBuilder<T> implements CodeGenerator, NamedMember, Source
             this.not = not;
         }
 
+        @Override
+        public void rewriteChildren(Rewriter rewriter) {
+            leftSide = rewrite(leftSide, CodeGenerator.class, ExpressionPosition.OPERAND, rewriter);
+            rightSide = rewrite(rightSide, Value.class, ExpressionPosition.OPERAND, rewriter);
+        }
+
         @Override
         public boolean isCompound() {
             return true;
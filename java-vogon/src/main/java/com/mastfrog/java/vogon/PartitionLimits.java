@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.java.vogon;
+
+import static com.mastfrog.code.generation.common.util.Utils.notNull;
+
+/**
+ * Limits which determine when a partitioned ClassBuilder splits its private
+ * static members out into companion classes, and how much goes into each
+ * companion. Sizes are <i>estimates</i> computed from the generated source -
+ * they are deliberately conservative, but are not a substitute for what javac
+ * actually emits. Instances are immutable; the <code>with*</code> methods
+ * return a copy.
+ * <p>
+ * The limits apply to whole members and to slices of static array literals;
+ * a single static block or method larger than them cannot be split, and will
+ * still fail to compile if it exceeds what javac allows.
+ * </p>
+ *
+ * @see ClassBuilder#partitioned(PartitionLimits)
+ * @author Tim Boudreau
+ */
+public final class PartitionLimits {
+
+    /**
+     * Defaults which stay well clear of the 65535 entry constant pool limit
+     * and the 64Kb limit on the size of a static initializer.
+     */
+    public static final PartitionLimits DEFAULT
+            = new PartitionLimits(24_000, 40_000, 512 * 1024, "Part");
+
+    private final int maxConstantPoolEntries;
+    private final int maxBytecodeBytes;
+    private final int maxSourceChars;
+    private final String companionSuffix;
+
+    private PartitionLimits(int maxConstantPoolEntries, int maxBytecodeBytes,
+            int maxSourceChars, String companionSuffix) {
+        this.maxConstantPoolEntries = positive("maxConstantPoolEntries", maxConstantPoolEntries);
+        this.maxBytecodeBytes = positive("maxBytecodeBytes", maxBytecodeBytes);
+        this.maxSourceChars = positive("maxSourceChars", maxSourceChars);
+        this.companionSuffix = identifierPart(companionSuffix);
+    }
+
+    private static String identifierPart(String suffix) {
+        notNull("companionSuffix", suffix);
+        if (suffix.isEmpty()) {
+            throw new IllegalArgumentException("Empty companion suffix");
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (!Character.isJavaIdentifierPart(suffix.charAt(i))) {
+                throw new IllegalArgumentException("Not legal in a class name: '"
+                        + suffix.charAt(i) + "' in " + suffix);
+            }
+        }
+        return suffix;
+    }
+
+    private static int positive(String what, int val) {
+        if (val <= 0) {
+            throw new IllegalArgumentException(what + " must be > 0 but was " + val);
+        }
+        return val;
+    }
+
+    public int maxConstantPoolEntries() {
+        return maxConstantPoolEntries;
+    }
+
+    public int maxBytecodeBytes() {
+        return maxBytecodeBytes;
+    }
+
+    public int maxSourceChars() {
+        return maxSourceChars;
+    }
+
+    /**
+     * The string appended to the facade class's name, followed by a
+     * one-based index, to name companion classes - e.g. <code>Part</code>
+     * gets you <code>MyTablesPart1</code>, <code>MyTablesPart2</code>....
+     *
+     * @return The suffix
+     */
+    public String companionSuffix() {
+        return companionSuffix;
+    }
+
+    public PartitionLimits withMaxConstantPoolEntries(int max) {
+        return new PartitionLimits(max, maxBytecodeBytes, maxSourceChars, companionSuffix);
+    }
+
+    public PartitionLimits withMaxBytecodeBytes(int max) {
+        return new PartitionLimits(maxConstantPoolEntries, max, maxSourceChars, companionSuffix);
+    }
+
+    public PartitionLimits withMaxSourceChars(int max) {
+        return new PartitionLimits(maxConstantPoolEntries, maxBytecodeBytes, max, companionSuffix);
+    }
+
+    public PartitionLimits withCompanionSuffix(String suffix) {
+        return new PartitionLimits(maxConstantPoolEntries, maxBytecodeBytes,
+                maxSourceChars, suffix);
+    }
+
+    boolean exceededBy(SizeEstimate est) {
+        return exceeded(est.constantPoolEntries(), est.bytecodeBytes(), est.sourceChars());
+    }
+
+    boolean exceeded(int constantPoolEntries, int bytecodeBytes, int sourceChars) {
+        return constantPoolEntries > maxConstantPoolEntries
+                || bytecodeBytes > maxBytecodeBytes
+                || sourceChars > maxSourceChars;
+    }
+
+    @Override
+    public String toString() {
+        return "PartitionLimits(constantPool=" + maxConstantPoolEntries
+                + ", bytecode=" + maxBytecodeBytes + ", source="
+                + maxSourceChars + ", suffix=" + companionSuffix + ")";
+    }
+}
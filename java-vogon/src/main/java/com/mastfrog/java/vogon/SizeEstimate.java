@@ -0,0 +1,246 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.java.vogon;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Rough, source-based estimate of what a chunk of generated code will cost
+ * once compiled. Every distinct identifier, string literal or wide numeric
+ * literal is assumed to need two constant pool entries (a Utf8 plus a ref or
+ * String entry), and every identifier, literal or operator occurrence a few
+ * bytes of bytecode. Estimates accumulate, so distinct symbols shared between
+ * members are only counted once.
+ *
+ * @author Tim Boudreau
+ */
+final class SizeEstimate {
+
+    private static final int CP_ENTRIES_PER_SYMBOL = 2;
+    private static final int BYTES_PER_OPERAND = 3;
+    private final Set<String> symbols;
+    private int bytecode;
+    private int chars;
+
+    SizeEstimate() {
+        symbols = new HashSet<>();
+    }
+
+    static SizeEstimate of(String source) {
+        SizeEstimate result = new SizeEstimate();
+        result.add(source);
+        return result;
+    }
+
+    /**
+     * Estimate the cost of one element of an array literal, which besides the
+     * element itself needs its index pushed and a store instruction.
+     *
+     * @param source The element's source
+     * @return An estimate
+     */
+    static SizeEstimate ofArrayElement(String source) {
+        SizeEstimate result = of(source);
+        result.bytecode += BYTES_PER_OPERAND + 1;
+        return result;
+    }
+
+    boolean isEmpty() {
+        return chars == 0;
+    }
+
+    int constantPoolEntries() {
+        return symbols.size() * CP_ENTRIES_PER_SYMBOL;
+    }
+
+    int bytecodeBytes() {
+        return bytecode;
+    }
+
+    int sourceChars() {
+        return chars;
+    }
+
+    /**
+     * Determine if an identifier appears in the estimated source, outside
+     * comments and literals.
+     *
+     * @param identifier An identifier
+     * @return true if it was seen
+     */
+    boolean mentions(String identifier) {
+        return symbols.contains(identifier);
+    }
+
+    /**
+     * Determine if the union of this estimate and another would still be
+     * within the passed limits, without altering either.
+     *
+     * @param other Another estimate
+     * @param limits The limits
+     * @return true if the combination fits
+     */
+    boolean fitsWith(SizeEstimate other, PartitionLimits limits) {
+        int newSymbols = 0;
+        for (String sym : other.symbols) {
+            if (!symbols.contains(sym)) {
+                newSymbols++;
+            }
+        }
+        return !limits.exceeded((symbols.size() + newSymbols) * CP_ENTRIES_PER_SYMBOL,
+                bytecode + other.bytecode, chars + other.chars);
+    }
+
+    SizeEstimate add(SizeEstimate other) {
+        symbols.addAll(other.symbols);
+        bytecode += other.bytecode;
+        chars += other.chars;
+        return this;
+    }
+
+    SizeEstimate add(String source) {
+        chars += source.length();
+        int max = source.length();
+        for (int i = 0; i < max;) {
+            char c = source.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '/' && i + 1 < max && source.charAt(i + 1) == '/') {
+                i = skipTo(source, i + 2, "\n");
+            } else if (c == '/' && i + 1 < max && source.charAt(i + 1) == '*') {
+                i = skipTo(source, i + 2, "*/");
+            } else if (c == '"' || c == '\'') {
+                int end = endOfLiteral(source, i, c);
+                if (c == '"') {
+                    symbols.add(source.substring(i, end));
+                }
+                bytecode += BYTES_PER_OPERAND;
+                i = end;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int end = i + 1;
+                while (end < max && Character.isJavaIdentifierPart(source.charAt(end))) {
+                    end++;
+                }
+                String word = source.substring(i, end);
+                if (!isKeyword(word)) {
+                    symbols.add(word);
+                    bytecode += BYTES_PER_OPERAND;
+                }
+                i = end;
+            } else if (Character.isDigit(c)) {
+                int end = i + 1;
+                while (end < max && (Character.isLetterOrDigit(source.charAt(end))
+                        || source.charAt(end) == '.' || source.charAt(end) == '_')) {
+                    end++;
+                }
+                String num = source.substring(i, end);
+                if (!fitsInSipush(num)) {
+                    symbols.add(num);
+                }
+                bytecode += BYTES_PER_OPERAND;
+                i = end;
+            } else {
+                if ("+-*/%&|^<>=!~?".indexOf(c) >= 0) {
+                    bytecode++;
+                }
+                i++;
+            }
+        }
+        return this;
+    }
+
+    private static int skipTo(String source, int from, String what) {
+        int ix = source.indexOf(what, from);
+        return ix < 0 ? source.length() : ix + what.length();
+    }
+
+    private static int endOfLiteral(String source, int start, char delimiter) {
+        int max = source.length();
+        for (int i = start + 1; i < max; i++) {
+            char c = source.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == delimiter) {
+                return i + 1;
+            }
+        }
+        return max;
+    }
+
+    private static boolean fitsInSipush(String num) {
+        try {
+            int val = Integer.parseInt(num.replace("_", ""));
+            return val >= Short.MIN_VALUE && val <= Short.MAX_VALUE;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private static boolean isKeyword(String word) {
+        switch (word) {
+            case "abstract":
+            case "boolean":
+            case "break":
+            case "byte":
+            case "case":
+            case "char":
+            case "class":
+            case "default":
+            case "do":
+            case "double":
+            case "else":
+            case "false":
+            case "final":
+            case "float":
+            case "for":
+            case "if":
+            case "import":
+            case "int":
+            case "long":
+            case "new":
+            case "null":
+            case "package":
+            case "private":
+            case "protected":
+            case "public":
+            case "return":
+            case "short":
+            case "static":
+            case "this":
+            case "true":
+            case "void":
+            case "while":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SizeEstimate(constantPool=" + constantPoolEntries()
+                + ", bytecode=" + bytecode + ", chars=" + chars + ")";
+    }
+}
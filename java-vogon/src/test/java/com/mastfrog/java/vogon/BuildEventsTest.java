@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.java.vogon;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class BuildEventsTest {
+
+    private static final String EVENT = "com.mastfrog.java.vogon.ClassBuilderBuild";
+
+    @Test
+    public void testBuildIsRecorded() throws Exception {
+        Path file = Files.createTempFile("build", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(EVENT).withoutThreshold();
+            recording.start();
+            String source = ClassBuilder.forPackage("com.foo").named("Recorded").build();
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            RecordedEvent found = null;
+            for (RecordedEvent e : events) {
+                if (EVENT.equals(e.getEventType().getName())
+                        && "com.foo.Recorded".equals(e.getString("className"))) {
+                    found = e;
+                }
+            }
+            if (found == null) {
+                throw new AssertionError("No build event in " + events);
+            }
+            assertEquals(source.length(), found.getLong("sourceLength"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testNothingIsRecordedWithoutJfr() throws Exception {
+        URL classes = BuildEvents.class.getProtectionDomain().getCodeSource().getLocation();
+        try (Recording recording = new Recording();
+                NoJfrClassLoader loader = new NoJfrClassLoader(classes, BuildEvents.class)) {
+            recording.enable(EVENT).withoutThreshold();
+            recording.start();
+            assertThrows(ClassNotFoundException.class,
+                    () -> Class.forName("jdk.jfr.Event", false, loader));
+            Class<?> events = Class.forName(BuildEvents.class.getName(), true, loader);
+            assertEquals(loader, events.getClassLoader());
+            Method start = events.getDeclaredMethod("start");
+            start.setAccessible(true);
+            assertNull(start.invoke(null));
+            Method finish = events.getDeclaredMethod("finish", Object.class, ClassBuilder.class, Object.class);
+            finish.setAccessible(true);
+            finish.invoke(null, null, ClassBuilder.forPackage("com.foo").named("NotRecorded"), "x");
+            recording.stop();
+        }
+    }
+
+    /**
+     * Loads one class and its nested classes itself, from the passed location,
+     * and behaves as if jdk.jfr did not exist.
+     */
+    static final class NoJfrClassLoader extends URLClassLoader {
+
+        private final String prefix;
+
+        NoJfrClassLoader(URL location, Class<?> isolated) {
+            super(new URL[]{location}, isolated.getClassLoader());
+            prefix = isolated.getName();
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith("jdk.jfr.")) {
+                throw new ClassNotFoundException(name);
+            }
+            if (!name.equals(prefix) && !name.startsWith(prefix + "$")) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> result = findLoadedClass(name);
+                if (result == null) {
+                    result = findClass(name);
+                }
+                if (resolve) {
+                    resolveClass(result);
+                }
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.java.vogon;
+
+import com.mastfrog.code.generation.common.CodeGenerator;
+import com.mastfrog.java.vogon.ClassBuilder.BlockBuilderBase;
+import com.mastfrog.java.vogon.ClassBuilder.DeclarationBuilder;
+import com.mastfrog.java.vogon.ClassBuilder.MethodBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class CodeVisitorTest {
+
+    @Test
+    public void testReferencedTypes() {
+        Set<String> types = new LinkedHashSet<>();
+        sample().accept(new ClassBuilder.CodeVisitor() {
+            @Override
+            public void visitTypeReference(String typeName) {
+                types.add(typeName);
+            }
+        });
+        assertTrue(types.contains("java.util.List<String>"), types::toString);
+        assertTrue(types.contains("java.io.IOException"), types::toString);
+        assertTrue(types.contains("Runnable"), types::toString);
+        assertTrue(types.contains("int"), types::toString);
+        assertTrue(types.contains("StringBuilder"), types::toString);
+    }
+
+    @Test
+    public void testStatementCountAndDuplicateLocals() {
+        Locals locals = sample().accept(new Locals());
+        // a, if, b, b, a, sb, return in compute(); the run() body is skipped
+        assertEquals(7, locals.statements);
+        // b is declared once in each branch, which are separate scopes
+        assertEquals(Collections.singletonList("a"), locals.duplicates);
+        assertEquals(Collections.singletonList("compute"), locals.methods);
+    }
+
+    static final class Locals implements ClassBuilder.CodeVisitor {
+
+        private final LinkedList<Set<String>> scopes = new LinkedList<>();
+        final List<String> duplicates = new ArrayList<>();
+        final List<String> methods = new ArrayList<>();
+        int statements;
+
+        @Override
+        public boolean enterMethod(MethodBuilder<?> method) {
+            if ("run".equals(method.name())) {
+                return false;
+            }
+            methods.add(method.name());
+            return true;
+        }
+
+        @Override
+        public boolean enterBlock(BlockBuilderBase<?, ?, ?> block) {
+            scopes.push(new HashSet<>());
+            return true;
+        }
+
+        @Override
+        public void exitBlock(BlockBuilderBase<?, ?, ?> block) {
+            scopes.pop();
+        }
+
+        @Override
+        public boolean enterStatement(CodeGenerator statement) {
+            statements++;
+            return true;
+        }
+
+        @Override
+        public boolean enterDeclaration(DeclarationBuilder<?> declaration) {
+            String name = declaration.declaredVariableName();
+            for (Set<String> scope : scopes) {
+                if (scope.contains(name)) {
+                    duplicates.add(name);
+                    return true;
+                }
+            }
+            scopes.peek().add(name);
+            return true;
+        }
+    }
+
+    private static ClassBuilder<String> sample() {
+        ClassBuilder<String> cb = ClassBuilder.forPackage(PartitioningTest.PKG)
+                .named("Visited").withModifier(PUBLIC, FINAL).implementing("Runnable");
+        cb.field("names").withModifier(PRIVATE, FINAL)
+                .initializedTo("new java.util.ArrayList<>()").ofType("java.util.List<String>");
+        cb.method("compute", mb -> {
+            mb.withModifier(PUBLIC).returning("int").addArgument("int", "x")
+                    .throwing("java.io.IOException").body(bb -> {
+                bb.declare("a").initializedTo(1);
+                bb.iff(ib -> ib.booleanExpression("x > 0").declare("b").initializedTo(2)
+                        .orElse(eb -> eb.declare("b").initializedTo(3)));
+                bb.declare("a").initializedTo(4);
+                bb.declare("sb").initializedWithNew(nb -> nb.ofType("StringBuilder")).as("StringBuilder");
+                bb.returning("a");
+            });
+        });
+        cb.method("run", mb -> {
+            mb.withModifier(PUBLIC).body(bb -> bb.statement("System.out.println(\"hello\")"));
+        });
+        return cb;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.java.vogon;
+
+import com.mastfrog.code.generation.common.general.Adhoc;
+import com.mastfrog.java.vogon.ClassBuilder.TypeNameItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class InterningTest {
+
+    @Test
+    public void testTokensAreShared() {
+        assertSame(Adhoc.of("null"), Adhoc.of("null"));
+        assertSame(Adhoc.of("someLocalVariable"), Adhoc.of(new String("someLocalVariable")));
+        assertSame(TypeNameItem.of("int"), TypeNameItem.of("int"));
+        assertSame(TypeNameItem.of("com.foo.Bar"), TypeNameItem.of("com.foo.Bar"));
+        assertEquals(new Adhoc("x"), Adhoc.of("x"));
+        StringBuilder longExpression = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            longExpression.append("a").append(i).append(" + ");
+        }
+        longExpression.append("b");
+        String expr = longExpression.toString();
+        assertNotSame(Adhoc.of(expr), Adhoc.of(expr));
+        assertEquals(Adhoc.of(expr), Adhoc.of(expr));
+    }
+
+    @Test
+    public void testInternedTokensRenderIdentically() {
+        ClassBuilder<String> cb = ClassBuilder.forPackage(PartitioningTest.PKG).named("Interned");
+        for (int i = 0; i < 3; i++) {
+            int ix = i;
+            cb.method("m" + i, mb -> mb.returning("int").addArgument("int", "x")
+                    .body(bb -> bb.returning(ClassBuilder.variable("x").plus(ClassBuilder.number(ix)))));
+        }
+        String txt = cb.build();
+        assertEquals(3, txt.split("return x \\+ ", -1).length - 1, txt);
+    }
+}
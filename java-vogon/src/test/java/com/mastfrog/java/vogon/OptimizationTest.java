@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.java.vogon;
+
+import static com.mastfrog.java.vogon.ClassBuilder.number;
+import static com.mastfrog.java.vogon.ClassBuilder.variable;
+import com.mastfrog.java.vogon.ClassBuilder.Value;
+import com.mastfrog.util.file.FileUtils;
+import java.nio.file.Path;
+import java.util.Collections;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class OptimizationTest {
+
+    @Test
+    public void testUnoptimizedOutputIsUnchanged() {
+        String txt = sample(false).build();
+        assertTrue(txt.contains("return 2 + 3 * 4;"), txt);
+        assertTrue(txt.contains("\"a\" + \"b\" + x"), txt);
+        assertTrue(txt.contains("if (false)"), txt);
+    }
+
+    @Test
+    public void testOptimizedOutput() throws Exception {
+        ClassBuilder<String> cb = sample(true);
+        String txt = cb.build();
+        // Folded following precedence, not the order the builder was called in
+        assertTrue(txt.contains("return 14;"), txt);
+        // Numeric identities are kept, since the operand's type is unknown
+        assertTrue(txt.contains("return x * 1 + 6;"), txt);
+        assertTrue(txt.contains("return x * 1L;"), txt);
+        assertTrue(txt.contains("return c + 0;"), txt);
+        assertTrue(txt.contains("return d + 0;"), txt);
+        assertTrue(txt.contains("return b;"), txt);
+        // x + 1 + 2 is not 3 + x if x is a string
+        assertTrue(txt.contains("return x + 1 + 2;"), txt);
+        assertTrue(txt.contains("return \"ab\" + x + 1 + \"c\";"), txt);
+        assertTrue(txt.contains("return x + 2;"), txt);
+        assertFalse(txt.contains("never"), txt);
+        assertFalse(txt.contains("if (false)"), txt);
+        // Unwrapping if (true) { return 1; } would make the next
+        // statement unreachable, so it must be left alone
+        assertTrue(txt.contains("if (true)"), txt);
+        assertEquals(txt, cb.build(), "Optimizing twice should be harmless");
+
+        Path dir = FileUtils.newTempDir();
+        try {
+            Class<?> type = PartitioningTest.compileAndLoad(dir,
+                    Collections.singletonList(cb), "Optimized");
+            assertEquals(14, type.getMethod("constant").invoke(null));
+            assertEquals(16, type.getMethod("partial", int.class).invoke(null, 10));
+            assertEquals(1, type.getMethod("guarded").invoke(null));
+            assertEquals("ab11c", type.getMethod("concat", int.class).invoke(null, 1));
+            assertEquals(3L, type.getMethod("widened", int.class).invoke(null, 3));
+            assertEquals((int) 'a', type.getMethod("promoted", char.class).invoke(null, 'a'));
+            assertEquals(0.0D, type.getMethod("negativeZero", double.class).invoke(null, -0.0D));
+            assertEquals(true, type.getMethod("logical", boolean.class).invoke(null, true));
+        } finally {
+            FileUtils.deltree(dir);
+        }
+    }
+
+    private static ClassBuilder<String> sample(boolean optimize) {
+        ClassBuilder<String> cb = ClassBuilder.forPackage(PartitioningTest.PKG)
+                .named("Optimized").withModifier(PUBLIC, FINAL);
+        if (optimize) {
+            cb.optimizing();
+        }
+        cb.method("constant", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("int").body(bb -> {
+                bb.iff(Value.FALSE).statement("System.out.println(\"never\")").endIf();
+                bb.returningValue().numeric(2).plus(3).times(4).endNumericExpression();
+            });
+        });
+        cb.method("partial", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("int").addArgument("int", "x")
+                    .body(bb -> bb.returning(variable("x").times(number(1))
+                    .plus(number(2).times(number(3)))));
+        });
+        cb.method("unfoldable", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("String").addArgument("String", "x")
+                    .body(bb -> bb.returning(variable("x").plus(number(1)).plus(number(2))));
+        });
+        cb.method("parens", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("int").addArgument("int", "x")
+                    .body(bb -> bb.returning(variable("x").parenthesized()
+                    .plus(number(2).parenthesized())));
+        });
+        cb.method("guarded", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("int").body(bb -> {
+                bb.iff(Value.TRUE).returning(1).endIf();
+                bb.returning(2);
+            });
+        });
+        cb.method("concat", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("String").addArgument("int", "x")
+                    .body(bb -> bb.returningStringConcatenation().append("a").append("b")
+                    .appendExpression("x").append(1).append("c").endConcatenation());
+        });
+        cb.method("widened", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("Object").addArgument("int", "x")
+                    .body(bb -> bb.returning(variable("x").times(number(1L))));
+        });
+        cb.method("promoted", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("Object").addArgument("char", "c")
+                    .body(bb -> bb.returning(variable("c").plus(number(0))));
+        });
+        cb.method("negativeZero", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("Object").addArgument("double", "d")
+                    .body(bb -> bb.returning(variable("d").plus(number(0))));
+        });
+        cb.method("logical", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("boolean").addArgument("boolean", "b")
+                    .body(bb -> bb.returning(Value.TRUE.logicalAndWith(variable("b"))));
+        });
+        return cb;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2026 Mastfrog Technologies.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.java.vogon;
+
+import com.mastfrog.util.file.FileUtils;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import javax.lang.model.element.Modifier;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class PartitioningTest {
+
+    static final String PKG = "com.mastfrog.java.vogon.parts";
+
+    @Test
+    public void testSmallClassIsNotPartitioned() {
+        ClassBuilder<String> cb = ClassBuilder.forPackage(PKG).partitioned()
+                .named("Small").withModifier(PUBLIC, FINAL);
+        cb.field("TABLE").withModifier(PRIVATE, STATIC, FINAL)
+                .initializedTo("new int[] {1, 2, 3}").ofType("int[]");
+        String txt = cb.build();
+        assertTrue(cb.partitions().isEmpty());
+        assertTrue(txt.contains("private static final int[] TABLE"), txt);
+    }
+
+    @Test
+    public void testPartitionedClassCompilesAndRuns() throws Exception {
+        ClassBuilder<String> cb = bigTables(PartitionLimits.DEFAULT
+                .withMaxSourceChars(4000).withCompanionSuffix("Data"));
+        String facade = cb.build();
+        List<ClassBuilder<String>> parts = cb.partitions();
+        assertTrue(parts.size() > 1, facade);
+        assertFalse(facade.contains("TABLE_10 ="), facade);
+        assertTrue(facade.contains("import static " + PKG + ".BigTablesData1.*;"), facade);
+        for (ClassBuilder<String> part : parts) {
+            String txt = part.build();
+            assertTrue(part.className().startsWith("BigTablesData"), part.className());
+            assertTrue(txt.contains("final class " + part.className()), txt);
+            assertFalse(txt.contains("public final class"), txt);
+            assertFalse(txt.contains("private static"), txt);
+            assertTrue(txt.length() < 5000, txt);
+        }
+        List<ClassBuilder<String>> all = new ArrayList<>(parts);
+        all.add(0, cb);
+        Path dir = FileUtils.newTempDir();
+        try {
+            Class<?> type = compileAndLoad(dir, all, "BigTables");
+            int expected = 0;
+            for (int i = 0; i < 100; i++) {
+                expected += i * 3 + 1;
+            }
+            assertEquals(expected, type.getMethod("sum").invoke(null));
+        } finally {
+            FileUtils.deltree(dir);
+        }
+    }
+
+    @Test
+    public void testOversizedArrayLiteralIsSplit() throws Exception {
+        ClassBuilder<String> cb = ClassBuilder.forPackage(PKG).named("HugeTable")
+                .partitioned().withModifier(PUBLIC, FINAL);
+        int count = 20_000;
+        cb.field("TABLE").withModifier(PRIVATE, STATIC, FINAL)
+                .initializedAsArrayLiteral("int", alb -> {
+                    for (int i = 0; i < count; i++) {
+                        alb.literal(i * 7);
+                    }
+                });
+        cb.method("sum", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("long").body(bb -> {
+                bb.statement("long result = 0");
+                bb.statement("for (int v : TABLE) { result += v; }");
+                bb.returning("result");
+            });
+        });
+        cb.method("length", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("int")
+                    .body(bb -> bb.returning("TABLE.length"));
+        });
+        String facade = cb.build();
+        List<ClassBuilder<String>> all = new ArrayList<>(cb.partitions());
+        assertTrue(all.size() > 1, facade);
+        StringBuilder parts = new StringBuilder();
+        for (ClassBuilder<String> part : all) {
+            parts.append(part.build());
+        }
+        assertTrue(parts.indexOf("TABLE = TABLE$init()") >= 0, parts::toString);
+        all.add(0, cb);
+        Path dir = FileUtils.newTempDir();
+        try {
+            // A single literal this size is too large for a static initializer
+            Class<?> type = compileAndLoad(dir, all, "HugeTable");
+            long expected = 0;
+            for (int i = 0; i < count; i++) {
+                expected += i * 7;
+            }
+            assertEquals(count, type.getMethod("length").invoke(null));
+            assertEquals(expected, type.getMethod("sum").invoke(null));
+        } finally {
+            FileUtils.deltree(dir);
+        }
+    }
+
+    @Test
+    public void testPinnedPrivateMembersAreVisibleToCompanions() throws Exception {
+        ClassBuilder<String> cb = ClassBuilder.forPackage(PKG).named("Pinned")
+                .partitioned(PartitionLimits.DEFAULT.withMaxSourceChars(3000))
+                .withModifier(PUBLIC, FINAL);
+        // Members which cannot move, but which the moved methods use: a
+        // private nested type, instance field and constructor, and a
+        // private static method kept here by its public overload
+        cb.innerClass("Box", ib -> {
+            ib.withModifier(PRIVATE, STATIC, FINAL);
+            ib.field("value").withModifier(FINAL).ofType("int");
+            ib.constructor(con -> {
+                con.addArgument("int", "value").body(bb -> bb.statement("this.value = value"));
+            });
+        });
+        cb.field("count").withModifier(PRIVATE).initializedTo("1").ofType("int");
+        cb.constructor(con -> con.setModifier(PRIVATE).emptyBody());
+        cb.method("twice", mb -> {
+            mb.withModifier(PRIVATE, STATIC).addArgument("int", "x").returning("int")
+                    .body(bb -> bb.returning("x * 2"));
+        });
+        cb.method("twice", mb -> {
+            mb.withModifier(PUBLIC, STATIC).addArgument("String", "s").returning("String")
+                    .body(bb -> bb.returning("s + s"));
+        });
+        cb.method("unused", mb -> {
+            mb.withModifier(PRIVATE).returning("int").body(bb -> bb.returning("count"));
+        });
+        StringBuilder sum = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            int ix = i;
+            cb.method("value" + i, mb -> {
+                mb.withModifier(PRIVATE, STATIC).returning("int").body(bb -> {
+                    bb.returning("twice(" + ix + ") + new Box(" + ix + ").value + new Pinned().count");
+                });
+            });
+            if (sum.length() > 0) {
+                sum.append(" + ");
+            }
+            sum.append("value").append(i).append("()");
+        }
+        cb.method("sum", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("int")
+                    .body(bb -> bb.returning(sum.toString()));
+        });
+        String facade = cb.build();
+        List<ClassBuilder<String>> all = new ArrayList<>(cb.partitions());
+        assertTrue(all.size() > 1, facade);
+        assertFalse(facade.contains("value0()  {"), facade);
+        assertFalse(facade.contains("private static int twice"), facade);
+        assertFalse(facade.contains("private static final class Box"), facade);
+        assertFalse(facade.contains("private int count"), facade);
+        assertFalse(facade.contains("private Pinned()"), facade);
+        // Nothing moved refers to it, so it stays private
+        assertTrue(facade.contains("private int unused"), facade);
+        all.add(0, cb);
+        Path dir = FileUtils.newTempDir();
+        try {
+            Class<?> type = compileAndLoad(dir, all, "Pinned");
+            int expected = 0;
+            for (int i = 0; i < 100; i++) {
+                expected += i * 3 + 1;
+            }
+            assertEquals(expected, type.getMethod("sum").invoke(null));
+        } finally {
+            FileUtils.deltree(dir);
+        }
+    }
+
+    private static ClassBuilder<String> bigTables(PartitionLimits limits) {
+        ClassBuilder<String> cb = ClassBuilder.forPackage(PKG).named("BigTables")
+                .partitioned(limits)
+                .withModifier(PUBLIC, FINAL);
+        StringBuilder sum = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            cb.field("TABLE_" + i).withModifier(PRIVATE, STATIC, FINAL)
+                    .initializedTo("new int[] {" + i + ", " + (i * 2) + ", "
+                            + (i * 3) + ", 1}").ofType("int[]");
+            int ix = i;
+            cb.method("value" + i, mb -> {
+                mb.withModifier(PRIVATE, STATIC).returning("int")
+                        .body(bb -> bb.returning("TABLE_" + ix + "[2] + TABLE_" + ix + "[3]"));
+            });
+            if (sum.length() > 0) {
+                sum.append(" + ");
+            }
+            sum.append("value").append(i).append("()");
+        }
+        cb.method("sum", mb -> {
+            mb.withModifier(PUBLIC, STATIC).returning("int")
+                    .body(bb -> bb.returning(sum.toString()));
+        });
+        return cb;
+    }
+
+    static Class<?> compileAndLoad(Path dir, List<ClassBuilder<String>> sources, String name) throws Exception {
+        Path pkgDir = dir.resolve(PKG.replace('.', '/'));
+        Files.createDirectories(pkgDir);
+        JavaCompiler compiler = javax.tools.ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager mgr = compiler.getStandardFileManager(
+                new GenerateClassesTest.DL(), Locale.US, UTF_8);
+        mgr.setLocation(StandardLocation.SOURCE_PATH, Collections.singleton(dir.toFile()));
+        mgr.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singleton(dir.toFile()));
+        List<JavaFileObject> fos = new ArrayList<>();
+        for (ClassBuilder<String> cb : sources) {
+            Files.write(pkgDir.resolve(cb.className() + ".java"), cb.build().getBytes(UTF_8));
+            fos.add(mgr.getJavaFileForInput(StandardLocation.SOURCE_PATH, cb.fqn(), JavaFileObject.Kind.SOURCE));
+        }
+        assertTrue(compiler.getTask(null, mgr, new GenerateClassesTest.DL(),
+                Collections.emptySet(), Collections.emptyList(), fos).call());
+        URLClassLoader ldr = new URLClassLoader(new URL[]{dir.toUri().toURL()},
+                PartitioningTest.class.getClassLoader());
+        return ldr.loadClass(PKG + "." + name);
+    }
+}